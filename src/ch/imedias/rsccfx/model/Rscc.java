@@ -43,6 +43,9 @@ public class Rscc {
   public static final int DEFAULT_ICE_PORT = 5050;
   public static final int DEFAULT_PROXY_PORT = 2601;
   public static final int DEFAULT_UDP_PACKAGE_SIZE = 10000;
+  public static final int DEFAULT_MAX_SEND_RATE = 0;
+  public static final int DEFAULT_MAX_OUTSTANDING_UPDATES = 0;
+  public static final int DEFAULT_RECTANGLE_CACHE_SIZE = 0;
   public static final boolean DEFAULT_FORCING_SERVER_MODE = false;
   public static final boolean DEFAULT_VNC_VIEW_ONLY = false;
   public static final boolean DEFAULT_VNC_BGR_233 = false;
@@ -56,6 +59,9 @@ public class Rscc {
   public static final String PREFERENCES_VNC_PORT = "vncPort";
   public static final String PREFERENCES_ICE_PORT = "icePort";
   public static final String PREFERENCES_UDP_PACKAGE_SIZE = "udpPackageSize";
+  public static final String PREFERENCES_MAX_SEND_RATE = "maxSendRate";
+  public static final String PREFERENCES_MAX_OUTSTANDING_UPDATES = "maxOutstandingUpdates";
+  public static final String PREFERENCES_RECTANGLE_CACHE_SIZE = "rectangleCacheSize";
   public static final String PREFERENCES_PROXY_PORT = "proxyPort";
   public static final String PREFERENCES_STUN_SERVER_PORT = "stunServerPort";
   public static final String PREFERENCES_FORCING_SERVER_MODE = "forcingServerMode";
@@ -67,8 +73,6 @@ public class Rscc {
   public static final String DELIMITER = ";";
 
   private static String[] STUN_SERVERS;
-  private static final int PACKAGE_SIZE = 10000; // needed, since a static method access it.
-  // TODO: make access depend on current setting
   private static final Logger LOGGER =
       Logger.getLogger(Rscc.class.getName());
   /**
@@ -83,6 +87,7 @@ public class Rscc {
    * ".rscc" is a hidden folder in the user's home directory (e.g. /home/user)
    */
   private static final String RSCC_FOLDER_NAME = ".config/rscc";
+  private static final String RECTANGLE_CACHE_FILE_NAME = "rectangle-cache";
   private static final String[] EXTRACTED_RESOURCES =
       {DOCKER_FOLDER_NAME, DEFAULT_SUPPORTERS_FILE_NAME};
   public static final UnaryOperator<String> REMOVE_FILE_IN_PATH =
@@ -113,8 +118,18 @@ public class Rscc {
   private final DoubleProperty vncQuality = new SimpleDoubleProperty();
   private final DoubleProperty vncCompression = new SimpleDoubleProperty();
   private final BooleanProperty vncBgr233 = new SimpleBooleanProperty();
+  // largest RUDP segment in bytes; path MTU discovery never goes above 1452 bytes, since the
+  // DF bit cannot be set on Java 8 and larger segments would be fragmented
   private final IntegerProperty udpPackageSize = new SimpleIntegerProperty(
-      getUdpPackageSizeStatic());
+      DEFAULT_UDP_PACKAGE_SIZE);
+  // bandwidth limit of the RUDP connection in kbit/s, 0 for no limit
+  private final IntegerProperty maxSendRate = new SimpleIntegerProperty(DEFAULT_MAX_SEND_RATE);
+  // screen updates the viewer may have requested at once over RUDP, 0 for no limit
+  private final IntegerProperty maxOutstandingUpdates = new SimpleIntegerProperty(
+      DEFAULT_MAX_OUTSTANDING_UPDATES);
+  // screen rectangles the viewer keeps between sessions in MB, 0 for none
+  private final IntegerProperty rectangleCacheSize = new SimpleIntegerProperty(
+      DEFAULT_RECTANGLE_CACHE_SIZE);
   private final IntegerProperty proxyPort = new SimpleIntegerProperty();
   private final IntegerProperty stunServerPort = new SimpleIntegerProperty();
   private final BooleanProperty forcingServerMode = new SimpleBooleanProperty(false);
@@ -177,6 +192,11 @@ public class Rscc {
     setVncPort(preferences.getInt(PREFERENCES_VNC_PORT, DEFAULT_VNC_PORT));
     setIcePort(preferences.getInt(PREFERENCES_ICE_PORT, DEFAULT_ICE_PORT));
     setUdpPackageSize(preferences.getInt(PREFERENCES_UDP_PACKAGE_SIZE, DEFAULT_UDP_PACKAGE_SIZE));
+    setMaxSendRate(preferences.getInt(PREFERENCES_MAX_SEND_RATE, DEFAULT_MAX_SEND_RATE));
+    setMaxOutstandingUpdates(preferences.getInt(PREFERENCES_MAX_OUTSTANDING_UPDATES,
+        DEFAULT_MAX_OUTSTANDING_UPDATES));
+    setRectangleCacheSize(preferences.getInt(PREFERENCES_RECTANGLE_CACHE_SIZE,
+        DEFAULT_RECTANGLE_CACHE_SIZE));
     setProxyPort(preferences.getInt(PREFERENCES_PROXY_PORT, DEFAULT_PROXY_PORT));
     setStunServerPort(preferences.getInt(PREFERENCES_STUN_SERVER_PORT, DEFAULT_STUN_SERVER_PORT));
     setVncViewOnly(preferences.getBoolean(PREFERENCES_VNC_VIEW_ONLY, DEFAULT_VNC_VIEW_ONLY));
@@ -200,6 +220,9 @@ public class Rscc {
     preferences.putInt(PREFERENCES_VNC_PORT, getVncPort());
     preferences.putInt(PREFERENCES_ICE_PORT, getIcePort());
     preferences.putInt(PREFERENCES_UDP_PACKAGE_SIZE, getUdpPackageSize());
+    preferences.putInt(PREFERENCES_MAX_SEND_RATE, getMaxSendRate());
+    preferences.putInt(PREFERENCES_MAX_OUTSTANDING_UPDATES, getMaxOutstandingUpdates());
+    preferences.putInt(PREFERENCES_RECTANGLE_CACHE_SIZE, getRectangleCacheSize());
     preferences.putInt(PREFERENCES_PROXY_PORT, getProxyPort());
     preferences.putInt(PREFERENCES_STUN_SERVERS, getStunServerPort());
     preferences.putBoolean(PREFERENCES_VNC_VIEW_ONLY, getVncViewOnly());
@@ -212,11 +235,6 @@ public class Rscc {
     LOGGER.info("Saved UserPrefs");
   }
 
-  public static int getUdpPackageSizeStatic() {
-    return PACKAGE_SIZE;
-  }
-
-
   /**
    * Sets resource path, according to the application running either as a JAR or in the IDE.
    */
@@ -862,6 +880,42 @@ public class Rscc {
     return udpPackageSize;
   }
 
+  public int getMaxSendRate() {
+    return maxSendRate.get();
+  }
+
+  public void setMaxSendRate(int maxSendRate) {
+    this.maxSendRate.set(maxSendRate);
+  }
+
+  public IntegerProperty maxSendRateProperty() {
+    return maxSendRate;
+  }
+
+  public int getMaxOutstandingUpdates() {
+    return maxOutstandingUpdates.get();
+  }
+
+  public void setMaxOutstandingUpdates(int maxOutstandingUpdates) {
+    this.maxOutstandingUpdates.set(maxOutstandingUpdates);
+  }
+
+  public IntegerProperty maxOutstandingUpdatesProperty() {
+    return maxOutstandingUpdates;
+  }
+
+  public int getRectangleCacheSize() {
+    return rectangleCacheSize.get();
+  }
+
+  public void setRectangleCacheSize(int rectangleCacheSize) {
+    this.rectangleCacheSize.set(rectangleCacheSize);
+  }
+
+  public IntegerProperty rectangleCacheSizeProperty() {
+    return rectangleCacheSize;
+  }
+
   public IntegerProperty proxyPortProperty() {
     return proxyPort;
   }
@@ -890,6 +944,14 @@ public class Rscc {
     return pathToDefaultSupporters;
   }
 
+  /**
+   * Returns the path of the file the viewer keeps its rectangle cache in between sessions.
+   */
+  public String getPathToRectangleCache() {
+    return System.getProperty("user.home") + "/" + RSCC_FOLDER_NAME + "/"
+        + RECTANGLE_CACHE_FILE_NAME;
+  }
+
   public RunRudp getRudp() {
     return rudp;
   }
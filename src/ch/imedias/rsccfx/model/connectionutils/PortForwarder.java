@@ -0,0 +1,234 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Forwards TCP connections through the streams of one multiplexed RUDP connection, so that
+ * several local ports can be reached over a single peer-to-peer path.
+ *
+ * <p>One side exposes a port under a service number, the other side forwards a local port to
+ * that service. Each TCP connection accepted on the forwarded port opens a stream, which the
+ * peer connects to the exposed port on its loopback interface. Streams for services that are
+ * not exposed are refused.
+ *
+ * <p>Each connection is pumped to and from its stream by a {@link ProxyPump}, from a single
+ * event loop. The data of a service can go through a chain of {@link ProxyFilter}s, which are
+ * created for each connection.
+ *
+ * <p>On interactive ports, such as the port of a VNC viewer, small reads are taken for input
+ * events and sent through the expedited lane of the RUDP connection, ahead of bulk data.
+ */
+public class PortForwarder implements Closeable {
+  private static final Logger LOGGER = Logger.getLogger(PortForwarder.class.getName());
+  private static final int BUFFER_SIZE = 16384;
+  // Largest read of an interactive connection that is sent as input events
+  static final int MAX_INPUT_SIZE = 256;
+
+  private final ReliableSocketMultiplexer multiplexer;
+  private static final Supplier<ProxyFilter[]> NO_FILTERS = () -> new ProxyFilter[0];
+
+  private final Map<Integer, Integer> exposedPorts = new ConcurrentHashMap<>();
+  private final Map<Integer, Supplier<ProxyFilter[]>> exposedFilters = new ConcurrentHashMap<>();
+  private final Map<Integer, CountDownLatch> firstTunnels = new ConcurrentHashMap<>();
+  private final List<Closeable> closeables = new CopyOnWriteArrayList<>();
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a new PortForwarder and starts accepting the streams opened by the peer.
+   *
+   * @param multiplexer the multiplexer of the RUDP connection.
+   */
+  public PortForwarder(ReliableSocketMultiplexer multiplexer) {
+    this.multiplexer = multiplexer;
+    startThread("PortForwarder-accept", this::acceptStreams);
+  }
+
+  /**
+   * Lets the peer connect to a local port.
+   *
+   * @param service the service number the peer opens streams for.
+   * @param port    the port on the loopback interface to connect the streams to.
+   */
+  public void expose(int service, int port) {
+    expose(service, port, NO_FILTERS);
+  }
+
+  /**
+   * Lets the peer connect to a local port, passing the data through filters.
+   *
+   * @param service the service number the peer opens streams for.
+   * @param port    the port on the loopback interface to connect the streams to.
+   * @param filters creates the filters of each connection, in order from the port to the peer.
+   */
+  public void expose(int service, int port, Supplier<ProxyFilter[]> filters) {
+    exposedFilters.put(service, filters);
+    exposedPorts.put(service, port);
+  }
+
+  /**
+   * Forwards the TCP connections to a local port to a service exposed by the peer.
+   *
+   * @param localPort the port to listen on.
+   * @param service   the service number exposed by the peer.
+   * @throws IOException if the port cannot be listened on.
+   */
+  public void forward(int localPort, int service) throws IOException {
+    forward(localPort, service, false);
+  }
+
+  /**
+   * Forwards the TCP connections to a local port to a service exposed by the peer.
+   *
+   * @param localPort   the port to listen on.
+   * @param service     the service number exposed by the peer.
+   * @param interactive whether small reads from the connections are expedited.
+   * @throws IOException if the port cannot be listened on.
+   */
+  public void forward(int localPort, int service, boolean interactive) throws IOException {
+    forward(localPort, service, interactive, NO_FILTERS);
+  }
+
+  /**
+   * Forwards the TCP connections to a local port to a service exposed by the peer, passing the
+   * data through filters.
+   *
+   * @param localPort   the port to listen on.
+   * @param service     the service number exposed by the peer.
+   * @param interactive whether small reads from the connections are expedited.
+   * @param filters     creates the filters of each connection, in order from the port to the
+   *                    peer.
+   * @throws IOException if the port cannot be listened on.
+   */
+  public void forward(int localPort, int service, boolean interactive,
+      Supplier<ProxyFilter[]> filters) throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    closeables.add(serverChannel);
+    serverChannel.bind(new InetSocketAddress(localPort));
+    LOGGER.info("Forwarding port " + localPort + " to service " + service);
+    startThread("PortForwarder-" + localPort, () -> {
+      while (!closed) {
+        SocketChannel channel;
+        try {
+          channel = serverChannel.accept();
+        } catch (IOException e) {
+          if (!closed) {
+            LOGGER.info(e.getMessage());
+          }
+          return;
+        }
+        try {
+          tunnel(channel, multiplexer.openStream(service), service, interactive, filters.get());
+        } catch (IOException e) {
+          LOGGER.info(e.getMessage());
+          closeQuietly(channel);
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until the first connection for a service has been closed, or the forwarder has been.
+   *
+   * @param service the service number.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void awaitTunnelClosed(int service) throws InterruptedException {
+    CountDownLatch latch = firstTunnel(service);
+    if (closed) {
+      latch.countDown();
+    }
+    latch.await();
+  }
+
+  /**
+   * Closes the forwarded ports, all the connections and the RUDP connection.
+   */
+  public void close() {
+    closed = true;
+    closeables.forEach(PortForwarder::closeQuietly);
+    closeQuietly(multiplexer);
+    firstTunnels.values().forEach(CountDownLatch::countDown);
+  }
+
+  private void acceptStreams() {
+    while (!closed) {
+      ReliableSocketMultiplexer.Stream stream;
+      try {
+        stream = multiplexer.acceptStream();
+      } catch (IOException e) {
+        if (!closed) {
+          LOGGER.info(e.getMessage());
+        }
+        close();
+        return;
+      }
+
+      Integer port = exposedPorts.get(stream.getService());
+      if (port == null) {
+        LOGGER.warning("Refused stream for service " + stream.getService());
+        closeQuietly(stream);
+        continue;
+      }
+      // Connecting may take a while, and must not hold up the other streams
+      startThread("PortForwarder-connect", () -> {
+        try {
+          SocketChannel channel = SocketChannel.open(
+              new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+          tunnel(channel, stream, stream.getService(), false,
+              exposedFilters.get(stream.getService()).get());
+        } catch (IOException e) {
+          LOGGER.info(e.getMessage());
+          closeQuietly(stream);
+        }
+      });
+    }
+  }
+
+  /**
+   * Pumps a TCP connection and a stream in both directions on a thread of their own until both
+   * are at their end, then closes them.
+   */
+  private void tunnel(SocketChannel channel, ReliableSocketMultiplexer.Stream stream, int service,
+      boolean interactive, ProxyFilter[] filters) throws IOException {
+    channel.socket().setTcpNoDelay(true);
+    ProxyPump pump = new ProxyPump(channel, stream, BUFFER_SIZE, interactive, filters);
+    closeables.add(pump);
+    LOGGER.info("Tunneling " + channel.socket().getRemoteSocketAddress() + " through " + stream);
+    startThread("PortForwarder-tunnel", () -> {
+      pump.run();
+      closeables.remove(pump);
+      firstTunnel(service).countDown();
+    });
+  }
+
+  private CountDownLatch firstTunnel(int service) {
+    return firstTunnels.computeIfAbsent(service, key -> new CountDownLatch(1));
+  }
+
+  private static void startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOGGER.info(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Passes the data of a {@link ProxyPump} on between its TCP connection and its RUDP connection,
+ * changing it on the way.
+ *
+ * <p>A filter is called on each turn of the event loop of the pump, also without new data, so
+ * that it can send data of its own. It reads as much of the source as it can pass on with the
+ * room in the destination, and keeps what it holds back until it is called again. A filter is
+ * not thread-safe.
+ */
+public interface ProxyFilter {
+  /**
+   * Passes the data read from the TCP connection on towards the RUDP connection.
+   *
+   * @param src the data from the TCP connection.
+   * @param dst the buffer for the data to send on.
+   * @param now the current time in milliseconds.
+   * @throws IOException if the data cannot be passed on.
+   */
+  void filterUpstream(ByteBuffer src, ByteBuffer dst, long now) throws IOException;
+
+  /**
+   * Passes the data read from the RUDP connection on towards the TCP connection.
+   *
+   * @param src the data from the RUDP connection.
+   * @param dst the buffer for the data to send on.
+   * @throws IOException if the data cannot be passed on.
+   */
+  void filterDownstream(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+  /**
+   * Returns the time until the filter has data to send without new data.
+   *
+   * @param now the current time in milliseconds.
+   * @return the time in milliseconds, 0 if it has data to send now, or -1 if it has none.
+   */
+  long millisUntilRelease(long now);
+
+  /**
+   * Returns true if the filter has passed on all the data towards the RUDP connection that it
+   * is going to.
+   */
+  boolean isUpstreamDrained();
+
+  /**
+   * Returns true if the filter has passed on all the data towards the TCP connection that it is
+   * going to.
+   */
+  boolean isDownstreamDrained();
+}
@@ -0,0 +1,362 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketChannel;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketReadyListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Pumps the data between a TCP connection and a RUDP connection in both directions from a
+ * single event loop.
+ *
+ * <p>The RUDP side is either a whole RUDP socket, or a stream of a multiplexed RUDP connection.
+ * The TCP channel is registered with a selector, and the RUDP socket or stream, whose channel
+ * cannot be, wakes the selector up through a ready listener. Each direction goes through a
+ * direct buffer. While the send window of the RUDP connection, or the allowance of the stream,
+ * is full, the TCP connection is not read, so that its sender is held back by TCP flow control
+ * rather than by a growing buffer.
+ *
+ * <p>The end of either input is passed on once the data read before it has been written. The
+ * end of the TCP input closes a RUDP socket, which cannot be half-closed, after the data, and
+ * shuts down the output of a stream. The end of the RUDP input shuts down the output of the TCP
+ * connection. If that also ends the output of the RUDP side, the input of the TCP connection is
+ * then read until its end, and dropped.
+ *
+ * <p>On interactive connections, such as the one of a VNC viewer, small reads are taken for
+ * input events and sent through the expedited lane of the RUDP connection, if they can be sent
+ * at once. Otherwise they are sent with the other data once the RUDP side is ready, so that the
+ * event loop never waits for the send window.
+ *
+ * <p>The data can go through a chain of {@link ProxyFilter}s, such as the ones that coalesce the
+ * update requests of a VNC viewer, and cache the rectangles of its updates. The data from the
+ * TCP connection goes through the filters in order, and the data from the RUDP connection in
+ * reverse order, each filter reading from a buffer of its own.
+ */
+public class ProxyPump implements Closeable, ReliableSocketReadyListener,
+    ReliableSocketMultiplexer.StreamReadyListener {
+  private static final Logger LOGGER = Logger.getLogger(ProxyPump.class.getName());
+
+  private final SocketChannel tcpChannel;
+  private final ReliableSocket rudpSocket; // null if the RUDP side is a stream
+  private final ReliableSocketMultiplexer.Stream stream; // null if it is a socket
+  private final ByteChannel rudpChannel;
+  private final boolean interactive;
+  private final ProxyFilter[] filters;
+  private final ByteBuffer[] fromTcp; // from TCP to each filter
+  private final ByteBuffer[] fromRudp; // from RUDP to each filter
+  private final ByteBuffer upstream; // from TCP to RUDP
+  private final ByteBuffer downstream; // from RUDP to TCP
+  private final Selector selector;
+  private volatile boolean closed = false;
+
+  private boolean tcpInputEnded = false;
+  private boolean tcpOutputEnded = false;
+  private boolean rudpInputEnded = false;
+  private boolean rudpOutputEnded = false;
+
+  /**
+   * Creates a new ProxyPump.
+   *
+   * @param tcpChannel  the channel of the connected TCP socket.
+   * @param rudpSocket  the connected RUDP socket.
+   * @param bufferSize  the size of the buffer of each direction and filter.
+   * @param interactive whether small reads from the TCP connection are expedited.
+   * @param filters     the filters the data goes through, in order from TCP to RUDP.
+   * @throws IOException if the selector cannot be opened, or a socket is closed.
+   */
+  public ProxyPump(SocketChannel tcpChannel, ReliableSocket rudpSocket, int bufferSize,
+                   boolean interactive, ProxyFilter... filters) throws IOException {
+    this(tcpChannel, rudpSocket, null, rudpSocket.getChannel(), interactive, bufferSize,
+        filters);
+  }
+
+  /**
+   * Creates a new ProxyPump for a stream of a multiplexed RUDP connection.
+   *
+   * @param tcpChannel  the channel of the connected TCP socket.
+   * @param stream      the stream.
+   * @param bufferSize  the size of the buffer of each direction and filter.
+   * @param interactive whether small reads from the TCP connection are expedited.
+   * @param filters     the filters the data goes through, in order from TCP to RUDP.
+   * @throws IOException if the selector cannot be opened.
+   */
+  public ProxyPump(SocketChannel tcpChannel, ReliableSocketMultiplexer.Stream stream,
+                   int bufferSize, boolean interactive, ProxyFilter... filters)
+      throws IOException {
+    this(tcpChannel, null, stream, stream.getChannel(), interactive, bufferSize, filters);
+  }
+
+  private ProxyPump(SocketChannel tcpChannel, ReliableSocket rudpSocket,
+                    ReliableSocketMultiplexer.Stream stream, ByteChannel rudpChannel,
+                    boolean interactive, int bufferSize, ProxyFilter[] filters)
+      throws IOException {
+    this.tcpChannel = tcpChannel;
+    this.rudpSocket = rudpSocket;
+    this.stream = stream;
+    this.rudpChannel = rudpChannel;
+    this.interactive = interactive;
+    this.filters = filters.clone();
+    this.fromTcp = new ByteBuffer[filters.length];
+    this.fromRudp = new ByteBuffer[filters.length];
+    for (int i = 0; i < filters.length; i++) {
+      fromTcp[i] = ByteBuffer.allocate(bufferSize);
+      fromRudp[i] = ByteBuffer.allocate(bufferSize);
+    }
+    this.upstream = ByteBuffer.allocateDirect(bufferSize);
+    this.downstream = ByteBuffer.allocateDirect(bufferSize);
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Pumps the data until both connections have ended or the pump is closed, then closes both.
+   */
+  public void run() {
+    if (rudpSocket != null) {
+      rudpSocket.addReadyListener(this);
+    } else {
+      stream.setReadyListener(this);
+    }
+    try {
+      tcpChannel.configureBlocking(false);
+      if (rudpSocket != null) {
+        rudpSocket.getChannel().configureBlocking(false);
+      }
+      SelectionKey key = tcpChannel.register(selector, 0);
+      while (!closed) {
+        boolean progress;
+        do {
+          progress = pumpUpstream() | pumpDownstream();
+        } while (progress && !closed);
+
+        if (tcpInputEnded && rudpOutputEnded && rudpInputEnded && tcpOutputEnded) {
+          break;
+        }
+        key.interestOps(interestOps());
+        long wait = millisUntilRelease();
+        if (wait > 0) {
+          selector.select(wait);
+        } else {
+          selector.select();
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        LOGGER.info(e.getMessage());
+      }
+    } finally {
+      if (rudpSocket != null) {
+        rudpSocket.removeReadyListener(this);
+      } else {
+        stream.setReadyListener(null);
+      }
+      close();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOGGER.info(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Closes both connections, and stops the pump.
+   */
+  public void close() {
+    closed = true;
+    try {
+      tcpChannel.close();
+    } catch (IOException e) {
+      LOGGER.info(e.getMessage());
+    }
+    try {
+      if (rudpSocket != null) {
+        rudpSocket.close();
+      } else {
+        stream.close();
+      }
+    } catch (IOException e) {
+      LOGGER.info(e.getMessage());
+    }
+    selector.wakeup();
+  }
+
+  public void readyToRead(ReliableSocket sock) {
+    selector.wakeup();
+  }
+
+  public void readyToWrite(ReliableSocket sock) {
+    selector.wakeup();
+  }
+
+  public void streamReady(ReliableSocketMultiplexer.Stream stream) {
+    selector.wakeup();
+  }
+
+  private boolean pumpUpstream() throws IOException {
+    boolean progress = false;
+    boolean wasEmpty = upstream.position() == 0;
+    ByteBuffer input = (filters.length > 0) ? fromTcp[0] : upstream;
+    if (!tcpInputEnded && input.hasRemaining()) {
+      int bytesRead = tcpChannel.read(input);
+      if (bytesRead < 0) {
+        tcpInputEnded = true;
+      }
+      progress = bytesRead != 0;
+    }
+
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < filters.length; i++) {
+      ByteBuffer dst = (i + 1 < filters.length) ? fromTcp[i + 1] : upstream;
+      progress |= filter(filters[i], true, fromTcp[i], dst, now);
+    }
+
+    if (interactive && !rudpOutputEnded && wasEmpty && upstream.position() > 0
+        && upstream.position() <= PortForwarder.MAX_INPUT_SIZE) {
+      // Left for the write below if it cannot be sent at once
+      upstream.flip();
+      progress |= writeExpedited(upstream) > 0;
+      upstream.compact();
+    }
+
+    if (upstream.position() > 0) {
+      if (rudpOutputEnded) {
+        // The peer has closed the connection
+        upstream.clear();
+      } else {
+        upstream.flip();
+        progress |= rudpChannel.write(upstream) > 0;
+        upstream.compact();
+      }
+    }
+
+    if (tcpInputEnded && upstream.position() == 0 && !rudpOutputEnded && isDrained(true)) {
+      if (rudpSocket != null) {
+        rudpSocket.close();
+        rudpInputEnded = true;
+      } else {
+        stream.shutdownOutput();
+      }
+      rudpOutputEnded = true;
+      progress = true;
+    }
+    return progress;
+  }
+
+  private boolean pumpDownstream() throws IOException {
+    boolean progress = false;
+    ByteBuffer input = (filters.length > 0) ? fromRudp[filters.length - 1] : downstream;
+    if (!rudpInputEnded && input.hasRemaining()) {
+      int bytesRead = rudpChannel.read(input);
+      if (bytesRead < 0) {
+        rudpInputEnded = true;
+        if (rudpSocket != null) {
+          // The connection cannot be half-closed, so the peer has closed it
+          rudpOutputEnded = true;
+        }
+        progress = true;
+      } else if (bytesRead > 0) {
+        progress = true;
+      }
+    }
+
+    for (int i = filters.length - 1; i >= 0; i--) {
+      ByteBuffer dst = (i > 0) ? fromRudp[i - 1] : downstream;
+      progress |= filter(filters[i], false, fromRudp[i], dst, 0);
+    }
+
+    if (downstream.position() > 0) {
+      downstream.flip();
+      progress |= tcpChannel.write(downstream) > 0;
+      downstream.compact();
+    }
+
+    if (rudpInputEnded && downstream.position() == 0 && !tcpOutputEnded && isDrained(false)) {
+      tcpChannel.shutdownOutput();
+      tcpOutputEnded = true;
+      progress = true;
+    }
+    return progress;
+  }
+
+  /**
+   * Writes an input event through the expedited lane of the RUDP side, if it can be sent at
+   * once.
+   *
+   * @return the number of bytes written, 0 if none.
+   */
+  private int writeExpedited(ByteBuffer src) throws IOException {
+    if (rudpSocket != null) {
+      return ((ReliableSocketChannel) rudpChannel).writeExpedited(src);
+    }
+    return stream.tryWriteExpedited(src);
+  }
+
+  /**
+   * Passes the data of a buffer through a filter.
+   *
+   * @return true if the filter has read or written any data.
+   */
+  private static boolean filter(ProxyFilter filter, boolean towardsRudp, ByteBuffer src,
+                                ByteBuffer dst, long now) throws IOException {
+    final int written = dst.position();
+    src.flip();
+    if (towardsRudp) {
+      filter.filterUpstream(src, dst, now);
+    } else {
+      filter.filterDownstream(src, dst);
+    }
+    boolean read = src.position() > 0;
+    src.compact();
+    return read || dst.position() != written;
+  }
+
+  /**
+   * Returns true if the filters have passed on all the data of a direction.
+   */
+  private boolean isDrained(boolean towardsRudp) {
+    for (int i = 0; i < filters.length; i++) {
+      ByteBuffer buffer = towardsRudp ? fromTcp[i] : fromRudp[i];
+      if (buffer.position() > 0 || !(towardsRudp ? filters[i].isUpstreamDrained()
+          : filters[i].isDownstreamDrained())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the time until the first of the filters has data to send without new data, or -1
+   * if none has.
+   */
+  private long millisUntilRelease() {
+    long now = System.currentTimeMillis();
+    long wait = -1;
+    for (ProxyFilter filter : filters) {
+      long release = filter.millisUntilRelease(now);
+      if (release > 0 && (wait < 0 || release < wait)) {
+        wait = release;
+      }
+    }
+    return wait;
+  }
+
+  private int interestOps() {
+    int ops = 0;
+    if (!tcpInputEnded && (filters.length > 0 ? fromTcp[0] : upstream).hasRemaining()) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (downstream.position() > 0) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    return ops;
+  }
+}
@@ -0,0 +1,293 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the rectangles a VNC viewer receives in a {@link RfbRectangleCache}, and replaces the
+ * references to them the server sends with the rectangles, in the proxy on the side of the
+ * viewer.
+ *
+ * <p>The decoder follows the RFB protocol in both directions with a {@link RfbParser}. It adds
+ * the pseudo-encoding of the cache to the encodings of the viewer, and sends the inventory of the
+ * cache once a {@link RfbCacheEncoder} on the side of the server has answered. From the point the
+ * encoder has started on, it adds each rectangle that is worth caching to the cache, as the
+ * encoder does to its mirror. A reference to a rectangle that is not in the cache would leave the
+ * viewer with a wrong image, so it ends the connection. Once the parser stops following the
+ * viewer, the decoder tells the encoder to stop.
+ *
+ * <p>The decoder is not thread-safe; it is driven by the event loop of a {@link ProxyPump}.
+ */
+public class RfbCacheDecoder implements ProxyFilter {
+  private static final Logger LOGGER = Logger.getLogger(RfbCacheDecoder.class.getName());
+
+  private final RfbParser parser = new RfbParser(true);
+  private final RfbRectangleCache cache;
+  private final Deque<ByteBuffer> toServer = new ArrayDeque<>();
+  private final Deque<ByteBuffer> toViewer = new ArrayDeque<>();
+
+  private boolean advertised = false;
+  private boolean inventoryDue = false;
+  private boolean stopped = false;
+  private boolean started = false;
+
+  private long discard = 0; // bytes of a message of the encoder left to remove
+  private byte[] referenceHeader; // the header of the reference being read, or null
+  private ByteBuffer referenceDigest;
+  private ByteBuffer rectBuffer;
+  private ByteBuffer rect; // the rectangle being added to the cache, or null
+  private int fromCache = 0;
+  private long bytesSaved = 0;
+
+  /**
+   * Creates a new RfbCacheDecoder for a connection from its start.
+   *
+   * @param cache the cache of the rectangles, which the decoder uses and adds to.
+   */
+  public RfbCacheDecoder(RfbRectangleCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Passes the bytes of the viewer on, asking for the cache and sending its inventory.
+   *
+   * @param src the bytes from the viewer.
+   * @param dst the buffer for the bytes to send to the server.
+   * @param now the current time in milliseconds.
+   */
+  public void filterUpstream(ByteBuffer src, ByteBuffer dst, long now) {
+    while (RfbRectangleCache.drain(toServer, dst)) {
+      if (inventoryDue && parser.atViewerMessage()) {
+        inventoryDue = false;
+        cache.trim(RfbRectangleCache.MAX_ENTRIES);
+        toServer.add(RfbRectangleCache.message(RfbRectangleCache.KIND_INVENTORY,
+            cache.inventory()));
+        continue;
+      }
+
+      int event = parser.nextFromViewer(src);
+      if (event == RfbParser.NONE) {
+        return;
+      }
+      if (parser.viewerFailed() && advertised && !stopped) {
+        // The encoder stops before the bytes the parser has stopped at
+        stopped = true;
+        inventoryDue = false;
+        toServer.add(RfbRectangleCache.message(RfbRectangleCache.KIND_STOP, null));
+      }
+
+      if (event == RfbParser.BODY) {
+        if (!RfbRectangleCache.drain(toServer, dst)) {
+          return;
+        }
+        int length = (int) Math.min(parser.viewerBodyLeft(),
+            Math.min(src.remaining(), dst.remaining()));
+        if (length == 0) {
+          return;
+        }
+        RfbRectangleCache.copy(src, dst, length);
+        parser.skipViewerBody(length);
+      } else if (event == RfbParser.MESSAGE && parser.viewerHeader()[0] == 2) {
+        encodingsSent(parser.viewerHeader(), parser.viewerHeaderLength());
+      } else {
+        toServer.add(RfbRectangleCache.copyOf(parser.viewerHeader(), parser.viewerHeaderLength()));
+      }
+    }
+  }
+
+  /**
+   * Passes the bytes of the server on, replacing the references with the rectangles.
+   *
+   * @param src the bytes from the server.
+   * @param dst the buffer for the bytes to send to the viewer.
+   * @throws IOException if a reference is to a rectangle that is not in the cache.
+   */
+  public void filterDownstream(ByteBuffer src, ByteBuffer dst) throws IOException {
+    while (RfbRectangleCache.drain(toViewer, dst)) {
+      int event = parser.nextFromServer(src);
+      if (event == RfbParser.NONE) {
+        return;
+      } else if (event == RfbParser.BODY) {
+        if (!serverBody(src, dst)) {
+          return;
+        }
+      } else if (event == RfbParser.MESSAGE) {
+        serverMessage(parser.serverHeader(), parser.serverHeaderLength());
+      } else if (event == RfbParser.RECT) {
+        rectStarted(parser.serverHeader());
+      } else if (event == RfbParser.RECT_END) {
+        rectEnded();
+      } else if (event != RfbParser.UPDATE_END) {
+        serverHeader(parser.serverHeader(), parser.serverHeaderLength());
+      }
+    }
+  }
+
+  public long millisUntilRelease(long now) {
+    return -1;
+  }
+
+  public boolean isUpstreamDrained() {
+    return toServer.isEmpty();
+  }
+
+  public boolean isDownstreamDrained() {
+    return toViewer.isEmpty();
+  }
+
+  /**
+   * Returns the number of rectangles that were taken from the cache.
+   */
+  public int getFromCache() {
+    return fromCache;
+  }
+
+  /**
+   * Returns the number of bytes the rectangles taken from the cache have saved.
+   */
+  public long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /**
+   * Passes a SetEncodings message on with the pseudo-encoding of the cache first.
+   */
+  private void encodingsSent(byte[] header, int length) {
+    int count = RfbParser.readU16(header, 2);
+    if (stopped || count == 0xffff) {
+      toServer.add(RfbRectangleCache.copyOf(header, length));
+      return;
+    }
+    ByteBuffer message = ByteBuffer.allocate(length + 4);
+    message.put(header, 0, length).putShort(2, (short) (count + 1));
+    message.putInt(RfbParser.ENCODING_RECTANGLE_CACHE).flip();
+    toServer.add(message);
+    advertised = true;
+  }
+
+  private void serverMessage(byte[] header, int length) {
+    if ((header[0] & 0xff) != RfbParser.MESSAGE_PROXY) {
+      toViewer.add(RfbRectangleCache.copyOf(header, length));
+      return;
+    }
+
+    discard = RfbParser.readU32(header, 4);
+    switch (header[1] & 0xff) {
+      case RfbRectangleCache.KIND_READY:
+        inventoryDue = !stopped;
+        break;
+      case RfbRectangleCache.KIND_STARTED:
+        started = true;
+        rectBuffer = ByteBuffer.allocate(RfbRectangleCache.RECT_HEADER_SIZE
+            + RfbRectangleCache.MAX_SIZE);
+        LOGGER.info("Started the rectangle cache with " + cache.getCount() + " rectangles");
+        break;
+      case RfbRectangleCache.KIND_STOPPED:
+        started = false;
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void rectStarted(byte[] header) throws IOException {
+    int encoding = (int) RfbParser.readU32(header, 8);
+    if (encoding == RfbParser.ENCODING_CACHED_RECT) {
+      if (!started) {
+        throw new IOException("Reference to a cached rectangle before the cache has started");
+      }
+      referenceHeader = new byte[RfbRectangleCache.RECT_HEADER_SIZE];
+      System.arraycopy(header, 0, referenceHeader, 0, referenceHeader.length);
+      referenceDigest = ByteBuffer.allocate(16);
+      return;
+    }
+
+    toViewer.add(RfbRectangleCache.copyOf(header, RfbRectangleCache.RECT_HEADER_SIZE));
+    if (started && RfbRectangleCache.mayBeCached(encoding)) {
+      rect = rectBuffer;
+      rect.clear();
+      rect.put(header, 0, RfbRectangleCache.RECT_HEADER_SIZE);
+    }
+  }
+
+  /**
+   * Passes the rectangle of a reference on, or adds the rectangle that has ended to the cache.
+   */
+  private void rectEnded() throws IOException {
+    if (referenceHeader != null) {
+      referenceDigest.flip();
+      RfbRectangleCache.Entry entry = cache.get(RfbRectangleCache.Digest.read(referenceDigest));
+      if (entry == null) {
+        throw new IOException("Reference to a rectangle that is not in the cache");
+      }
+      ByteBuffer header = ByteBuffer.allocate(RfbRectangleCache.RECT_HEADER_SIZE);
+      header.put(referenceHeader, 0, 4).put(entry.shape).flip();
+      toViewer.add(header);
+      toViewer.add(entry.data.duplicate());
+      fromCache++;
+      bytesSaved += entry.length - 16;
+      referenceHeader = null;
+    } else if (rect != null) {
+      rect.flip();
+      if (RfbRectangleCache.isWorthCaching(rect)) {
+        cache.put(cache.digest(rect), rect);
+      }
+      rect = null;
+    }
+  }
+
+  private void serverHeader(byte[] header, int length) {
+    if (rect != null && (parser.serverFailed() || rect.remaining() < length)) {
+      rect = null;
+    } else if (rect != null) {
+      rect.put(header, 0, length);
+    }
+    toViewer.add(RfbRectangleCache.copyOf(header, length));
+  }
+
+  /**
+   * Passes bytes of a body of the server on, taking copies of the ones of a rectangle to cache.
+   *
+   * @return false if no bytes could be passed on.
+   */
+  private boolean serverBody(ByteBuffer src, ByteBuffer dst) {
+    if (discard > 0 || referenceHeader != null) {
+      ByteBuffer target = (referenceHeader != null) ? referenceDigest : null;
+      int length = (int) Math.min(parser.serverBodyLeft(), src.remaining());
+      if (target != null) {
+        length = Math.min(length, target.remaining());
+      }
+      if (length == 0) {
+        return false;
+      }
+      if (target != null) {
+        RfbRectangleCache.copy(src, target, length);
+      } else {
+        src.position(src.position() + length);
+        discard -= length;
+      }
+      parser.skipServerBody(length);
+      return true;
+    }
+
+    int length = (int) Math.min(parser.serverBodyLeft(),
+        Math.min(src.remaining(), dst.remaining()));
+    if (length == 0) {
+      return false;
+    }
+    if (rect != null && (parser.serverFailed() || rect.remaining() < length)) {
+      // Too large to cache
+      rect = null;
+    } else if (rect != null) {
+      ByteBuffer copy = src.duplicate();
+      copy.limit(copy.position() + length);
+      rect.put(copy);
+    }
+    RfbRectangleCache.copy(src, dst, length);
+    parser.skipServerBody(length);
+    return true;
+  }
+}
@@ -0,0 +1,325 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the rectangles of a VNC server that the viewer has in its {@link RfbRectangleCache}
+ * with references to them, in the proxy on the side of the server.
+ *
+ * <p>The encoder follows the RFB protocol in both directions with a {@link RfbParser}. It removes
+ * the pseudo-encoding of the cache from the encodings of the viewer, and the messages of the
+ * decoder from its data. Once it has the inventory of the cache, it keeps a mirror of it, and
+ * holds back each rectangle that may be cached until it has all of it, to find out whether the
+ * viewer has it. A viewer without a decoder never asks for the cache, so its data is passed on
+ * unchanged. Once the parser stops following the server, the rest is passed on as it is; the
+ * decoder stops at the same point, as it parses the same data.
+ *
+ * <p>The encoder is not thread-safe; it is driven by the event loop of a {@link ProxyPump}.
+ */
+public class RfbCacheEncoder implements ProxyFilter {
+  private static final Logger LOGGER = Logger.getLogger(RfbCacheEncoder.class.getName());
+
+  // What is done with the body of a message of the viewer
+  private static final int PASS = 0;
+  private static final int DISCARD = 1;
+  private static final int ENCODINGS = 2;
+  private static final int INVENTORY = 3;
+
+  private final RfbParser parser = new RfbParser(true);
+  private final Deque<ByteBuffer> toViewer = new ArrayDeque<>();
+  private final Deque<ByteBuffer> toServer = new ArrayDeque<>();
+
+  private int viewerBody = PASS;
+  private byte[] encodingsHeader;
+  private ByteBuffer firstEncoding;
+  private ByteBuffer inventory;
+  private boolean requested = false;
+  private boolean stopped = false;
+  private boolean readyDue = false;
+  private boolean inventoryDue = false;
+  private boolean stopDue = false;
+
+  private RfbRectangleCache mirror; // null unless references are sent
+  private ByteBuffer rectBuffer;
+  private ByteBuffer rect; // the rectangle held back, or null
+  private int referenced = 0;
+  private long bytesSaved = 0;
+
+  /**
+   * Passes the bytes of the server on, replacing the rectangles the viewer has with references.
+   *
+   * @param src the bytes from the server.
+   * @param dst the buffer for the bytes to send to the viewer.
+   * @param now the current time in milliseconds.
+   */
+  public void filterUpstream(ByteBuffer src, ByteBuffer dst, long now) {
+    while (RfbRectangleCache.drain(toViewer, dst)) {
+      if (parser.atServerMessage() && announce()) {
+        continue;
+      }
+
+      int event = parser.nextFromServer(src);
+      if (event == RfbParser.NONE) {
+        return;
+      } else if (event == RfbParser.BODY) {
+        if (!serverBody(src, dst)) {
+          return;
+        }
+      } else if (event == RfbParser.RECT) {
+        rectStarted(parser.serverHeader());
+      } else if (event == RfbParser.RECT_END) {
+        if (rect != null) {
+          rectEnded();
+        }
+      } else if (event != RfbParser.UPDATE_END) {
+        serverHeader(parser.serverHeader(), parser.serverHeaderLength());
+      }
+    }
+  }
+
+  /**
+   * Passes the bytes of the viewer on, removing what is meant for the encoder.
+   *
+   * @param src the bytes from the viewer.
+   * @param dst the buffer for the bytes to send to the server.
+   */
+  public void filterDownstream(ByteBuffer src, ByteBuffer dst) {
+    while (RfbRectangleCache.drain(toServer, dst)) {
+      int event = parser.nextFromViewer(src);
+      if (event == RfbParser.NONE) {
+        return;
+      } else if (event == RfbParser.BODY) {
+        if (!viewerBody(src, dst)) {
+          return;
+        }
+      } else if (event == RfbParser.MESSAGE) {
+        viewerMessage(parser.viewerHeader(), parser.viewerHeaderLength());
+      } else {
+        toServer.add(RfbRectangleCache.copyOf(parser.viewerHeader(), parser.viewerHeaderLength()));
+      }
+    }
+  }
+
+  public long millisUntilRelease(long now) {
+    return -1;
+  }
+
+  public boolean isUpstreamDrained() {
+    return toViewer.isEmpty();
+  }
+
+  public boolean isDownstreamDrained() {
+    return toServer.isEmpty();
+  }
+
+  /**
+   * Returns the number of rectangles that were replaced with references.
+   */
+  public int getReferenced() {
+    return referenced;
+  }
+
+  /**
+   * Returns the number of bytes the references have saved.
+   */
+  public long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /**
+   * Queues the message of the encoder that is due, between two messages of the server.
+   *
+   * @return true if a message was queued.
+   */
+  private boolean announce() {
+    if (stopDue) {
+      stopDue = false;
+      readyDue = false;
+      inventoryDue = false;
+      mirror = null;
+      toViewer.add(RfbRectangleCache.message(RfbRectangleCache.KIND_STOPPED, null));
+      LOGGER.info("Stopped the rectangle cache of the viewer");
+      return true;
+    }
+    if (readyDue) {
+      readyDue = false;
+      toViewer.add(RfbRectangleCache.message(RfbRectangleCache.KIND_READY, null));
+      return true;
+    }
+    if (inventoryDue) {
+      inventoryDue = false;
+      inventory.flip();
+      mirror = RfbRectangleCache.mirror(inventory);
+      inventory = null;
+      if (mirror == null) {
+        LOGGER.info("Ignored a malformed inventory of the rectangle cache of the viewer");
+        return false;
+      }
+      rectBuffer = ByteBuffer.allocate(RfbRectangleCache.RECT_HEADER_SIZE
+          + RfbRectangleCache.MAX_SIZE);
+      toViewer.add(RfbRectangleCache.message(RfbRectangleCache.KIND_STARTED, null));
+      LOGGER.info("Started the rectangle cache of the viewer with " + mirror.getCount()
+          + " rectangles");
+      return true;
+    }
+    return false;
+  }
+
+  private void rectStarted(byte[] header) {
+    int encoding = (int) RfbParser.readU32(header, 8);
+    if (mirror != null && RfbRectangleCache.mayBeCached(encoding)) {
+      rect = rectBuffer;
+      rect.clear();
+      rect.put(header, 0, RfbRectangleCache.RECT_HEADER_SIZE);
+    } else {
+      toViewer.add(RfbRectangleCache.copyOf(header, RfbRectangleCache.RECT_HEADER_SIZE));
+    }
+  }
+
+  /**
+   * Sends a rectangle that was held back, or a reference to it if the viewer has it.
+   */
+  private void rectEnded() {
+    ByteBuffer done = rect;
+    rect = null;
+    done.flip();
+    if (RfbRectangleCache.isWorthCaching(done)) {
+      RfbRectangleCache.Digest digest = mirror.digest(done);
+      if (mirror.get(digest) != null) {
+        ByteBuffer reference = ByteBuffer.allocate(RfbRectangleCache.RECT_HEADER_SIZE + 16);
+        reference.put(done.array(), 0, 8).putInt(RfbParser.ENCODING_CACHED_RECT);
+        digest.write(reference);
+        reference.flip();
+        toViewer.add(reference);
+        referenced++;
+        bytesSaved += done.remaining() - reference.remaining();
+        return;
+      }
+      mirror.put(digest, done);
+    }
+    toViewer.add(done);
+  }
+
+  /**
+   * Sends what was held back of a rectangle that is too large to cache.
+   */
+  private void flushRect() {
+    rect.flip();
+    toViewer.add(rect);
+    rect = null;
+  }
+
+  private void serverHeader(byte[] header, int length) {
+    if (rect != null) {
+      if (rect.remaining() >= length) {
+        rect.put(header, 0, length);
+        return;
+      }
+      flushRect();
+    }
+    toViewer.add(RfbRectangleCache.copyOf(header, length));
+  }
+
+  /**
+   * Passes bytes of a body of the server on, or holds them back with their rectangle.
+   *
+   * @return false if no bytes could be passed on.
+   */
+  private boolean serverBody(ByteBuffer src, ByteBuffer dst) {
+    if (rect != null && (parser.serverFailed() || !rect.hasRemaining())) {
+      flushRect();
+      return true;
+    }
+    ByteBuffer target = (rect != null) ? rect : dst;
+    int length = (int) Math.min(parser.serverBodyLeft(),
+        Math.min(src.remaining(), target.remaining()));
+    if (length == 0) {
+      return false;
+    }
+    RfbRectangleCache.copy(src, target, length);
+    parser.skipServerBody(length);
+    return true;
+  }
+
+  private void viewerMessage(byte[] header, int length) {
+    int type = header[0] & 0xff;
+    if (type == 2 && RfbParser.readU16(header, 2) > 0) {
+      // The decoder puts the pseudo-encoding first
+      viewerBody = ENCODINGS;
+      encodingsHeader = new byte[length];
+      System.arraycopy(header, 0, encodingsHeader, 0, length);
+      firstEncoding = ByteBuffer.allocate(4);
+      return;
+    }
+    if (type != RfbParser.MESSAGE_PROXY) {
+      toServer.add(RfbRectangleCache.copyOf(header, length));
+      return;
+    }
+
+    int kind = header[1] & 0xff;
+    long dataLength = RfbParser.readU32(header, 4);
+    viewerBody = (dataLength > 0) ? DISCARD : PASS;
+    if (kind == RfbRectangleCache.KIND_INVENTORY && requested && !stopped && mirror == null
+        && inventory == null && dataLength >= 8
+        && dataLength <= RfbRectangleCache.MAX_INVENTORY_SIZE) {
+      viewerBody = INVENTORY;
+      inventory = ByteBuffer.allocate((int) dataLength);
+    } else if (kind == RfbRectangleCache.KIND_STOP && !stopped) {
+      stopped = true;
+      stopDue = true;
+    }
+  }
+
+  /**
+   * Passes bytes of a body of the viewer on, or takes them for the encoder.
+   *
+   * @return false if no bytes could be passed on.
+   */
+  private boolean viewerBody(ByteBuffer src, ByteBuffer dst) {
+    ByteBuffer target = (viewerBody == ENCODINGS) ? firstEncoding
+        : (viewerBody == INVENTORY) ? inventory : dst;
+    int length = (int) Math.min(parser.viewerBodyLeft(), src.remaining());
+    if (viewerBody != DISCARD) {
+      length = Math.min(length, target.remaining());
+    }
+    if (length == 0) {
+      return false;
+    }
+    if (viewerBody == DISCARD) {
+      src.position(src.position() + length);
+    } else {
+      RfbRectangleCache.copy(src, target, length);
+    }
+    parser.skipViewerBody(length);
+
+    if (viewerBody == ENCODINGS && !firstEncoding.hasRemaining()) {
+      encodingsChecked();
+    } else if (viewerBody != PASS && parser.viewerBodyLeft() == 0) {
+      inventoryDue = viewerBody == INVENTORY;
+      viewerBody = PASS;
+    }
+    return true;
+  }
+
+  /**
+   * Passes the start of a SetEncodings message on, without the pseudo-encoding of the cache.
+   */
+  private void encodingsChecked() {
+    viewerBody = PASS;
+    firstEncoding.flip();
+    if (firstEncoding.getInt(0) == RfbParser.ENCODING_RECTANGLE_CACHE) {
+      RfbParser.writeU16(encodingsHeader, 2, RfbParser.readU16(encodingsHeader, 2) - 1);
+      toServer.add(ByteBuffer.wrap(encodingsHeader));
+      if (!requested && !stopped) {
+        requested = true;
+        readyDue = true;
+      }
+    } else {
+      toServer.add(ByteBuffer.wrap(encodingsHeader));
+      toServer.add(firstEncoding);
+    }
+  }
+}
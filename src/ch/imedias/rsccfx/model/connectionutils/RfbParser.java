@@ -0,0 +1,822 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Follows the framing of the RFB protocol in both directions of a VNC connection, from the
+ * handshake on.
+ *
+ * <p>The parser is given the bytes of each direction in order, and returns what it finds in
+ * them one event at a time. It gathers the fixed parts of the handshake, of the messages and of
+ * the rectangles of an update, and returns each as a header. The variable parts that follow are
+ * left to the caller as a body of a known length, so that each byte is either in a header or in
+ * a body. The rectangles are parsed through their encodings, which is how their ends are found.
+ *
+ * <p>On a security type, message or encoding it does not know, or on a rectangle outside the
+ * framebuffer, the parser stops following a direction: what it has gathered is returned as a
+ * header, and the rest of the direction as a body. Before the handshake has completed this stops
+ * both directions. After it, the direction of the server only learns the pixel format from the
+ * viewer, which viewers do not change while an update is outstanding.
+ *
+ * <p>The parser is not thread-safe.
+ */
+class RfbParser {
+  private static final Logger LOGGER = Logger.getLogger(RfbParser.class.getName());
+
+  // Events
+  static final int NONE = 0; // the input is used up
+  static final int HEADER = 1; // a part of the handshake or of a rectangle has been gathered
+  static final int MESSAGE = 2; // the fixed part of a message has been gathered
+  static final int RECT = 3; // the header of a rectangle has been gathered
+  static final int BODY = 4; // bytes follow that are not parsed
+  static final int RECT_END = 5; // the last byte of a rectangle has been returned
+  static final int UPDATE_END = 6; // the last byte of an update has been returned
+
+  // Message and encoding the proxies of the rectangle cache exchange
+  static final int MESSAGE_PROXY = 200;
+  static final int ENCODING_RECTANGLE_CACHE = 0x52534300;
+  static final int ENCODING_CACHED_RECT = 0x52534301;
+
+  static final int SECURITY_NONE = 1;
+  static final int SECURITY_VNC_AUTH = 2;
+
+  static final int ENCODING_RAW = 0;
+  static final int ENCODING_COPY_RECT = 1;
+  static final int ENCODING_RRE = 2;
+  static final int ENCODING_CORRE = 4;
+  static final int ENCODING_HEXTILE = 5;
+  static final int ENCODING_ZLIB = 6;
+  static final int ENCODING_TIGHT = 7;
+  static final int ENCODING_ZRLE = 16;
+  static final int ENCODING_CURSOR = -239;
+  static final int ENCODING_X_CURSOR = -240;
+  static final int ENCODING_DESKTOP_SIZE = -223;
+  static final int ENCODING_LAST_RECT = -224;
+  static final int ENCODING_POINTER_POS = -232;
+  static final int ENCODING_EXTENDED_DESKTOP_SIZE = -308;
+
+  // States of the viewer side
+  private static final int C_VERSION = 0;
+  private static final int C_SECURITY_CHOICE = 1;
+  private static final int C_SECURITY = 2;
+  private static final int C_AUTH = 3;
+  private static final int C_CLIENT_INIT = 4;
+  private static final int C_MESSAGE = 5;
+  private static final int C_MESSAGE_REST = 6;
+
+  // States of the server side
+  private static final int S_VERSION = 0;
+  private static final int S_SECURITY = 1;
+  private static final int S_SECURITY_TYPE = 2;
+  private static final int S_SECURITY_TYPES = 3;
+  private static final int S_SECURITY_CHOSEN = 4;
+  private static final int S_CHALLENGE = 5;
+  private static final int S_SECURITY_RESULT = 6;
+  private static final int S_SERVER_INIT = 7;
+  private static final int S_MESSAGE = 8;
+  private static final int S_MESSAGE_REST = 9;
+  private static final int S_RECT = 10;
+  private static final int S_RRE = 11;
+  private static final int S_LENGTH = 12;
+  private static final int S_HEXTILE = 13;
+  private static final int S_HEXTILE_SUBRECTS = 14;
+  private static final int S_TIGHT = 15;
+  private static final int S_TIGHT_FILTER = 16;
+  private static final int S_TIGHT_PALETTE = 17;
+  private static final int S_COMPACT_LENGTH = 18;
+  private static final int S_SCREENS = 19;
+
+  private final boolean proxyMessages;
+  private int version = 0; // minor version of RFB 3.x chosen by the viewer
+  private int securityType = -1;
+
+  private final byte[] viewerHeader = new byte[32];
+  private int viewerState = C_VERSION;
+  private int viewerWant = 12;
+  private int viewerHave = 0;
+  private int viewerLength = 0;
+  private long viewerBody = 0;
+  private boolean viewerFailed = false;
+
+  private final byte[] serverHeader = new byte[32];
+  private int serverState = S_VERSION;
+  private int serverWant = 12;
+  private int serverHave = 0;
+  private int serverLength = 0;
+  private long serverBody = 0;
+  private boolean serverFailed = false;
+  private boolean rectEnding = false;
+  private boolean updateEnding = false;
+  private byte[] pixelFormat;
+  private byte[] pendingPixelFormat;
+  private int framebufferWidth;
+  private int framebufferHeight;
+  private int rectsLeft;
+  private int rectWidth;
+  private int rectHeight;
+  private int rectEncoding;
+  private int tileIndex;
+  private int tileCount;
+  private int tightRowBytes;
+  private int compactLength;
+  private int compactShift;
+
+  /**
+   * Creates a new RfbParser for a connection from its start.
+   *
+   * @param proxyMessages whether the messages and the encoding the proxies of the rectangle
+   *                      cache exchange are parsed.
+   */
+  RfbParser(boolean proxyMessages) {
+    this.proxyMessages = proxyMessages;
+  }
+
+  /**
+   * Gathers the bytes of the viewer until the next event.
+   *
+   * @param in the bytes from the viewer, of which the ones up to the event are read.
+   * @return the event; a header is found in {@link #viewerHeader()}, and the bytes of a body are
+   *     left in the input for the caller, who tells of them with {@link #skipViewerBody(int)}.
+   */
+  int nextFromViewer(ByteBuffer in) {
+    if (viewerBody > 0) {
+      return BODY;
+    }
+    if (viewerFailed) {
+      return passViewer();
+    }
+    while (in.hasRemaining()) {
+      int length = Math.min(viewerWant - viewerHave, in.remaining());
+      in.get(viewerHeader, viewerHave, length);
+      viewerHave += length;
+      if (viewerHave < viewerWant) {
+        return NONE;
+      }
+      viewerLength = viewerHave;
+      int event = viewerStep();
+      if (viewerFailed) {
+        return passViewer();
+      }
+      if (event != NONE) {
+        return event;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Gathers the bytes of the server until the next event.
+   *
+   * @param in the bytes from the server, of which the ones up to the event are read.
+   * @return the event; a header is found in {@link #serverHeader()}, and the bytes of a body are
+   *     left in the input for the caller, who tells of them with {@link #skipServerBody(int)}.
+   */
+  int nextFromServer(ByteBuffer in) {
+    if (serverBody > 0) {
+      return BODY;
+    }
+    if (serverFailed) {
+      return passServer();
+    }
+    if (rectEnding) {
+      rectEnding = false;
+      return RECT_END;
+    }
+    if (updateEnding) {
+      updateEnding = false;
+      return UPDATE_END;
+    }
+    while (in.hasRemaining()) {
+      int length = Math.min(serverWant - serverHave, in.remaining());
+      in.get(serverHeader, serverHave, length);
+      serverHave += length;
+      if (serverHave < serverWant) {
+        return NONE;
+      }
+      serverLength = serverHave;
+      int event = serverStep();
+      if (serverFailed) {
+        return passServer();
+      }
+      if (event != NONE) {
+        return event;
+      }
+    }
+    return NONE;
+  }
+
+  byte[] viewerHeader() {
+    return viewerHeader;
+  }
+
+  int viewerHeaderLength() {
+    return viewerLength;
+  }
+
+  long viewerBodyLeft() {
+    return viewerBody;
+  }
+
+  void skipViewerBody(int length) {
+    viewerBody -= length;
+  }
+
+  byte[] serverHeader() {
+    return serverHeader;
+  }
+
+  int serverHeaderLength() {
+    return serverLength;
+  }
+
+  long serverBodyLeft() {
+    return serverBody;
+  }
+
+  void skipServerBody(int length) {
+    serverBody -= length;
+  }
+
+  /**
+   * Returns true if the viewer is between two messages.
+   */
+  boolean atViewerMessage() {
+    return !viewerFailed && viewerState == C_MESSAGE && viewerHave == 0 && viewerBody == 0;
+  }
+
+  /**
+   * Returns true if the server is between two messages.
+   */
+  boolean atServerMessage() {
+    return !serverFailed && serverState == S_MESSAGE && serverHave == 0 && serverBody == 0
+        && !rectEnding && !updateEnding;
+  }
+
+  boolean viewerFailed() {
+    return viewerFailed;
+  }
+
+  boolean serverFailed() {
+    return serverFailed;
+  }
+
+  private int viewerStep() {
+    byte[] header = viewerHeader;
+    switch (viewerState) {
+      case C_VERSION:
+        version = parseVersion(header);
+        viewerNext(version >= 7 ? C_SECURITY_CHOICE : C_SECURITY, 1);
+        return HEADER;
+      case C_SECURITY_CHOICE:
+        securityType = header[0] & 0xff;
+        viewerNext(C_SECURITY, 1);
+        return HEADER;
+      case C_SECURITY:
+        // The first byte the viewer sends after the security handshake has started
+        if (securityType == SECURITY_NONE) {
+          viewerNext(C_MESSAGE, 1);
+          return HEADER;
+        } else if (securityType == SECURITY_VNC_AUTH) {
+          viewerExtend(C_AUTH, 16);
+        } else {
+          failViewer("security type " + securityType);
+        }
+        return NONE;
+      case C_AUTH:
+        viewerNext(C_CLIENT_INIT, 1);
+        return HEADER;
+      case C_CLIENT_INIT:
+        viewerNext(C_MESSAGE, 1);
+        return HEADER;
+      case C_MESSAGE:
+        int length = viewerMessageLength(header[0] & 0xff);
+        if (length == 0) {
+          failViewer("viewer message " + (header[0] & 0xff));
+        } else {
+          viewerExtend(C_MESSAGE_REST, length);
+        }
+        return NONE;
+      case C_MESSAGE_REST:
+        viewerMessage(header);
+        viewerNext(C_MESSAGE, 1);
+        return MESSAGE;
+      default:
+        failViewer("viewer state " + viewerState);
+        return NONE;
+    }
+  }
+
+  /**
+   * Returns the length of the fixed part of a message of the viewer, or 0 if the message is not
+   * known.
+   */
+  private int viewerMessageLength(int type) {
+    switch (type) {
+      case 0: // SetPixelFormat
+        return 20;
+      case 2: // SetEncodings
+        return 4;
+      case 3: // FramebufferUpdateRequest
+      case 150: // EnableContinuousUpdates
+        return 10;
+      case 4: // KeyEvent
+      case 6: // ClientCutText
+      case 251: // SetDesktopSize
+        return 8;
+      case 5: // PointerEvent
+        return 6;
+      case 248: // ClientFence
+        return 9;
+      case MESSAGE_PROXY:
+        return proxyMessages ? 8 : 0;
+      default:
+        return 0;
+    }
+  }
+
+  private void viewerMessage(byte[] header) {
+    switch (header[0] & 0xff) {
+      case 0:
+        pendingPixelFormat = Arrays.copyOfRange(header, 4, 20);
+        break;
+      case 2:
+        viewerBody = 4L * readU16(header, 2);
+        break;
+      case 6:
+      case MESSAGE_PROXY:
+        viewerBody = readU32(header, 4);
+        break;
+      case 248:
+        viewerBody = header[8] & 0xff;
+        break;
+      case 251:
+        viewerBody = 16L * (header[6] & 0xff);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private int serverStep() {
+    byte[] header = serverHeader;
+    switch (serverState) {
+      case S_VERSION:
+        serverNext(S_SECURITY, 1);
+        return HEADER;
+      case S_SECURITY:
+        // The viewer has chosen the version by now
+        if (version >= 7) {
+          int count = header[0] & 0xff;
+          if (count == 0) {
+            failServer("security failure");
+          } else {
+            serverExtend(S_SECURITY_TYPES, 1 + count);
+          }
+        } else {
+          serverExtend(S_SECURITY_TYPE, 4);
+        }
+        return NONE;
+      case S_SECURITY_TYPE:
+        securityType = (int) readU32(header, 0);
+        if (securityType == SECURITY_NONE) {
+          serverNext(S_SERVER_INIT, 24);
+        } else if (securityType == SECURITY_VNC_AUTH) {
+          serverNext(S_CHALLENGE, 16);
+        } else {
+          failServer("security type " + securityType);
+        }
+        return HEADER;
+      case S_SECURITY_TYPES:
+        serverNext(S_SECURITY_CHOSEN, 1);
+        return HEADER;
+      case S_SECURITY_CHOSEN:
+        // The viewer has chosen the security type by now
+        if (securityType == SECURITY_VNC_AUTH) {
+          serverExtend(S_CHALLENGE, 16);
+        } else if (securityType == SECURITY_NONE && version >= 8) {
+          serverExtend(S_SECURITY_RESULT, 4);
+        } else if (securityType == SECURITY_NONE) {
+          serverExtend(S_SERVER_INIT, 24);
+        } else {
+          failServer("security type " + securityType);
+        }
+        return NONE;
+      case S_CHALLENGE:
+        serverNext(S_SECURITY_RESULT, 4);
+        return HEADER;
+      case S_SECURITY_RESULT:
+        if (readU32(header, 0) != 0) {
+          failServer("security failure");
+        } else {
+          serverNext(S_SERVER_INIT, 24);
+        }
+        return HEADER;
+      case S_SERVER_INIT:
+        framebufferWidth = readU16(header, 0);
+        framebufferHeight = readU16(header, 2);
+        pixelFormat = Arrays.copyOfRange(header, 4, 20);
+        serverBody = readU32(header, 20);
+        serverNext(S_MESSAGE, 1);
+        return HEADER;
+      case S_MESSAGE:
+        return serverMessageStarted(header[0] & 0xff);
+      case S_MESSAGE_REST:
+        serverMessage(header);
+        return MESSAGE;
+      case S_RECT:
+        rectStarted(header);
+        return RECT;
+      case S_RRE:
+        int subrects = (int) readU32(header, 0);
+        serverBody = (long) subrects * (bytesPerPixel() + (rectEncoding == ENCODING_RRE ? 8 : 4));
+        rectDone();
+        return HEADER;
+      case S_LENGTH:
+        serverBody = readU32(header, 0);
+        rectDone();
+        return HEADER;
+      case S_HEXTILE:
+        hextileStarted(header[0] & 0xff);
+        return serverHave == 0 ? HEADER : NONE;
+      case S_HEXTILE_SUBRECTS:
+        boolean coloured = (header[0] & 0x10) != 0;
+        serverBody = (long) (header[serverWant - 1] & 0xff) * (coloured ? bytesPerPixel() + 2 : 2);
+        nextTile();
+        return HEADER;
+      case S_TIGHT:
+        tightStarted(header[0] & 0xff);
+        return serverHave == 0 ? HEADER : NONE;
+      case S_TIGHT_FILTER:
+        int filter = header[1] & 0xff;
+        if (filter == 0 || filter == 2) {
+          tightData(tightRowBytes * rectHeight);
+        } else if (filter == 1) {
+          serverExtend(S_TIGHT_PALETTE, 3);
+          return NONE;
+        } else {
+          failServer("tight filter " + filter);
+        }
+        return HEADER;
+      case S_TIGHT_PALETTE:
+        int colours = (header[2] & 0xff) + 1;
+        int rowBytes = colours == 2 ? (rectWidth + 7) / 8 : rectWidth;
+        int dataSize = rowBytes * rectHeight;
+        serverBody = (long) colours * tightPixelSize();
+        if (dataSize < 12) {
+          serverBody += dataSize;
+          rectDone();
+        } else {
+          compactLength = 0;
+          compactShift = 0;
+          serverNext(S_COMPACT_LENGTH, 1);
+        }
+        return HEADER;
+      case S_COMPACT_LENGTH:
+        int octet = header[0] & 0xff;
+        if (compactShift == 14) {
+          compactLength |= octet << 14;
+        } else {
+          compactLength |= (octet & 0x7f) << compactShift;
+          compactShift += 7;
+          if ((octet & 0x80) != 0) {
+            serverNext(S_COMPACT_LENGTH, 1);
+            return HEADER;
+          }
+        }
+        serverBody = compactLength;
+        rectDone();
+        return HEADER;
+      case S_SCREENS:
+        serverBody = 16L * (header[0] & 0xff);
+        rectDone();
+        return HEADER;
+      default:
+        failServer("server state " + serverState);
+        return NONE;
+    }
+  }
+
+  private int serverMessageStarted(int type) {
+    int length;
+    switch (type) {
+      case 0: // FramebufferUpdate
+        length = 4;
+        break;
+      case 1: // SetColourMapEntries
+        length = 6;
+        break;
+      case 2: // Bell
+      case 150: // EndOfContinuousUpdates
+        serverNext(S_MESSAGE, 1);
+        return MESSAGE;
+      case 3: // ServerCutText
+        length = 8;
+        break;
+      case 248: // ServerFence
+        length = 9;
+        break;
+      case MESSAGE_PROXY:
+        length = proxyMessages ? 8 : 0;
+        break;
+      default:
+        length = 0;
+        break;
+    }
+    if (length == 0) {
+      failServer("server message " + type);
+    } else {
+      serverExtend(S_MESSAGE_REST, length);
+    }
+    return NONE;
+  }
+
+  private void serverMessage(byte[] header) {
+    switch (header[0] & 0xff) {
+      case 0:
+        if (pendingPixelFormat != null) {
+          pixelFormat = pendingPixelFormat;
+          pendingPixelFormat = null;
+        }
+        rectsLeft = readU16(header, 2);
+        if (rectsLeft == 0) {
+          updateEnding = true;
+          serverNext(S_MESSAGE, 1);
+        } else {
+          serverNext(S_RECT, 12);
+        }
+        return;
+      case 1:
+        serverBody = 6L * readU16(header, 4);
+        break;
+      case 3:
+      case MESSAGE_PROXY:
+        serverBody = readU32(header, 4);
+        break;
+      case 248:
+        serverBody = header[8] & 0xff;
+        break;
+      default:
+        break;
+    }
+    serverNext(S_MESSAGE, 1);
+  }
+
+  private void rectStarted(byte[] header) {
+    final int left = readU16(header, 0);
+    final int top = readU16(header, 2);
+    rectWidth = readU16(header, 4);
+    rectHeight = readU16(header, 6);
+    rectEncoding = (int) readU32(header, 8);
+    if (rectEncoding >= 0
+        && (left + rectWidth > framebufferWidth || top + rectHeight > framebufferHeight)) {
+      failServer("rectangle outside the framebuffer");
+      return;
+    }
+
+    long pixels = (long) rectWidth * rectHeight;
+    switch (rectEncoding) {
+      case ENCODING_RAW:
+        serverBody = pixels * bytesPerPixel();
+        rectDone();
+        break;
+      case ENCODING_COPY_RECT:
+        serverBody = 4;
+        rectDone();
+        break;
+      case ENCODING_RRE:
+      case ENCODING_CORRE:
+        serverNext(S_RRE, 4 + bytesPerPixel());
+        break;
+      case ENCODING_HEXTILE:
+        tileIndex = 0;
+        tileCount = ((rectWidth + 15) / 16) * ((rectHeight + 15) / 16);
+        if (tileCount == 0) {
+          rectDone();
+        } else {
+          serverNext(S_HEXTILE, 1);
+        }
+        break;
+      case ENCODING_ZLIB:
+      case ENCODING_ZRLE:
+        serverNext(S_LENGTH, 4);
+        break;
+      case ENCODING_TIGHT:
+        serverNext(S_TIGHT, 1);
+        break;
+      case ENCODING_CURSOR:
+        serverBody = pixels * bytesPerPixel() + (long) ((rectWidth + 7) / 8) * rectHeight;
+        rectDone();
+        break;
+      case ENCODING_X_CURSOR:
+        serverBody = pixels > 0 ? 6 + 2L * ((rectWidth + 7) / 8) * rectHeight : 0;
+        rectDone();
+        break;
+      case ENCODING_DESKTOP_SIZE:
+        framebufferWidth = rectWidth;
+        framebufferHeight = rectHeight;
+        rectDone();
+        break;
+      case ENCODING_EXTENDED_DESKTOP_SIZE:
+        framebufferWidth = rectWidth;
+        framebufferHeight = rectHeight;
+        serverNext(S_SCREENS, 4);
+        break;
+      case ENCODING_LAST_RECT:
+        rectsLeft = 1;
+        rectDone();
+        break;
+      case ENCODING_POINTER_POS:
+        rectDone();
+        break;
+      default:
+        if (proxyMessages && rectEncoding == ENCODING_CACHED_RECT) {
+          // The digest of the rectangle in the cache of the viewer
+          serverBody = 16;
+          rectDone();
+        } else {
+          failServer("encoding " + rectEncoding);
+        }
+        break;
+    }
+  }
+
+  private void hextileStarted(int subencoding) {
+    int column = tileIndex % ((rectWidth + 15) / 16);
+    int row = tileIndex / ((rectWidth + 15) / 16);
+    int tileWidth = Math.min(16, rectWidth - column * 16);
+    int tileHeight = Math.min(16, rectHeight - row * 16);
+    if ((subencoding & 0x01) != 0) {
+      serverBody = (long) tileWidth * tileHeight * bytesPerPixel();
+      nextTile();
+      return;
+    }
+
+    int colours = ((subencoding & 0x02) != 0 ? bytesPerPixel() : 0)
+        + ((subencoding & 0x04) != 0 ? bytesPerPixel() : 0);
+    if ((subencoding & 0x08) != 0) {
+      serverExtend(S_HEXTILE_SUBRECTS, 1 + colours + 1);
+    } else {
+      serverBody = colours;
+      nextTile();
+    }
+  }
+
+  private void nextTile() {
+    if (++tileIndex == tileCount) {
+      rectDone();
+    } else {
+      serverNext(S_HEXTILE, 1);
+    }
+  }
+
+  private void tightStarted(int control) {
+    int compression = control >> 4;
+    if (compression == 8) {
+      serverBody = tightPixelSize();
+      rectDone();
+    } else if (compression == 9) {
+      compactLength = 0;
+      compactShift = 0;
+      serverNext(S_COMPACT_LENGTH, 1);
+    } else if (compression > 9) {
+      failServer("tight compression " + compression);
+    } else {
+      tightRowBytes = rectWidth * tightPixelSize();
+      if ((control & 0x40) != 0) {
+        serverExtend(S_TIGHT_FILTER, 2);
+      } else {
+        tightData(tightRowBytes * rectHeight);
+      }
+    }
+  }
+
+  /**
+   * Passes the data of a tight rectangle, which is compressed unless it is small.
+   */
+  private void tightData(int dataSize) {
+    if (dataSize < 12) {
+      serverBody = dataSize;
+      rectDone();
+    } else {
+      compactLength = 0;
+      compactShift = 0;
+      serverNext(S_COMPACT_LENGTH, 1);
+    }
+  }
+
+  private void rectDone() {
+    rectEnding = true;
+    if (--rectsLeft == 0) {
+      updateEnding = true;
+      serverNext(S_MESSAGE, 1);
+    } else {
+      serverNext(S_RECT, 12);
+    }
+  }
+
+  private int bytesPerPixel() {
+    return (pixelFormat[0] & 0xff) / 8;
+  }
+
+  /**
+   * Returns the size of a pixel of the tight encoding, which leaves out the padding of 32-bit
+   * true colour pixels.
+   */
+  private int tightPixelSize() {
+    boolean trueColour = pixelFormat[3] != 0;
+    if ((pixelFormat[0] & 0xff) == 32 && (pixelFormat[1] & 0xff) == 24 && trueColour
+        && readU16(pixelFormat, 4) == 255 && readU16(pixelFormat, 6) == 255
+        && readU16(pixelFormat, 8) == 255) {
+      return 3;
+    }
+    return bytesPerPixel();
+  }
+
+  private void failViewer(String reason) {
+    LOGGER.info("Stopped parsing the RFB data of the viewer at " + reason);
+    viewerFailed = true;
+    if (viewerState != C_MESSAGE && viewerState != C_MESSAGE_REST) {
+      serverFailed = true;
+    }
+  }
+
+  private void failServer(String reason) {
+    LOGGER.info("Stopped parsing the RFB data of the server at " + reason);
+    serverFailed = true;
+    if (serverState < S_MESSAGE) {
+      viewerFailed = true;
+    }
+  }
+
+  /**
+   * Returns what was gathered of the viewer, and the rest of its bytes as a body.
+   */
+  private int passViewer() {
+    viewerBody = Long.MAX_VALUE;
+    if (viewerHave > 0) {
+      viewerLength = viewerHave;
+      viewerHave = 0;
+      return HEADER;
+    }
+    return BODY;
+  }
+
+  /**
+   * Returns what was gathered of the server, and the rest of its bytes as a body.
+   */
+  private int passServer() {
+    serverBody = Long.MAX_VALUE;
+    if (serverHave > 0) {
+      serverLength = serverHave;
+      serverHave = 0;
+      return HEADER;
+    }
+    return BODY;
+  }
+
+  private void viewerNext(int state, int want) {
+    viewerState = state;
+    viewerWant = want;
+    viewerHave = 0;
+  }
+
+  private void viewerExtend(int state, int want) {
+    viewerState = state;
+    viewerWant = want;
+  }
+
+  private void serverNext(int state, int want) {
+    serverState = state;
+    serverWant = want;
+    serverHave = 0;
+  }
+
+  private void serverExtend(int state, int want) {
+    serverState = state;
+    serverWant = want;
+  }
+
+  private static int parseVersion(byte[] version) {
+    // "RFB 003.008\n"
+    int minor = 0;
+    for (int i = 8; i < 11; i++) {
+      minor = minor * 10 + (version[i] - '0');
+    }
+    return minor;
+  }
+
+  static int readU16(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+  }
+
+  static long readU32(byte[] bytes, int offset) {
+    return ((long) readU16(bytes, offset) << 16) | readU16(bytes, offset + 2);
+  }
+
+  static void writeU16(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >> 8);
+    bytes[offset + 1] = (byte) value;
+  }
+}
@@ -0,0 +1,423 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the rectangles of the updates a VNC viewer has received, so that the server can refer to
+ * them rather than send them again, also in later sessions.
+ *
+ * <p>The proxy on the side of the viewer, a {@link RfbCacheDecoder}, keeps the cache, and the
+ * proxy on the side of the server, a {@link RfbCacheEncoder}, keeps a mirror of it without the
+ * data. The proxies talk over the RFB connection itself:
+ * <ol>
+ * <li>The decoder adds the pseudo-encoding {@link RfbParser#ENCODING_RECTANGLE_CACHE} to the
+ * encodings of the viewer, which a server without the encoder ignores. The encoder removes it,
+ * and answers that it is ready.</li>
+ * <li>The decoder sends the inventory of the cache: its capacity, and the digest and size of
+ * each rectangle, least recently used first.</li>
+ * <li>The encoder builds the mirror from the inventory, and tells the decoder that it has
+ * started. From this point of the data of the server on, each rectangle that is in the mirror is
+ * replaced with a reference to it, of the encoding {@link RfbParser#ENCODING_CACHED_RECT}, and
+ * each other one that is worth caching is added to both.</li>
+ * </ol>
+ * The messages of the proxies are of the type {@link RfbParser#MESSAGE_PROXY}: a kind, two bytes
+ * of padding, and the length of the data that follows. The proxy they are sent to removes them.
+ * Should the decoder no longer be able to follow the viewer, it tells the encoder to stop, which
+ * stops sending references at a point of the data of the server it tells the decoder of.
+ *
+ * <p>The cache and the mirror see the same rectangles in the same order, and evict the least
+ * recently used ones alike, so the mirror holds exactly what the cache does. A rectangle is found
+ * by a digest of its size, encoding and encoded data, so that a reference stands for exactly the
+ * bytes the server has sent, whatever state its encoding keeps between rectangles. Only the
+ * encodings whose data repeats when the image does are cached, and only rectangles large enough
+ * to be worth a reference.
+ *
+ * <p>The data of the rectangles is kept off the heap, in direct buffers. The cache is saved to a
+ * file after a session and loaded before the next one, checking the digest of each rectangle.
+ *
+ * <p>The cache is not thread-safe.
+ */
+public class RfbRectangleCache {
+  private static final Logger LOGGER = Logger.getLogger(RfbRectangleCache.class.getName());
+
+  // Kinds of the messages of the proxies
+  static final int KIND_READY = 0; // encoder: the inventory is welcome
+  static final int KIND_INVENTORY = 1; // decoder: the rectangles in the cache
+  static final int KIND_STARTED = 2; // encoder: references may follow from here on
+  static final int KIND_STOP = 3; // decoder: the viewer can no longer be followed
+  static final int KIND_STOPPED = 4; // encoder: no references follow from here on
+
+  static final int MIN_SIZE = 256; // smallest encoded data worth a reference (bytes)
+  static final int MAX_SIZE = 256 * 1024; // largest encoded data cached (bytes)
+  static final int MAX_ENTRIES = 65536; // most rectangles in an inventory
+  static final int MAX_INVENTORY_SIZE = 8 + MAX_ENTRIES * 20;
+  static final int RECT_HEADER_SIZE = 12;
+
+  private static final int FILE_MAGIC = 0x52534352; // "RSCR"
+  private static final int FILE_VERSION = 1;
+
+  private final long capacity;
+  private final boolean keepsData;
+  private final LinkedHashMap<Digest, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final MessageDigest sha;
+  private long size = 0;
+  private boolean changed = false;
+
+  /**
+   * Creates a new, empty RfbRectangleCache.
+   *
+   * @param capacity the most bytes of encoded data the cache holds.
+   */
+  public RfbRectangleCache(long capacity) {
+    this(capacity, true);
+  }
+
+  private RfbRectangleCache(long capacity, boolean keepsData) {
+    this.capacity = capacity;
+    this.keepsData = keepsData;
+    try {
+      this.sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Loads a cache saved to a file, keeping the most recently used rectangles that fit.
+   *
+   * @param file     the file, which need not exist.
+   * @param capacity the most bytes of encoded data the cache holds.
+   * @return the cache, with what could be loaded of the file.
+   */
+  public static RfbRectangleCache load(File file, long capacity) {
+    RfbRectangleCache cache = new RfbRectangleCache(capacity);
+    if (!file.isFile()) {
+      return cache;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+        throw new IOException("not a rectangle cache");
+      }
+      int count = in.readInt();
+      byte[] rect = new byte[RECT_HEADER_SIZE + MAX_SIZE];
+      for (int i = 0; i < count; i++) {
+        final Digest digest = new Digest(in.readLong(), in.readLong());
+        in.readFully(rect, 4, 8);
+        int length = in.readInt();
+        if (length < MIN_SIZE || length > MAX_SIZE) {
+          throw new IOException("rectangle of " + length + " bytes");
+        }
+        in.readFully(rect, RECT_HEADER_SIZE, length);
+        ByteBuffer buffer = ByteBuffer.wrap(rect, 0, RECT_HEADER_SIZE + length);
+        if (!cache.digest(buffer).equals(digest)) {
+          throw new IOException("rectangle that does not match its digest");
+        }
+        cache.put(digest, buffer);
+      }
+    } catch (IOException e) {
+      LOGGER.info("Loaded only the first " + cache.getCount() + " rectangles of the cache");
+    }
+    cache.changed = false;
+    return cache;
+  }
+
+  /**
+   * Saves the cache to a file, replacing it.
+   *
+   * @param file the file.
+   * @throws IOException if the file cannot be written.
+   */
+  public void save(File file) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null) {
+      directory.mkdirs();
+    }
+    File temporary = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temporary)))) {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_VERSION);
+      out.writeInt(entries.size());
+      byte[] data = new byte[MAX_SIZE];
+      for (Map.Entry<Digest, Entry> mapping : entries.entrySet()) {
+        Entry entry = mapping.getValue();
+        out.writeLong(mapping.getKey().high);
+        out.writeLong(mapping.getKey().low);
+        out.write(entry.shape);
+        out.writeInt(entry.length);
+        entry.data.duplicate().get(data, 0, entry.length);
+        out.write(data, 0, entry.length);
+      }
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    changed = false;
+  }
+
+  /**
+   * Returns true if the cache has changed since it was loaded or saved.
+   */
+  public boolean isChanged() {
+    return changed;
+  }
+
+  public int getCount() {
+    return entries.size();
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns true if rectangles of an encoding may be worth caching.
+   */
+  static boolean mayBeCached(int encoding) {
+    return encoding == RfbParser.ENCODING_RAW || encoding == RfbParser.ENCODING_RRE
+        || encoding == RfbParser.ENCODING_CORRE || encoding == RfbParser.ENCODING_HEXTILE
+        || encoding == RfbParser.ENCODING_TIGHT;
+  }
+
+  /**
+   * Returns true if a rectangle is worth caching. Of the tight encoding, only JPEG rectangles
+   * are, as the others are compressed with the state of the rectangles before them.
+   *
+   * @param rect the header and encoded data of the rectangle.
+   */
+  static boolean isWorthCaching(ByteBuffer rect) {
+    int length = rect.remaining() - RECT_HEADER_SIZE;
+    if (length < MIN_SIZE || length > MAX_SIZE) {
+      return false;
+    }
+    int encoding = rect.getInt(rect.position() + 8);
+    return encoding != RfbParser.ENCODING_TIGHT
+        || (rect.get(rect.position() + RECT_HEADER_SIZE) & 0xff) >> 4 == 9;
+  }
+
+  /**
+   * Returns the digest of a rectangle.
+   *
+   * @param rect the header and encoded data of the rectangle, which are left unchanged; the
+   *             position of the rectangle is not part of the digest.
+   */
+  Digest digest(ByteBuffer rect) {
+    ByteBuffer bytes = rect.duplicate();
+    bytes.position(bytes.position() + 4);
+    sha.reset();
+    sha.update(bytes);
+    ByteBuffer hash = ByteBuffer.wrap(sha.digest());
+    return new Digest(hash.getLong(), hash.getLong());
+  }
+
+  /**
+   * Returns a rectangle, which becomes the most recently used.
+   *
+   * @return the rectangle, or null if it is not in the cache.
+   */
+  Entry get(Digest digest) {
+    return entries.get(digest);
+  }
+
+  /**
+   * Adds a rectangle as the most recently used, evicting the least recently used ones until it
+   * fits.
+   *
+   * @param digest the digest of the rectangle.
+   * @param rect   the header and encoded data of the rectangle, which are left unchanged.
+   */
+  void put(Digest digest, ByteBuffer rect) {
+    int length = rect.remaining() - RECT_HEADER_SIZE;
+    byte[] shape = new byte[8];
+    ByteBuffer data = null;
+    ByteBuffer bytes = rect.duplicate();
+    bytes.position(bytes.position() + 4);
+    bytes.get(shape);
+    if (keepsData) {
+      data = ByteBuffer.allocateDirect(length);
+      data.put(bytes).flip();
+    }
+    add(digest, new Entry(shape, data, length));
+  }
+
+  private void add(Digest digest, Entry entry) {
+    if (entry.length > capacity) {
+      return;
+    }
+    Entry replaced = entries.remove(digest);
+    if (replaced != null) {
+      size -= replaced.length;
+    }
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (size + entry.length > capacity && eldest.hasNext()) {
+      size -= eldest.next().length;
+      eldest.remove();
+    }
+    entries.put(digest, entry);
+    size += entry.length;
+    changed = true;
+  }
+
+  /**
+   * Evicts the least recently used rectangles until at most a number are left.
+   */
+  void trim(int count) {
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (entries.size() > count && eldest.hasNext()) {
+      size -= eldest.next().length;
+      eldest.remove();
+      changed = true;
+    }
+  }
+
+  /**
+   * Returns the inventory of the cache: its capacity, then the digest and the size of each
+   * rectangle, least recently used first.
+   */
+  ByteBuffer inventory() {
+    ByteBuffer inventory = ByteBuffer.allocate(8 + entries.size() * 20);
+    inventory.putLong(capacity);
+    for (Map.Entry<Digest, Entry> mapping : entries.entrySet()) {
+      inventory.putLong(mapping.getKey().high).putLong(mapping.getKey().low);
+      inventory.putInt(mapping.getValue().length);
+    }
+    inventory.flip();
+    return inventory;
+  }
+
+  /**
+   * Creates the mirror of a cache, without the data, from its inventory.
+   *
+   * @return the mirror, or null if the inventory is malformed.
+   */
+  static RfbRectangleCache mirror(ByteBuffer inventory) {
+    if (inventory.remaining() < 8 || (inventory.remaining() - 8) % 20 != 0) {
+      return null;
+    }
+    RfbRectangleCache mirror = new RfbRectangleCache(inventory.getLong(), false);
+    while (inventory.hasRemaining()) {
+      Digest digest = new Digest(inventory.getLong(), inventory.getLong());
+      mirror.add(digest, new Entry(null, null, inventory.getInt()));
+    }
+    return mirror;
+  }
+
+  /**
+   * Returns a message of the proxies.
+   *
+   * @param kind the kind of the message.
+   * @param data the data of the message, or null.
+   */
+  static ByteBuffer message(int kind, ByteBuffer data) {
+    int length = (data != null) ? data.remaining() : 0;
+    ByteBuffer message = ByteBuffer.allocate(8 + length);
+    message.put((byte) RfbParser.MESSAGE_PROXY).put((byte) kind).putShort((short) 0);
+    message.putInt(length);
+    if (data != null) {
+      message.put(data);
+    }
+    message.flip();
+    return message;
+  }
+
+  /**
+   * Writes pending buffers to a destination as far as it has room.
+   *
+   * @return true if all of them have been written.
+   */
+  static boolean drain(Deque<ByteBuffer> pending, ByteBuffer dst) {
+    while (!pending.isEmpty()) {
+      ByteBuffer head = pending.peek();
+      copy(head, dst, Math.min(head.remaining(), dst.remaining()));
+      if (head.hasRemaining()) {
+        return false;
+      }
+      pending.poll();
+    }
+    return true;
+  }
+
+  /**
+   * Copies bytes from the position of a source to a destination, advancing both.
+   */
+  static void copy(ByteBuffer src, ByteBuffer dst, int length) {
+    ByteBuffer slice = src.duplicate();
+    slice.limit(slice.position() + length);
+    dst.put(slice);
+    src.position(src.position() + length);
+  }
+
+  /**
+   * Returns a copy of the start of an array as a buffer.
+   */
+  static ByteBuffer copyOf(byte[] bytes, int length) {
+    ByteBuffer copy = ByteBuffer.allocate(length);
+    copy.put(bytes, 0, length).flip();
+    return copy;
+  }
+
+  /**
+   * The 128-bit digest of a rectangle.
+   */
+  static final class Digest {
+    private final long high;
+    private final long low;
+
+    Digest(long high, long low) {
+      this.high = high;
+      this.low = low;
+    }
+
+    void write(ByteBuffer dst) {
+      dst.putLong(high).putLong(low);
+    }
+
+    static Digest read(ByteBuffer src) {
+      return new Digest(src.getLong(), src.getLong());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Digest && ((Digest) other).high == high
+          && ((Digest) other).low == low;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) high;
+    }
+  }
+
+  /**
+   * A rectangle in the cache.
+   */
+  static final class Entry {
+    final byte[] shape; // width, height and encoding of the rectangle
+    final ByteBuffer data; // the encoded data, null in a mirror
+    final int length;
+
+    Entry(byte[] shape, ByteBuffer data, int length) {
+      this.shape = shape;
+      this.data = data;
+      this.length = length;
+    }
+  }
+}
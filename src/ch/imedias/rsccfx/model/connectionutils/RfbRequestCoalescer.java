@@ -0,0 +1,232 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds back the FramebufferUpdateRequests of a VNC viewer while a number of updates are
+ * outstanding, and merges them into one.
+ *
+ * <p>The coalescer follows the RFB protocol in both directions with a {@link RfbParser}: the
+ * handshake, and the framing of the messages of the viewer and of the server. The messages of
+ * the viewer are passed on unchanged and in order, except for the update requests. A request is
+ * passed on while fewer updates than the limit are outstanding. Otherwise it is held back, and
+ * the requests that follow are merged into it: the merged request covers the union of their
+ * rectangles, and is incremental only if all of them are. The held request is passed on once an
+ * update has arrived, or after {@link #HOLD_TIMEOUT} milliseconds, in case the server has
+ * answered several requests with one update.
+ *
+ * <p>The messages of the server are read, never changed. An update has arrived once all its
+ * rectangles have, which takes parsing their encodings. Once the parser stops following either
+ * direction, the coalescer passes everything on from then on. A mistake in parsing can thus only
+ * delay a request, never corrupt the session.
+ *
+ * <p>The coalescer is not thread-safe; it is driven by the event loop of a {@link ProxyPump}.
+ */
+public class RfbRequestCoalescer implements ProxyFilter {
+  // Time after which a held request is passed on anyway (ms)
+  static final int HOLD_TIMEOUT = 1000;
+
+  private final RfbParser parser = new RfbParser(false);
+  private final int maxOutstanding;
+  private int outstanding = 0;
+  private boolean passThrough = false;
+
+  private final byte[] output = new byte[64];
+  private int outputPos = 0;
+  private int outputLength = 0;
+
+  private boolean held = false;
+  private boolean heldIncremental;
+  private int heldLeft;
+  private int heldTop;
+  private int heldRight;
+  private int heldBottom;
+  private long heldSince;
+
+  /**
+   * Creates a new RfbRequestCoalescer for a connection from its start.
+   *
+   * @param maxOutstanding the number of update requests that may be outstanding, at least 1.
+   */
+  public RfbRequestCoalescer(int maxOutstanding) {
+    this.maxOutstanding = Math.max(maxOutstanding, 1);
+  }
+
+  /**
+   * Passes the bytes of the viewer on, holding back the update requests that are not to be
+   * sent yet, and sends a held request once it is due. Reads as much of the source as the
+   * destination has room for.
+   *
+   * @param src the bytes from the viewer.
+   * @param dst the buffer for the bytes to send to the server.
+   * @param now the current time in milliseconds.
+   */
+  public void filterUpstream(ByteBuffer src, ByteBuffer dst, long now) {
+    while (true) {
+      if (outputPos < outputLength) {
+        int length = Math.min(dst.remaining(), outputLength - outputPos);
+        dst.put(output, outputPos, length);
+        outputPos += length;
+        if (outputPos < outputLength) {
+          return;
+        }
+      }
+
+      if (!passThrough && (parser.viewerFailed() || parser.serverFailed())) {
+        passThrough = true;
+      }
+      if (parser.atViewerMessage() && releaseHeld(now)) {
+        continue;
+      }
+
+      int event = parser.nextFromViewer(src);
+      if (event == RfbParser.NONE) {
+        return;
+      } else if (event == RfbParser.BODY) {
+        if (parser.viewerFailed() && releaseHeld(Long.MAX_VALUE)) {
+          // The held request goes before the bytes the parser has stopped at
+          continue;
+        }
+        int length = (int) Math.min(parser.viewerBodyLeft(),
+            Math.min(src.remaining(), dst.remaining()));
+        if (length == 0) {
+          return;
+        }
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        src.position(src.position() + length);
+        parser.skipViewerBody(length);
+      } else if (event == RfbParser.MESSAGE && parser.viewerHeader()[0] == 3) {
+        updateRequested(parser.viewerHeader(), now);
+      } else {
+        int start = (parser.viewerFailed() && releaseHeld(Long.MAX_VALUE)) ? outputLength : 0;
+        System.arraycopy(parser.viewerHeader(), 0, output, start, parser.viewerHeaderLength());
+        outputPos = 0;
+        outputLength = start + parser.viewerHeaderLength();
+      }
+    }
+  }
+
+  /**
+   * Passes the bytes of the server on unchanged, following them to find out when updates have
+   * arrived. Reads as much of the source as the destination has room for.
+   *
+   * @param src the bytes from the server.
+   * @param dst the buffer for the bytes to send to the viewer.
+   */
+  public void filterDownstream(ByteBuffer src, ByteBuffer dst) {
+    int length = Math.min(src.remaining(), dst.remaining());
+    ByteBuffer in = src.duplicate();
+    in.limit(in.position() + length);
+    dst.put(in.duplicate());
+    src.position(src.position() + length);
+
+    while (true) {
+      int event = parser.nextFromServer(in);
+      if (event == RfbParser.NONE || parser.serverFailed()) {
+        return;
+      } else if (event == RfbParser.BODY) {
+        int skipped = (int) Math.min(parser.serverBodyLeft(), in.remaining());
+        if (skipped == 0) {
+          return;
+        }
+        in.position(in.position() + skipped);
+        parser.skipServerBody(skipped);
+      } else if (event == RfbParser.UPDATE_END) {
+        outstanding = Math.max(outstanding - 1, 0);
+      }
+    }
+  }
+
+  /**
+   * Returns the time until a held request is due.
+   *
+   * @param now the current time in milliseconds.
+   * @return the time in milliseconds, 0 if it is due now, or -1 if no request is held.
+   */
+  public long millisUntilRelease(long now) {
+    if (!held) {
+      return -1;
+    }
+    if (passThrough || outstanding < maxOutstanding) {
+      return 0;
+    }
+    return Math.max(HOLD_TIMEOUT - (now - heldSince), 1);
+  }
+
+  /**
+   * Returns true if all the bytes of the viewer passed on have been written to a destination.
+   */
+  public boolean isUpstreamDrained() {
+    return outputPos >= outputLength;
+  }
+
+  public boolean isDownstreamDrained() {
+    return true;
+  }
+
+  /**
+   * Passes an update request on, or holds it back merged with the one held already.
+   */
+  private void updateRequested(byte[] header, long now) {
+    if (!held && (passThrough || outstanding < maxOutstanding)) {
+      outstanding++;
+      System.arraycopy(header, 0, output, 0, 10);
+      outputPos = 0;
+      outputLength = 10;
+      return;
+    }
+
+    boolean incremental = header[1] != 0;
+    int left = RfbParser.readU16(header, 2);
+    int top = RfbParser.readU16(header, 4);
+    int right = left + RfbParser.readU16(header, 6);
+    int bottom = top + RfbParser.readU16(header, 8);
+    if (!held) {
+      held = true;
+      heldSince = now;
+      heldIncremental = incremental;
+      heldLeft = left;
+      heldTop = top;
+      heldRight = right;
+      heldBottom = bottom;
+    } else {
+      heldIncremental &= incremental;
+      heldLeft = Math.min(heldLeft, left);
+      heldTop = Math.min(heldTop, top);
+      heldRight = Math.max(heldRight, right);
+      heldBottom = Math.max(heldBottom, bottom);
+    }
+  }
+
+  /**
+   * Queues the held request for sending if it is due.
+   *
+   * @return true if it was queued.
+   */
+  private boolean releaseHeld(long now) {
+    if (!held) {
+      return false;
+    }
+    if (!passThrough && outstanding >= maxOutstanding) {
+      if (now - heldSince < HOLD_TIMEOUT) {
+        return false;
+      }
+      // The server may have answered several requests at once, so the count starts over
+      outstanding = 0;
+    }
+
+    held = false;
+    outstanding++;
+    outputPos = 0;
+    outputLength = 10;
+    output[0] = 3;
+    output[1] = (byte) (heldIncremental ? 1 : 0);
+    RfbParser.writeU16(output, 2, heldLeft);
+    RfbParser.writeU16(output, 4, heldTop);
+    RfbParser.writeU16(output, 6, heldRight - heldLeft);
+    RfbParser.writeU16(output, 8, heldBottom - heldTop);
+    return true;
+  }
+}
@@ -3,40 +3,48 @@ package ch.imedias.rsccfx.model.connectionutils;
 import ch.imedias.rsccfx.model.Rscc;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableServerSocket;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketProfile;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
+import javafx.beans.value.ChangeListener;
 
 /**
  * Establishes a RUDP connection between two clients, can be run as server or client.
  */
 public class RunRudp extends Thread {
   private static final Logger LOGGER = Logger.getLogger(Rscccfp.class.getName());
+  private static final int VNC_SERVICE = 1;
 
-
-  private boolean exit = false;
+  private volatile boolean exit = false;
   private Rscc model;
   private boolean viewerIsRudpClient;
   private boolean callAsViewer;
   private ReliableSocketProfile profile;
 
-  private InputStream rudpInputStream;
-  private OutputStream rudpOutputStream;
-  private InputStream tcpInputStream;
-  private OutputStream tcpOutputStream;
   private ReliableSocket rudpSocket;
   private Socket rudpSocket2;
   private ReliableServerSocket rudpServerSocket;
   private Socket tcpSocket;
   private ServerSocket tcpServerSocket;
+  private ChangeListener<Number> maxSendRateListener;
+  private volatile PortForwarder portForwarder;
+  private volatile ProxyPump proxyPump;
+  private RfbRectangleCache rectangleCache;
+  private RfbCacheDecoder cacheDecoder;
+  private final List<RfbCacheEncoder> cacheEncoders = new ArrayList<>();
 
   private ListMultimap<String, Closeable> closables = ArrayListMultimap.create();
 
@@ -53,11 +61,26 @@ public class RunRudp extends Thread {
     this.callAsViewer = callAsViewer;
   }
 
+  /**
+   * Creates the RUDP parameters, using the UDP package size setting as the
+   * largest segment size. The segment size actually used is found by path MTU
+   * discovery on each connection. Streams are multiplexed over the connection
+   * if the peer supports it.
+   */
+  private ReliableSocketProfile createProfile() {
+    return new ReliableSocketProfile.Builder()
+        .maxSegmentSize(model.getUdpPackageSize())
+        .maxRetrans(ReliableSocketProfile.MAX_RETRANS)
+        .streams(true)
+        .build();
+  }
+
   /**
    * Starts the TCP and RUDP socket and routes the Packages in between over a Proxy.
    */
   public void run() {
     try {
+      profile = createProfile();
 
       String remoteAddressAsString = model.getRemoteClientIpAddress().getHostAddress();
 
@@ -75,28 +98,27 @@ public class RunRudp extends Thread {
         //   model.getRemoteClientPort());
 
         rudpSocket = new ReliableSocket(model.getRemoteClientIpAddress().getHostAddress(),
-            model.getRemoteClientPort(), null, model.getIcePort());
-
-        rudpInputStream = rudpSocket.getInputStream();
-        rudpOutputStream = rudpSocket.getOutputStream();
+            model.getRemoteClientPort(), null, model.getIcePort(), profile);
+        limitSendRate(rudpSocket);
+        if (rudpSocket.isMultiplexed()) {
+          startTunnel(rudpSocket);
+          return;
+        }
 
         LOGGER.info("Sucessfully connected rudp to " + model.getRemoteClientIpAddress()
             .getHostAddress() + ":" + model.getRemoteClientPort());
 
         //TCP Server
         LOGGER.info("Create new tcp-server on " + model.getProxyPort());
-        tcpServerSocket = new ServerSocket(model.getProxyPort());
+        tcpServerSocket = ServerSocketChannel.open().socket();
+        tcpServerSocket.bind(new InetSocketAddress(model.getProxyPort()));
         tcpSocket = tcpServerSocket.accept();
         tcpSocket.setTcpNoDelay(true);
 
-        tcpInputStream = tcpSocket.getInputStream();
-        tcpOutputStream = tcpSocket.getOutputStream();
-
         LOGGER.info("Accepted incoming tcp connection from" + tcpSocket.getInetAddress()
             .getHostAddress());
 
-        startProxy(tcpInputStream, tcpOutputStream, rudpInputStream, rudpOutputStream,
-            model.getUdpPackageSize());
+        startProxy(tcpSocket, rudpSocket);
 
         rudpSocket.close();
         tcpSocket.close();
@@ -109,11 +131,14 @@ public class RunRudp extends Thread {
 
         //RUDP Server
         LOGGER.info("Create new rudp-server on " + model.getIcePort());
-        rudpServerSocket = new ReliableServerSocket(model.getIcePort());
+        rudpServerSocket = new ReliableServerSocket(model.getIcePort(), profile);
         rudpSocket2 = rudpServerSocket.accept();
+        limitSendRate((ReliableSocket) rudpSocket2);
+        if (((ReliableSocket) rudpSocket2).isMultiplexed()) {
+          startTunnel(rudpSocket2);
+          return;
+        }
 
-        rudpInputStream = rudpSocket2.getInputStream();
-        rudpOutputStream = rudpSocket2.getOutputStream();
         LOGGER.info("Accepted incoming rudp connection from" + rudpSocket2.getInetAddress()
             .getHostAddress());
 
@@ -121,15 +146,12 @@ public class RunRudp extends Thread {
         LOGGER.info("Connect tcp to " + InetAddress.getLocalHost() + ":"
             + model.getVncPort());
 
-        tcpSocket = new Socket(InetAddress.getByName("127.0.0.1"), model.getVncPort());
-
-        tcpInputStream = tcpSocket.getInputStream();
-        tcpOutputStream = tcpSocket.getOutputStream();
+        tcpSocket = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+            model.getVncPort())).socket();
 
         LOGGER.info("Sucessful tcp connection");
 
-        startProxy(tcpInputStream, tcpOutputStream, rudpInputStream, rudpOutputStream,
-            model.getUdpPackageSize());
+        startProxy(tcpSocket, (ReliableSocket) rudpSocket2);
 
         rudpSocket2.close();
         tcpSocket.close();
@@ -142,28 +164,27 @@ public class RunRudp extends Thread {
 
         //RUDP Server
         LOGGER.info("Create new rudp-server on " + model.getIcePort());
-        rudpServerSocket = new ReliableServerSocket(model.getIcePort());
+        rudpServerSocket = new ReliableServerSocket(model.getIcePort(), profile);
         rudpSocket2 = rudpServerSocket.accept();
+        limitSendRate((ReliableSocket) rudpSocket2);
+        if (((ReliableSocket) rudpSocket2).isMultiplexed()) {
+          startTunnel(rudpSocket2);
+          return;
+        }
         LOGGER.info("Accepted incoming rudp connection from" + rudpSocket2.getInetAddress()
             .getHostAddress());
 
-        rudpInputStream = rudpSocket2.getInputStream();
-        rudpOutputStream = rudpSocket2.getOutputStream();
-
         //TCP Server
-        tcpServerSocket = new ServerSocket(model.getProxyPort());
+        tcpServerSocket = ServerSocketChannel.open().socket();
+        tcpServerSocket.bind(new InetSocketAddress(model.getProxyPort()));
         tcpSocket = tcpServerSocket.accept();
         tcpSocket.setTcpNoDelay(true);
         LOGGER.info("TCP connected");
 
-        tcpInputStream = tcpSocket.getInputStream();
-        tcpOutputStream = tcpSocket.getOutputStream();
-
         LOGGER.info("Accepted incoming tcp connection from" + tcpSocket.getInetAddress()
             .getHostAddress());
 
-        startProxy(tcpInputStream, tcpOutputStream, rudpInputStream, rudpOutputStream,
-            model.getUdpPackageSize());
+        startProxy(tcpSocket, (ReliableSocket) rudpSocket2);
 
         rudpSocket2.close();
         tcpSocket.close();
@@ -185,10 +206,12 @@ public class RunRudp extends Thread {
         // rudpSocket = new ReliableSocket(model.getRemoteClientIpAddress().getHostAddress(),
         //   model.getRemoteClientPort());
         rudpSocket = new ReliableSocket(model.getRemoteClientIpAddress().getHostAddress(),
-            model.getRemoteClientPort(), null, model.getIcePort());
-
-        rudpInputStream = rudpSocket.getInputStream();
-        rudpOutputStream = rudpSocket.getOutputStream();
+            model.getRemoteClientPort(), null, model.getIcePort(), profile);
+        limitSendRate(rudpSocket);
+        if (rudpSocket.isMultiplexed()) {
+          startTunnel(rudpSocket);
+          return;
+        }
 
         LOGGER.info("Sucessfully connected rudp to " + model.getRemoteClientIpAddress()
             .getHostAddress() + ":" + model.getRemoteClientPort());
@@ -197,15 +220,12 @@ public class RunRudp extends Thread {
         LOGGER.info("Connect tcp to " + InetAddress.getByName("127.0.0.1").getHostAddress()
             + ":" + model.getVncPort());
 
-        tcpSocket = new Socket(InetAddress.getByName("127.0.0.1"), model.getVncPort());
-
-        tcpInputStream = tcpSocket.getInputStream();
-        tcpOutputStream = tcpSocket.getOutputStream();
+        tcpSocket = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+            model.getVncPort())).socket();
 
         LOGGER.info("Sucessful tcp connection");
 
-        startProxy(tcpInputStream, tcpOutputStream, rudpInputStream, rudpOutputStream,
-            model.getUdpPackageSize());
+        startProxy(tcpSocket, rudpSocket);
       }
     } catch (Exception e) {
       LOGGER.info(e.getMessage());
@@ -214,79 +234,127 @@ public class RunRudp extends Thread {
 
 
   /**
-   * Starts the Proxy.
+   * Limits the send rate of the RUDP socket to the bandwidth limit of the settings,
+   * also when the limit is changed during the session.
    *
-   * @param tcpInput   InputStream on TCP Socket.
-   * @param tcpOutput  OutputSocket on TCP Socket.
-   * @param rudpInput  InputStream on RUDP Socket.
-   * @param rudpOutput OutputStream on RUDP Socket.
-   * @param bufferSize Size of the Buffer per package.
+   * @param socket the connected RUDP socket.
    */
-  private void startProxy(InputStream tcpInput, OutputStream tcpOutput, InputStream
-      rudpInput, OutputStream rudpOutput, int bufferSize) {
+  private void limitSendRate(ReliableSocket socket) {
+    socket.setSendRateLimit(Math.max(model.getMaxSendRate(), 0));
+    maxSendRateListener = (observable, oldValue, newValue) ->
+        socket.setSendRateLimit(Math.max(newValue.intValue(), 0));
+    model.maxSendRateProperty().addListener(maxSendRateListener);
+  }
 
-    final byte[] request = new byte[bufferSize];
-    byte[] reply = new byte[bufferSize];
+  /**
+   * Tunnels the VNC connection through a stream of the multiplexed RUDP connection, and closes
+   * everything once it has ended. The VNC connection goes through the same filters as with the
+   * Proxy. Further ports can be forwarded over the same connection with
+   * {@link #getPortForwarder()} meanwhile.
+   *
+   * @param socket the connected RUDP socket.
+   */
+  private void startTunnel(Socket socket) throws IOException, InterruptedException {
+    // The streams write through the output stream of the socket, which coalesces small writes,
+    // unlike the channel the Proxy writes through
+    socket.setTcpNoDelay(false);
+    PortForwarder forwarder = new PortForwarder(new ReliableSocketMultiplexer(socket));
+    portForwarder = forwarder;
+    if (callAsViewer) {
+      LOGGER.info("Create new tcp-server on " + model.getProxyPort());
+      forwarder.forward(model.getProxyPort(), VNC_SERVICE, true, this::createFilters);
+    } else {
+      forwarder.expose(VNC_SERVICE, model.getVncPort(), this::createFilters);
+    }
+    forwarder.awaitTunnelClosed(VNC_SERVICE);
+    finishFilters();
+    closeAll();
+  }
 
-    // a thread to read the client's requests and pass them
-    // to the server. A separate thread for asynchronous.
-    Thread t1 = new Thread() {
-      public void run() {
-        int bytesRead;
-        try {
-          while ((bytesRead = tcpInput.read(request)) != -1 && !exit) {
-            rudpOutput.write(request, 0, bytesRead);
-            //LOGGER.info("wrote1:" + bytesRead);
-            rudpOutput.flush();
-          }
-        } catch (IOException e) {
-          LOGGER.info(e.getMessage());
-        }
+  /**
+   * Returns the forwarder of the multiplexed RUDP connection, through which further ports can be
+   * exposed to and forwarded from the peer.
+   *
+   * @return the forwarder, or null if the connection is not established yet or the peer does
+   *     not support multiplexing.
+   */
+  public PortForwarder getPortForwarder() {
+    return portForwarder;
+  }
 
-        // the client closed the connection to us, so close
-        // connection to the server.
+  /**
+   * Starts the Proxy, and returns once both connections have ended.
+   *
+   * @param tcp  the connected TCP Socket, which has a channel.
+   * @param rudp the connected RUDP Socket.
+   */
+  private void startProxy(Socket tcp, ReliableSocket rudp) throws IOException {
+    ProxyPump pump = new ProxyPump(tcp.getChannel(), rudp, model.getUdpPackageSize(),
+        callAsViewer, createFilters());
+    proxyPump = pump;
+    if (!exit) {
+      pump.run();
+    }
+    finishFilters();
+    closeAll();
+  }
+
+  /**
+   * Saves the rectangle cache if it has changed, and reports how much it has saved, once the VNC
+   * connection has ended.
+   */
+  private synchronized void finishFilters() {
+    if (cacheDecoder != null) {
+      LOGGER.info("Took " + cacheDecoder.getFromCache() + " rectangles from the cache, saving "
+          + cacheDecoder.getBytesSaved() + " bytes");
+      if (rectangleCache.isChanged()) {
         try {
-          rudpOutput.close();
+          rectangleCache.save(new File(model.getPathToRectangleCache()));
         } catch (IOException e) {
-          LOGGER.info(e.getMessage());
-        } finally {
-          try {
-            closeAll();
-
-          } catch (Exception e) {
-            LOGGER.info(e.getMessage());
-          }
+          LOGGER.info("Could not save the rectangle cache: " + e.getMessage());
         }
       }
+    }
+    int referenced = 0;
+    long bytesSaved = 0;
+    for (RfbCacheEncoder encoder : cacheEncoders) {
+      referenced += encoder.getReferenced();
+      bytesSaved += encoder.getBytesSaved();
+    }
+    if (referenced > 0) {
+      LOGGER.info("Referred to " + referenced + " rectangles in the cache of the viewer, saving "
+          + bytesSaved + " bytes");
+    }
+  }
 
-    };
-
-    // Start the client-to-server request thread running
-    t1.start();
-
-    // Read the server's responses
-    // and pass them back to the client.
-
-    int bytesRead;
-    try {
-      while ((bytesRead = rudpInput.read(reply)) != -1 && !exit) {
-        tcpOutput.write(reply, 0, bytesRead);
-        tcpOutput.flush();
+  /**
+   * Creates the filters of the VNC connection. The update requests of the viewer are coalesced
+   * if the number of outstanding updates is limited. The viewer keeps the rectangles it
+   * receives in a cache between sessions if it has one, and the server refers to them rather
+   * than sending them again. The cache is loaded once per RUDP connection, for the first VNC
+   * connection: it follows a single viewer, so further connections meanwhile go without it.
+   *
+   * @return the filters, in order from the TCP connection to the RUDP connection.
+   */
+  private synchronized ProxyFilter[] createFilters() {
+    List<ProxyFilter> filters = new ArrayList<>();
+    if (callAsViewer) {
+      if (model.getMaxOutstandingUpdates() > 0) {
+        filters.add(new RfbRequestCoalescer(model.getMaxOutstandingUpdates()));
       }
-    } catch (IOException e) {
-      LOGGER.info(e.getMessage());
-    } finally {
-      try {
-        closeAll();
-
-      } catch (Exception e) {
-        LOGGER.info(e.getMessage());
+      if (model.getRectangleCacheSize() > 0 && cacheDecoder == null) {
+        rectangleCache = RfbRectangleCache.load(new File(model.getPathToRectangleCache()),
+            model.getRectangleCacheSize() * 1024L * 1024L);
+        cacheDecoder = new RfbCacheDecoder(rectangleCache);
+        filters.add(cacheDecoder);
       }
+    } else {
+      // Passes the data on unchanged unless the viewer has a cache
+      RfbCacheEncoder cacheEncoder = new RfbCacheEncoder();
+      cacheEncoders.add(cacheEncoder);
+      filters.add(cacheEncoder);
     }
-
-
-    // The server closed its connection to us, so we close our
-    // connection to our client.
+    return filters.toArray(new ProxyFilter[filters.size()]);
   }
 
   /**
@@ -300,6 +368,10 @@ public class RunRudp extends Thread {
   }
 
   private void closeAll() {
+    if (maxSendRateListener != null) {
+      model.maxSendRateProperty().removeListener(maxSendRateListener);
+      maxSendRateListener = null;
+    }
     setupClosables();
     closables.forEach(
         (name, closeable) -> {
@@ -317,38 +389,18 @@ public class RunRudp extends Thread {
 
   private void setupClosables() {
 
-    if (tcpInputStream != null) {
-      LOGGER.info("tcpInputStream is not null - close");
-      try {
-        tcpInputStream.close();
-      } catch (IOException e) {
-        LOGGER.info(e.getMessage());
-      }
-    }
-    if (rudpInputStream != null) {
-      LOGGER.info("rudpInputStream is not null - close");
-      try {
-        rudpInputStream.close();
-      } catch (IOException e) {
-        LOGGER.info(e.getMessage());
-      }
-    }
-    if (tcpOutputStream != null) {
-      LOGGER.info("tcpOutputStream is not null - close");
-      try {
-        tcpOutputStream.close();
-      } catch (IOException e) {
-        LOGGER.info(e.getMessage());
-      }
+    if (proxyPump != null) {
+      LOGGER.info("proxyPump is not null - close");
+      proxyPump.close();
+      proxyPump = null;
     }
-    if (rudpOutputStream != null) {
-      LOGGER.info("rudpOutputStream is not null - close");
-      try {
-        rudpOutputStream.close();
-      } catch (IOException e) {
-        LOGGER.info(e.getMessage());
-      }
+
+    if (portForwarder != null) {
+      LOGGER.info("portForwarder is not null - close");
+      portForwarder.close();
+      portForwarder = null;
     }
+
     if (rudpSocket != null && !rudpSocket.isClosed()) {
       LOGGER.info("rudpSocket is not null - close");
       try {
@@ -0,0 +1,93 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * This class chooses how many data segments are acknowledged at once
+ * when ACK decimation has been negotiated (see SYNSegment), from the
+ * rate at which data segments arrive.
+ * <p>
+ * The arrival rate is sampled over every <code>SAMPLE_PERIOD</code>
+ * and smoothed: as many segments are acknowledged together as arrive
+ * within <code>ACK_INTERVAL</code>, so that a fast sender gets about one
+ * ACK per interval, but never fewer segments than the profile asks for,
+ * so that a slow sender gets no more ACKs than without decimation, and
+ * never more than <code>MAX_FREQUENCY</code>. Since the receiver cannot
+ * know the send window, the sender asks for an immediate ACK when it
+ * would otherwise have to wait for one.
+ */
+class AckFrequency {
+  static final int MAX_FREQUENCY = 32; /* Most data segments per ACK */
+  static final int ACK_INTERVAL = 10;  /* Target time between ACKs (ms) */
+  static final int ACK_DELAY = 25;     /* Longest delay of an ACK (ms) */
+  private static final int SAMPLE_PERIOD = 100; /* (ms) */
+  private final int _minFrequency;
+  private int _frequency; /* Smoothed data segments per ACK */
+  private long _start = -1; /* Start of the current sample (ms) */
+  private int _count;       /* Segments received in the current sample */
+
+  /**
+   * Creates a new ACK frequency.
+   *
+   * @param minFrequency the data segments per ACK at low rates.
+   */
+  AckFrequency(int minFrequency) {
+    _minFrequency = Math.max(1, Math.min(minFrequency, MAX_FREQUENCY));
+    _frequency = _minFrequency;
+  }
+
+  /**
+   * Counts a received data segment.
+   *
+   * @param now the current time (ms).
+   */
+  synchronized void segmentReceived(long now) {
+    if (_start < 0) {
+      _start = now;
+    }
+
+    _count++;
+    long elapsed = now - _start;
+    if (elapsed >= SAMPLE_PERIOD) {
+      long sample = _count * (long) ACK_INTERVAL / elapsed;
+      sample = Math.max(_minFrequency, Math.min(sample, MAX_FREQUENCY));
+      _frequency = (int) ((_frequency + sample + 1) / 2);
+      _start = now;
+      _count = 0;
+    }
+  }
+
+  /**
+   * Returns the number of data segments to acknowledge at once.
+   */
+  synchronized int getFrequency() {
+    return _frequency;
+  }
+}
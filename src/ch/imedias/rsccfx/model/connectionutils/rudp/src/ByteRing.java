@@ -0,0 +1,152 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the contiguous circular buffer into which the
+ * data of in-sequence segments is reassembled.
+ * <p>
+ * The data of each segment is copied into the buffer once, when the
+ * segment is delivered in sequence, and read out in arbitrary amounts
+ * regardless of segment boundaries.
+ */
+class ByteRing {
+  private byte[] _buf;
+  private int _head;  /* Position of the first unread byte */
+  private int _count; /* Number of unread bytes */
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param capacity the capacity in bytes.
+   */
+  ByteRing(int capacity) {
+    _buf = new byte[capacity];
+  }
+
+  /**
+   * Changes the capacity, keeping the unread bytes that fit.
+   *
+   * @param capacity the capacity in bytes.
+   */
+  void resize(int capacity) {
+    byte[] buf = new byte[capacity];
+    _count = read(buf, 0, Math.min(_count, capacity));
+    _buf = buf;
+    _head = 0;
+  }
+
+  int capacity() {
+    return _buf.length;
+  }
+
+  /**
+   * Returns the number of unread bytes.
+   */
+  int available() {
+    return _count;
+  }
+
+  /**
+   * Returns the number of bytes that can be written.
+   */
+  int free() {
+    return _buf.length - _count;
+  }
+
+  /**
+   * Appends the data of a segment. The data must fit in the buffer.
+   *
+   * @param s the segment.
+   */
+  void write(DATSegment s) {
+    int len = s.getDataLength();
+    int tail = (_head + _count) % _buf.length;
+    int n = Math.min(len, _buf.length - tail);
+    s.getData(0, _buf, tail, n);
+    s.getData(n, _buf, 0, len - n);
+    _count += len;
+  }
+
+  /**
+   * Appends <code>len</code> bytes. They must fit in the buffer.
+   */
+  void write(byte[] b, int off, int len) {
+    int tail = (_head + _count) % _buf.length;
+    int n = Math.min(len, _buf.length - tail);
+    System.arraycopy(b, off, _buf, tail, n);
+    System.arraycopy(b, off + n, _buf, 0, len - n);
+    _count += len;
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes.
+   *
+   * @return the number of bytes read.
+   */
+  int read(byte[] b, int off, int len) {
+    len = Math.min(len, _count);
+    int n = Math.min(len, _buf.length - _head);
+    System.arraycopy(_buf, _head, b, off, n);
+    System.arraycopy(_buf, 0, b, off + n, len - n);
+    _head = (_head + len) % _buf.length;
+    _count -= len;
+    if (_count == 0) {
+      _head = 0;
+    }
+    return len;
+  }
+
+  /**
+   * Reads as many bytes as the given buffer has room for.
+   *
+   * @return the number of bytes read.
+   */
+  int read(ByteBuffer dst) {
+    int len = Math.min(dst.remaining(), _count);
+    int n = Math.min(len, _buf.length - _head);
+    dst.put(_buf, _head, n);
+    dst.put(_buf, 0, len - n);
+    _head = (_head + len) % _buf.length;
+    _count -= len;
+    if (_count == 0) {
+      _head = 0;
+    }
+    return len;
+  }
+
+  void clear() {
+    _head = _count = 0;
+  }
+}
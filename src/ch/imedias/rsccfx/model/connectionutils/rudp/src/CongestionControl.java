@@ -0,0 +1,87 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * A congestion control algorithm for a rudp socket.
+ * <p>
+ * The socket asks the algorithm for its congestion window, the number
+ * of segments that may be sent without being acknowledged, and reports
+ * acknowledgments and loss events back to it. The effective send window
+ * is the minimum of the congestion window, the send queue size and the
+ * number of outstanding segments the peer is willing to accept.
+ * <p>
+ * Implementations are used by a single socket and are always invoked
+ * while the socket holds the lock of its send queue.
+ *
+ * @see ReliableSocket#createCongestionControl()
+ * @see ReliableSocketProfile#congestionControl()
+ */
+public interface CongestionControl {
+  /**
+   * Returns the congestion window (segments).
+   */
+  public int getWindow();
+
+  /**
+   * Returns the slow start threshold (segments).
+   */
+  public int getSlowStartThreshold();
+
+  /**
+   * Invoked when segments have been acknowledged for the first time.
+   *
+   * @param segments the number of newly acknowledged segments.
+   * @param rtt      the round-trip time measured with this acknowledgment (ms),
+   *                 or <code>-1</code> if no sample is available.
+   */
+  public void onAck(int segments, long rtt);
+
+  /**
+   * Invoked at most once per window of data when the peer reports
+   * missing segments, i.e. when a loss has been detected without
+   * waiting for the retransmission timer.
+   */
+  public void onCongestionEvent();
+
+  /**
+   * Invoked when the segments retransmitted after the last congestion
+   * event all turn out to have been received before, i.e. they were
+   * reordered rather than lost. The window is restored to what it was
+   * before the event.
+   */
+  public void undoCongestionEvent();
+
+  /**
+   * Invoked when the retransmission timer expires.
+   */
+  public void onTimeout();
+}
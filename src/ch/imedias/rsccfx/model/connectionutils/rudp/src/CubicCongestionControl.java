@@ -0,0 +1,160 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * CUBIC congestion control (see RFC 8312).
+ * <p>
+ * After a loss event the window follows a cubic function of the time
+ * elapsed since the event, centered on the window at which the loss
+ * occurred. It therefore probes quickly for bandwidth far from that
+ * point and carefully close to it, independently of the round-trip time,
+ * which suits links with a large bandwidth-delay product.
+ */
+public class CubicCongestionControl implements CongestionControl {
+  private static final double C = 0.4;
+  private static final double BETA = 0.7;
+  private final int _maxWindow;
+  private double _cwnd;
+  private double _ssthresh;
+  private double _wmax;        /* Window before the last reduction */
+  private double _wlastmax;    /* Window before the reduction previous to the last one */
+  private double _west;        /* Estimate of a Reno window (TCP friendly region) */
+  private double _k;           /* Time to reach _wmax again (s) */
+  private long _epochStart;    /* Beginning of the current congestion avoidance epoch (ms) */
+  private long _minRtt = -1;   /* Minimum observed round-trip time (ms) */
+  private double _priorCwnd;   /* Window before the last loss event */
+  private double _priorSsthresh; /* Threshold before the last loss event */
+  private double _priorWmax;   /* _wmax before the last loss event */
+  private double _priorWlastmax; /* _wlastmax before the last loss event */
+
+  /**
+   * Creates a new CUBIC congestion control.
+   *
+   * @param initialWindow the initial window (segments).
+   * @param maxWindow     the maximum window (segments).
+   */
+  public CubicCongestionControl(int initialWindow, int maxWindow) {
+    _maxWindow = Math.max(1, maxWindow);
+    _cwnd = Math.max(1, Math.min(initialWindow, _maxWindow));
+    _ssthresh = _maxWindow;
+  }
+
+  public int getWindow() {
+    return (int) _cwnd;
+  }
+
+  public int getSlowStartThreshold() {
+    return (int) _ssthresh;
+  }
+
+  public void onAck(int segments, long rtt) {
+    if (rtt >= 0 && (_minRtt < 0 || rtt < _minRtt)) {
+      _minRtt = rtt;
+    }
+
+    if (_cwnd < _ssthresh) {
+      _cwnd = Math.min(_cwnd + segments, _maxWindow);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    if (_epochStart == 0) {
+      _epochStart = now;
+      _west = _cwnd;
+      if (_cwnd < _wmax) {
+        _k = Math.cbrt((_wmax - _cwnd) / C);
+      } else {
+        _k = 0;
+        _wmax = _cwnd;
+      }
+    }
+
+    double t = (now - _epochStart + Math.max(_minRtt, 0)) / 1000.0;
+    double target = _wmax + C * Math.pow(t - _k, 3);
+    if (target > _cwnd) {
+      _cwnd += (target - _cwnd) / _cwnd * segments;
+    } else {
+      _cwnd += 0.01 * segments / _cwnd;
+    }
+
+    /* Never grow slower than a Reno flow would */
+    _west += 3 * (1 - BETA) / (1 + BETA) * segments / _cwnd;
+    if (_west > _cwnd) {
+      _cwnd = _west;
+    }
+
+    _cwnd = Math.min(_cwnd, _maxWindow);
+  }
+
+  public void onCongestionEvent() {
+    _priorCwnd = _cwnd;
+    _priorSsthresh = _ssthresh;
+    _priorWmax = _wmax;
+    _priorWlastmax = _wlastmax;
+    reduce();
+    _cwnd = _ssthresh;
+  }
+
+  public void undoCongestionEvent() {
+    if (_priorCwnd > _cwnd) {
+      _cwnd = _priorCwnd;
+      _ssthresh = Math.max(_ssthresh, _priorSsthresh);
+      _wmax = _priorWmax;
+      _wlastmax = _priorWlastmax;
+      _epochStart = 0;
+    }
+  }
+
+  public void onTimeout() {
+    reduce();
+    _cwnd = 1;
+  }
+
+  public String toString() {
+    return "CUBIC [cwnd = " + getWindow() + ", ssthresh = " + getSlowStartThreshold() + "]";
+  }
+
+  private void reduce() {
+    _epochStart = 0;
+
+    /* Fast convergence: release bandwidth to newer flows */
+    if (_cwnd < _wlastmax) {
+      _wlastmax = _cwnd;
+      _wmax = _cwnd * (1 + BETA) / 2;
+    } else {
+      _wlastmax = _cwnd;
+      _wmax = _cwnd;
+    }
+
+    _ssthresh = Math.max(_cwnd * BETA, 2);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * NewReno style congestion control (see RFC 5681 and RFC 6582).
+ * <p>
+ * The window grows by one segment per acknowledged segment during
+ * slow start and by one segment per window of acknowledged segments
+ * during congestion avoidance. It is halved on a loss event and
+ * reduced to one segment when the retransmission timer expires.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+  private final int _maxWindow;
+  private double _cwnd;
+  private double _ssthresh;
+  private double _priorCwnd;     /* Window before the last loss event */
+  private double _priorSsthresh; /* Threshold before the last loss event */
+
+  /**
+   * Creates a new NewReno congestion control.
+   *
+   * @param initialWindow the initial window (segments).
+   * @param maxWindow     the maximum window (segments).
+   */
+  public NewRenoCongestionControl(int initialWindow, int maxWindow) {
+    _maxWindow = Math.max(1, maxWindow);
+    _cwnd = Math.max(1, Math.min(initialWindow, _maxWindow));
+    _ssthresh = _maxWindow;
+  }
+
+  public int getWindow() {
+    return (int) _cwnd;
+  }
+
+  public int getSlowStartThreshold() {
+    return (int) _ssthresh;
+  }
+
+  public void onAck(int segments, long rtt) {
+    if (_cwnd < _ssthresh) {
+      _cwnd += segments;
+    } else {
+      _cwnd += (double) segments / _cwnd;
+    }
+
+    _cwnd = Math.min(_cwnd, _maxWindow);
+  }
+
+  public void onCongestionEvent() {
+    _priorCwnd = _cwnd;
+    _priorSsthresh = _ssthresh;
+    _ssthresh = Math.max(_cwnd / 2, 2);
+    _cwnd = _ssthresh;
+  }
+
+  public void undoCongestionEvent() {
+    _cwnd = Math.max(_cwnd, _priorCwnd);
+    _ssthresh = Math.max(_ssthresh, _priorSsthresh);
+  }
+
+  public void onTimeout() {
+    _ssthresh = Math.max(_cwnd / 2, 2);
+    _cwnd = 1;
+  }
+
+  public String toString() {
+    return "NewReno [cwnd = " + getWindow() + ", ssthresh = " + getSlowStartThreshold() + "]";
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * This class paces the data segments of a connection with a token
+ * bucket, so that a window of segments is spread over the round-trip
+ * time instead of being sent in a single burst.
+ * <p>
+ * The bucket is filled at the lower of the estimated rate and of the
+ * rate limit set by the application, if any. A segment may be sent as
+ * long as the bucket is not empty; its size is then taken out of the
+ * bucket, which may go into debt. Retransmissions are never delayed,
+ * but they are taken out of the bucket as well, so that the limit also
+ * holds while recovering from losses.
+ *
+ * @see ReliableSocket#setSendRateLimit(int)
+ */
+class Pacer {
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long MAX_DELAY = 100000000L; /* (ns) */
+  private static final int BURST_SEGMENTS = 2;
+  private static final long BURST_TIME = 1000000L;  /* (ns) */
+  private long _rate;        /* Estimated rate (bytes/s), 0 if unknown */
+  private long _limit;       /* Rate limit (bytes/s), 0 if none */
+  private int _segmentSize = 1; /* (bytes) */
+  private long _tokens;      /* Bytes that may be sent (bytes) */
+  private long _lastRefill;  /* (ns) */
+
+  /**
+   * Sets the rate estimated from the congestion window and the
+   * round-trip time.
+   *
+   * @param rate        the rate (bytes/s), or <code>0</code> if unknown.
+   * @param segmentSize the size of the data segments (bytes).
+   */
+  synchronized void setRate(long rate, int segmentSize) {
+    _rate = Math.max(rate, 0);
+    _segmentSize = Math.max(segmentSize, 1);
+  }
+
+  /**
+   * Sets the rate that is never exceeded.
+   *
+   * @param limit the rate limit (bytes/s), or <code>0</code> for no limit.
+   */
+  synchronized void setLimit(long limit) {
+    _limit = Math.max(limit, 0);
+  }
+
+  /**
+   * Returns the rate limit (bytes/s), or <code>0</code> if there is none.
+   */
+  synchronized long getLimit() {
+    return _limit;
+  }
+
+  /**
+   * Takes a segment out of the bucket if the bucket is not empty.
+   *
+   * @param bytes the size of the segment.
+   * @param now   the current time (ns).
+   * @return <code>0</code> if the segment may be sent now, or the time
+   * to wait before asking again (ns).
+   */
+  synchronized long reserve(int bytes, long now) {
+    long rate = rate();
+    if (rate == 0) {
+      return 0;
+    }
+
+    refill(rate, now);
+    if (_tokens > 0) {
+      _tokens -= bytes;
+      return 0;
+    }
+
+    return Math.min((1 - _tokens) * NANOS_PER_SECOND / rate + 1, MAX_DELAY);
+  }
+
+  /**
+   * Takes a segment that is sent right away out of the bucket.
+   *
+   * @param bytes the size of the segment.
+   * @param now   the current time (ns).
+   */
+  synchronized void consume(int bytes, long now) {
+    long rate = rate();
+    if (rate == 0) {
+      return;
+    }
+
+    refill(rate, now);
+    _tokens -= bytes;
+  }
+
+  /**
+   * Returns the rate the bucket is filled at (bytes/s),
+   * or <code>0</code> if segments are not paced.
+   */
+  private long rate() {
+    if (_rate == 0) {
+      return _limit;
+    } else if (_limit == 0) {
+      return _rate;
+    }
+
+    return Math.min(_rate, _limit);
+  }
+
+  private void refill(long rate, long now) {
+    long elapsed = now - _lastRefill;
+    _lastRefill = now;
+    if (elapsed <= 0) {
+      return;
+    }
+
+    /*
+     * Unused tokens build up to a burst of a few segments, or of the
+     * bytes sent in a millisecond at high rates, since waiting for
+     * shorter times is not reliable.
+     */
+    long burst = Math.max(BURST_SEGMENTS * _segmentSize, rate * BURST_TIME / NANOS_PER_SECOND);
+    long added = (elapsed >= NANOS_PER_SECOND) ? rate : elapsed * rate / NANOS_PER_SECOND;
+    _tokens = Math.min(_tokens + added, burst);
+  }
+}
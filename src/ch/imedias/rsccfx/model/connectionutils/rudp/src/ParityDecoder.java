@@ -0,0 +1,140 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FECSegment;
+import java.util.Arrays;
+
+/**
+ * This class rebuilds a lost data segment from the parity segment of
+ * its group and the other segments of the group.
+ * <p>
+ * Since the receiver only learns which segments make up a group when
+ * the parity segment arrives, after them, the data of the most recently
+ * received segments is kept in a ring indexed by sequence number, which
+ * covers two groups of the largest size. A segment can be rebuilt if it
+ * is the only one of its group missing from the ring.
+ * <p>
+ * This class is not thread-safe: the socket only calls it holding its
+ * receive queue lock.
+ *
+ * @see ParityEncoder
+ */
+class ParityDecoder {
+  private static final int SLOTS = 2 * ParityEncoder.MAX_GROUP_SIZE;
+  private final int _modulus;
+  private final int[] _seqs = new int[SLOTS];     /* Sequence number of each slot, -1 if empty */
+  private final int[] _lens = new int[SLOTS];     /* Data length of each slot */
+  private final byte[][] _data = new byte[SLOTS][];
+
+  /**
+   * Creates a decoder.
+   *
+   * @param modulus the number of sequence numbers.
+   */
+  ParityDecoder(int modulus) {
+    _modulus = modulus;
+    Arrays.fill(_seqs, -1);
+  }
+
+  /**
+   * Keeps a copy of the data of a received data segment.
+   *
+   * @param s the segment, whose data must still be valid.
+   */
+  void record(DATSegment s) {
+    int slot = s.seq() % SLOTS;
+    int len = s.getDataLength();
+    if (_data[slot] == null || _data[slot].length < len) {
+      _data[slot] = new byte[len];
+    }
+    s.getData(0, _data[slot], 0, len);
+    _seqs[slot] = s.seq();
+    _lens[slot] = len;
+  }
+
+  /**
+   * Rebuilds the segment of the group of a parity segment that has not
+   * been recorded, if it is the only one. The caller must check that the
+   * segment has not been received, e.g. if its copy has been overwritten.
+   *
+   * @param parity the parity segment.
+   * @return the rebuilt segment, or <code>null</code> if no segment or
+   * more than one segment of the group is missing.
+   */
+  DATSegment recover(FECSegment parity) {
+    int count = parity.getGroupSize();
+    if (count > SLOTS) {
+      return null;
+    }
+
+    int missing = -1;
+    for (int i = 0; i < count; i++) {
+      int seqn = (parity.seq() + i) % _modulus;
+      if (_seqs[seqn % SLOTS] != seqn) {
+        if (missing >= 0) {
+          return null;
+        }
+        missing = seqn;
+      }
+    }
+
+    if (missing < 0) {
+      return null;
+    }
+
+    int len = parity.getLengthParity();
+    byte[] data = new byte[parity.getParityLength()];
+    parity.getParity(data);
+
+    for (int i = 0; i < count; i++) {
+      int seqn = (parity.seq() + i) % _modulus;
+      if (seqn == missing) {
+        continue;
+      }
+
+      int slot = seqn % SLOTS;
+      len ^= _lens[slot];
+      if (_lens[slot] > data.length) {
+        return null;
+      }
+      for (int j = 0; j < _lens[slot]; j++) {
+        data[j] ^= _data[slot][j];
+      }
+    }
+
+    if (len > data.length) {
+      return null;
+    }
+
+    return new DATSegment(missing, -1, data, 0, len);
+  }
+}
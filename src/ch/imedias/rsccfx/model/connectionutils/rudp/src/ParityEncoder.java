@@ -0,0 +1,183 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FECSegment;
+import java.util.Arrays;
+
+/**
+ * This class groups the data segments of a connection and computes
+ * the parity segment of each group, so that the peer can rebuild a
+ * lost segment without waiting for its retransmission.
+ * <p>
+ * A group is made of consecutive data segments: it is closed once it
+ * holds the current group size, when a segment does not follow the
+ * previous one (a NUL segment took a sequence number in between), or
+ * when the socket has no more data to send right away, so that the end
+ * of a burst is protected as well.
+ * <p>
+ * The group size adapts to the loss rate, which is sampled over every
+ * <code>LOSS_SAMPLE</code> data segments sent and smoothed: about one
+ * parity segment is sent for every four segments expected to be lost,
+ * within <code>MIN_GROUP_SIZE</code> and <code>MAX_GROUP_SIZE</code>,
+ * and none at all while losses are rare.
+ *
+ * @see ParityDecoder
+ */
+class ParityEncoder {
+  static final int MIN_GROUP_SIZE = 4;
+  static final int MAX_GROUP_SIZE = 32;
+  private static final int LOSS_SAMPLE = 256; /* Data segments per loss rate sample */
+  private static final int LOSS_SCALE = 65536; /* Loss rates are fractions of LOSS_SCALE */
+  private static final int MIN_LOSS = LOSS_SCALE / 256; /* No parity below this loss rate */
+  private final int _modulus;
+  private int _groupSize;    /* Size of the next group, 0 if no parity is sent */
+  private int _base;         /* Sequence number of the first segment of the group */
+  private int _size;         /* Size of the current group */
+  private int _count;        /* Segments added to the current group */
+  private byte[] _parity = new byte[0];
+  private int _parityLen;    /* Length of the longest data in the group */
+  private int _lenParity;    /* XOR of the data lengths */
+  private int _sent;         /* Segments sent in the current sample */
+  private int _lost;         /* Segments lost in the current sample */
+  private int _lossRate = -1; /* Smoothed loss rate, -1 until sampled */
+  private int _lossMark = -1; /* Last sequence number counted as lost */
+
+  /**
+   * Creates an encoder.
+   *
+   * @param modulus the number of sequence numbers.
+   */
+  ParityEncoder(int modulus) {
+    _modulus = modulus;
+  }
+
+  /**
+   * Adds a data segment that is about to be sent for the first time to
+   * the current group, and records in it the end of the group it joins.
+   *
+   * @param s the segment.
+   * @return the parity segment to send after it, if the segment closes
+   * its group or does not follow the current one, or <code>null</code>.
+   */
+  synchronized FECSegment add(DATSegment s) {
+    FECSegment parity = null;
+    if (_count > 0 && s.seq() != (_base + _count) % _modulus) {
+      parity = close();
+    }
+
+    if (++_sent == LOSS_SAMPLE) {
+      sampleLossRate();
+    }
+
+    if (_count == 0) {
+      if (_groupSize == 0) {
+        return parity;
+      }
+      _base = s.seq();
+      _size = _groupSize;
+      _parityLen = 0;
+      _lenParity = 0;
+    }
+
+    int len = s.getDataLength();
+    if (len > _parity.length) {
+      _parity = Arrays.copyOf(_parity, len);
+    }
+    if (len > _parityLen) {
+      Arrays.fill(_parity, _parityLen, len, (byte) 0);
+      _parityLen = len;
+    }
+    s.xorData(_parity);
+    _lenParity ^= len;
+    _count++;
+    s.setParityEnd((_base + _size - 1) % _modulus);
+
+    if (_count == _size) {
+      return close();
+    }
+
+    return parity;
+  }
+
+  /**
+   * Closes the current group.
+   *
+   * @return its parity segment, or <code>null</code> if it is empty.
+   */
+  synchronized FECSegment close() {
+    if (_count == 0) {
+      return null;
+    }
+
+    FECSegment parity = new FECSegment(_base, _count, _lenParity,
+        Arrays.copyOf(_parity, _parityLen), _parityLen);
+    Arrays.fill(_parity, 0, _parityLen, (byte) 0);
+    _count = 0;
+    return parity;
+  }
+
+  /**
+   * Counts a data segment as lost, once whatever the number of times
+   * it is reported. Segments are expected to be reported in sequence
+   * order, and only those after the last one counted are counted.
+   *
+   * @param seqn the sequence number of the segment.
+   */
+  synchronized void lossDetected(int seqn) {
+    int distance = (seqn - _lossMark + _modulus) % _modulus;
+    if (_lossMark < 0 || (distance > 0 && distance < _modulus / 2)) {
+      _lost++;
+      _lossMark = seqn;
+    }
+  }
+
+  /**
+   * Returns the size of the next group, or <code>0</code> if
+   * no parity is sent.
+   */
+  synchronized int getGroupSize() {
+    return _groupSize;
+  }
+
+  private void sampleLossRate() {
+    int sample = (int) ((long) _lost * LOSS_SCALE / _sent);
+    _lossRate = (_lossRate < 0) ? sample : (3 * _lossRate + sample) / 4;
+    _sent = 0;
+    _lost = 0;
+
+    if (_lossRate < MIN_LOSS) {
+      _groupSize = 0;
+    } else {
+      _groupSize = Math.min(Math.max(LOSS_SCALE / 4 / _lossRate, MIN_GROUP_SIZE), MAX_GROUP_SIZE);
+    }
+  }
+}
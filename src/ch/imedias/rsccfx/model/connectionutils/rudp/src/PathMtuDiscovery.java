@@ -0,0 +1,148 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * This class implements datagram packetization layer path MTU discovery
+ * (see RFC 8899) for a connection.
+ * <p>
+ * The connection starts with a segment size that is safe on any path
+ * and sends padded NUL segments of larger sizes as probes. A probe that
+ * is acknowledged confirms its size, a probe that is lost
+ * <code>MAX_PROBES</code> times bounds the search. The first probe tries
+ * the largest allowed size, then the search continues by bisection.
+ * Once it is done, it is repeated after <code>RAISE_TIMEOUT</code> in
+ * case the path has changed.
+ *
+ * @see ReliableSocket#getSegmentSize()
+ */
+class PathMtuDiscovery {
+  /*
+   * Sizes are UDP payload sizes (octets). The base size fits into the
+   * minimum IPv6 MTU of 1280 octets, the unfragmented size into an
+   * Ethernet MTU of 1500 octets after the IPv6 and UDP headers.
+   */
+  static final int BASE_SEGMENT_SIZE = 1200;
+  static final int MAX_UNFRAGMENTED_SIZE = 1452;
+  static final int MAX_PROBES = 3;
+  static final int RAISE_TIMEOUT = 600000; /* (ms) */
+  private static final int MIN_PROBE_STEP = 8;
+  private final int _max;
+  private int _size;          /* Confirmed segment size */
+  private int _low;           /* Largest size known to work */
+  private int _high;          /* Largest size that may work */
+  private int _probeSize;     /* Size being probed, 0 if none */
+  private int _probeCount;    /* Lost probes of the current size */
+  private boolean _probing;   /* A probe is outstanding */
+  private long _searchDone = -1; /* Time the search has completed (ms) */
+
+  /**
+   * Creates a new path MTU search.
+   *
+   * @param maxSize the largest segment size allowed on this
+   *                connection (octets).
+   */
+  PathMtuDiscovery(int maxSize) {
+    _max = maxSize;
+    _size = Math.min(BASE_SEGMENT_SIZE, maxSize);
+    _low = _size;
+    _high = _max;
+  }
+
+  /**
+   * Returns the largest confirmed segment size (octets).
+   */
+  synchronized int getSegmentSize() {
+    return _size;
+  }
+
+  /**
+   * Returns the size of the next probe and marks it as outstanding.
+   *
+   * @param now the current time (ms).
+   * @return the probe size (octets), or 0 if no probe should be sent now.
+   */
+  synchronized int nextProbe(long now) {
+    if (_probing) {
+      return 0;
+    }
+
+    if (_searchDone >= 0) {
+      if (now - _searchDone < RAISE_TIMEOUT) {
+        return 0;
+      }
+      _high = _max;
+      _searchDone = -1;
+    }
+
+    if (_probeSize == 0) {
+      if (_high - _low < MIN_PROBE_STEP) {
+        _searchDone = now;
+        return 0;
+      }
+      _probeSize = (_high == _max) ? _high : (_low + _high + 1) / 2;
+    }
+
+    _probing = true;
+    return _probeSize;
+  }
+
+  /**
+   * Records that the peer has acknowledged the outstanding probe.
+   */
+  synchronized void probeAcked() {
+    if (!_probing) {
+      return;
+    }
+
+    _probing = false;
+    _low = _probeSize;
+    _size = Math.max(_size, _probeSize);
+    _probeSize = 0;
+    _probeCount = 0;
+  }
+
+  /**
+   * Records that the outstanding probe has been lost.
+   */
+  synchronized void probeLost() {
+    if (!_probing) {
+      return;
+    }
+
+    _probing = false;
+    if (++_probeCount >= MAX_PROBES) {
+      _high = _probeSize - 1;
+      _probeSize = 0;
+      _probeCount = 0;
+    }
+  }
+}
@@ -41,9 +41,12 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class implements server sockets that use
@@ -54,19 +57,25 @@ import java.util.HashMap;
  */
 public class ReliableServerSocket extends ServerSocket {
   private static final int DEFAULT_BACKLOG_SIZE = 50;
-  private DatagramSocket _serverSock;
+  private DatagramSocket _serverSock; /* First of _serverSocks */
+  private DatagramSocket[] _serverSocks; /* Receiving sockets sharing the port */
+  private DatagramChannel[] _serverChannels; /* Channels of _serverSocks in engine mode */
+  private RudpEngine _engine; /* Engine that receives the segments, if any */
   private int _timeout;
   private int _backlogSize;
   private boolean _closed;
   /*
    * The listen backlog queue.
    */
-  private ArrayList _backlog;
+  private ArrayList<ReliableSocket> _backlog;
+  private int _handshakes; /* Client sockets not yet opened, guarded by _backlog */
   /*
-   * A table of active opened client sockets.
+   * A table of active opened client sockets. It is read without locking
+   * for every datagram, sockets are only added and removed under its lock.
    */
-  private HashMap _clientSockTable;
+  private ConcurrentHashMap<SocketAddress, ReliableClientSocket> _clientSockTable;
   private ReliableSocketStateListener _stateListener;
+  private ReliableSocketProfile _profile;
 
   /**
    * Creates an unbound rudp server socket.
@@ -98,6 +107,22 @@ public class ReliableServerSocket extends ServerSocket {
     this(port, 0, null);
   }
 
+  /**
+   * Creates a rudp server socket, bound to the specified port, that
+   * accepts connections using the given rudp parameters. The segment
+   * size and the timeouts are negotiated with each client, the
+   * remaining parameters apply to the accepted sockets.
+   *
+   * @param port    the port number, or <code>0</code> to use any free port.
+   * @param profile the socket profile of the accepted sockets.
+   * @throws IOException if an I/O error occurs when opening
+   *                     the underlying UDP socket.
+   */
+  public ReliableServerSocket(int port, ReliableSocketProfile profile)
+      throws IOException {
+    this(new DatagramSocket[]{new DatagramSocket(new InetSocketAddress(port))}, 0, profile);
+  }
+
   /**
    * Creates a rudp server socket and binds it to the specified local port, with
    * the specified backlog. A port of <code>0</code> creates a socket on any
@@ -135,6 +160,90 @@ public class ReliableServerSocket extends ServerSocket {
     this(new DatagramSocket(new InetSocketAddress(bindAddr, port)), backlog);
   }
 
+  /**
+   * Creates a rudp server socket that receives on <i>receivers</i> UDP
+   * sockets bound to the same local port and IP address with the
+   * SO_REUSEPORT option, each served by a thread of its own. The
+   * operating system spreads the clients over the sockets by address,
+   * so that all the datagrams of a client arrive on the same socket.
+   *
+   * @param port      the port number, or <code>0</code> to use any free port.
+   * @param backlog   the listen backlog.
+   * @param bindAddr  the local InetAddress the server will bind to.
+   * @param receivers the number of receiving sockets.
+   * @throws IOException if an I/O error occurs when opening the underlying
+   *                     UDP sockets, or if more than one receiver is requested
+   *                     and SO_REUSEPORT is not supported.
+   */
+  public ReliableServerSocket(int port, int backlog, InetAddress bindAddr, int receivers)
+      throws IOException {
+    this(socketsOf(openChannels(new InetSocketAddress(bindAddr, port), receivers)), backlog);
+  }
+
+  /**
+   * Creates a server socket whose segments, and those of the sockets
+   * it accepts, are received and processed by the given engine.
+   *
+   * @param port   the local port, or 0 for any free port.
+   * @param engine the engine.
+   * @throws IOException if the channel cannot be opened or bound.
+   */
+  public ReliableServerSocket(int port, RudpEngine engine)
+      throws IOException {
+    this(port, engine, new ReliableSocketProfile());
+  }
+
+  /**
+   * Creates a server socket in engine mode with the given profile.
+   *
+   * @param port    the local port, or 0 for any free port.
+   * @param engine  the engine.
+   * @param profile the profile of the accepted sockets.
+   * @throws IOException if the channel cannot be opened or bound.
+   */
+  public ReliableServerSocket(int port, RudpEngine engine, ReliableSocketProfile profile)
+      throws IOException {
+    this(port, engine, profile, 1);
+  }
+
+  /**
+   * Creates a server socket in engine mode that receives on
+   * <i>receivers</i> channels bound to the same port with the
+   * SO_REUSEPORT option, which the engine spreads over its event loops.
+   *
+   * @param port      the local port, or 0 for any free port.
+   * @param engine    the engine.
+   * @param profile   the profile of the accepted sockets.
+   * @param receivers the number of receiving channels.
+   * @throws IOException if the channels cannot be opened or bound, or if
+   *                     more than one receiver is requested and SO_REUSEPORT
+   *                     is not supported.
+   */
+  public ReliableServerSocket(int port, RudpEngine engine, ReliableSocketProfile profile,
+                              int receivers)
+      throws IOException {
+    if (engine == null) {
+      throw new NullPointerException("engine");
+    }
+
+    if (profile == null) {
+      throw new NullPointerException("profile");
+    }
+
+    _serverChannels = openChannels(new InetSocketAddress(port), receivers);
+    _engine = engine;
+    _profile = profile;
+    init(socketsOf(_serverChannels), 0);
+    for (int i = 0; i < _serverChannels.length; i++) {
+      final int receiver = i;
+      _engine.register(_serverChannels[i], new RudpEngine.Handler() {
+        public void segmentReceived(Segment s, SocketAddress endpoint) {
+          ReliableServerSocket.this.segmentReceived(s, endpoint, receiver);
+        }
+      });
+    }
+  }
+
   /**
    * Creates a rudp server socket attached to the specified UDP socket, with
    * the specified backlog.
@@ -145,19 +254,47 @@ public class ReliableServerSocket extends ServerSocket {
    */
   public ReliableServerSocket(DatagramSocket sock, int backlog)
       throws IOException {
-    if (sock == null) {
-      throw new NullPointerException("sock");
+    this(new DatagramSocket[]{sock}, backlog);
+  }
+
+  private ReliableServerSocket(DatagramSocket[] socks, int backlog)
+      throws IOException {
+    this(socks, backlog, new ReliableSocketProfile());
+  }
+
+  /*
+   * The profile is set before the receiver threads start, since they
+   * may accept a connection right away.
+   */
+  private ReliableServerSocket(DatagramSocket[] socks, int backlog,
+                               ReliableSocketProfile profile)
+      throws IOException {
+    for (int i = 0; i < socks.length; i++) {
+      if (socks[i] == null) {
+        throw new NullPointerException("sock");
+      }
+    }
+
+    if (profile == null) {
+      throw new NullPointerException("profile");
     }
 
-    _serverSock = sock;
+    _profile = profile;
+    init(socks, backlog);
+    for (int i = 0; i < socks.length; i++) {
+      new ReceiverThread(i).start();
+    }
+  }
+
+  private void init(DatagramSocket[] socks, int backlog) {
+    _serverSocks = socks;
+    _serverSock = socks[0];
     _backlogSize = (backlog <= 0) ? DEFAULT_BACKLOG_SIZE : backlog;
-    _backlog = new ArrayList(_backlogSize);
-    _clientSockTable = new HashMap();
+    _backlog = new ArrayList<ReliableSocket>(_backlogSize);
+    _clientSockTable = new ConcurrentHashMap<SocketAddress, ReliableClientSocket>();
     _stateListener = new StateListener();
     _timeout = 0;
     _closed = false;
-
-    new ReceiverThread().start();
   }
 
   public Socket accept()
@@ -188,7 +325,7 @@ public class ReliableServerSocket extends ServerSocket {
         }
       }
 
-      return (Socket) _backlog.remove(0);
+      return _backlog.remove(0);
     }
   }
 
@@ -218,7 +355,13 @@ public class ReliableServerSocket extends ServerSocket {
     }
 
     if (_clientSockTable.isEmpty()) {
-      _serverSock.close();
+      closeSockets();
+    }
+  }
+
+  private void closeSockets() {
+    for (int i = 0; i < _serverSocks.length; i++) {
+      _serverSocks[i].close();
     }
   }
 
@@ -258,18 +401,34 @@ public class ReliableServerSocket extends ServerSocket {
    * Registers a new client socket with the specified endpoint address.
    *
    * @param endpoint the new socket.
+   * @param receiver the index of the socket the client's datagrams arrive on.
    * @return the registered socket.
    */
-  private ReliableClientSocket addClientSocket(SocketAddress endpoint) {
+  private ReliableClientSocket addClientSocket(SocketAddress endpoint, int receiver) {
     synchronized (_clientSockTable) {
-      ReliableClientSocket sock = (ReliableClientSocket) _clientSockTable.get(endpoint);
+      ReliableClientSocket sock = _clientSockTable.get(endpoint);
 
       if (sock == null) {
+        synchronized (_backlog) {
+          if (_backlog.size() + _handshakes >= _backlogSize) {
+            /* The backlog is full, the client retransmits the SYN */
+            return null;
+          }
+          _handshakes++;
+        }
+
         try {
-          sock = new ReliableClientSocket(_serverSock, endpoint);
+          if (_engine != null) {
+            sock = new ReliableClientSocket(_serverChannels[receiver], endpoint);
+          } else {
+            sock = new ReliableClientSocket(_serverSocks[receiver], endpoint);
+          }
           sock.addStateListener(_stateListener);
           _clientSockTable.put(endpoint, sock);
         } catch (IOException xcp) {
+          synchronized (_backlog) {
+            _handshakes--;
+          }
           xcp.printStackTrace();
         }
       }
@@ -286,11 +445,11 @@ public class ReliableServerSocket extends ServerSocket {
    */
   private ReliableClientSocket removeClientSocket(SocketAddress endpoint) {
     synchronized (_clientSockTable) {
-      ReliableClientSocket sock = (ReliableClientSocket) _clientSockTable.remove(endpoint);
+      ReliableClientSocket sock = _clientSockTable.remove(endpoint);
 
       if (_clientSockTable.isEmpty()) {
         if (isClosed()) {
-          _serverSock.close();
+          closeSockets();
         }
       }
 
@@ -298,40 +457,106 @@ public class ReliableServerSocket extends ServerSocket {
     }
   }
 
+  /**
+   * Passes a segment to the socket of the endpoint that sent it,
+   * creating the socket if the segment opens a connection.
+   *
+   * @param s        the segment.
+   * @param endpoint the address of the peer.
+   * @param receiver the index of the socket the segment arrived on.
+   */
+  private void segmentReceived(Segment s, SocketAddress endpoint, int receiver) {
+    ReliableClientSocket sock = _clientSockTable.get(endpoint);
+    if (sock == null && s instanceof SYNSegment && !isClosed()) {
+      sock = addClientSocket(endpoint, receiver);
+    }
+
+    if (sock != null) {
+      sock.segmentReceived(s);
+    }
+  }
+
+  /**
+   * Opens datagram channels bound to the given address. If more than
+   * one is requested, they share the port with the SO_REUSEPORT option,
+   * which is only available since Java 9.
+   *
+   * @param bindAddr the local address.
+   * @param count    the number of channels.
+   * @return the channels.
+   * @throws IOException if a channel cannot be opened or bound.
+   */
+  @SuppressWarnings("unchecked") /* SO_REUSEPORT is looked up by reflection */
+  private static DatagramChannel[] openChannels(InetSocketAddress bindAddr, int count)
+      throws IOException {
+    if (count <= 0) {
+      throw new IllegalArgumentException("receivers <= 0");
+    }
+
+    SocketOption<Boolean> reusePort = null;
+    if (count > 1) {
+      try {
+        reusePort = (SocketOption<Boolean>) StandardSocketOptions.class
+            .getField("SO_REUSEPORT").get(null);
+      } catch (Exception xcp) {
+        throw new SocketException("SO_REUSEPORT is not supported");
+      }
+    }
+
+    DatagramChannel[] channels = new DatagramChannel[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        channels[i] = DatagramChannel.open();
+        if (reusePort != null) {
+          channels[i].setOption(reusePort, Boolean.TRUE);
+        }
+        channels[i].bind(bindAddr);
+        /* The others bind to the port the first one got */
+        bindAddr = new InetSocketAddress(bindAddr.getAddress(),
+            channels[i].socket().getLocalPort());
+      }
+    } catch (IOException | UnsupportedOperationException xcp) {
+      for (int i = 0; i < count; i++) {
+        if (channels[i] != null) {
+          channels[i].close();
+        }
+      }
+      if (xcp instanceof UnsupportedOperationException) {
+        throw new SocketException("SO_REUSEPORT is not supported");
+      }
+      throw (IOException) xcp;
+    }
+
+    return channels;
+  }
+
+  private static DatagramSocket[] socketsOf(DatagramChannel[] channels) {
+    DatagramSocket[] socks = new DatagramSocket[channels.length];
+    for (int i = 0; i < channels.length; i++) {
+      socks[i] = channels[i].socket();
+    }
+    return socks;
+  }
+
   private class ReceiverThread extends Thread {
-    public ReceiverThread() {
+    private int _receiver;
+
+    public ReceiverThread(int receiver) {
       super("ReliableServerSocket");
       setDaemon(true);
+      _receiver = receiver;
     }
 
     public void run() {
       byte[] buffer = new byte[65535];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
       while (true) {
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        ReliableClientSocket sock = null;
-
         try {
-          _serverSock.receive(packet);
-          SocketAddress endpoint = packet.getSocketAddress();
-          Segment s = Segment.parse(packet.getData(), 0, packet.getLength());
-
-          synchronized (_clientSockTable) {
-
-            if (!isClosed()) {
-              if (s instanceof SYNSegment) {
-                if (!_clientSockTable.containsKey(endpoint)) {
-                  sock = addClientSocket(endpoint);
-                }
-              }
-            }
-
-            sock = (ReliableClientSocket) _clientSockTable.get(endpoint);
-          }
-
-          if (sock != null) {
-            sock.segmentReceived(s);
-          }
+          packet.setData(buffer);
+          _serverSocks[_receiver].receive(packet);
+          segmentReceived(Segment.parse(packet.getData(), 0, packet.getLength()),
+              packet.getSocketAddress(), _receiver);
         } catch (IOException xcp) {
           if (isClosed()) {
             break;
@@ -343,17 +568,24 @@ public class ReliableServerSocket extends ServerSocket {
   }
 
   private class ReliableClientSocket extends ReliableSocket {
-    private ArrayList _queue;
+    private ArrayList<Segment> _queue;
+    private boolean _handshake = true; /* Not yet opened, guarded by _backlog */
 
     public ReliableClientSocket(DatagramSocket sock,
                                 SocketAddress endpoint)
         throws IOException {
-      super(sock);
+      super(sock, _profile);
+      _endpoint = endpoint;
+    }
+
+    public ReliableClientSocket(DatagramChannel channel,
+                                SocketAddress endpoint) {
+      super(channel, _engine, _profile);
       _endpoint = endpoint;
     }
 
     protected void init(DatagramSocket sock, ReliableSocketProfile profile) {
-      _queue = new ArrayList();
+      _queue = new ArrayList<Segment>();
       super.init(sock, profile);
     }
 
@@ -367,11 +599,25 @@ public class ReliableServerSocket extends ServerSocket {
           }
         }
 
-        return (Segment) _queue.remove(0);
+        return _queue.remove(0);
+      }
+    }
+
+    protected void startReceiving() {
+      /* Segments are handed over by the server socket */
+      if (!isEngineMode()) {
+        super.startReceiving();
       }
     }
 
     protected void segmentReceived(Segment s) {
+      if (isEngineMode()) {
+        processSegment(s);
+        return;
+      }
+
+      /* The receiver thread reuses the datagram buffer */
+      detachSegment(s);
       synchronized (_queue) {
         _queue.add(s);
         _queue.notify();
@@ -392,15 +638,16 @@ public class ReliableServerSocket extends ServerSocket {
   }
 
   private class StateListener implements ReliableSocketStateListener {
+    /*
+     * Called on the thread that processes the segments, so it must not
+     * wait for the backlog: the SYN segments that would overflow it are
+     * dropped when they arrive (see addClientSocket).
+     */
     public void connectionOpened(ReliableSocket sock) {
       if (sock instanceof ReliableClientSocket) {
         synchronized (_backlog) {
-          while (_backlog.size() > DEFAULT_BACKLOG_SIZE) {
-            try {
-              _backlog.wait();
-            } catch (InterruptedException xcp) {
-              xcp.printStackTrace();
-            }
+          if (!handshakeDone((ReliableClientSocket) sock) || isClosed()) {
+            return;
           }
 
           _backlog.add(sock);
@@ -416,19 +663,44 @@ public class ReliableServerSocket extends ServerSocket {
     public void connectionClosed(ReliableSocket sock) {
       // Remove client socket from the table of active connections.
       if (sock instanceof ReliableClientSocket) {
-        removeClientSocket(sock.getRemoteSocketAddress());
+        synchronized (_backlog) {
+          handshakeDone((ReliableClientSocket) sock);
+        }
+        removeClientSocket(sock._endpoint);
       }
     }
 
     public void connectionFailure(ReliableSocket sock) {
       // Remove client socket from the table of active connections.
       if (sock instanceof ReliableClientSocket) {
-        removeClientSocket(sock.getRemoteSocketAddress());
+        synchronized (_backlog) {
+          handshakeDone((ReliableClientSocket) sock);
+        }
+        removeClientSocket(sock._endpoint);
       }
     }
 
     public void connectionReset(ReliableSocket sock) {
-      // do nothing.
+      if (sock instanceof ReliableClientSocket) {
+        synchronized (_backlog) {
+          handshakeDone((ReliableClientSocket) sock);
+        }
+      }
+    }
+
+    /*
+     * Releases the place the socket held in the backlog during its
+     * handshake, and returns true the first time it is called.
+     * Must be called holding the backlog lock.
+     */
+    private boolean handshakeDone(ReliableClientSocket sock) {
+      if (!sock._handshake) {
+        return false;
+      }
+
+      sock._handshake = false;
+      _handshakes--;
+      return true;
     }
   }
 }
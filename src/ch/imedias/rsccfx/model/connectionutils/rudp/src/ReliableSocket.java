@@ -31,8 +31,10 @@
 package ch.imedias.rsccfx.model.connectionutils.rudp.src;
 
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.ACKSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.BufferPool;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.EAKSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FECSegment;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FINSegment;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.NULSegment;
 import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.RSTSegment;
@@ -52,10 +54,17 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class implements client sockets that use
@@ -67,17 +76,40 @@ import java.util.Random;
  */
 public class ReliableSocket extends Socket {
   private static final int MAX_SEQUENCE_NUMBER = 255;
+  private static final int MAX_LONG_SEQUENCE_NUMBER = 65535;
+  private static final int LEGACY_QUEUE_SIZE = 32; /* Receive queue of peers without options */
+  private static final int INITIAL_WINDOW = 4; /* Initial congestion window (segments) */
+  private static final int SUPPORTED_OPTIONS =
+      SYNSegment.OPT_LSN | SYNSegment.OPT_TIMESTAMPS | SYNSegment.OPT_WINDOW | SYNSegment.OPT_SACK |
+      SYNSegment.OPT_FEC | SYNSegment.OPT_ACKFREQ;
+  private static final int MAX_RECV_BUFFER_SIZE = 4 * 1024 * 1024; /* Default receive buffer limit (octets) */
+  private static final int RECV_BUFFER_SHRINK_DELAY = 1000; /* (ms) */
+  private static final int COALESCING_DELAY = 10; /* Default write coalescing delay (ms) */
+  private static final int EXPEDITED_SEGMENTS = 4; /* Expedited segments allowed beyond the congestion window */
+  private static final int MAX_REORDERING = 256; /* Upper bound of the fast retransmit threshold (segments) */
   private static final int CLOSED = 0; /* There is not an active or pending connection */
   private static final int SYN_RCVD = 1; /* Request to connect received, waiting ACK */
   private static final int SYN_SENT = 2; /* Request to connect sent */
   private static final int ESTABLISHED = 3; /* Data transfer state */
   private static final int CLOSE_WAIT = 4; /* Request to close the connection */
   private static final boolean DEBUG = Boolean.getBoolean("net.rudp.debug");
+  private static final int SLOW_START_PACING_GAIN = 200; /* (%) */
+  private static final int PACING_GAIN = 125; /* (%) */
   protected DatagramSocket _sock;
   protected SocketAddress _endpoint;
   protected ReliableSocketInputStream _in;
   protected ReliableSocketOutputStream _out;
+  private OutputStream _expeditedOut;
   private byte[] _recvbuffer = new byte[65535];
+  private DatagramPacket _recvPacket = new DatagramPacket(_recvbuffer, _recvbuffer.length);
+  private ByteBuffer _sendBuffer = ByteBuffer.allocate(65535); /* Used by the sender only */
+  private DatagramPacket _sendPacket = new DatagramPacket(new byte[0], 0);
+  private ConcurrentLinkedQueue<Segment> _sendQueue = new ConcurrentLinkedQueue<Segment>(); /* Segments to write out */
+  private ConcurrentLinkedQueue<Segment> _expeditedQueue = new ConcurrentLinkedQueue<Segment>(); /* Written out first */
+  private ConcurrentLinkedQueue<Segment> _releaseQueue = new ConcurrentLinkedQueue<Segment>(); /* Acked data segments */
+  private AtomicInteger _sendRequests = new AtomicInteger(); /* Pending requests to flush */
+  private BufferPool _bufferPool = new BufferPool(32); /* Buffers of data segments */
+  private BufferPool _recvPool = new BufferPool(32); /* Buffers of out-of-sequence segments */
   private boolean _closed = false;
   private boolean _connected = false;
   private boolean _reset = false;
@@ -88,28 +120,77 @@ public class ReliableSocket extends Socket {
   private boolean _shutOut = false;
   private Object _closeLock = new Object();
   private Object _resetLock = new Object();
-  private ArrayList _listeners = new ArrayList();
-  private ArrayList _stateListeners = new ArrayList();
+  private ArrayList<ReliableSocketListener> _listeners = new ArrayList<ReliableSocketListener>();
+  private ArrayList<ReliableSocketStateListener> _stateListeners = new ArrayList<ReliableSocketStateListener>();
+  private ArrayList<ReliableSocketReadyListener> _readyListeners = new ArrayList<ReliableSocketReadyListener>();
+  private volatile boolean _readWaiting = true; /* A read found no data, readiness is signaled */
+  private volatile boolean _writeWaiting = false; /* A write could not proceed, readiness is signaled */
+  private ReliableSocketChannel _socketChannel;
   private ShutdownHook _shutdownHook;
   /* rudp connection parameters */
   private ReliableSocketProfile _profile = new ReliableSocketProfile();
-  private ArrayList _unackedSentQueue = new ArrayList(); /* Unacknowledged segments send queue */
-  private ArrayList _outSeqRecvQueue = new ArrayList(); /* Out-of-sequence received segments queue */
-  private ArrayList _inSeqRecvQueue = new ArrayList(); /* In-sequence received segments queue */
+  /* Unacknowledged segments send queue */
+  private SegmentRing _unackedSentQueue = new SegmentRing(32, MAX_SEQUENCE_NUMBER);
+  /* Out-of-sequence received segments queue */
+  private SegmentRing _outSeqRecvQueue = new SegmentRing(32, MAX_SEQUENCE_NUMBER);
+  /* In-sequence received RST and FIN segments queue */
+  private SegmentRing _inSeqRecvQueue = new SegmentRing(32, MAX_SEQUENCE_NUMBER);
+  /* In-sequence received data, guarded by _recvQueueLock */
+  private ByteRing _recvBuffer;
   private Object _recvQueueLock = new Object();  /* Lock for receiver queues */
   private Counters _counters = new Counters(); /* Sequence number, ack counters, etc. */
   private Thread _sockThread = new ReliableSocketThread();
-  private int _sendQueueSize = 32; /* Maximum number of received segments */
-  private int _recvQueueSize = 32; /* Maximum number of sent segments */
+  private RudpEngine _engine; /* Engine that receives the segments, if any */
+  private DatagramChannel _channel; /* Channel of _sock in engine mode */
+  private int _sendQueueSize = 32; /* Maximum number of sent segments */
+  private int _recvQueueSize = 32; /* Maximum number of received segments */
+  private boolean _longSeq = false; /* 16-bit sequence numbers negotiated */
+  private int _maxSequenceNumber = MAX_SEQUENCE_NUMBER;
+  private CongestionControl _congestionControl; /* Guarded by _unackedSentQueue */
+  private Pacer _pacer = new Pacer(); /* Spreads data segments over the round-trip time */
+  private boolean _inRecovery = false; /* Loss recovery in progress */
+  private boolean _fastRecovery = false; /* The recovery was started by an EAK rather than a timeout */
+  private int _recoverySeq; /* Last segment sent when the recovery started */
+  private long _expiredBefore = -1; /* Segments last sent up to this time (ms) have expired, guarded by _unackedSentQueue */
+  private int _reordering; /* Fast retransmit threshold learnt from reordering, guarded by _unackedSentQueue */
+  private int _undoRetrans = -1; /* Fast retransmissions not reported as duplicates, -1 if they cannot be undone */
+  private boolean _reorderingRaised = false; /* _reordering has been raised since the last congestion event */
+  private volatile boolean _dupReceived = false; /* A data segment has been received twice since the last ACK */
+  private boolean _timestamps = false; /* Timestamp extension negotiated */
+  private int _tsRecent; /* Timestamp to be echoed to the peer */
+  private long _clockBase = System.nanoTime();
+  private RttEstimator _rttEstimator;
+  private PathMtuDiscovery _pmtu;
   private int _sendBufferSize;
   private int _recvBufferSize;
+  private boolean _flowControl = false; /* Receive window advertisement negotiated */
+  private boolean _sack = false; /* Range-encoded EAK lists negotiated */
+  private boolean _fec = false; /* Parity segments negotiated */
+  private ParityEncoder _parityEncoder; /* Parity of the data segments sent, if negotiated */
+  private ParityDecoder _parityDecoder; /* Guarded by _recvQueueLock */
+  private boolean _ackFreq = false; /* ACK decimation negotiated */
+  private AckFrequency _ackFrequency; /* Data segments per ACK, if negotiated */
+  private boolean _streams = false; /* Stream multiplexing negotiated */
+  private int _peerWindow = Integer.MAX_VALUE; /* Receive window of the peer (octets), guarded by _unackedSentQueue */
+  private volatile int _recvWindow; /* Receive window to advertise (octets) */
+  private volatile int _advertisedWindow; /* Receive window in the last segment sent (octets) */
+  private int _outSeqBytes; /* Data held in the out-of-sequence queue (octets) */
+  private boolean _recvBufferAutoTuning = true;
+  private int _recvBufferLimit = MAX_RECV_BUFFER_SIZE;
+  private int _recvBufferTarget; /* Receive buffer size chosen by the auto-tuning (octets) */
+  private long _recvMeasureTime; /* Start of the current read rate measurement (ms) */
+  private long _recvMeasureBytes; /* Data read since the start of the measurement (octets) */
+  private long _recvShrinkTime; /* Since when the reader needs less than half of the buffer (ms) */
+  private long _recvShrinkTarget; /* Largest buffer size needed since then (octets) */
+  private volatile boolean _noDelay = true; /* Small writes are not coalesced */
+  private volatile int _coalescingDelay = COALESCING_DELAY; /* (ms) */
   /*
    * This timer is started when the connection is opened and is reset
    * every time a data segment is sent. If the client's null segment
    * timer expires, the client sends a null segment to the server.
    */
   private Timer _nullSegmentTimer =
-      new Timer("ReliableSocket-NullSegmentTimer", new NullSegmentTimerTask());
+      new Timer("ReliableSocket-NullSegmentTimer", new NullSegmentTimerTask(), true);
   /*
    * This timer is re-started every time a data, null, or reset
    * segment is sent and there is not a segment currently being timed.
@@ -120,7 +201,7 @@ public class ReliableSocket extends Socket {
    * one or more packets that have been sent but not acknowledged.
    */
   private Timer _retransmissionTimer =
-      new Timer("ReliableSocket-RetransmissionTimer", new RetransmissionTimerTask());
+      new Timer("ReliableSocket-RetransmissionTimer", new RetransmissionTimerTask(), true);
   /*
    * When this timer expires, if there are segments on the out-of-sequence
    * queue, an extended acknowledgment is sent. Otherwise, if there are
@@ -133,12 +214,41 @@ public class ReliableSocket extends Socket {
    * extended acknowledgment will be sent when it expires again.
    */
   private Timer _cumulativeAckTimer =
-      new Timer("ReliableSocket-CumulativeAckTimer", new CumulativeAckTimerTask());
+      new Timer("ReliableSocket-CumulativeAckTimer", new CumulativeAckTimerTask(), true);
   /*
    * When this timer expires, the connection is considered broken.
+   * The timers whose tasks take the locks of the socket, send segments
+   * or call listeners are blocking timers, whose tasks do not run on the
+   * thread shared by all the timers.
    */
   private Timer _keepAliveTimer =
-      new Timer("ReliableSocket-KeepAliveTimer", new KeepAliveTimerTask());
+      new Timer("ReliableSocket-KeepAliveTimer", new KeepAliveTimerTask(), true);
+  /*
+   * This timer is started when a segment has been retransmitted too
+   * many times, to fail the connection outside of the thread that
+   * retransmits it.
+   */
+  private Timer _failureTimer =
+      new Timer("ReliableSocket-FailureTimer", new FailureTimerTask(), true);
+  /*
+   * This timer is started when the socket is closed. Until it expires,
+   * the remaining segments are still retransmitted and acknowledged.
+   */
+  private Timer _closingTimer =
+      new Timer("ReliableSocket-ClosingTimer", new ClosingTimerTask(), true);
+  /*
+   * This timer is started when the output stream holds back a small
+   * write. When it expires, the held back data is sent.
+   */
+  private Timer _coalescingTimer =
+      new Timer("ReliableSocket-CoalescingTimer", new CoalescingTimerTask(), true);
+  /*
+   * This timer is started when a write that must not block is held
+   * back by the pacer. When it expires, the ready listeners are
+   * notified that writing can proceed.
+   */
+  private Timer _writeReadyTimer =
+      new Timer("ReliableSocket-WriteReadyTimer", new WriteReadyTimerTask(), true);
 
   /**
    * Creates an unconnected rudp socket with default rudp parameters.
@@ -241,6 +351,29 @@ public class ReliableSocket extends Socket {
         new InetSocketAddress(localAddr, localPort));
   }
 
+  /**
+   * Creates a rudp socket that uses the given rudp parameters and connects
+   * it to the specified remote host on the specified remote port. The socket
+   * will also bind to the local address and port supplied.
+   *
+   * @param host      the name of the remote host, or <code>null</code> for the loopback address.
+   * @param port      the remote port.
+   * @param localAddr the local address the socket is bound to, or
+   *                  <code>null</code> for the wildcard address.
+   * @param localPort the local port the socket is bound to, or
+   *                  <code>zero</code> for a system selected free port.
+   * @param profile   the socket profile.
+   * @throws IOException              if an I/O error occurs when creating the socket.
+   * @throws IllegalArgumentException if the port parameter is outside the specified range
+   *                                  of valid port values, which is between 0 and 65535, inclusive.
+   */
+  public ReliableSocket(String host, int port, InetAddress localAddr, int localPort,
+                        ReliableSocketProfile profile)
+      throws IOException {
+    this(new InetSocketAddress(host, port),
+        new InetSocketAddress(localAddr, localPort), profile);
+  }
+
   /**
    * Creates a rudp socket and connects it to the specified remote address. The
    * socket will also bind to the local address supplied.
@@ -251,10 +384,39 @@ public class ReliableSocket extends Socket {
    */
   protected ReliableSocket(InetSocketAddress inetAddr, InetSocketAddress localAddr)
       throws IOException {
-    this(new DatagramSocket(localAddr), new ReliableSocketProfile());
+    this(inetAddr, localAddr, new ReliableSocketProfile());
+  }
+
+  /**
+   * Creates a rudp socket that uses the given rudp parameters and connects
+   * it to the specified remote address. The socket will also bind to the
+   * local address supplied.
+   *
+   * @param inetAddr  the remote address.
+   * @param localAddr the local address.
+   * @param profile   the socket profile.
+   * @throws IOException if an I/O error occurs when creating the socket.
+   */
+  protected ReliableSocket(InetSocketAddress inetAddr, InetSocketAddress localAddr,
+                           ReliableSocketProfile profile)
+      throws IOException {
+    this(new DatagramSocket(localAddr), profile);
     connect(inetAddr);
   }
 
+  /**
+   * Creates an unconnected socket whose segments are received and
+   * processed by the given engine instead of a thread of its own.
+   *
+   * @param engine  the engine.
+   * @param profile the socket profile.
+   * @throws IOException if the channel cannot be opened.
+   */
+  public ReliableSocket(RudpEngine engine, ReliableSocketProfile profile)
+      throws IOException {
+    this(openChannel(), engine, profile);
+  }
+
   /**
    * Creates a rudp socket and attaches it to the underlying datagram socket.
    *
@@ -264,6 +426,28 @@ public class ReliableSocket extends Socket {
     this(sock, new ReliableSocketProfile());
   }
 
+  /**
+   * Creates a socket on a datagram channel in engine mode.
+   *
+   * @param channel the channel, sent to in non-blocking mode.
+   * @param engine  the engine.
+   * @param profile the socket profile.
+   */
+  protected ReliableSocket(DatagramChannel channel, RudpEngine engine,
+                           ReliableSocketProfile profile) {
+    if (channel == null) {
+      throw new NullPointerException("channel");
+    }
+
+    if (engine == null) {
+      throw new NullPointerException("engine");
+    }
+
+    _channel = channel;
+    _engine = engine;
+    init(channel.socket(), profile);
+  }
+
   /**
    * Creates a rudp socket and attaches it to the underlying
    * datagram socket using the given rudp parameters.
@@ -284,8 +468,8 @@ public class ReliableSocket extends Socket {
    *
    * @return the next number in the sequence.
    */
-  private static int nextSequenceNumber(int seqn) {
-    return (seqn + 1) % MAX_SEQUENCE_NUMBER;
+  private int nextSequenceNumber(int seqn) {
+    return (seqn + 1) % _maxSequenceNumber;
   }
 
   /**
@@ -301,6 +485,13 @@ public class ReliableSocket extends Socket {
 
     _sendBufferSize = (_profile.maxSegmentSize() - Segment.RUDP_HEADER_LEN) * 32;
     _recvBufferSize = (_profile.maxSegmentSize() - Segment.RUDP_HEADER_LEN) * 32;
+    _recvBuffer = new ByteRing(_recvBufferSize);
+    _recvBufferTarget = _recvBufferSize;
+    _recvWindow = _recvBufferSize;
+    setSequenceSpace(false);
+    _congestionControl = createCongestionControl();
+    _rttEstimator = new RttEstimator(_profile.retransmissionTimeout());
+    _pmtu = new PathMtuDiscovery(segmentSizeLimit(_profile.maxSegmentSize()));
 
         /* Register shutdown hook */
     try {
@@ -311,7 +502,44 @@ public class ReliableSocket extends Socket {
       }
     }
 
-    _sockThread.start();
+    startReceiving();
+  }
+
+  /**
+   * Starts receiving segments, on the socket's own thread or, in
+   * engine mode, on one of the engine's event loops.
+   */
+  protected void startReceiving() {
+    if (_engine == null) {
+      _sockThread.start();
+      return;
+    }
+
+    try {
+      _engine.register(_channel, new RudpEngine.Handler() {
+        public void segmentReceived(Segment s, SocketAddress endpoint) {
+          if (endpoint.equals(_endpoint)) {
+            processSegment(s);
+          }
+        }
+      });
+    } catch (IOException xcp) {
+      xcp.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns true if the socket's segments are processed by an engine.
+   */
+  protected boolean isEngineMode() {
+    return _engine != null;
+  }
+
+  private static DatagramChannel openChannel()
+      throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.bind(null);
+    return channel;
   }
 
   public void bind(SocketAddress bindpoint)
@@ -350,17 +578,7 @@ public class ReliableSocket extends Socket {
 
     // Synchronize sequence numbers
     _state = SYN_SENT;
-    Random rand = new Random(System.currentTimeMillis());
-    Segment syn = new SYNSegment(_counters.setSequenceNumber(rand.nextInt(MAX_SEQUENCE_NUMBER)),
-        _profile.maxOutstandingSegs(),
-        _profile.maxSegmentSize(),
-        _profile.retransmissionTimeout(),
-        _profile.cumulativeAckTimeout(),
-        _profile.nullSegmentTimeout(),
-        _profile.maxRetrans(),
-        _profile.maxCumulativeAcks(),
-        _profile.maxOutOfSequence(),
-        _profile.maxAutoReset());
+    Segment syn = createSYNSegment(localOptionFlags());
 
     sendAndQueueSegment(syn);
 
@@ -411,8 +629,19 @@ public class ReliableSocket extends Socket {
     }
   }
 
-  public SocketChannel getChannel() {
-    return null;
+  /**
+   * Returns the channel of this socket, through which it can be read
+   * and written with byte buffers, in blocking or non-blocking mode.
+   *
+   * @return the channel.
+   * @see ReliableSocketChannel
+   */
+  public synchronized SocketChannel getChannel() {
+    if (_socketChannel == null) {
+      _socketChannel = new ReliableSocketChannel(this);
+    }
+
+    return _socketChannel;
   }
 
   public InetAddress getInetAddress() {
@@ -486,8 +715,36 @@ public class ReliableSocket extends Socket {
     return _out;
   }
 
+  /**
+   * Returns an output stream for small, latency-sensitive messages, such
+   * as key and pointer events. Each write is sent at once, after the data
+   * written to the output stream of the socket so far, as data segments
+   * that are neither coalesced nor paced. They are written out ahead of
+   * the other segments, may exceed the congestion window by a few
+   * segments, and ask the peer to acknowledge them right away. The rate
+   * limit still holds on average, as the data sent after them waits in
+   * turn.
+   * <p>
+   * Each write should hold whole messages, and bulk data should be
+   * written to the output stream of the socket.
+   *
+   * @return the expedited output stream.
+   * @throws IOException if the socket is not connected, or is closed.
+   * @see #getOutputStream()
+   */
+  public OutputStream getExpeditedOutputStream()
+      throws IOException {
+    getOutputStream();
+    return _expeditedOut;
+  }
+
   public synchronized void close()
       throws IOException {
+    if (!_noDelay && isConnected() && !isClosed()) {
+      /* Send the data held back from small writes, if the window has room */
+      flushCoalescedData();
+    }
+
     synchronized (_closeLock) {
 
       if (isClosed()) {
@@ -518,7 +775,10 @@ public class ReliableSocket extends Socket {
           _retransmissionTimer.destroy();
           _cumulativeAckTimer.destroy();
           _keepAliveTimer.destroy();
+          _failureTimer.destroy();
           _nullSegmentTimer.destroy();
+          _coalescingTimer.destroy();
+          _writeReadyTimer.destroy();
           _sock.close();
           break;
       }
@@ -534,6 +794,8 @@ public class ReliableSocket extends Socket {
         _inSeqRecvQueue.notify();
       }
     }
+
+    flushSegments();
   }
 
   public boolean isBound() {
@@ -591,7 +853,10 @@ public class ReliableSocket extends Socket {
       throw new SocketException("Socket is closed");
     }
 
-    return _recvBufferSize;
+    synchronized (_recvQueueLock) {
+      /* The size chosen by the auto-tuning, if enabled */
+      return _recvBufferAutoTuning ? _recvBufferTarget : _recvBufferSize;
+    }
   }
 
   public synchronized void setReceiveBufferSize(int size)
@@ -609,15 +874,98 @@ public class ReliableSocket extends Socket {
     }
 
     _recvBufferSize = size;
+    synchronized (_recvQueueLock) {
+      /* The buffer must hold the data of the largest segment */
+      _recvBuffer.resize(Math.max(size, _profile.maxSegmentSize()));
+      /* An explicit size disables the auto-tuning */
+      _recvBufferAutoTuning = false;
+      _recvBufferTarget = _recvBuffer.capacity();
+      updateRecvWindow();
+    }
+  }
+
+  /**
+   * Returns the size up to which the receive buffer may grow.
+   *
+   * @return the receive buffer limit (octets).
+   * @see #setReceiveBufferLimit(int)
+   */
+  public int getReceiveBufferLimit() {
+    synchronized (_recvQueueLock) {
+      return _recvBufferLimit;
+    }
+  }
+
+  /**
+   * Sets the size up to which the receive buffer may grow.
+   * <p>
+   * Unless its size has been set with {@link #setReceiveBufferSize(int)},
+   * the receive buffer is sized automatically to twice the data the
+   * application reads per round-trip time, between the initial size and
+   * this limit, on connections where the peer respects the advertised
+   * receive window.
+   *
+   * @param size the receive buffer limit (octets).
+   */
+  public void setReceiveBufferLimit(int size) {
+    if (!(size > 0)) {
+      throw new IllegalArgumentException("negative receive buffer limit");
+    }
+
+    synchronized (_recvQueueLock) {
+      _recvBufferLimit = size;
+    }
   }
 
   public boolean getTcpNoDelay() {
-    return false;
+    return _noDelay;
   }
 
+  /**
+   * Enables or disables the coalescing of small writes.
+   * <p>
+   * Small writes are sent right away by default. With coalescing, as with
+   * Nagle's algorithm, data flushed by the application that does not fill
+   * a segment is held back while data sent earlier has not been
+   * acknowledged, and merged with the data flushed next. It is sent once
+   * it fills a segment, once all the data sent has been acknowledged, or
+   * after the coalescing delay at the latest.
+   *
+   * @param on <code>true</code> to send small writes right away.
+   * @see #setCoalescingDelay(int)
+   */
   public void setTcpNoDelay(boolean on)
       throws SocketException {
-    throw new SocketException("Socket option not supported");
+    if (isClosed()) {
+      throw new SocketException("Socket is closed");
+    }
+
+    _noDelay = on;
+  }
+
+  /**
+   * Returns the longest time small writes are held back.
+   *
+   * @return the coalescing delay (ms).
+   * @see #setCoalescingDelay(int)
+   */
+  public int getCoalescingDelay() {
+    return _coalescingDelay;
+  }
+
+  /**
+   * Sets the longest time small writes are held back, if coalescing has
+   * been enabled with <code>setTcpNoDelay(false)</code>. The delay is
+   * rounded up to the resolution of the timers, a few milliseconds.
+   *
+   * @param delay the coalescing delay (ms).
+   */
+  public void setCoalescingDelay(int delay) {
+    if (delay <= 0) {
+      throw new IllegalArgumentException("delay <= 0");
+    }
+
+    _coalescingDelay = delay;
   }
 
   public synchronized boolean getKeepAlive()
@@ -764,17 +1112,7 @@ public class ReliableSocket extends Socket {
 
     // Synchronize sequence numbers
     _state = SYN_SENT;
-    Random rand = new Random(System.currentTimeMillis());
-    Segment syn = new SYNSegment(_counters.setSequenceNumber(rand.nextInt(MAX_SEQUENCE_NUMBER)),
-        _profile.maxOutstandingSegs(),
-        _profile.maxSegmentSize(),
-        _profile.retransmissionTimeout(),
-        _profile.cumulativeAckTimeout(),
-        _profile.nullSegmentTimeout(),
-        _profile.maxRetrans(),
-        _profile.maxCumulativeAcks(),
-        _profile.maxOutOfSequence(),
-        _profile.maxAutoReset());
+    Segment syn = createSYNSegment(localOptionFlags());
 
     sendAndQueueSegment(syn);
   }
@@ -793,6 +1131,24 @@ public class ReliableSocket extends Socket {
    */
   protected void write(byte[] b, int off, int len)
       throws IOException {
+    write(new ByteBuffer[] {ByteBuffer.wrap(b, off, len)}, 0, 1);
+  }
+
+  /**
+   * Writes the remaining bytes of a sequence of buffers as data
+   * segments and queues them for immediate transmission. The bytes
+   * are copied straight from the buffers into the segments, whether
+   * the buffers are direct or not.
+   *
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @throws IOException if an I/O error occurs. In particular,
+   *                     an <code>IOException</code> is thrown if the socket
+   *                     is closed.
+   */
+  protected void write(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
     if (isClosed()) {
       throw new SocketException("Socket is closed");
     }
@@ -805,8 +1161,11 @@ public class ReliableSocket extends Socket {
       throw new SocketException("Connection reset");
     }
 
-    int totalBytes = 0;
+    long len = remaining(srcs, offset, length);
+    long totalBytes = 0;
     while (totalBytes < len) {
+      pace((int) Math.min(_pmtu.getSegmentSize(), headerLength() + len - totalBytes));
+
       synchronized (_resetLock) {
         while (_reset) {
           try {
@@ -816,839 +1175,2339 @@ public class ReliableSocket extends Socket {
           }
         }
 
-        int writeBytes = Math.min(_profile.maxSegmentSize() - Segment.RUDP_HEADER_LEN,
-            len - totalBytes);
+        int probeSize = _pmtu.nextProbe(currentTime());
+        if (probeSize > 0) {
+          sendProbe(probeSize);
+        }
 
-        sendAndQueueSegment(new DATSegment(_counters.nextSequenceNumber(),
-            _counters.getLastInSequence(), b, off + totalBytes, writeBytes));
+        int writeBytes = (int) Math.min(maxDataLength(), len - totalBytes);
+        DATSegment segment = createDataSegment(_counters.nextSequenceNumber(),
+            srcs, offset, writeBytes);
+        FECSegment parity = (_fec) ? _parityEncoder.add(segment) : null;
+        sendAndQueueSegment(segment);
+        sendParity(parity);
         totalBytes += writeBytes;
       }
     }
+
+    if (_fec) {
+      /* Protect the end of the burst as well */
+      sendParity(_parityEncoder.close());
+    }
   }
 
   /**
-   * Reads up to <code>len</code> bytes of data from the receiver
-   * buffer into an array of bytes.  An attempt is made to read
-   * as many as <code>len</code> bytes, but a smaller number may
-   * be read. The number of bytes actually read is returned as
-   * an integer.
-   * <p>
-   * This method blocks until input data is available, end of file is
-   * detected, or an exception is thrown.
+   * Writes the remaining bytes of a sequence of buffers as expedited data
+   * segments, which are sent right away without pacing, and may exceed the
+   * congestion window by a few segments. The pacer accounts for them, so
+   * that the data sent afterwards waits in turn. It must be called holding
+   * the lock of the output stream.
    *
-   * @param b   the buffer into which the data is read.
-   * @param off the start offset in array <code>b</code>
-   *            at which the data is written.
-   * @param len the maximum number of bytes to read.
-   * @return the total number of bytes read into the buffer,
-   * or <code>-1</code> if there is no more data because
-   * the end of the stream has been reached.
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
    * @throws IOException if an I/O error occurs. In particular,
    *                     an <code>IOException</code> is thrown if the socket
-   *                     is closed, or if the buffer is not big enough to hold
-   *                     a full data segment.
+   *                     is closed.
+   * @see #getExpeditedOutputStream()
    */
-  protected int read(byte[] b, int off, int len)
+  protected void writeExpedited(ByteBuffer[] srcs, int offset, int length)
       throws IOException {
+    if (isClosed()) {
+      throw new SocketException("Socket is closed");
+    }
 
-    int totalBytes = 0;
-
-    synchronized (_recvQueueLock) {
-
-      while (true) {
-        while (_inSeqRecvQueue.isEmpty()) {
-
-          if (isClosed()) {
-            throw new SocketException("Socket is closed");
-          }
-
-          if (isInputShutdown()) {
-            throw new EOFException();
-          }
+    if (isOutputShutdown()) {
+      throw new IOException("Socket output is shutdown");
+    }
 
-          if (!isConnected()) {
-            throw new SocketException("Connection reset");
-          }
+    if (!isConnected()) {
+      throw new SocketException("Connection reset");
+    }
 
+    long len = remaining(srcs, offset, length);
+    long totalBytes = 0;
+    while (totalBytes < len) {
+      synchronized (_resetLock) {
+        while (_reset) {
           try {
-            if (_timeout == 0) {
-              _recvQueueLock.wait();
-            } else {
-              long startTime = System.currentTimeMillis();
-              _recvQueueLock.wait(_timeout);
-              if ((System.currentTimeMillis() - startTime) >= _timeout) {
-                throw new SocketTimeoutException();
-              }
-            }
+            _resetLock.wait();
           } catch (InterruptedException xcp) {
             xcp.printStackTrace();
           }
         }
 
-        for (Iterator it = _inSeqRecvQueue.iterator(); it.hasNext(); ) {
-          Segment s = (Segment) it.next();
-
-          if (s instanceof RSTSegment) {
-            it.remove();
-            break;
-          } else if (s instanceof FINSegment) {
-            if (totalBytes <= 0) {
-              it.remove();
-              return -1; /* EOF */
-            }
-            break;
-          } else if (s instanceof DATSegment) {
-            byte[] data = ((DATSegment) s).getData();
-            if (data.length + totalBytes > len) {
-              if (totalBytes <= 0) {
-                throw new IOException("insufficient buffer space");
-              }
-              break;
-            }
-
-            System.arraycopy(data, 0, b, off + totalBytes, data.length);
-            totalBytes += data.length;
-            it.remove();
-          }
-        }
-
-        if (totalBytes > 0) {
-          return totalBytes;
+        int writeBytes = (int) Math.min(maxDataLength(), len - totalBytes);
+        DATSegment segment = createDataSegment(_counters.nextSequenceNumber(),
+            srcs, offset, writeBytes);
+        segment.setExpedited(true);
+        if (_ackFreq) {
+          segment.requestAck();
         }
+        FECSegment parity = (_fec) ? _parityEncoder.add(segment) : null;
+        _pacer.consume(segment.length(), System.nanoTime());
+        sendAndQueueSegment(segment);
+        sendParity(parity);
+        totalBytes += writeBytes;
       }
     }
+
+    if (_fec) {
+      sendParity(_parityEncoder.close());
+    }
   }
 
   /**
-   * Adds the specified listener to this socket. If the listener
-   * has already been registered, this method does nothing.
+   * Sends the remaining bytes of a sequence of buffers as one expedited
+   * data segment if they fit into one, and the send window has room for
+   * it. It is used to send small messages from threads that must not
+   * block, and must be called holding the lock of the output stream. If
+   * the segment cannot be sent, the ready listeners are notified once
+   * data can be.
    *
-   * @param listener the listener to add.
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @return the number of bytes sent, <code>0</code> if they cannot be sent now.
+   * @throws IOException if an I/O error occurs.
+   * @see #writeExpedited(ByteBuffer[], int, int)
    */
-  public void addListener(ReliableSocketListener listener) {
-    if (listener == null) {
-      throw new NullPointerException("listener");
+  protected int tryWriteExpedited(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    if (isClosed() || isOutputShutdown() || !isConnected()) {
+      return 0;
     }
 
-    synchronized (_listeners) {
-      if (!_listeners.contains(listener)) {
-        _listeners.add(listener);
+    int writeBytes;
+    FECSegment parity;
+    synchronized (_resetLock) {
+      if (_reset) {
+        return 0;
+      }
+
+      synchronized (_unackedSentQueue) {
+        long len = remaining(srcs, offset, length);
+        if (len == 0 || len > maxDataLength()) {
+          return 0;
+        }
+
+        writeBytes = (int) len;
+        int seqn = nextSequenceNumber(_counters.getSequenceNumber());
+        if (_unackedSentQueue.size() >= expeditedWindow() || !_unackedSentQueue.fits(seqn) ||
+            !fitsPeerWindow(writeBytes)) {
+          writeBlocked(0);
+          return 0;
+        }
+
+        DATSegment segment = createDataSegment(_counters.nextSequenceNumber(),
+            srcs, offset, writeBytes);
+        segment.setExpedited(true);
+        if (_ackFreq) {
+          segment.requestAck();
+        }
+        parity = (_fec) ? _parityEncoder.add(segment) : null;
+        _pacer.consume(segment.length(), System.nanoTime());
+        sendAndQueueSegment(segment);
       }
     }
+
+    sendParity(parity);
+    if (_fec) {
+      sendParity(_parityEncoder.close());
+    }
+    flushSegments();
+    return writeBytes;
   }
 
   /**
-   * Removes the specified listener from this socket. This is
-   * harmless if the listener was not previously registered.
+   * Returns how many of the bytes flushed by the output stream are to be
+   * sent now. If small writes are coalesced and data sent earlier has not
+   * been acknowledged, only the bytes that fill data segments are, and the
+   * coalescing timer is started for the rest, which the stream holds back.
    *
-   * @param listener the listener to remove.
+   * @param len the number of bytes flushed.
+   * @return the number of bytes to write now.
    */
-  public void removeListener(ReliableSocketListener listener) {
-    if (listener == null) {
-      throw new NullPointerException("listener");
+  protected int coalesce(int len) {
+    if (_noDelay) {
+      return len;
     }
 
-    synchronized (_listeners) {
-      _listeners.remove(listener);
+    synchronized (_unackedSentQueue) {
+      if (_unackedSentQueue.isEmpty()) {
+        return len;
+      }
+    }
+
+    int held = len % maxDataLength();
+    if (held > 0) {
+      synchronized (_coalescingTimer) {
+        if (_coalescingTimer.isIdle()) {
+          _coalescingTimer.schedule(_coalescingDelay);
+        }
+      }
     }
+
+    return len - held;
   }
 
   /**
-   * Adds the specified state listener to this socket. If the listener
-   * has already been registered, this method does nothing.
+   * Sends the first remaining bytes of a sequence of buffers as one
+   * data segment if the send window has room for it and the pacer lets
+   * it go right away. It is used to send data from threads that must
+   * not block, and must be called holding the lock of the output
+   * stream, so that no other data segment is being written. If the
+   * segment cannot be sent, the ready listeners are notified once it
+   * can.
    *
-   * @param stateListener the listener to add.
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @return the number of bytes sent, <code>0</code> if none can be sent now.
+   * @throws IOException if an I/O error occurs.
    */
-  public void addStateListener(ReliableSocketStateListener stateListener) {
-    if (stateListener == null) {
-      throw new NullPointerException("stateListener");
+  protected int tryWrite(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    if (isClosed() || isOutputShutdown() || !isConnected()) {
+      return 0;
     }
 
-    synchronized (_stateListeners) {
-      if (!_stateListeners.contains(stateListener)) {
-        _stateListeners.add(stateListener);
+    int writeBytes;
+    FECSegment parity;
+    synchronized (_resetLock) {
+      if (_reset) {
+        return 0;
       }
-    }
-  }
 
-  /**
-   * Removes the specified state listener from this socket. This is
-   * harmless if the listener was not previously registered.
-   *
-   * @param stateListener the listener to remove.
-   */
-  public void removeStateListener(ReliableSocketStateListener stateListener) {
-    if (stateListener == null) {
-      throw new NullPointerException("stateListener");
+      /*
+       * The sequence number is taken holding the send queue lock, which
+       * NUL segments are sent with, so that it is the one checked.
+       */
+      synchronized (_unackedSentQueue) {
+        writeBytes = (int) Math.min(maxDataLength(), remaining(srcs, offset, length));
+        if (writeBytes == 0) {
+          return 0;
+        }
+
+        int seqn = nextSequenceNumber(_counters.getSequenceNumber());
+        if (_unackedSentQueue.size() >= sendWindow() || !_unackedSentQueue.fits(seqn) ||
+            !fitsPeerWindow(writeBytes)) {
+          writeBlocked(0);
+          return 0;
+        }
+
+        long delay = _pacer.reserve(headerLength() + writeBytes, System.nanoTime());
+        if (delay > 0) {
+          writeBlocked(delay);
+          return 0;
+        }
+
+        DATSegment segment = createDataSegment(_counters.nextSequenceNumber(),
+            srcs, offset, writeBytes);
+        parity = (_fec) ? _parityEncoder.add(segment) : null;
+        sendAndQueueSegment(segment);
+      }
     }
 
-    synchronized (_stateListeners) {
-      _stateListeners.remove(stateListener);
+    sendParity(parity);
+    if (_fec) {
+      sendParity(_parityEncoder.close());
     }
+    flushSegments();
+    return writeBytes;
   }
 
   /**
-   * Sends a segment piggy-backing any pending acknowledgments.
+   * Creates a data segment in a pooled buffer with the next bytes
+   * of a sequence of buffers.
    *
-   * @param s the segment.
-   * @throws IOException if an I/O error occurs in the
-   *                     underlying UDP socket.
+   * @param seqn   the sequence number.
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param len    the number of bytes, which must be remaining.
+   * @return the segment.
    */
-  private void sendSegment(Segment s)
-      throws IOException {
-        /* Piggyback any pending acknowledgments */
-    if (s instanceof DATSegment || s instanceof RSTSegment || s instanceof FINSegment || s instanceof NULSegment) {
-      checkAndSetAck(s);
+  private DATSegment createDataSegment(int seqn, ByteBuffer[] srcs, int offset, int len) {
+    ByteBuffer buffer = _bufferPool.acquire(DATSegment.HEADROOM + _pmtu.getSegmentSize());
+    byte[] data = buffer.array();
+    int pos = buffer.arrayOffset() + DATSegment.HEADROOM;
+    for (int i = offset, left = len; left > 0; i++) {
+      int n = Math.min(srcs[i].remaining(), left);
+      srcs[i].get(data, pos, n);
+      pos += n;
+      left -= n;
     }
 
-        /* Reset null segment timer */
-    if (s instanceof DATSegment || s instanceof RSTSegment || s instanceof FINSegment) {
-      _nullSegmentTimer.reset();
-    }
+    return new DATSegment(seqn, _counters.getLastInSequence(), buffer, len);
+  }
 
-    if (DEBUG) {
-      log("sent " + s);
+  /**
+   * Returns the total number of bytes remaining in a sequence of buffers.
+   */
+  static long remaining(ByteBuffer[] bufs, int offset, int length) {
+    long n = 0;
+    for (int i = offset; i < offset + length; i++) {
+      n += bufs[i].remaining();
     }
 
-    sendSegmentImpl(s);
+    return n;
   }
 
   /**
-   * Receives a segment and increases the cumulative
-   * acknowledgment counter.
+   * Sends the data held back by the output stream, as far as it can be
+   * sent without waiting.
    *
-   * @return the received segment.
-   * @throws IOException if an I/O error occurs in the
-   *                     underlying UDP socket.
+   * @return <code>true</code> if no data is held back anymore.
    */
-  private Segment receiveSegment()
-      throws IOException {
-    Segment s;
-    if ((s = receiveSegmentImpl()) != null) {
+  private boolean flushCoalescedData() {
+    ReliableSocketOutputStream out = _out;
+    if (out == null) {
+      return true;
+    }
 
+    try {
+      return out.flushHeldBack();
+    } catch (IOException xcp) {
       if (DEBUG) {
-        log("recv " + s);
-      }
-
-      if (s instanceof DATSegment || s instanceof NULSegment ||
-          s instanceof RSTSegment || s instanceof FINSegment ||
-          s instanceof SYNSegment) {
-        _counters.incCumulativeAckCounter();
-      }
-
-      if (_keepAlive) {
-        _keepAliveTimer.reset();
+        xcp.printStackTrace();
       }
+      return true;
     }
+  }
 
-    return s;
+  /**
+   * Reads up to <code>len</code> bytes of data from the receiver
+   * buffer into an array of bytes.  An attempt is made to read
+   * as many as <code>len</code> bytes, but a smaller number may
+   * be read. The number of bytes actually read is returned as
+   * an integer.
+   * <p>
+   * This method blocks until input data is available, end of file is
+   * detected, or an exception is thrown. Segment boundaries are not
+   * preserved, so that any length can be read.
+   *
+   * @param b   the buffer into which the data is read.
+   * @param off the start offset in array <code>b</code>
+   *            at which the data is written.
+   * @param len the maximum number of bytes to read.
+   * @return the total number of bytes read into the buffer,
+   * or <code>-1</code> if there is no more data because
+   * the end of the stream has been reached.
+   * @throws IOException if an I/O error occurs. In particular,
+   *                     an <code>IOException</code> is thrown if the socket
+   *                     is closed.
+   */
+  protected int read(byte[] b, int off, int len)
+      throws IOException {
+    return (int) read(new ByteBuffer[] {ByteBuffer.wrap(b, off, len)}, 0, 1, true);
   }
 
   /**
-   * Sends a segment and queues a copy of it in the queue of unacknowledged segments.
+   * Reads data into a sequence of buffers, copying it straight from
+   * the receive buffer, whether the buffers are direct or not.
    *
-   * @param segment a segment for which delivery must be guaranteed.
-   * @throws IOException if an I/O error occurs in the
-   *                     underlying UDP socket.
+   * @param dsts   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @param block  <code>true</code> to wait for data if there is none.
+   * @return the number of bytes read, <code>0</code> if there is no data
+   * and <code>block</code> is <code>false</code>, or <code>-1</code>
+   * at the end of the stream.
+   * @throws IOException if an I/O error occurs.
    */
-  private void sendAndQueueSegment(Segment segment)
+  protected long read(ByteBuffer[] dsts, int offset, int length, boolean block)
       throws IOException {
-    synchronized (_unackedSentQueue) {
-      while ((_unackedSentQueue.size() >= _sendQueueSize) ||
-          (_counters.getOutstandingSegsCounter() > _profile.maxOutstandingSegs())) {
+    if (remaining(dsts, offset, length) == 0) {
+      return 0;
+    }
+
+    int readBytes;
+    boolean windowUpdate;
+    synchronized (_recvQueueLock) {
+
+      while (true) {
+        if (_recvBuffer.available() > 0) {
+          readBytes = 0;
+          for (int i = offset; i < offset + length && _recvBuffer.available() > 0; i++) {
+            readBytes += _recvBuffer.read(dsts[i]);
+          }
+          tuneRecvBuffer(readBytes);
+          /* Deliver the segments that did not fit in the buffer */
+          checkRecvQueues();
+          windowUpdate = _flowControl &&
+              _recvWindow - _advertisedWindow >= _recvBuffer.capacity() / 4;
+          break;
+        }
+
+        Segment s = _inSeqRecvQueue.first();
+        if (s instanceof RSTSegment) {
+          _inSeqRecvQueue.removeFirst();
+          continue;
+        } else if (s instanceof FINSegment) {
+          _inSeqRecvQueue.removeFirst();
+          return -1; /* EOF */
+        }
+
+        if (isClosed()) {
+          throw new SocketException("Socket is closed");
+        }
+
+        if (isInputShutdown()) {
+          throw new EOFException();
+        }
+
+        if (!isConnected()) {
+          throw new SocketException("Connection reset");
+        }
+
+        if (!block) {
+          _readWaiting = true;
+          return 0;
+        }
+
         try {
-          _unackedSentQueue.wait();
+          if (_timeout == 0) {
+            _recvQueueLock.wait();
+          } else {
+            long startTime = System.currentTimeMillis();
+            _recvQueueLock.wait(_timeout);
+            if ((System.currentTimeMillis() - startTime) >= _timeout) {
+              throw new SocketTimeoutException();
+            }
+          }
         } catch (InterruptedException xcp) {
           xcp.printStackTrace();
         }
       }
-
-      _counters.incOutstandingSegsCounter();
-      _unackedSentQueue.add(segment);
-    }
-
-    if (_closed) {
-      throw new SocketException("Socket is closed");
     }
 
-        /* Re-start retransmission timer */
-    if (!(segment instanceof EAKSegment) && !(segment instanceof ACKSegment)) {
-      synchronized (_retransmissionTimer) {
-        if (_retransmissionTimer.isIdle()) {
-          _retransmissionTimer.schedule(_profile.retransmissionTimeout(),
-              _profile.retransmissionTimeout());
-        }
-      }
+    /*
+     * Let the peer know once the reader has freed a quarter of the
+     * buffer since the last advertisement, as it may be waiting for the
+     * window to open. Smaller updates would let the peer send in small
+     * bursts, larger ones in bursts that overflow the buffers on the path.
+     */
+    if (windowUpdate) {
+      sendWindowUpdate();
+      flushSegments();
     }
 
-    sendSegment(segment);
+    return readBytes;
+  }
 
-    if (segment instanceof DATSegment) {
-      synchronized (_listeners) {
-        Iterator it = _listeners.iterator();
-        while (it.hasNext()) {
-          ReliableSocketListener l = (ReliableSocketListener) it.next();
-          l.packetSent();
-        }
-      }
+  /**
+   * Returns the number of bytes that can be read without blocking.
+   *
+   * @return the number of received in-sequence bytes not read yet.
+   */
+  protected int available() {
+    synchronized (_recvQueueLock) {
+      return _recvBuffer.available();
     }
   }
 
   /**
-   * Sends a segment and increments its retransmission counter.
+   * Waits until the pacer lets a data segment be sent.
    *
-   * @param segment the segment to be retransmitted.
-   * @throws IOException if an I/O error occurs in the
-   *                     underlying UDP socket.
+   * @param bytes the size of the segment.
+   * @throws IOException if the socket is closed while waiting.
    */
-  private void retransmitSegment(Segment segment)
+  private void pace(int bytes)
       throws IOException {
-    if (_profile.maxRetrans() > 0) {
-      segment.setRetxCounter(segment.getRetxCounter() + 1);
+    long delay;
+    while ((delay = _pacer.reserve(bytes, System.nanoTime())) > 0) {
+      LockSupport.parkNanos(delay);
+      if (isClosed()) {
+        throw new SocketException("Socket is closed");
+      }
     }
+  }
 
-    if (_profile.maxRetrans() != 0 && segment.getRetxCounter() > _profile.maxRetrans()) {
-      connectionFailure();
+  /**
+   * Sets the pacing rate from the send window and the round-trip time.
+   * The rate exceeds the window per round-trip time, so that the window
+   * can still grow, by more while in slow start. Segments are not paced
+   * until the round-trip time has been measured.
+   * Must be called holding the send queue lock.
+   */
+  private void updatePacingRate() {
+    int segmentSize = _pmtu.getSegmentSize();
+    long rtt = _rttEstimator.getMinRoundTripTime();
+    if (rtt < 0) {
+      _pacer.setRate(0, segmentSize);
       return;
     }
 
-    sendSegment(segment);
-
-    if (segment instanceof DATSegment) {
-      synchronized (_listeners) {
-        Iterator it = _listeners.iterator();
-        while (it.hasNext()) {
-          ReliableSocketListener l = (ReliableSocketListener) it.next();
-          l.packetRetransmitted();
-        }
-      }
+    int gain = PACING_GAIN;
+    if (_congestionControl != null &&
+        _congestionControl.getWindow() < _congestionControl.getSlowStartThreshold()) {
+      gain = SLOW_START_PACING_GAIN;
     }
+
+    long window = (long) sendWindow() * segmentSize;
+    _pacer.setRate(window * gain * 10 / Math.max(rtt, 1), segmentSize);
   }
 
   /**
-   * Puts the connection in an "opened" state and notifies all
-   * registered state listeners that the connection is opened.
+   * Limits the rate data is sent at on this connection, including
+   * retransmissions. A new limit applies at once, also to a write
+   * that is in progress.
+   *
+   * @param kbps the rate limit (kbit/s), or <code>0</code> for no limit.
    */
-  private void connectionOpened() {
-    if (isConnected()) {
-
-      _nullSegmentTimer.cancel();
-
-      if (_keepAlive) {
-        _keepAliveTimer.cancel();
-      }
+  public void setSendRateLimit(int kbps) {
+    if (kbps < 0) {
+      throw new IllegalArgumentException("kbps < 0");
+    }
 
-      synchronized (_resetLock) {
-        _reset = false;
-        _resetLock.notify();
-      }
-    } else {
-      synchronized (this) {
-        try {
-          _in = new ReliableSocketInputStream(this);
-          _out = new ReliableSocketOutputStream(this);
-          _connected = true;
-          _state = ESTABLISHED;
-        } catch (IOException xcp) {
-          xcp.printStackTrace();
-        }
+    _pacer.setLimit(kbps * 1000L / 8);
+  }
 
-        notify();
-      }
+  /**
+   * Returns the rate limit set with {@link #setSendRateLimit(int)}.
+   *
+   * @return the rate limit (kbit/s), or <code>0</code> if there is none.
+   */
+  public int getSendRateLimit() {
+    return (int) (_pacer.getLimit() * 8 / 1000);
+  }
 
-      synchronized (_stateListeners) {
-        Iterator it = _stateListeners.iterator();
-        while (it.hasNext()) {
-          ReliableSocketStateListener l = (ReliableSocketStateListener) it.next();
-          l.connectionOpened(this);
-        }
-      }
+  /**
+   * Returns the current congestion window (segments).
+   *
+   * @return the congestion window, or the maximum number of outstanding
+   * segments if congestion control is disabled.
+   */
+  public int getCongestionWindow() {
+    synchronized (_unackedSentQueue) {
+      return sendWindow();
     }
+  }
 
-    _nullSegmentTimer.schedule(0, _profile.nullSegmentTimeout());
-
-    if (_keepAlive) {
-      _keepAliveTimer.schedule(_profile.nullSegmentTimeout() * 6,
-          _profile.nullSegmentTimeout() * 6);
+  /**
+   * Creates the congestion control algorithm selected by the profile.
+   * Subclasses may override this method to plug in other algorithms.
+   *
+   * @return the congestion control, or <code>null</code> if
+   * congestion control is disabled.
+   */
+  protected CongestionControl createCongestionControl() {
+    int maxWindow = _profile.maxSendQueueSize();
+    switch (_profile.congestionControl()) {
+      case ReliableSocketProfile.CONGESTION_CONTROL_NEWRENO:
+        return new NewRenoCongestionControl(INITIAL_WINDOW, maxWindow);
+      case ReliableSocketProfile.CONGESTION_CONTROL_CUBIC:
+        return new CubicCongestionControl(INITIAL_WINDOW, maxWindow);
+      default:
+        return null;
     }
   }
 
   /**
-   * Notifies all registered state listeners that
-   * the connection attempt has been refused.
+   * Returns the number of segments that may be sent without being
+   * acknowledged. Must be called holding the send queue lock.
    */
-  private void connectionRefused() {
-    synchronized (_stateListeners) {
-      Iterator it = _stateListeners.iterator();
-      while (it.hasNext()) {
-        ReliableSocketStateListener l = (ReliableSocketStateListener) it.next();
-        l.connectionRefused(this);
-      }
+  private int sendWindow() {
+    int window = Math.min(_sendQueueSize, _profile.maxOutstandingSegs());
+    if (_congestionControl != null) {
+      window = Math.min(window, _congestionControl.getWindow());
     }
+
+    return Math.max(window, 1);
   }
 
   /**
-   * Notifies all registered state listeners
-   * that the connection has been closed.
+   * Reports a loss detected by the peer to the congestion control,
+   * at most once per window of data.
+   * Must be called holding the send queue lock.
    */
-  private void connectionClosed() {
-    synchronized (_stateListeners) {
-      Iterator it = _stateListeners.iterator();
-      while (it.hasNext()) {
-        ReliableSocketStateListener l = (ReliableSocketStateListener) it.next();
-        l.connectionClosed(this);
-      }
+  private void congestionEvent() {
+    if (_congestionControl == null || _inRecovery) {
+      return;
     }
+
+    _congestionControl.onCongestionEvent();
+    _inRecovery = true;
+    _fastRecovery = true;
+    _undoRetrans = 0;
+    _reorderingRaised = false;
+    _recoverySeq = _counters.getSequenceNumber();
+    updatePacingRate();
   }
 
   /**
-   * Puts the connection in a closed state and notifies all
-   * registered state listeners that the connection failed.
+   * Adds the specified listener to this socket. If the listener
+   * has already been registered, this method does nothing.
+   *
+   * @param listener the listener to add.
    */
-  private void connectionFailure() {
-    synchronized (_closeLock) {
+  public void addListener(ReliableSocketListener listener) {
+    if (listener == null) {
+      throw new NullPointerException("listener");
+    }
 
-      if (isClosed()) {
-        return;
+    synchronized (_listeners) {
+      if (!_listeners.contains(listener)) {
+        _listeners.add(listener);
       }
+    }
+  }
 
-      switch (_state) {
-        case SYN_SENT:
-          synchronized (this) {
-            notify();
-          }
-          break;
-        case CLOSE_WAIT:
-        case SYN_RCVD:
-        case ESTABLISHED:
-          _connected = false;
-          synchronized (_unackedSentQueue) {
-            _unackedSentQueue.notifyAll();
-          }
-
-          synchronized (_recvQueueLock) {
-            _recvQueueLock.notify();
-          }
+  /**
+   * Removes the specified listener from this socket. This is
+   * harmless if the listener was not previously registered.
+   *
+   * @param listener the listener to remove.
+   */
+  public void removeListener(ReliableSocketListener listener) {
+    if (listener == null) {
+      throw new NullPointerException("listener");
+    }
 
-          closeImpl();
-          break;
-      }
+    synchronized (_listeners) {
+      _listeners.remove(listener);
+    }
+  }
 
-      _state = CLOSED;
-      _closed = true;
+  /**
+   * Adds the specified state listener to this socket. If the listener
+   * has already been registered, this method does nothing.
+   *
+   * @param stateListener the listener to add.
+   */
+  public void addStateListener(ReliableSocketStateListener stateListener) {
+    if (stateListener == null) {
+      throw new NullPointerException("stateListener");
     }
 
     synchronized (_stateListeners) {
-      Iterator it = _stateListeners.iterator();
-      while (it.hasNext()) {
-        ReliableSocketStateListener l = (ReliableSocketStateListener) it.next();
-        l.connectionFailure(this);
+      if (!_stateListeners.contains(stateListener)) {
+        _stateListeners.add(stateListener);
       }
     }
   }
 
   /**
-   * Notifies all registered state listeners
-   * that the connection has been reset.
+   * Removes the specified state listener from this socket. This is
+   * harmless if the listener was not previously registered.
+   *
+   * @param stateListener the listener to remove.
    */
-  private void connectionReset() {
+  public void removeStateListener(ReliableSocketStateListener stateListener) {
+    if (stateListener == null) {
+      throw new NullPointerException("stateListener");
+    }
+
     synchronized (_stateListeners) {
-      Iterator it = _stateListeners.iterator();
-      while (it.hasNext()) {
-        ReliableSocketStateListener l = (ReliableSocketStateListener) it.next();
-        l.connectionReset(this);
+      _stateListeners.remove(stateListener);
+    }
+  }
+
+  /**
+   * Adds the specified ready listener to this socket. If the listener
+   * has already been registered, this method does nothing.
+   *
+   * @param readyListener the listener to add.
+   */
+  public void addReadyListener(ReliableSocketReadyListener readyListener) {
+    if (readyListener == null) {
+      throw new NullPointerException("readyListener");
+    }
+
+    synchronized (_readyListeners) {
+      if (!_readyListeners.contains(readyListener)) {
+        _readyListeners.add(readyListener);
       }
     }
   }
 
   /**
-   * Handles a received SYN segment.
-   * <p>
-   * When a client initiates a connection it sends a SYN segment which
-   * contains the negotiable parameters defined by the Upper Layer Protocol
-   * via the API. The server can accept these parameters by echoing them back
-   * in its SYN with ACK response or propose different parameters in its SYN
-   * with ACK response. The client can then choose to accept the parameters
-   * sent by the server by sending an ACK to establish the connection or it can
-   * refuse the connection by sending a FIN.
+   * Removes the specified ready listener from this socket. This is
+   * harmless if the listener was not previously registered.
    *
-   * @param segment the SYN segment.
+   * @param readyListener the listener to remove.
    */
-  private void handleSYNSegment(SYNSegment segment) {
-    try {
-      switch (_state) {
-        case CLOSED:
-          _counters.setLastInSequence(segment.seq());
-          _state = SYN_RCVD;
+  public void removeReadyListener(ReliableSocketReadyListener readyListener) {
+    if (readyListener == null) {
+      throw new NullPointerException("readyListener");
+    }
 
-          Random rand = new Random(System.currentTimeMillis());
-          _profile = new ReliableSocketProfile(
-              _sendQueueSize,
-              _recvQueueSize,
-              segment.getMaxSegmentSize(),
-              segment.getMaxOutstandingSegments(),
-              segment.getMaxRetransmissions(),
-              segment.getMaxCumulativeAcks(),
-              segment.getMaxOutOfSequence(),
-              segment.getMaxAutoReset(),
-              segment.getNulSegmentTimeout(),
-              segment.getRetransmissionTimeout(),
-              segment.getCummulativeAckTimeout());
-
-          Segment syn = new SYNSegment(_counters.setSequenceNumber(rand.nextInt(MAX_SEQUENCE_NUMBER)),
-              _profile.maxOutstandingSegs(),
-              _profile.maxSegmentSize(),
-              _profile.retransmissionTimeout(),
-              _profile.cumulativeAckTimeout(),
-              _profile.nullSegmentTimeout(),
-              _profile.maxRetrans(),
-              _profile.maxCumulativeAcks(),
-              _profile.maxOutOfSequence(),
-              _profile.maxAutoReset());
+    synchronized (_readyListeners) {
+      _readyListeners.remove(readyListener);
+    }
+  }
 
-          syn.setAck(segment.seq());
-          sendAndQueueSegment(syn);
-          break;
-        case SYN_SENT:
-          _counters.setLastInSequence(segment.seq());
-          _state = ESTABLISHED;
-                    /*
-                     * Here the client accepts or rejects the parameters sent by the
-                     * server. For now we will accept them.
-                     */
-          sendAck();
-          connectionOpened();
-          break;
-      }
-    } catch (IOException xcp) {
-      xcp.printStackTrace();
+  /**
+   * Sends a segment piggy-backing any pending acknowledgments.
+   *
+   * @param s the segment.
+   * @throws IOException if an I/O error occurs in the
+   *                     underlying UDP socket.
+   */
+  private void sendSegment(Segment s)
+      throws IOException {
+    s.setLongSequence(_longSeq);
+    s.setSendTime(currentTime());
+    if (_timestamps) {
+      s.setTimestamp((int) s.getSendTime(), _tsRecent);
+    }
+    if (_flowControl) {
+      int window = _recvWindow;
+      s.setWindow(window);
+      _advertisedWindow = window;
+    }
+
+        /* Piggyback any pending acknowledgments */
+    if (s instanceof DATSegment || s instanceof RSTSegment || s instanceof FINSegment || s instanceof NULSegment) {
+      checkAndSetAck(s);
+    }
+
+        /* Tell the peer that a retransmission was not needed */
+    if (_dupReceived && s instanceof ACKSegment) {
+      _dupReceived = false;
+      s.reportDuplicate();
+    }
+
+        /* Reset null segment timer */
+    if (s instanceof DATSegment || s instanceof RSTSegment || s instanceof FINSegment) {
+      _nullSegmentTimer.reset();
+    }
+
+    if (DEBUG) {
+      log("sent " + s);
+    }
+
+    if (s instanceof DATSegment && ((DATSegment) s).isExpedited()) {
+      _expeditedQueue.offer(s);
+    } else {
+      _sendQueue.offer(s);
+    }
+    if (!holdsProtocolLock()) {
+      flushSegments();
     }
   }
 
   /**
-   * Handles a received EAK segment.
+   * Returns true if the current thread holds a lock that the
+   * protocol threads contend for. Segments queued under such
+   * a lock are written out once the lock is released.
+   */
+  private boolean holdsProtocolLock() {
+    return Thread.holdsLock(_unackedSentQueue) ||
+        Thread.holdsLock(_recvQueueLock) ||
+        Thread.holdsLock(_closeLock);
+  }
+
+  /**
+   * Writes out the queued segments and returns the buffers of the
+   * acknowledged data segments to the pool.
    * <p>
-   * When a EAK segment is received, the segments specified in
-   * the message are removed from the unacknowledged sent queue.
-   * The segments to be retransmitted are determined by examining
-   * the Ack Number and the last out of sequence ack number in the
-   * EAK segment. All segments between but not including these two
-   * sequence numbers that are on the unacknowledged sent queue are
-   * retransmitted.
+   * Only one thread at a time drains the queues: a thread that finds
+   * another one at work leaves its segments to it and returns at once,
+   * so that no thread waits for a send other than its own flush.
+   * This must not be called holding a protocol lock.
+   */
+  private void flushSegments() {
+    if (_sendRequests.getAndIncrement() != 0) {
+      return;
+    }
+
+    int requests = 1;
+    do {
+      Segment s;
+      while ((s = _expeditedQueue.poll()) != null ||
+          (s = _sendQueue.poll()) != null) {
+        sendSegmentImpl(s);
+      }
+
+      /*
+       * A buffer released here may belong to a segment queued again
+       * after this round, which is then skipped as it has been acked.
+       */
+      while ((s = _releaseQueue.poll()) != null) {
+        ((DATSegment) s).release(_bufferPool);
+      }
+
+      requests = _sendRequests.addAndGet(-requests);
+    } while (requests != 0);
+  }
+
+  /**
+   * Processes a segment received from the peer: increases the
+   * cumulative acknowledgment counter and runs the protocol
+   * state machine.
    *
-   * @param segment the EAK segment.
+   * @param s the segment.
    */
-  private void handleEAKSegment(EAKSegment segment) {
-    Iterator it;
-    int[] acks = segment.getACKs();
+  protected void processSegment(Segment s) {
+    if (DEBUG) {
+      log("recv " + s);
+    }
+
+    if (s instanceof DATSegment || s instanceof NULSegment ||
+        s instanceof RSTSegment || s instanceof FINSegment ||
+        s instanceof SYNSegment) {
+      /*
+       * Echo the timestamp of the first segment that is not acknowledged
+       * yet, so that the peer's measurement includes the time we delay
+       * the acknowledgment.
+       */
+      if (s.hasTimestamp() && _counters.getCumulativeAckCounter() == 0) {
+        _tsRecent = s.getTimestamp();
+      }
+      _counters.incCumulativeAckCounter();
+    }
 
-    int lastInSequence = segment.getAck();
-    int lastOutSequence = acks[acks.length - 1];
+    if (_keepAlive) {
+      _keepAliveTimer.reset();
+    }
 
-    synchronized (_unackedSentQueue) {
+    if (s.hasWindow()) {
+      updatePeerWindow(s.getWindow());
+    }
 
-            /* Removed acknowledged segments from sent queue */
-      for (it = _unackedSentQueue.iterator(); it.hasNext(); ) {
-        Segment s = (Segment) it.next();
-        if ((compareSequenceNumbers(s.seq(), lastInSequence) <= 0)) {
-          it.remove();
-          continue;
-        }
+    if (s instanceof SYNSegment) {
+      handleSYNSegment((SYNSegment) s);
+    } else if (s instanceof EAKSegment) {
+      handleEAKSegment((EAKSegment) s);
+    } else if (s instanceof ACKSegment) {
+      // do nothing.
+    } else if (s instanceof FECSegment) {
+      handleFECSegment((FECSegment) s);
+    } else {
+      handleSegment(s);
+    }
 
-        for (int i = 0; i < acks.length; i++) {
-          if ((compareSequenceNumbers(s.seq(), acks[i]) == 0)) {
-            it.remove();
-            break;
-          }
-        }
+    if (s.isDuplicateReported()) {
+      handleDuplicateReport();
+    }
+
+    checkAndGetAck(s);
+    flushSegments();
+
+    if (!_noDelay && s.getAck() >= 0) {
+      checkCoalescedData();
+    }
+
+    if (_readWaiting) {
+      checkReadReady();
+    }
+
+    if (_writeWaiting) {
+      checkWriteReady();
+    }
+  }
+
+  /**
+   * Notifies the ready listeners if data or the end of the
+   * stream can be read.
+   */
+  private void checkReadReady() {
+    synchronized (_recvQueueLock) {
+      if (_recvBuffer.available() == 0 && _inSeqRecvQueue.isEmpty()) {
+        return;
       }
+    }
 
-            /* Retransmit segments */
-      it = _unackedSentQueue.iterator();
-      while (it.hasNext()) {
-        Segment s = (Segment) it.next();
-        if ((compareSequenceNumbers(lastInSequence, s.seq()) < 0) &&
-            (compareSequenceNumbers(lastOutSequence, s.seq()) > 0)) {
+    readReady();
+  }
 
-          try {
-            retransmitSegment(s);
-          } catch (IOException xcp) {
-            xcp.printStackTrace();
-          }
-        }
+  /**
+   * Notifies the ready listeners if the send window has room
+   * for another data segment.
+   */
+  private void checkWriteReady() {
+    synchronized (_unackedSentQueue) {
+      if (!hasSendWindowRoom()) {
+        return;
       }
+    }
 
-      _unackedSentQueue.notifyAll();
+    writeReady();
+  }
+
+  /**
+   * Sends the data held back by the output stream once all the data
+   * sent has been acknowledged.
+   */
+  private void checkCoalescedData() {
+    synchronized (_unackedSentQueue) {
+      if (!_unackedSentQueue.isEmpty()) {
+        return;
+      }
     }
+
+    flushCoalescedData();
   }
 
   /**
-   * Handles a received RST, FIN, or DAT segment.
+   * Sends a segment and queues a copy of it in the queue of unacknowledged segments.
    *
-   * @param segment
+   * @param segment a segment for which delivery must be guaranteed.
+   * @throws IOException if an I/O error occurs in the
+   *                     underlying UDP socket.
    */
-  private void handleSegment(Segment segment) {
-        /*
-         * When a RST segment is received, the sender must stop
-         * sending new packets, but most continue to attempt
-         * delivery of packets already accepted from the application.
-         */
-    if (segment instanceof RSTSegment) {
-      synchronized (_resetLock) {
-        _reset = true;
+  private void sendAndQueueSegment(Segment segment)
+      throws IOException {
+    synchronized (_unackedSentQueue) {
+      while (!fitsSendWindow(segment)) {
+        try {
+          _unackedSentQueue.wait();
+        } catch (InterruptedException xcp) {
+          xcp.printStackTrace();
+        }
       }
 
-      connectionReset();
-    }
+      _unackedSentQueue.put(segment);
 
-        /*
-         * When a FIN segment is received, no more packets
-         * are expected to arrive after this segment.
-         */
-    if (segment instanceof FINSegment) {
-      switch (_state) {
-        case SYN_SENT:
-          synchronized (this) {
-            notify();
-          }
-          break;
-        case CLOSED:
-          break;
-        default:
-          _state = CLOSE_WAIT;
+      if (_ackFreq && segment instanceof DATSegment && !hasSendWindowRoom()) {
+        /* The peer must not wait for more segments before acknowledging */
+        segment.requestAck();
       }
     }
 
-    boolean inSequence = false;
-    synchronized (_recvQueueLock) {
+    if (_closed) {
+      throw new SocketException("Socket is closed");
+    }
 
-      if (compareSequenceNumbers(segment.seq(), _counters.getLastInSequence()) <= 0) {
-                /* Drop packet: duplicate. */
+        /* Re-start retransmission timer */
+    if (!(segment instanceof EAKSegment) && !(segment instanceof ACKSegment)) {
+      synchronized (_retransmissionTimer) {
+        if (_retransmissionTimer.isIdle()) {
+          _retransmissionTimer.schedule(_rttEstimator.getRetransmissionTimeout());
+        }
+      }
+    }
+
+    sendSegment(segment);
+
+    if (segment instanceof DATSegment) {
+      synchronized (_listeners) {
+        Iterator<ReliableSocketListener> it = _listeners.iterator();
+        while (it.hasNext()) {
+          ReliableSocketListener l = it.next();
+          l.packetSent();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the parity segment of a group of data segments, and records
+   * the actual end of the group in those that are not acknowledged yet,
+   * in case it was closed early.
+   *
+   * @param parity the parity segment, or <code>null</code> if there is none.
+   * @throws IOException if an I/O error occurs in the
+   *                     underlying UDP socket.
+   */
+  private void sendParity(FECSegment parity)
+      throws IOException {
+    if (parity == null) {
+      return;
+    }
+
+    int end = (parity.seq() + parity.getGroupSize() - 1) % _maxSequenceNumber;
+    synchronized (_unackedSentQueue) {
+      for (int i = 0, seqn = parity.seq(); i < parity.getGroupSize();
+           i++, seqn = nextSequenceNumber(seqn)) {
+        Segment s = _unackedSentQueue.get(seqn);
+        if (s instanceof DATSegment) {
+          ((DATSegment) s).setParityEnd(end);
+        }
+      }
+    }
+
+    _pacer.consume(parity.length(), System.nanoTime());
+    sendSegment(parity);
+  }
+
+  /**
+   * Hands the buffer of an acknowledged data segment back to the
+   * sender, which returns it to the pool once it no longer sends it.
+   *
+   * @param s the segment, which must not be sent afterwards.
+   */
+  private void releaseSegment(Segment s) {
+    if (s instanceof DATSegment) {
+      _releaseQueue.offer(s);
+    }
+  }
+
+  /**
+   * Sends a segment and increments its retransmission counter.
+   *
+   * @param segment the segment to be retransmitted.
+   * @throws IOException if an I/O error occurs in the
+   *                     underlying UDP socket.
+   */
+  private void retransmitSegment(Segment segment)
+      throws IOException {
+    segment.setRetxCounter(segment.getRetxCounter() + 1);
+
+    if (_profile.maxRetrans() != 0 && segment.getRetxCounter() > _profile.maxRetrans()) {
+      synchronized (_failureTimer) {
+        if (_failureTimer.isIdle()) {
+          _failureTimer.schedule(0);
+        }
+      }
+      return;
+    }
+
+    if (isProbe(segment)) {
+      /* The probe is lost, its sequence number is delivered without padding */
+      _pmtu.probeLost();
+      ((NULSegment) segment).setPadding(0);
+    }
+
+    _pacer.consume(segment.length(), System.nanoTime());
+    sendSegment(segment);
+
+    if (segment instanceof DATSegment) {
+      synchronized (_listeners) {
+        Iterator<ReliableSocketListener> it = _listeners.iterator();
+        while (it.hasNext()) {
+          ReliableSocketListener l = it.next();
+          l.packetRetransmitted();
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts the connection in an "opened" state and notifies all
+   * registered state listeners that the connection is opened.
+   */
+  private void connectionOpened() {
+    if (isConnected()) {
+
+      _nullSegmentTimer.cancel();
+
+      if (_keepAlive) {
+        _keepAliveTimer.cancel();
+      }
+
+      synchronized (_resetLock) {
+        _reset = false;
+        _resetLock.notify();
+      }
+    } else {
+      synchronized (this) {
+        try {
+          _in = new ReliableSocketInputStream(this);
+          _out = new ReliableSocketOutputStream(this);
+          _expeditedOut = new ExpeditedOutputStream();
+          _connected = true;
+          _state = ESTABLISHED;
+        } catch (IOException xcp) {
+          xcp.printStackTrace();
+        }
+
+        notify();
+      }
+
+      synchronized (_stateListeners) {
+        Iterator<ReliableSocketStateListener> it = _stateListeners.iterator();
+        while (it.hasNext()) {
+          ReliableSocketStateListener l = it.next();
+          l.connectionOpened(this);
+        }
+      }
+    }
+
+    _nullSegmentTimer.schedule(0, _profile.nullSegmentTimeout());
+
+    if (_keepAlive) {
+      _keepAliveTimer.schedule(_profile.nullSegmentTimeout() * 6,
+          _profile.nullSegmentTimeout() * 6);
+    }
+  }
+
+  /**
+   * Notifies all registered state listeners that
+   * the connection attempt has been refused.
+   */
+  private void connectionRefused() {
+    synchronized (_stateListeners) {
+      Iterator<ReliableSocketStateListener> it = _stateListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketStateListener l = it.next();
+        l.connectionRefused(this);
+      }
+    }
+  }
+
+  /**
+   * Notifies all registered state listeners
+   * that the connection has been closed.
+   */
+  private void connectionClosed() {
+    synchronized (_stateListeners) {
+      Iterator<ReliableSocketStateListener> it = _stateListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketStateListener l = it.next();
+        l.connectionClosed(this);
+      }
+    }
+
+    readReady();
+    writeReady();
+  }
+
+  /**
+   * Puts the connection in a closed state and notifies all
+   * registered state listeners that the connection failed.
+   */
+  private void connectionFailure() {
+    synchronized (_closeLock) {
+
+      if (isClosed()) {
+        return;
+      }
+
+      switch (_state) {
+        case SYN_SENT:
+          synchronized (this) {
+            notify();
+          }
+          break;
+        case CLOSE_WAIT:
+        case SYN_RCVD:
+        case ESTABLISHED:
+          _connected = false;
+          synchronized (_unackedSentQueue) {
+            _unackedSentQueue.notifyAll();
+          }
+
+          synchronized (_recvQueueLock) {
+            _recvQueueLock.notify();
+          }
+
+          closeImpl();
+          break;
+      }
+
+      _state = CLOSED;
+      _closed = true;
+    }
+
+    synchronized (_stateListeners) {
+      Iterator<ReliableSocketStateListener> it = _stateListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketStateListener l = it.next();
+        l.connectionFailure(this);
+      }
+    }
+
+    readReady();
+    writeReady();
+  }
+
+  /**
+   * Notifies all registered state listeners
+   * that the connection has been reset.
+   */
+  private void connectionReset() {
+    synchronized (_stateListeners) {
+      Iterator<ReliableSocketStateListener> it = _stateListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketStateListener l = it.next();
+        l.connectionReset(this);
+      }
+    }
+
+    readReady();
+    writeReady();
+  }
+
+  /**
+   * Notifies all registered ready listeners that data can be read
+   * without blocking, if a read found no data since the last time.
+   */
+  private void readReady() {
+    if (!_readWaiting) {
+      return;
+    }
+
+    _readWaiting = false;
+    synchronized (_readyListeners) {
+      Iterator<ReliableSocketReadyListener> it = _readyListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketReadyListener l = it.next();
+        l.readyToRead(this);
+      }
+    }
+  }
+
+  /**
+   * Notifies all registered ready listeners that data can be written
+   * without blocking, if a write could not proceed since the last time.
+   */
+  private void writeReady() {
+    if (!_writeWaiting) {
+      return;
+    }
+
+    _writeWaiting = false;
+    synchronized (_readyListeners) {
+      Iterator<ReliableSocketReadyListener> it = _readyListeners.iterator();
+      while (it.hasNext()) {
+        ReliableSocketReadyListener l = it.next();
+        l.readyToWrite(this);
+      }
+    }
+  }
+
+  /**
+   * Records that a write could not proceed without blocking, so that
+   * the ready listeners are notified when it can: once the send window
+   * opens, or after the given pacing delay.
+   *
+   * @param delay the time the pacer holds the write back (ns),
+   *              or <code>0</code> if the send window is full.
+   */
+  private void writeBlocked(long delay) {
+    _writeWaiting = true;
+    if (delay > 0) {
+      synchronized (_writeReadyTimer) {
+        if (_writeReadyTimer.isIdle()) {
+          _writeReadyTimer.schedule((delay + 999999) / 1000000);
+        }
+      }
+    }
+  }
+
+  /**
+   * Handles a received SYN segment.
+   * <p>
+   * When a client initiates a connection it sends a SYN segment which
+   * contains the negotiable parameters defined by the Upper Layer Protocol
+   * via the API. The server can accept these parameters by echoing them back
+   * in its SYN with ACK response or propose different parameters in its SYN
+   * with ACK response. The client can then choose to accept the parameters
+   * sent by the server by sending an ACK to establish the connection or it can
+   * refuse the connection by sending a FIN.
+   *
+   * @param segment the SYN segment.
+   */
+  private void handleSYNSegment(SYNSegment segment) {
+    try {
+      switch (_state) {
+        case CLOSED:
+          _counters.setLastInSequence(segment.seq());
+          _state = SYN_RCVD;
+
+          /* Accept the options offered by the client that we support */
+          int optflags = segment.getOptionFlags() & localOptionFlags();
+          _profile = new ReliableSocketProfile.Builder(_profile)
+              .maxSegmentSize(Math.min(_profile.maxSegmentSize(), segment.getMaxSegmentSize()))
+              .maxOutstandingSegs(segment.getMaxOutstandingSegments())
+              .maxRetrans(segment.getMaxRetransmissions())
+              .maxCumulativeAcks(segment.getMaxCumulativeAcks())
+              .maxOutOfSequence(segment.getMaxOutOfSequence())
+              .maxAutoReset(segment.getMaxAutoReset())
+              .nullSegmentTimeout(segment.getNulSegmentTimeout())
+              .retransmissionTimeout(segment.getRetransmissionTimeout())
+              .cumulativeAckTimeout(segment.getCummulativeAckTimeout())
+              .streams((optflags & SYNSegment.OPT_STREAMS) != 0)
+              .build();
+
+          Segment syn = createSYNSegment(optflags);
+          setOptions(optflags);
+          _pmtu = new PathMtuDiscovery(segmentSizeLimit(_profile.maxSegmentSize()));
+
+          syn.setAck(segment.seq());
+          sendAndQueueSegment(syn);
+          break;
+        case SYN_SENT:
+          _counters.setLastInSequence(segment.seq());
+          _state = ESTABLISHED;
+                    /*
+                     * Here the client accepts or rejects the parameters sent by the
+                     * server. For now we will accept them.
+                     */
+          setOptions(segment.getOptionFlags());
+          _pmtu = new PathMtuDiscovery(segmentSizeLimit(
+              Math.min(_profile.maxSegmentSize(), segment.getMaxSegmentSize())));
+          sendAck();
+          connectionOpened();
+          break;
+      }
+    } catch (IOException xcp) {
+      xcp.printStackTrace();
+    }
+  }
+
+  /**
+   * Handles a received EAK segment.
+   * <p>
+   * When a EAK segment is received, the segments specified in
+   * the message are removed from the unacknowledged sent queue.
+   * The segments to be retransmitted are determined by examining
+   * the Ack Number and the last out of sequence ack number in the
+   * EAK segment. All segments between but not including these two
+   * sequence numbers that are on the unacknowledged sent queue are
+   * retransmitted.
+   *
+   * @param segment the EAK segment.
+   */
+  private void handleEAKSegment(EAKSegment segment) {
+    int lastInSequence = segment.getAck();
+
+    synchronized (_unackedSentQueue) {
+
+            /*
+             * Removed out-of-sequence acknowledged segments from sent queue,
+             * the cumulative acknowledgment is processed in checkAndGetAck.
+             * Each range is mapped to the first and last offset it covers
+             * in the queue, and only the segments in it are visited.
+             */
+      int acked = 0;
+      int reported = 0;
+      int capacity = _unackedSentQueue.capacity();
+      long[] ranges = new long[segment.getRangeCount()];
+      int n = 0;
+      for (int i = 0; i < ranges.length; i++) {
+        int first = _unackedSentQueue.offset(segment.getRangeStart(i));
+        int last = _unackedSentQueue.offset(segment.getRangeEnd(i));
+        if (last >= capacity) {
+          if (first >= capacity) {
+            continue;
+          }
+          last = capacity - 1;
+        } else if (first > last) {
+          first = 0; /* The range starts before the base */
+        }
+
+        for (int o = _unackedSentQueue.nextOffset(first); o >= 0 && o <= last;
+             o = _unackedSentQueue.nextOffset(o + 1)) {
+          Segment s = _unackedSentQueue.at(o);
+          _unackedSentQueue.remove(s.seq());
+          if (isProbe(s)) {
+            _pmtu.probeAcked();
+          }
+          releaseSegment(s);
+          acked++;
+        }
+        ranges[n++] = ((long) first << 32) | last;
+        reported += last - first + 1;
+      }
+      Arrays.sort(ranges, 0, n);
+
+      if (acked > 0 && _congestionControl != null && !_fastRecovery) {
+        _congestionControl.onAck(acked, -1);
+      }
+
+      if (acked > 0) {
+        updatePacingRate();
+      }
+
+            /*
+             * Fast retransmit: a segment in the gaps is considered lost
+             * once the peer has received enough later segments, or all of
+             * them if too few are outstanding to reach the threshold.
+             * The threshold is raised on paths that reorder segments (see
+             * handleDuplicateReport).
+             * Segments that have been retransmitted less than a round-trip
+             * ago are skipped: the peer could not have received them yet
+             * when it sent this EAK.
+             */
+      int threshold = _profile.fastRetransmitThreshold();
+      if (threshold > 0) {
+        threshold = Math.max(threshold, _reordering);
+      }
+      long now = currentTime();
+      long rtt = _rttEstimator.getRoundTripTime();
+      if (rtt < 0) {
+        rtt = _rttEstimator.getRetransmissionTimeout();
+      }
+
+      int end = (n > 0) ? (int) ranges[n - 1] : 0;
+      int highest = (segment.getRangeCount() > 0) ?
+          segment.getRangeEnd(segment.getRangeCount() - 1) : lastInSequence;
+      int size = _unackedSentQueue.size();
+      int j = 0;
+      int i = 0;
+      for (int o = _unackedSentQueue.nextOffset(0); threshold > 0 && o >= 0 && o < end;
+           o = _unackedSentQueue.nextOffset(o + 1), i++) {
+        Segment s = _unackedSentQueue.at(o);
+        if (compareSequenceNumbers(lastInSequence, s.seq()) >= 0) {
+          continue;
+        }
+
+        if (s.getRetxCounter() > 0 && now - s.getSendTime() < rtt) {
+          continue;
+        }
+
+        /* The ranges are sorted in sequence order */
+        while (j < n && (int) ranges[j] < o) {
+          reported -= (int) ranges[j] - (int) (ranges[j] >>> 32) + 1;
+          j++;
+        }
+
+        int later = reported;
+        int outstanding = later + size - i - 1;
+        if (later >= Math.min(threshold, outstanding)) {
+          if (_fec && !isProbe(s)) {
+            _parityEncoder.lossDetected(s.seq());
+          }
+          if (awaitsParity(s, highest)) {
+            continue;
+          }
+          if (!isProbe(s)) {
+            congestionEvent();
+            if (_undoRetrans >= 0) {
+              _undoRetrans++;
+            }
+          }
+          try {
+            retransmitSegment(s);
+          } catch (IOException xcp) {
+            xcp.printStackTrace();
+          }
+        }
+      }
+
+      _unackedSentQueue.notifyAll();
+    }
+  }
+
+  /**
+   * Handles the report of the peer that it has received a data segment
+   * twice, which means that a retransmission was not needed (as with a
+   * D-SACK, see RFC 3708). The fast retransmit threshold is doubled, at
+   * most once per congestion event, until the reordering of the path is
+   * tolerated. Once all the fast retransmissions since the last congestion
+   * event have been reported, the segments were reordered rather than
+   * lost, and the congestion window is restored.
+   */
+  private void handleDuplicateReport() {
+    synchronized (_unackedSentQueue) {
+      int threshold = _profile.fastRetransmitThreshold();
+      if (threshold > 0 && !_reorderingRaised) {
+        _reordering = Math.min(Math.max(_reordering, threshold) * 2, MAX_REORDERING);
+        _reorderingRaised = true;
+      }
+
+      if (_undoRetrans > 0 && --_undoRetrans == 0) {
+        _undoRetrans = -1;
+        if (_congestionControl != null) {
+          _congestionControl.undoCongestionEvent();
+          _inRecovery = false;
+          _fastRecovery = false;
+          updatePacingRate();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the peer may still rebuild a data segment from the
+   * parity segment of its group, which it has not received yet if it has
+   * not reported any segment after the group. The segment is then not
+   * retransmitted before a later EAK, unless the retransmission timer
+   * expires first.
+   *
+   * @param s       a segment that has not been acknowledged.
+   * @param highest the highest sequence number reported by the peer.
+   */
+  private boolean awaitsParity(Segment s, int highest) {
+    if (!(s instanceof DATSegment) || s.getRetxCounter() > 0) {
+      return false;
+    }
+
+    int end = ((DATSegment) s).getParityEnd();
+    return end >= 0 && compareSequenceNumbers(highest, end) <= 0;
+  }
+
+  /**
+   * Handles a received RST, FIN, or DAT segment.
+   *
+   * @param segment
+   */
+  private void handleSegment(Segment segment) {
+        /*
+         * When a RST segment is received, the sender must stop
+         * sending new packets, but most continue to attempt
+         * delivery of packets already accepted from the application.
+         */
+    if (segment instanceof RSTSegment) {
+      synchronized (_resetLock) {
+        _reset = true;
+      }
+
+      connectionReset();
+    }
+
+        /*
+         * When a FIN segment is received, no more packets
+         * are expected to arrive after this segment.
+         */
+    if (segment instanceof FINSegment) {
+      switch (_state) {
+        case SYN_SENT:
+          synchronized (this) {
+            notify();
+          }
+          break;
+        case CLOSED:
+          break;
+        default:
+          _state = CLOSE_WAIT;
+      }
+    }
+
+    boolean inSequence = false;
+    boolean earlyEak = false;
+    boolean ackNow = false;
+    synchronized (_recvQueueLock) {
+      if (_ackFrequency != null && segment instanceof DATSegment) {
+        _ackFrequency.segmentReceived(currentTime());
+      }
+
+      if (compareSequenceNumbers(segment.seq(), _counters.getLastInSequence()) <= 0) {
+                /* Drop packet: duplicate. */
+        ackNow = true;
+        _dupReceived |= segment instanceof DATSegment;
       } else if (compareSequenceNumbers(segment.seq(), nextSequenceNumber(_counters.getLastInSequence())) == 0) {
         inSequence = true;
-        if (_inSeqRecvQueue.size() == 0 || (_inSeqRecvQueue.size() + _outSeqRecvQueue.size() < _recvQueueSize)) {
-                    /* Insert in-sequence segment */
+        /* A segment that fills a gap ends a loss recovery of the peer */
+        ackNow = !_outSeqRecvQueue.isEmpty();
+        if (fitsRecvBuffer(segment)) {
+                    /* Deliver in-sequence segment */
           _counters.setLastInSequence(segment.seq());
-          if (segment instanceof DATSegment || segment instanceof RSTSegment || segment instanceof FINSegment) {
-            _inSeqRecvQueue.add(segment);
+          recordParityData(segment);
+          deliverSegment(segment);
+
+          if (segment instanceof DATSegment) {
+            synchronized (_listeners) {
+              Iterator<ReliableSocketListener> it = _listeners.iterator();
+              while (it.hasNext()) {
+                ReliableSocketListener l = it.next();
+                l.packetReceivedInOrder();
+              }
+            }
+          }
+
+          checkRecvQueues();
+        } else {
+                    /* Drop packet: buffer is full. */
+        }
+      } else if (_outSeqRecvQueue.size() < _recvQueueSize) {
+                /* Insert out-of-sequence segment, duplicates are ignored */
+        _outSeqRecvQueue.moveBase(nextSequenceNumber(_counters.getLastInSequence()));
+        if (_outSeqRecvQueue.put(segment)) {
+          recordParityData(segment);
+          detachSegment(segment);
+          _outSeqBytes += dataLength(segment);
+          updateRecvWindow();
+        } else {
+          _dupReceived |= segment instanceof DATSegment;
+        }
+
+        _counters.incOutOfSequenceCounter();
+        earlyEak = (_outSeqRecvQueue.size() <= _profile.maxOutOfSequence());
+
+        if (segment instanceof DATSegment) {
+          synchronized (_listeners) {
+            Iterator<ReliableSocketListener> it = _listeners.iterator();
+            while (it.hasNext()) {
+              ReliableSocketListener l = it.next();
+              l.packetReceivedOutOfOrder();
+            }
           }
+        }
+      }
+
+      if (inSequence && (segment instanceof RSTSegment ||
+          segment instanceof NULSegment ||
+          segment instanceof FINSegment)) {
+        sendAck();
+      } else if (earlyEak || ((_counters.getOutOfSequenceCounter() > 0) &&
+          (_profile.maxOutOfSequence() == 0 || _counters.getOutOfSequenceCounter() > _profile.maxOutOfSequence()))) {
+        /*
+         * The first out-of-sequence segments are reported right away,
+         * so that the sender can detect a loss without waiting for
+         * the retransmission timer.
+         */
+        sendExtendedAck();
+      } else if (_ackFreq && (ackNow || segment.isAckRequested())) {
+        sendAck();
+      } else if (_counters.getCumulativeAckCounter() >= cumulativeAcks()) {
+        sendSingleAck();
+      } else {
+        synchronized (_cumulativeAckTimer) {
+          if (_cumulativeAckTimer.isIdle()) {
+            _cumulativeAckTimer.schedule(
+                _ackFreq ? AckFrequency.ACK_DELAY : _profile.cumulativeAckTimeout());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of received segments that are acknowledged
+   * at once: the number chosen from the arrival rate if ACK decimation
+   * has been negotiated, otherwise one more than the maximum number of
+   * cumulative acknowledgments of the profile.
+   */
+  private int cumulativeAcks() {
+    AckFrequency ackFrequency = _ackFrequency;
+    if (ackFrequency != null) {
+      return ackFrequency.getFrequency();
+    }
+
+    return _profile.maxCumulativeAcks() + 1;
+  }
 
-          if (segment instanceof DATSegment) {
-            synchronized (_listeners) {
-              Iterator it = _listeners.iterator();
-              while (it.hasNext()) {
-                ReliableSocketListener l = (ReliableSocketListener) it.next();
-                l.packetReceivedInOrder();
-              }
+  /**
+   * Handles a received parity segment: if exactly one data segment of
+   * its group is missing, it is rebuilt and handled as if it had been
+   * received.
+   *
+   * @param segment the parity segment.
+   */
+  private void handleFECSegment(FECSegment segment) {
+    DATSegment recovered;
+    synchronized (_recvQueueLock) {
+      if (_parityDecoder == null) {
+        return;
+      }
+
+      recovered = _parityDecoder.recover(segment);
+      if (recovered == null ||
+          compareSequenceNumbers(recovered.seq(), _counters.getLastInSequence()) <= 0 ||
+          _outSeqRecvQueue.get(recovered.seq()) != null) {
+        return;
+      }
+    }
+
+    if (DEBUG) {
+      log("recovered " + recovered);
+    }
+
+    processSegment(recovered);
+  }
+
+  /**
+   * Keeps the data of a received data segment for the parity segment
+   * of its group, if parity segments are in use.
+   * Must be called holding the receive queue lock.
+   *
+   * @param s the segment, whose data must still be valid.
+   */
+  private void recordParityData(Segment s) {
+    if (_parityDecoder != null && s instanceof DATSegment) {
+      _parityDecoder.record((DATSegment) s);
+    }
+  }
+
+  /**
+   * Acknowledges the next segment to be acknowledged.
+   * If there are any out-of-sequence segments in the
+   * receiver queue, it sends an EAK segment.
+   */
+  private void sendAck() {
+    synchronized (_recvQueueLock) {
+      if (!_outSeqRecvQueue.isEmpty()) {
+        sendExtendedAck();
+        return;
+      }
+
+      sendSingleAck();
+    }
+  }
+
+  /**
+   * Sends an EAK segment if there is at least one
+   * out-of-sequence received segment.
+   */
+  private void sendExtendedAck() {
+    synchronized (_recvQueueLock) {
+
+      if (_outSeqRecvQueue.isEmpty()) {
+        return;
+      }
+
+      _counters.getAndResetCumulativeAckCounter();
+      _counters.getAndResetOutOfSequenceCounter();
+
+      int lastInSequence = _counters.getLastInSequence();
+      EAKSegment eak;
+      if (_sack) {
+                /* Compose list of ranges of out-of-sequence sequence numbers */
+        int[] starts = new int[EAKSegment.maxRanges()];
+        int[] ends = new int[starts.length];
+        int n = 0;
+        int prev = -2;
+        for (int o = _outSeqRecvQueue.nextOffset(0); o >= 0; o = _outSeqRecvQueue.nextOffset(o + 1)) {
+          if (o != prev + 1) {
+            if (n == starts.length) {
+              break;
             }
+            starts[n++] = _outSeqRecvQueue.at(o).seq();
           }
-
-          checkRecvQueues();
-        } else {
-                    /* Drop packet: queue is full. */
+          ends[n - 1] = _outSeqRecvQueue.at(o).seq();
+          prev = o;
+        }
+        eak = new EAKSegment(nextSequenceNumber(lastInSequence), lastInSequence,
+            Arrays.copyOf(starts, n), Arrays.copyOf(ends, n));
+      } else {
+                /* Compose list of out-of-sequence sequence numbers */
+        int[] acks = new int[Math.min(_outSeqRecvQueue.size(), EAKSegment.maxACKs(_longSeq))];
+        int o = _outSeqRecvQueue.nextOffset(0);
+        for (int i = 0; i < acks.length; i++, o = _outSeqRecvQueue.nextOffset(o + 1)) {
+          acks[i] = _outSeqRecvQueue.at(o).seq();
         }
-      } else if (_inSeqRecvQueue.size() + _outSeqRecvQueue.size() < _recvQueueSize) {
-                /* Insert out-of-sequence segment, in order */
-        boolean added = false;
-        for (int i = 0; i < _outSeqRecvQueue.size() && !added; i++) {
-          Segment s = (Segment) _outSeqRecvQueue.get(i);
-          int cmp = compareSequenceNumbers(segment.seq(), s.seq());
-          if (cmp == 0) {
-                        /* Ignore duplicate packet */
-            added = true;
-          } else if (cmp < 0) {
-            _outSeqRecvQueue.add(i, segment);
-            added = true;
+        eak = new EAKSegment(nextSequenceNumber(lastInSequence), lastInSequence, acks);
+      }
+
+      try {
+        sendSegment(eak);
+      } catch (IOException xcp) {
+        xcp.printStackTrace();
+      }
+
+    }
+  }
+
+  /**
+   * Sends an ACK segment if there is a received segment to
+   * be acknowledged.
+   */
+  private void sendSingleAck() {
+    if (_counters.getAndResetCumulativeAckCounter() == 0) {
+      return;
+    }
+
+    try {
+      int lastInSequence = _counters.getLastInSequence();
+      sendSegment(new ACKSegment(nextSequenceNumber(lastInSequence), lastInSequence));
+    } catch (IOException xcp) {
+      xcp.printStackTrace();
+    }
+  }
+
+  /**
+   * Advertises the current receive window, even if no received
+   * segment is to be acknowledged.
+   */
+  private void sendWindowUpdate() {
+    synchronized (_recvQueueLock) {
+      if (!_outSeqRecvQueue.isEmpty()) {
+        sendExtendedAck();
+        return;
+      }
+
+      _counters.getAndResetCumulativeAckCounter();
+      try {
+        int lastInSequence = _counters.getLastInSequence();
+        sendSegment(new ACKSegment(nextSequenceNumber(lastInSequence), lastInSequence));
+      } catch (IOException xcp) {
+        xcp.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Sets the ACK flag and number of a segment if there is at least
+   * one received segment to be acknowledged.
+   *
+   * @param s the segment.
+   */
+  private void checkAndSetAck(Segment s) {
+    if (_counters.getAndResetCumulativeAckCounter() == 0) {
+      return;
+    }
+
+    s.setAck(_counters.getLastInSequence());
+  }
+
+  /**
+   * Checks the ACK flag and number of a segment.
+   *
+   * @param segment the segment.
+   */
+  private void checkAndGetAck(Segment segment) {
+    int ackn = segment.getAck();
+
+    if (ackn < 0) {
+      return;
+    }
+
+    if (_state == SYN_RCVD) {
+      _state = ESTABLISHED;
+      connectionOpened();
+    }
+
+    synchronized (_unackedSentQueue) {
+      int acked = 0;
+      Segment newest = null;
+      int end = _unackedSentQueue.offset(ackn);
+      if (end < _unackedSentQueue.capacity()) {
+        for (int o = _unackedSentQueue.nextOffset(0); o >= 0 && o <= end;
+             o = _unackedSentQueue.nextOffset(o + 1)) {
+          Segment s = _unackedSentQueue.at(o);
+          _unackedSentQueue.remove(s.seq());
+          if (isProbe(s)) {
+            _pmtu.probeAcked();
           }
+          releaseSegment(s);
+          acked++;
+          newest = s;
         }
+        _unackedSentQueue.moveBase(nextSequenceNumber(ackn));
+      }
+
+      long rtt = -1;
+      if (acked > 0) {
+        rtt = measureRoundTripTime(segment, newest);
+        _rttEstimator.sample(rtt);
+      }
+
+      if (_inRecovery && compareSequenceNumbers(ackn, _recoverySeq) >= 0) {
+        _inRecovery = false;
+        _fastRecovery = false;
+      }
+
+      /*
+       * The window is held during fast recovery, but slow-starts again
+       * after a timeout, so that the segments held back by the send window
+       * are not retransmitted one per acknowledgment (see retransmitHeldBack).
+       */
+      if (acked > 0 && _congestionControl != null && !_fastRecovery) {
+        _congestionControl.onAck(acked, rtt);
+      }
+
+      if (acked > 0) {
+        updatePacingRate();
+        retransmitHeldBack();
+      }
+
+      if (_unackedSentQueue.isEmpty()) {
+        _retransmissionTimer.cancel();
+      } else if (acked > 0) {
+        /* Progress has been made, restart the retransmission timer */
+        restartRetransmissionTimer();
+      }
+
+      _unackedSentQueue.notifyAll();
+    }
+  }
+
+  /**
+   * Retransmits the segments that have expired but were held back by the
+   * send window, as far as the window has room for them now. The segments
+   * sent since they expired are taken to be in flight.
+   * Must be called holding the send queue lock.
+   */
+  private void retransmitHeldBack() {
+    if (_expiredBefore < 0) {
+      return;
+    }
+
+    int inFlight = 0;
+    for (int o = _unackedSentQueue.nextOffset(0); o >= 0;
+         o = _unackedSentQueue.nextOffset(o + 1)) {
+      if (_unackedSentQueue.at(o).getSendTime() > _expiredBefore) {
+        inFlight++;
+      }
+    }
+
+    int room = sendWindow() - inFlight;
+    boolean heldBack = false;
+    for (int o = _unackedSentQueue.nextOffset(0); o >= 0;
+         o = _unackedSentQueue.nextOffset(o + 1)) {
+      Segment s = _unackedSentQueue.at(o);
+      if (s.getSendTime() > _expiredBefore) {
+        continue;
+      }
+      if (room-- <= 0) {
+        heldBack = true;
+        break;
+      }
+      try {
+        retransmitSegment(s);
+      } catch (IOException xcp) {
+        xcp.printStackTrace();
+      }
+    }
+
+    if (!heldBack) {
+      _expiredBefore = -1;
+    }
+  }
+
+  /**
+   * Records the receive window advertised by the peer and wakes up the
+   * writers if it has opened.
+   *
+   * @param window the receive window (octets).
+   */
+  private void updatePeerWindow(int window) {
+    synchronized (_unackedSentQueue) {
+      if (window > _peerWindow) {
+        _unackedSentQueue.notifyAll();
+      }
+      _peerWindow = window;
+    }
+  }
+
+  /**
+   * Returns true if the segment can be queued without exceeding the send
+   * window, the send queue, or the receive window of the peer. Expedited
+   * data segments may exceed the congestion window by a few segments.
+   * Must be called holding the send queue lock.
+   */
+  private boolean fitsSendWindow(Segment segment) {
+    int window = sendWindow();
+    if (segment instanceof DATSegment && ((DATSegment) segment).isExpedited()) {
+      window = expeditedWindow();
+    }
+
+    return _unackedSentQueue.size() < window && _unackedSentQueue.fits(segment.seq()) &&
+        fitsPeerWindow(segment);
+  }
+
+  /**
+   * Returns the send window of the expedited data segments, which is
+   * larger than the congestion window by a few segments.
+   * Must be called holding the send queue lock.
+   */
+  private int expeditedWindow() {
+    return Math.min(sendWindow() + EXPEDITED_SEGMENTS,
+        Math.min(_sendQueueSize, _profile.maxOutstandingSegs()));
+  }
+
+  /**
+   * Returns true if another full data segment could be sent right away.
+   * Must be called holding the send queue lock.
+   */
+  private boolean hasSendWindowRoom() {
+    return _unackedSentQueue.size() < sendWindow() && fitsPeerWindow(maxDataLength());
+  }
+
+  /**
+   * Returns true if the receive window of the peer has room for the data
+   * of the segment, if any, in addition to the segments that are not
+   * acknowledged yet, counted as full-sized.
+   * Must be called holding the send queue lock.
+   */
+  private boolean fitsPeerWindow(Segment s) {
+    if (!(s instanceof DATSegment)) {
+      return true;
+    }
+
+    return fitsPeerWindow(((DATSegment) s).getDataLength());
+  }
+
+  /**
+   * Returns true if the receive window of the peer has room for a new
+   * data segment of the given length.
+   * Must be called holding the send queue lock.
+   */
+  private boolean fitsPeerWindow(int dataLength) {
+    return _unackedSentQueue.size() * (long) maxDataLength() + dataLength <= _peerWindow;
+  }
+
+  /**
+   * Measures the round-trip time from an acknowledgment.
+   * <p>
+   * If timestamps are in use, the echoed timestamp gives the time the
+   * acknowledged segment was sent. Otherwise, the send time of the most
+   * recent acknowledged segment is used, unless it has been retransmitted
+   * and it is ambiguous which transmission is acknowledged (Karn's rule).
+   *
+   * @param ack    the segment carrying the acknowledgment.
+   * @param newest the most recent segment it acknowledges.
+   * @return the round-trip time (ms), or -1 if it can't be measured.
+   */
+  private long measureRoundTripTime(Segment ack, Segment newest) {
+    if (ack.hasTimestamp() && ack.getTimestampEcho() != 0) {
+      return (int) currentTime() - ack.getTimestampEcho();
+    }
+
+    if (newest.getRetxCounter() == 0) {
+      return currentTime() - newest.getSendTime();
+    }
+
+    return -1;
+  }
+
+  /**
+   * Re-starts the retransmission timer with the current
+   * retransmission timeout.
+   */
+  private void restartRetransmissionTimer() {
+    synchronized (_retransmissionTimer) {
+      _retransmissionTimer.cancel();
+      _retransmissionTimer.schedule(_rttEstimator.getRetransmissionTimeout());
+    }
+  }
+
+  /**
+   * Returns the smoothed round-trip time of the connection.
+   *
+   * @return the round-trip time (ms), or -1 if it has not been measured yet.
+   */
+  public long getRoundTripTime() {
+    return _rttEstimator.getRoundTripTime();
+  }
+
+  /**
+   * Returns the current retransmission timeout of the connection,
+   * including any exponential backoff.
+   *
+   * @return the retransmission timeout (ms).
+   */
+  public long getRetransmissionTimeout() {
+    return _rttEstimator.getRetransmissionTimeout();
+  }
+
+  /**
+   * Returns a monotonic clock in milliseconds that starts at 1.
+   */
+  private long currentTime() {
+    return (System.nanoTime() - _clockBase) / 1000000L + 1;
+  }
+
+  /**
+   * Returns the size of the data segments currently sent on this
+   * connection, as found by path MTU discovery.
+   *
+   * @return the segment size including the rudp header (octets).
+   */
+  public int getSegmentSize() {
+    return _pmtu.getSegmentSize();
+  }
+
+  /**
+   * Returns the largest segment size that path MTU discovery may probe.
+   * Java 8 cannot set the DF bit on a datagram socket, so oversized
+   * probes would get through fragmented: the search stops at the size
+   * that fits an Ethernet MTU, whatever the maximum segment size is.
+   *
+   * @param maxSegmentSize the maximum segment size of the connection.
+   */
+  private static int segmentSizeLimit(int maxSegmentSize) {
+    return Math.min(maxSegmentSize, PathMtuDiscovery.MAX_UNFRAGMENTED_SIZE);
+  }
+
+  /**
+   * Returns the length of the rudp header of the segments sent on
+   * this connection.
+   */
+  private int headerLength() {
+    if (!_longSeq) {
+      return Segment.RUDP_HEADER_LEN;
+    }
+
+    return Segment.RUDP_LSN_HEADER_LEN + (_timestamps ? Segment.TS_XLEN : 0) +
+        (_flowControl ? Segment.WND_XLEN : 0);
+  }
+
+  /**
+   * Returns the largest data length of the data segments sent on this
+   * connection. If parity segments are in use, room is left for their
+   * longer header, so that they are not larger than the data segments.
+   */
+  private int maxDataLength() {
+    return _pmtu.getSegmentSize() - headerLength() - (_fec ? FECSegment.FEC_BODY_LEN : 0);
+  }
 
-        if (!added) {
-          _outSeqRecvQueue.add(segment);
-        }
+  /**
+   * Sends a NUL segment padded to the given size as a path MTU probe.
+   *
+   * @param size the probe size (octets).
+   * @throws IOException if an I/O error occurs in the
+   *                     underlying UDP socket.
+   */
+  private void sendProbe(int size)
+      throws IOException {
+    sendAndQueueSegment(new NULSegment(_counters.nextSequenceNumber(), size - headerLength()));
+  }
 
-        _counters.incOutOfSequenceCounter();
+  /**
+   * Returns true if the segment is a path MTU probe.
+   */
+  private static boolean isProbe(Segment s) {
+    return (s instanceof NULSegment) && ((NULSegment) s).getPadding() > 0;
+  }
 
-        if (segment instanceof DATSegment) {
-          synchronized (_listeners) {
-            Iterator it = _listeners.iterator();
-            while (it.hasNext()) {
-              ReliableSocketListener l = (ReliableSocketListener) it.next();
-              l.packetReceivedOutOfOrder();
-            }
-          }
-        }
+  /**
+   * Checks for in-sequence segments in the out-of-sequence queue
+   * that can be moved to the in-sequence queue.
+   */
+  private void checkRecvQueues() {
+    synchronized (_recvQueueLock) {
+      _outSeqRecvQueue.moveBase(nextSequenceNumber(_counters.getLastInSequence()));
+      Segment s;
+      while ((s = _outSeqRecvQueue.at(0)) != null && fitsRecvBuffer(s)) {
+        _outSeqRecvQueue.removeFirst();
+        _outSeqBytes -= dataLength(s);
+        _counters.setLastInSequence(s.seq());
+        deliverSegment(s);
       }
 
-      if (inSequence && (segment instanceof RSTSegment ||
-          segment instanceof NULSegment ||
-          segment instanceof FINSegment)) {
-        sendAck();
-      } else if ((_counters.getOutOfSequenceCounter() > 0) &&
-          (_profile.maxOutOfSequence() == 0 || _counters.getOutOfSequenceCounter() > _profile.maxOutOfSequence())) {
-        sendExtendedAck();
-      } else if ((_counters.getCumulativeAckCounter() > 0) &&
-          (_profile.maxCumulativeAcks() == 0 || _counters.getCumulativeAckCounter() > _profile.maxCumulativeAcks())) {
-        sendSingleAck();
-      } else {
-        synchronized (_cumulativeAckTimer) {
-          if (_cumulativeAckTimer.isIdle()) {
-            _cumulativeAckTimer.schedule(_profile.cumulativeAckTimeout());
-          }
-        }
-      }
+      updateRecvWindow();
+      _recvQueueLock.notify();
     }
   }
 
   /**
-   * Acknowledges the next segment to be acknowledged.
-   * If there are any out-of-sequence segments in the
-   * receiver queue, it sends an EAK segment.
+   * Returns the length of the data of the segment, if any.
    */
-  private void sendAck() {
-    synchronized (_recvQueueLock) {
-      if (!_outSeqRecvQueue.isEmpty()) {
-        sendExtendedAck();
-        return;
-      }
+  private static int dataLength(Segment s) {
+    return (s instanceof DATSegment) ? ((DATSegment) s).getDataLength() : 0;
+  }
 
-      sendSingleAck();
-    }
+  /**
+   * Sets the receive window to advertise: the room left in the receive
+   * buffer, within its auto-tuned size, once the data held out of
+   * sequence has been delivered.
+   * Must be called holding the receive queue lock.
+   */
+  private void updateRecvWindow() {
+    int size = Math.min(_recvBuffer.capacity(), _recvBufferTarget);
+    _recvWindow = Math.max(size - _recvBuffer.available() - _outSeqBytes, 0);
   }
 
   /**
-   * Sends an EAK segment if there is at least one
-   * out-of-sequence received segment.
+   * Sizes the receive buffer to twice the data the application reads
+   * per round-trip time, within the initial size and the configured
+   * limit, so that the advertised window does not hold back the peer.
+   * The read rate is measured over one round-trip time at least. The
+   * buffer grows at once, but only shrinks once the reader has needed
+   * less than half of it for a while. Shrinking first reduces the
+   * advertised window, and the memory is only freed once the data the
+   * peer may still send fits.
+   * Must be called holding the receive queue lock.
+   *
+   * @param readBytes the number of bytes just read.
    */
-  private void sendExtendedAck() {
-    synchronized (_recvQueueLock) {
+  private void tuneRecvBuffer(int readBytes) {
+    if (!_flowControl || !_recvBufferAutoTuning) {
+      return;
+    }
 
-      if (_outSeqRecvQueue.isEmpty()) {
-        return;
-      }
+    long now = currentTime();
+    long rtt = _rttEstimator.getMinRoundTripTime();
+    _recvMeasureBytes += readBytes;
+    if (_recvMeasureTime == 0) {
+      _recvMeasureTime = now;
+      return;
+    }
 
-      _counters.getAndResetCumulativeAckCounter();
-      _counters.getAndResetOutOfSequenceCounter();
+    long elapsed = now - _recvMeasureTime;
+    if (rtt < 0 || elapsed < Math.max(rtt, 1)) {
+      return;
+    }
 
-            /* Compose list of out-of-sequence sequence numbers */
-      int[] acks = new int[_outSeqRecvQueue.size()];
-      for (int i = 0; i < acks.length; i++) {
-        Segment s = (Segment) _outSeqRecvQueue.get(i);
-        acks[i] = s.seq();
-      }
+    long target = 2 * _recvMeasureBytes * Math.max(rtt, 1) / elapsed;
+    target = Math.min(Math.max(target, _recvBufferSize), _recvBufferLimit);
+    long start = _recvMeasureTime;
+    _recvMeasureBytes = 0;
+    _recvMeasureTime = now;
 
-      try {
-        int lastInSequence = _counters.getLastInSequence();
-        sendSegment(new EAKSegment(nextSequenceNumber(lastInSequence),
-            lastInSequence, acks));
-      } catch (IOException xcp) {
-        xcp.printStackTrace();
+    if (target > _recvBufferTarget) {
+      _recvBufferTarget = (int) target;
+      if (target > _recvBuffer.capacity()) {
+        _recvBuffer.resize((int) target);
       }
+      _recvShrinkTime = 0;
+    } else if (2 * target > _recvBufferTarget) {
+      _recvShrinkTime = 0;
+    } else if (_recvShrinkTime == 0) {
+      _recvShrinkTime = start;
+      _recvShrinkTarget = target;
+    } else {
+      _recvShrinkTarget = Math.max(_recvShrinkTarget, target);
+    }
 
+    if (_recvShrinkTime != 0 && now - _recvShrinkTime >= RECV_BUFFER_SHRINK_DELAY) {
+      _recvBufferTarget = (int) _recvShrinkTarget;
+      _recvShrinkTime = 0;
+    }
+
+    int size = Math.max(_recvBufferTarget, _profile.maxSegmentSize());
+    if (size < _recvBuffer.capacity() &&
+        _recvBuffer.available() + _outSeqBytes + _advertisedWindow <= size) {
+      _recvBuffer.resize(size);
     }
   }
 
   /**
-   * Sends an ACK segment if there is a received segment to
-   * be acknowledged.
+   * Returns true if the data of the segment, if any, fits
+   * in the receive buffer.
    */
-  private void sendSingleAck() {
-    if (_counters.getAndResetCumulativeAckCounter() == 0) {
-      return;
-    }
+  private boolean fitsRecvBuffer(Segment s) {
+    return !(s instanceof DATSegment) ||
+        ((DATSegment) s).getDataLength() <= _recvBuffer.free();
+  }
 
-    try {
-      int lastInSequence = _counters.getLastInSequence();
-      sendSegment(new ACKSegment(nextSequenceNumber(lastInSequence), lastInSequence));
-    } catch (IOException xcp) {
-      xcp.printStackTrace();
+  /**
+   * Hands an in-sequence segment over to the reader: the data of a data
+   * segment is copied into the receive buffer, while RST and FIN segments
+   * are queued.
+   *
+   * @param s the segment, which must fit in the receive buffer.
+   */
+  private void deliverSegment(Segment s) {
+    if (s instanceof DATSegment) {
+      _recvBuffer.write((DATSegment) s);
+      ((DATSegment) s).release(_recvPool);
+    } else if (s instanceof RSTSegment || s instanceof FINSegment) {
+      _inSeqRecvQueue.add(s);
     }
   }
 
   /**
-   * Sets the ACK flag and number of a segment if there is at least
-   * one received segment to be acknowledged.
+   * Copies the data of a received data or parity segment out of the
+   * datagram it was parsed from, so that the segment remains valid when
+   * the datagram buffer is reused. This is needed for segments that are kept after
+   * they have been handled, or handed over to another thread.
    *
    * @param s the segment.
    */
-  private void checkAndSetAck(Segment s) {
-    if (_counters.getAndResetCumulativeAckCounter() == 0) {
-      return;
+  protected void detachSegment(Segment s) {
+    if (s instanceof DATSegment) {
+      ((DATSegment) s).detach(_recvPool);
+    } else if (s instanceof FECSegment) {
+      ((FECSegment) s).detach();
     }
-
-    s.setAck(_counters.getLastInSequence());
   }
 
   /**
-   * Checks the ACK flag and number of a segment.
+   * Creates a SYN segment with a new initial sequence number
+   * that announces the local profile and the given options.
    *
-   * @param segment the segment.
+   * @param optflags the SYN option flags.
+   * @return the SYN segment.
    */
-  private void checkAndGetAck(Segment segment) {
-    int ackn = segment.getAck();
+  private SYNSegment createSYNSegment(int optflags) {
+    /* The initial sequence number must fit the original 8-bit field */
+    Random rand = new Random(System.currentTimeMillis());
+    return new SYNSegment(_counters.setSequenceNumber(rand.nextInt(MAX_SEQUENCE_NUMBER)),
+        _profile.maxOutstandingSegs(),
+        _profile.maxSegmentSize(),
+        _profile.retransmissionTimeout(),
+        _profile.cumulativeAckTimeout(),
+        _profile.nullSegmentTimeout(),
+        _profile.maxRetrans(),
+        _profile.maxCumulativeAcks(),
+        _profile.maxOutOfSequence(),
+        _profile.maxAutoReset(),
+        optflags);
+  }
 
-    if (ackn < 0) {
-      return;
+  /**
+   * Applies the options that have been negotiated in the SYN exchange.
+   *
+   * @param optflags the option flags of the SYN segment sent by the peer.
+   */
+  private void setOptions(int optflags) {
+    boolean longSeq = (optflags & SYNSegment.OPT_LSN) != 0;
+    setSequenceSpace(longSeq);
+    _timestamps = longSeq && (optflags & SYNSegment.OPT_TIMESTAMPS) != 0;
+    _flowControl = longSeq && (optflags & SYNSegment.OPT_WINDOW) != 0;
+    _sack = longSeq && (optflags & SYNSegment.OPT_SACK) != 0;
+    _fec = longSeq && (optflags & SYNSegment.OPT_FEC) != 0;
+    _parityEncoder = _fec ? new ParityEncoder(_maxSequenceNumber) : null;
+    synchronized (_recvQueueLock) {
+      _parityDecoder = _fec ? new ParityDecoder(_maxSequenceNumber) : null;
     }
+    _ackFreq = longSeq && (optflags & SYNSegment.OPT_ACKFREQ) != 0;
+    _ackFrequency = _ackFreq ? new AckFrequency(cumulativeAcks()) : null;
+    _streams = (optflags & SYNSegment.OPT_STREAMS) != 0;
+  }
 
-    _counters.getAndResetOutstandingSegsCounter();
+  /**
+   * Returns the options to offer in the SYN exchange: all the options
+   * this implementation supports, and stream multiplexing if the profile
+   * asks for it.
+   */
+  private int localOptionFlags() {
+    return _profile.streams() ? SUPPORTED_OPTIONS | SYNSegment.OPT_STREAMS : SUPPORTED_OPTIONS;
+  }
 
-    if (_state == SYN_RCVD) {
-      _state = ESTABLISHED;
-      connectionOpened();
-    }
+  /**
+   * Selects the sequence number space and sizes the send and
+   * receive queues so that they never exceed half of it, which
+   * is the window within which sequence numbers can be compared.
+   * Without 16-bit sequence numbers the peer may be a legacy
+   * implementation, so the send queue is also kept within the
+   * receive queue it is known to have.
+   *
+   * @param longSeq true if 16-bit sequence numbers have been negotiated.
+   */
+  private void setSequenceSpace(boolean longSeq) {
+    _longSeq = longSeq;
+    _maxSequenceNumber = longSeq ? MAX_LONG_SEQUENCE_NUMBER : MAX_SEQUENCE_NUMBER;
+    _sendQueueSize = Math.min(_profile.maxSendQueueSize(), _maxSequenceNumber / 2 - 1);
+    _recvQueueSize = Math.min(_profile.maxRecvQueueSize(), _maxSequenceNumber / 2 - 1);
+    if (!longSeq) {
+      /*
+       * Peers that do not negotiate options neither advertise their
+       * queue sizes nor bound what they echo back, and discard any
+       * segment beyond their fixed receive queue.
+       */
+      _sendQueueSize = Math.min(_sendQueueSize, LEGACY_QUEUE_SIZE);
+    }
+    _bufferPool.setMaxBuffers(_sendQueueSize);
+    _recvPool.setMaxBuffers(_recvQueueSize);
 
     synchronized (_unackedSentQueue) {
-      Iterator it = _unackedSentQueue.iterator();
-      while (it.hasNext()) {
-        Segment s = (Segment) it.next();
-        if (compareSequenceNumbers(s.seq(), ackn) <= 0) {
-          it.remove();
-        }
-      }
-
-      if (_unackedSentQueue.isEmpty()) {
-        _retransmissionTimer.cancel();
-      }
+      _unackedSentQueue.resize(_sendQueueSize, _maxSequenceNumber);
+    }
 
-      _unackedSentQueue.notifyAll();
+    synchronized (_recvQueueLock) {
+      _outSeqRecvQueue.resize(_recvQueueSize, _maxSequenceNumber);
+      _inSeqRecvQueue.resize(_recvQueueSize, _maxSequenceNumber);
     }
   }
 
   /**
-   * Checks for in-sequence segments in the out-of-sequence queue
-   * that can be moved to the in-sequence queue.
+   * Returns true if 16-bit sequence numbers are in use on this connection.
    */
-  private void checkRecvQueues() {
-    synchronized (_recvQueueLock) {
-      Iterator it = _outSeqRecvQueue.iterator();
-      while (it.hasNext()) {
-        Segment s = (Segment) it.next();
-        if (compareSequenceNumbers(s.seq(), nextSequenceNumber(_counters.getLastInSequence())) == 0) {
-          _counters.setLastInSequence(s.seq());
-          if (s instanceof DATSegment || s instanceof RSTSegment || s instanceof FINSegment) {
-            _inSeqRecvQueue.add(s);
-          }
-          it.remove();
-        }
-      }
+  public boolean isLongSequence() {
+    return _longSeq;
+  }
 
-      _recvQueueLock.notify();
-    }
+  /**
+   * Returns true if both peers multiplex streams over this connection,
+   * so that its data must be read and written through a
+   * {@link ReliableSocketMultiplexer}.
+   *
+   * @see ReliableSocketProfile#streams()
+   */
+  public boolean isMultiplexed() {
+    return _streams;
   }
 
   /**
-   * Writes out a segment to the underlying UDP socket.
+   * Writes out a segment to the underlying UDP socket. This is only
+   * called by the thread that flushes the send queue, which is also
+   * the one that releases the buffers of data segments, so that a
+   * buffer cannot be released while it is being sent.
    *
    * @param s the segment.
-   * @throws IOException if an I/O error occurs in the
-   *                     underlying UDP socket.
    */
-  protected void sendSegmentImpl(Segment s)
-      throws IOException {
+  protected void sendSegmentImpl(Segment s) {
     try {
-      DatagramPacket packet = new DatagramPacket(
-          s.getBytes(), s.length(), _endpoint);
-      _sock.send(packet);
+      ByteBuffer buffer = s.encode(_sendBuffer);
+      if (buffer == null) {
+        return;
+      }
+      if (_channel != null) {
+        /* Datagrams that do not fit in the send buffer are lost */
+        _channel.send(buffer, _endpoint);
+        return;
+      }
+      _sendPacket.setData(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+      _sendPacket.setSocketAddress(_endpoint);
+      _sock.send(_sendPacket);
     } catch (IOException xcp) {
       if (!isClosed()) {
         xcp.printStackTrace();
@@ -1666,9 +3525,10 @@ public class ReliableSocket extends Socket {
   protected Segment receiveSegmentImpl()
       throws IOException {
     try {
-      DatagramPacket packet = new DatagramPacket(_recvbuffer, _recvbuffer.length);
-      _sock.receive(packet);
-      return Segment.parse(packet.getData(), 0, packet.getLength());
+      /* Segments are parsed in place and handled before the next receive */
+      _recvPacket.setData(_recvbuffer);
+      _sock.receive(_recvPacket);
+      return Segment.parse(_recvbuffer, 0, _recvPacket.getLength());
     } catch (IOException ioXcp) {
       if (!isClosed()) {
         ioXcp.printStackTrace();
@@ -1693,27 +3553,17 @@ public class ReliableSocket extends Socket {
     _keepAliveTimer.cancel();
     _state = CLOSE_WAIT;
 
-    Thread t = new Thread() {
-      public void run() {
-        _keepAliveTimer.destroy();
-        _nullSegmentTimer.destroy();
-
-        try {
-          Thread.sleep(_profile.nullSegmentTimeout() * 2);
-        } catch (InterruptedException xcp) {
-          xcp.printStackTrace();
-        }
-
-        _retransmissionTimer.destroy();
-        _cumulativeAckTimer.destroy();
+    _keepAliveTimer.destroy();
+    _failureTimer.destroy();
+    _nullSegmentTimer.destroy();
+    _coalescingTimer.destroy();
+    _writeReadyTimer.destroy();
 
-        closeSocket();
-        connectionClosed();
+    synchronized (_closingTimer) {
+      if (_closingTimer.isIdle()) {
+        _closingTimer.schedule(_profile.nullSegmentTimeout() * 2);
       }
-    };
-    t.setName("ReliableSocket-Closing");
-    t.setDaemon(true);
-    t.start();
+    }
   }
 
   /**
@@ -1733,8 +3583,8 @@ public class ReliableSocket extends Socket {
   private int compareSequenceNumbers(int seqn, int aseqn) {
     if (seqn == aseqn) {
       return 0;
-    } else if (((seqn < aseqn) && ((aseqn - seqn) > MAX_SEQUENCE_NUMBER / 2)) ||
-        ((seqn > aseqn) && ((seqn - aseqn) < MAX_SEQUENCE_NUMBER / 2))) {
+    } else if (((seqn < aseqn) && ((aseqn - seqn) > _maxSequenceNumber / 2)) ||
+        ((seqn > aseqn) && ((seqn - aseqn) < _maxSequenceNumber / 2))) {
       return 1;
     } else {
       return -1;
@@ -1769,18 +3619,16 @@ public class ReliableSocket extends Socket {
      * recommended value for the out-of-sequence acknowledgments counter is 3.
      */
     private int _outOfSeqCounter; /* Out-of-sequence acknowledgments counter */
-    /*
-     * The transmitter maintains a counter of the number of segments that
-     * have been sent without getting an acknowledgment. This is used
-     * by the receiver as a mean of flow control.
-     */
-    private int _outSegsCounter; /* Outstanding segments counter */
 
     public Counters() {
     }
 
     public synchronized int nextSequenceNumber() {
-      return (_seqn = ReliableSocket.nextSequenceNumber(_seqn));
+      return (_seqn = ReliableSocket.this.nextSequenceNumber(_seqn));
+    }
+
+    public synchronized int getSequenceNumber() {
+      return _seqn;
     }
 
     public synchronized int setSequenceNumber(int n) {
@@ -1825,23 +3673,8 @@ public class ReliableSocket extends Socket {
       return tmp;
     }
 
-    public synchronized void incOutstandingSegsCounter() {
-      _outSegsCounter++;
-    }
-
-    public synchronized int getOutstandingSegsCounter() {
-      return _outSegsCounter;
-    }
-
-    public synchronized int getAndResetOutstandingSegsCounter() {
-      int tmp = _outSegsCounter;
-      _outSegsCounter = 0;
-      return tmp;
-    }
-
     public synchronized void reset() {
       _outOfSeqCounter = 0;
-      _outSegsCounter = 0;
       _cumAckCounter = 0;
     }
   }
@@ -1855,19 +3688,8 @@ public class ReliableSocket extends Socket {
     public void run() {
       Segment segment;
       try {
-        while ((segment = receiveSegment()) != null) {
-
-          if (segment instanceof SYNSegment) {
-            handleSYNSegment((SYNSegment) segment);
-          } else if (segment instanceof EAKSegment) {
-            handleEAKSegment((EAKSegment) segment);
-          } else if (segment instanceof ACKSegment) {
-            // do nothing.
-          } else {
-            handleSegment(segment);
-          }
-
-          checkAndGetAck(segment);
+        while ((segment = receiveSegmentImpl()) != null) {
+          processSegment(segment);
         }
       } catch (IOException xcp) {
         xcp.printStackTrace();
@@ -1877,11 +3699,21 @@ public class ReliableSocket extends Socket {
 
   private class NullSegmentTimerTask implements Runnable {
     public void run() {
+      sendNullSegment();
+      flushSegments();
+    }
+
+    private void sendNullSegment() {
       // Send a new NULL segment if there is nothing to be retransmitted.
       synchronized (_unackedSentQueue) {
         if (_unackedSentQueue.isEmpty()) {
           try {
-            sendAndQueueSegment(new NULSegment(_counters.nextSequenceNumber()));
+            int probeSize = _pmtu.nextProbe(currentTime());
+            if (probeSize > 0) {
+              sendProbe(probeSize);
+            } else {
+              sendAndQueueSegment(new NULSegment(_counters.nextSequenceNumber()));
+            }
           } catch (IOException xcp) {
             if (DEBUG) {
               xcp.printStackTrace();
@@ -1892,25 +3724,122 @@ public class ReliableSocket extends Socket {
     }
   }
 
+  /**
+   * Retransmits the unacknowledged segments whose retransmission
+   * deadline has expired, oldest first and no more than the send window
+   * allows, then re-arms the timer for the earliest pending deadline.
+   * The timeout is only backed off when the oldest segment expires.
+   */
   private class RetransmissionTimerTask implements Runnable {
     public void run() {
+      retransmitExpired();
+      flushSegments();
+    }
+
+    private void retransmitExpired() {
       synchronized (_unackedSentQueue) {
-        Iterator it = _unackedSentQueue.iterator();
-        while (it.hasNext()) {
-          Segment s = (Segment) it.next();
+        if (_unackedSentQueue.isEmpty()) {
+          return;
+        }
+
+        long rto = _rttEstimator.getRetransmissionTimeout();
+        long now = currentTime();
+        List<Segment> expired = new ArrayList<Segment>();
+        for (int o = _unackedSentQueue.nextOffset(0); o >= 0;
+             o = _unackedSentQueue.nextOffset(o + 1)) {
+          Segment s = _unackedSentQueue.at(o);
+          if (s.getSendTime() + rto <= now) {
+            if (isProbe(s)) {
+              /* A lost probe is not a sign of congestion */
+              try {
+                retransmitSegment(s);
+              } catch (IOException xcp) {
+                xcp.printStackTrace();
+              }
+            } else {
+              expired.add(s);
+              if (_fec) {
+                _parityEncoder.lossDetected(s.seq());
+              }
+            }
+          }
+        }
+
+        if (expired.isEmpty()) {
+          scheduleRetransmission(rto, now);
+          return;
+        }
+
+        /* It cannot be told whether these were lost */
+        _undoRetrans = -1;
+        boolean timeout = (expired.get(0) == _unackedSentQueue.first());
+        if (timeout) {
+          if (_congestionControl != null) {
+            _congestionControl.onTimeout();
+            _inRecovery = true;
+            _fastRecovery = false;
+            _recoverySeq = _counters.getSequenceNumber();
+            updatePacingRate();
+          }
+        } else {
+          congestionEvent();
+        }
+
+        int window = sendWindow();
+        for (int i = 0; i < expired.size() && i < window; i++) {
           try {
-            retransmitSegment(s);
+            retransmitSegment(expired.get(i));
           } catch (IOException xcp) {
             xcp.printStackTrace();
           }
         }
+        _expiredBefore = (expired.size() > window) ? now - rto : -1;
+
+        if (timeout) {
+          _rttEstimator.backoff();
+        }
+
+        scheduleRetransmission(_rttEstimator.getRetransmissionTimeout(), currentTime());
+      }
+    }
+
+    /**
+     * Re-arms the retransmission timer for the segment with the earliest
+     * deadline. Segments that have expired but were held back by the send
+     * window are retransmitted as acknowledgments open the window (see
+     * retransmitHeldBack), so they are only due again one timeout from
+     * now, rather than at once.
+     * Must be called holding the send queue lock.
+     */
+    private void scheduleRetransmission(long rto, long now) {
+      long deadline = Long.MAX_VALUE;
+      for (int o = _unackedSentQueue.nextOffset(0); o >= 0;
+           o = _unackedSentQueue.nextOffset(o + 1)) {
+        long due = _unackedSentQueue.at(o).getSendTime() + rto;
+        if (due <= now) {
+          due = now + rto;
+        }
+        deadline = Math.min(deadline, due);
+      }
+
+      synchronized (_retransmissionTimer) {
+        _retransmissionTimer.cancel();
+        if (deadline != Long.MAX_VALUE) {
+          _retransmissionTimer.schedule(Math.max(deadline - now, 1));
+        }
       }
     }
   }
 
   private class CumulativeAckTimerTask implements Runnable {
     public void run() {
+      if (_ackFreq && _counters.getCumulativeAckCounter() == 0) {
+        /* The timer runs often with ACK decimation, do not repeat EAKs */
+        return;
+      }
+
       sendAck();
+      flushSegments();
     }
   }
 
@@ -1920,6 +3849,65 @@ public class ReliableSocket extends Socket {
     }
   }
 
+  private class FailureTimerTask implements Runnable {
+    public void run() {
+      _failureTimer.cancel();
+      connectionFailure();
+    }
+  }
+
+  private class CoalescingTimerTask implements Runnable {
+    public void run() {
+      _coalescingTimer.cancel();
+      if (!flushCoalescedData()) {
+        /* The stream is in use or the send window is full, try again */
+        synchronized (_coalescingTimer) {
+          if (_coalescingTimer.isIdle()) {
+            _coalescingTimer.schedule(1);
+          }
+        }
+      }
+    }
+  }
+
+  private class WriteReadyTimerTask implements Runnable {
+    public void run() {
+      _writeReadyTimer.cancel();
+      writeReady();
+    }
+  }
+
+  private class ClosingTimerTask implements Runnable {
+    public void run() {
+      _closingTimer.destroy();
+      _retransmissionTimer.destroy();
+      _cumulativeAckTimer.destroy();
+
+      closeSocket();
+      connectionClosed();
+    }
+  }
+
+  /*
+   * This class writes each message through the expedited lane.
+   */
+  private class ExpeditedOutputStream extends OutputStream {
+    public void write(int b)
+        throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException {
+      _out.writeExpedited(b, off, len);
+    }
+
+    public void close()
+        throws IOException {
+      _out.close();
+    }
+  }
+
   private class ShutdownHook extends Thread {
     public ShutdownHook() {
       super("ReliableSocket-ShutdownHook");
@@ -0,0 +1,267 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class implements the channel of a ReliableSocket, which reads
+ * and writes the connection with byte buffers. The data is copied
+ * straight between the buffers and the segments, whether the buffers
+ * are direct or not, and gathering writes and scattering reads are
+ * supported.
+ * <p>
+ * In non-blocking mode, reads return <code>0</code> if there is no
+ * data, and writes send as much as the send window and the pacer let go
+ * right away. Since the connection is not backed by a file descriptor,
+ * the channel cannot be registered with a selector, and
+ * <code>register()</code> throws an <code>IllegalSelectorException</code>:
+ * readiness is signaled to the listeners registered with
+ * {@link ReliableSocket#addReadyListener(ReliableSocketReadyListener)}
+ * instead. Connecting always blocks.
+ *
+ * @see ReliableSocket#getChannel()
+ */
+public class ReliableSocketChannel extends SocketChannel {
+  private static final Set<SocketOption<?>> SUPPORTED_OPTIONS =
+      Collections.unmodifiableSet(new HashSet<SocketOption<?>>(Arrays.asList(
+          StandardSocketOptions.SO_SNDBUF,
+          StandardSocketOptions.SO_RCVBUF,
+          StandardSocketOptions.SO_KEEPALIVE,
+          StandardSocketOptions.TCP_NODELAY)));
+  private final ReliableSocket _sock;
+
+  /**
+   * Creates the channel of a socket.
+   * This method can only be called by a ReliableSocket.
+   *
+   * @param sock the socket.
+   */
+  ReliableSocketChannel(ReliableSocket sock) {
+    super(SelectorProvider.provider());
+    _sock = sock;
+  }
+
+  public SocketChannel bind(SocketAddress local)
+      throws IOException {
+    ensureOpen();
+    _sock.bind(local);
+    return this;
+  }
+
+  public <T> SocketChannel setOption(SocketOption<T> name, T value)
+      throws IOException {
+    ensureOpen();
+    if (name == StandardSocketOptions.SO_SNDBUF) {
+      _sock.setSendBufferSize((Integer) value);
+    } else if (name == StandardSocketOptions.SO_RCVBUF) {
+      _sock.setReceiveBufferSize((Integer) value);
+    } else if (name == StandardSocketOptions.SO_KEEPALIVE) {
+      _sock.setKeepAlive((Boolean) value);
+    } else if (name == StandardSocketOptions.TCP_NODELAY) {
+      _sock.setTcpNoDelay((Boolean) value);
+    } else {
+      throw new UnsupportedOperationException("'" + name + "' not supported");
+    }
+
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T getOption(SocketOption<T> name)
+      throws IOException {
+    ensureOpen();
+    if (name == StandardSocketOptions.SO_SNDBUF) {
+      return (T) Integer.valueOf(_sock.getSendBufferSize());
+    } else if (name == StandardSocketOptions.SO_RCVBUF) {
+      return (T) Integer.valueOf(_sock.getReceiveBufferSize());
+    } else if (name == StandardSocketOptions.SO_KEEPALIVE) {
+      return (T) Boolean.valueOf(_sock.getKeepAlive());
+    } else if (name == StandardSocketOptions.TCP_NODELAY) {
+      return (T) Boolean.valueOf(_sock.getTcpNoDelay());
+    }
+
+    throw new UnsupportedOperationException("'" + name + "' not supported");
+  }
+
+  public Set<SocketOption<?>> supportedOptions() {
+    return SUPPORTED_OPTIONS;
+  }
+
+  public SocketChannel shutdownInput()
+      throws IOException {
+    ensureOpen();
+    _sock.shutdownInput();
+    return this;
+  }
+
+  public SocketChannel shutdownOutput()
+      throws IOException {
+    ensureOpen();
+    _sock.getOutputStream().close();
+    return this;
+  }
+
+  public Socket socket() {
+    return _sock;
+  }
+
+  public boolean isConnected() {
+    return _sock.isConnected();
+  }
+
+  public boolean isConnectionPending() {
+    return false;
+  }
+
+  public boolean connect(SocketAddress remote)
+      throws IOException {
+    ensureOpen();
+    _sock.connect(remote);
+    return true;
+  }
+
+  public boolean finishConnect()
+      throws IOException {
+    ensureOpen();
+    return isConnected();
+  }
+
+  public SocketAddress getRemoteAddress()
+      throws IOException {
+    ensureOpen();
+    return _sock.getRemoteSocketAddress();
+  }
+
+  public SocketAddress getLocalAddress()
+      throws IOException {
+    ensureOpen();
+    return _sock.getLocalSocketAddress();
+  }
+
+  public int read(ByteBuffer dst)
+      throws IOException {
+    return (int) read(new ByteBuffer[] {dst}, 0, 1);
+  }
+
+  public long read(ByteBuffer[] dsts, int offset, int length)
+      throws IOException {
+    checkBounds(dsts, offset, length);
+    ensureConnected();
+    return _sock.read(dsts, offset, length, isBlocking());
+  }
+
+  public int write(ByteBuffer src)
+      throws IOException {
+    return (int) write(new ByteBuffer[] {src}, 0, 1);
+  }
+
+  public long write(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    checkBounds(srcs, offset, length);
+    ensureConnected();
+    ReliableSocketOutputStream out = (ReliableSocketOutputStream) _sock.getOutputStream();
+    if (isBlocking()) {
+      return out.write(srcs, offset, length);
+    }
+
+    return out.tryWrite(srcs, offset, length);
+  }
+
+  /**
+   * Writes a small, latency-sensitive message, such as a key or pointer
+   * event, through the expedited lane of the connection (see
+   * {@link ReliableSocket#getExpeditedOutputStream()}). In non-blocking
+   * mode, the message is written only if it fits into one data segment
+   * and can be sent at once; otherwise nothing is written.
+   *
+   * @param src the message.
+   * @return the number of bytes written, possibly <code>0</code>.
+   * @throws IOException if an I/O error occurs.
+   */
+  public int writeExpedited(ByteBuffer src)
+      throws IOException {
+    ensureConnected();
+    ReliableSocketOutputStream out = (ReliableSocketOutputStream) _sock.getOutputStream();
+    if (isBlocking()) {
+      int len = src.remaining();
+      byte[] b = new byte[len];
+      src.get(b);
+      out.writeExpedited(b, 0, len);
+      return len;
+    }
+
+    return out.tryWriteExpedited(src);
+  }
+
+  protected void implCloseSelectableChannel()
+      throws IOException {
+    _sock.close();
+  }
+
+  protected void implConfigureBlocking(boolean block) {
+    /* Each read and write checks the mode */
+  }
+
+  private void ensureOpen()
+      throws ClosedChannelException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private void ensureConnected()
+      throws ClosedChannelException {
+    ensureOpen();
+    if (!_sock.isConnected() && !_sock.isClosed()) {
+      throw new NotYetConnectedException();
+    }
+  }
+
+  private static void checkBounds(ByteBuffer[] bufs, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > bufs.length - length) {
+      throw new IndexOutOfBoundsException();
+    }
+  }
+}
@@ -41,13 +41,14 @@ import java.io.InputStream;
  */
 class ReliableSocketInputStream extends InputStream {
   protected ReliableSocket _sock;
-  protected byte[] _buf;
-  protected int _pos;
-  protected int _count;
+  protected byte[] _single = new byte[1];
 
   /**
    * Creates a new ReliableSocketInputStream.
    * This method can only be called by a ReliableSocket.
+   * <p>
+   * The stream does not buffer data, it reads straight from the
+   * socket's receive buffer.
    *
    * @param sock the actual rudp socket to read bytes on.
    * @throws IOException if an I/O error occurs.
@@ -59,17 +60,15 @@ class ReliableSocketInputStream extends InputStream {
     }
 
     _sock = sock;
-    _buf = new byte[_sock.getReceiveBufferSize()];
-    _pos = _count = 0;
   }
 
   public synchronized int read()
       throws IOException {
-    if (readImpl() < 0) {
+    if (_sock.read(_single, 0, 1) < 0) {
       return -1;
     }
 
-    return (_buf[_pos++] & 0xFF);
+    return (_single[0] & 0xFF);
   }
 
   public synchronized int read(byte[] b)
@@ -87,19 +86,11 @@ class ReliableSocketInputStream extends InputStream {
       throw new IndexOutOfBoundsException();
     }
 
-    if (readImpl() < 0) {
-      return -1;
-    }
-
-    int readBytes = Math.min(available(), len);
-    System.arraycopy(_buf, _pos, b, off, readBytes);
-    _pos += readBytes;
-
-    return readBytes;
+    return _sock.read(b, off, len);
   }
 
-  public synchronized int available() {
-    return (_count - _pos);
+  public int available() {
+    return _sock.available();
   }
 
   public boolean markSupported() {
@@ -110,14 +101,4 @@ class ReliableSocketInputStream extends InputStream {
       throws IOException {
     _sock.shutdownInput();
   }
-
-  private int readImpl()
-      throws IOException {
-    if (available() == 0) {
-      _count = _sock.read(_buf, 0, _buf.length);
-      _pos = 0;
-    }
-
-    return _count;
-  }
 }
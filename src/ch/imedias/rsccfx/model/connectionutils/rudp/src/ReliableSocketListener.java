@@ -34,6 +34,10 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src;
  * The listener interface for receiving packet events.
  * The class that is interested in processing a packet
  * event implements this interface.
+ * <p>
+ * The methods are invoked on the threads of the protocol, e.g. the one
+ * that receives the segments or the one of the timers, so they must
+ * return quickly and must not block.
  *
  * @author Adrian Granados
  */
@@ -0,0 +1,995 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class multiplexes independent, bidirectional streams over one
+ * connection, so that several transfers share a connection that has
+ * been set up once.
+ * <p>
+ * The data of the connection is a sequence of frames:
+ * <pre>
+ *   0             7 8            15 16           23 24           31
+ *  +---------------+---------------+---------------+---------------+
+ *  |     Type      |           Stream Id           |    Length     |
+ *  +---------------+---------------+---------------+---------------+
+ *  |    Length     |   Payload ...
+ *  +---------------+---------------
+ *
+ *  Types:
+ *
+ *   1  OPEN, opens a stream. The payload is the 4-octet service
+ *      number, which tells the peer what the stream is for.
+ *   2  DATA, carries up to 16384 octets of the stream.
+ *   3  CREDIT, allows the peer to send the number of octets given
+ *      by the 4-octet payload in addition to what it was allowed.
+ *   4  FIN, the sender will not send more data on the stream.
+ *   5  RST, the sender will not read more data from the stream.
+ * </pre>
+ * Stream ids are chosen by the peer that opens the stream, in increasing
+ * order from 1, and the high bit of the id is set if the sender of the
+ * frame opened the stream, so that both peers can open streams without
+ * agreeing on ids first. A peer opens at most 32767 streams on a
+ * connection.
+ * <p>
+ * Each stream has its own flow control: a peer sends only as much data
+ * as the receive buffer of the stream has room for, which is 256 KB
+ * initially, and the receiver extends the allowance as the application
+ * reads. Frames are therefore always taken off the connection right
+ * away, and a stream whose reader is slow holds up its own writer only,
+ * never the other streams. Data frames are at most 16 KB, so that the
+ * writers of several streams take turns on the connection. Small,
+ * latency-sensitive messages can be written ahead of them, through the
+ * expedited lane of the socket.
+ * <p>
+ * A stream can also be served by a thread that serves other connections
+ * too, through a channel of the stream that does not wait for data or
+ * for the allowance of the peer, and a listener that is notified when
+ * the stream may have become readable or writable.
+ * <p>
+ * Both peers must multiplex the connection. For rudp connections, this
+ * is agreed on in the SYN exchange when the profile of the socket asks
+ * for it (see {@link ReliableSocket#isMultiplexed()}).
+ *
+ * @see ReliableSocketProfile#streams()
+ */
+public class ReliableSocketMultiplexer implements Closeable {
+  private static final int OPEN = 1;
+  private static final int DATA = 2;
+  private static final int CREDIT = 3;
+  private static final int FIN = 4;
+  private static final int RST = 5;
+  private static final int HEADER_LEN = 5;
+  private static final int MAX_FRAME_SIZE = 16384; /* Largest payload of a data frame (octets) */
+  private static final int STREAM_WINDOW = 256 * 1024; /* Receive buffer of a stream (octets) */
+  private static final int OPENER_FLAG = 0x8000; /* The sender of the frame opened the stream */
+  private static final int MAX_STREAM_ID = 0x7FFF;
+  private final Socket _sock;
+  private final InputStream _in;
+  private final OutputStream _out;
+  private final OutputStream _expeditedOut; /* Sends each write at once */
+  private final ReentrantLock _writeLock = new ReentrantLock(true); /* Fair, so that streams take turns */
+  private final byte[] _header = new byte[HEADER_LEN]; /* Guarded by _writeLock */
+  private final HashMap<Integer, Stream> _streams = new HashMap<Integer, Stream>(); /* Open streams by id, as seen by this peer */
+  private final LinkedList<Stream> _acceptQueue = new LinkedList<Stream>(); /* Guarded by _streams */
+  private int _nextId = 1; /* Guarded by _streams */
+  private boolean _closed = false; /* Guarded by _streams */
+  private Thread _demuxThread;
+
+  /**
+   * Creates a multiplexer over a connected socket, which it reads and
+   * writes from then on.
+   *
+   * @param sock the connected socket.
+   * @throws IOException if an I/O error occurs.
+   */
+  public ReliableSocketMultiplexer(Socket sock)
+      throws IOException {
+    if (sock == null) {
+      throw new NullPointerException("sock");
+    }
+
+    _sock = sock;
+    _in = new DataInputStream(sock.getInputStream());
+    _out = sock.getOutputStream();
+    _expeditedOut = (sock instanceof ReliableSocket) ?
+        ((ReliableSocket) sock).getExpeditedOutputStream() : null;
+    _demuxThread = new DemuxThread();
+    _demuxThread.start();
+  }
+
+  /**
+   * Opens a stream. The peer learns about it with the first frame, so
+   * that data can be written right away, before the peer accepts it.
+   * If the peer refuses the stream, it closes it.
+   *
+   * @param service the service number passed to the peer.
+   * @return the stream.
+   * @throws IOException if the multiplexer is closed, or if too many
+   *                     streams have been opened.
+   */
+  public Stream openStream(int service)
+      throws IOException {
+    Stream stream;
+    synchronized (_streams) {
+      if (_closed) {
+        throw new SocketException("Socket is closed");
+      }
+
+      if (_nextId > MAX_STREAM_ID) {
+        throw new IOException("Too many streams");
+      }
+
+      stream = new Stream(_nextId++, service);
+      _streams.put(Integer.valueOf(stream._id), stream);
+    }
+
+    byte[] b = new byte[4];
+    writeInt(b, 0, service);
+    writeFrame(OPEN, stream._id, b, 0, b.length, true);
+    return stream;
+  }
+
+  /**
+   * Waits for the peer to open a stream and returns it.
+   *
+   * @return the stream.
+   * @throws IOException if the multiplexer is closed.
+   */
+  public Stream acceptStream()
+      throws IOException {
+    synchronized (_streams) {
+      while (_acceptQueue.isEmpty()) {
+        if (_closed) {
+          throw new SocketException("Socket is closed");
+        }
+
+        try {
+          _streams.wait();
+        } catch (InterruptedException xcp) {
+          throw new SocketException("Interrupted");
+        }
+      }
+
+      return _acceptQueue.removeFirst();
+    }
+  }
+
+  /**
+   * Returns the socket of the connection.
+   */
+  public Socket getSocket() {
+    return _sock;
+  }
+
+  /**
+   * Returns true if the multiplexer has been closed, or if its
+   * connection has.
+   */
+  public boolean isClosed() {
+    synchronized (_streams) {
+      return _closed;
+    }
+  }
+
+  /**
+   * Closes the multiplexer and its connection. The streams that have not
+   * received the end of their data fail.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void close()
+      throws IOException {
+    shutdown();
+    _sock.close();
+  }
+
+  /**
+   * Marks the multiplexer closed and wakes up all the threads that wait
+   * on it or on its streams.
+   */
+  private void shutdown() {
+    Stream[] streams;
+    synchronized (_streams) {
+      if (_closed) {
+        return;
+      }
+
+      _closed = true;
+      streams = _streams.values().toArray(new Stream[0]);
+      _streams.clear();
+      _streams.notifyAll();
+    }
+
+    for (int i = 0; i < streams.length; i++) {
+      streams[i].connectionClosed();
+    }
+  }
+
+  private Stream getStream(int id) {
+    synchronized (_streams) {
+      return _streams.get(Integer.valueOf(id));
+    }
+  }
+
+  private void removeStream(Stream stream) {
+    synchronized (_streams) {
+      _streams.remove(Integer.valueOf(stream._id));
+    }
+  }
+
+  /**
+   * Writes a frame. Control frames are sent right away, while data
+   * frames are sent when the stream is flushed.
+   *
+   * @param type  the type of the frame.
+   * @param id    the id of the stream, as seen by this peer.
+   * @param b     the payload.
+   * @param off   the offset of the payload.
+   * @param len   the length of the payload.
+   * @param flush whether to flush the connection.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeFrame(int type, int id, byte[] b, int off, int len, boolean flush)
+      throws IOException {
+    _writeLock.lock();
+    try {
+      /* The peer sees the stream with the opener flag flipped */
+      int peerId = id ^ OPENER_FLAG;
+      _header[0] = (byte) type;
+      _header[1] = (byte) (peerId >>> 8);
+      _header[2] = (byte) peerId;
+      _header[3] = (byte) (len >>> 8);
+      _header[4] = (byte) len;
+      _out.write(_header, 0, HEADER_LEN);
+      if (len > 0) {
+        _out.write(b, off, len);
+      }
+      if (flush) {
+        _out.flush();
+      }
+    } finally {
+      _writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes a data frame through the expedited lane of the connection, if
+   * it has one, after the frames written so far.
+   *
+   * @param id  the id of the stream, as seen by this peer.
+   * @param b   the payload.
+   * @param off the offset of the payload.
+   * @param len the length of the payload.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeExpeditedFrame(int id, byte[] b, int off, int len)
+      throws IOException {
+    if (_expeditedOut == null) {
+      writeFrame(DATA, id, b, off, len, true);
+      return;
+    }
+
+    /* The frame is written at once, so that it is sent as a whole */
+    byte[] frame = new byte[HEADER_LEN + len];
+    int peerId = id ^ OPENER_FLAG;
+    frame[0] = (byte) DATA;
+    frame[1] = (byte) (peerId >>> 8);
+    frame[2] = (byte) peerId;
+    frame[3] = (byte) (len >>> 8);
+    frame[4] = (byte) len;
+    System.arraycopy(b, off, frame, HEADER_LEN, len);
+    _writeLock.lock();
+    try {
+      _expeditedOut.write(frame, 0, frame.length);
+    } finally {
+      _writeLock.unlock();
+    }
+  }
+
+  private void writeControlFrame(int type, int id) {
+    try {
+      writeFrame(type, id, null, 0, 0, true);
+    } catch (IOException xcp) {
+      /* The connection is gone, and all streams fail */
+    }
+  }
+
+  private void writeCredit(int id, int credit) {
+    byte[] b = new byte[4];
+    writeInt(b, 0, credit);
+    try {
+      writeFrame(CREDIT, id, b, 0, b.length, true);
+    } catch (IOException xcp) {
+      /* The connection is gone, and all streams fail */
+    }
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) |
+        ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+  }
+
+  /**
+   * Handles a frame received from the peer. This never blocks on a
+   * stream, and never writes to the connection, so that the frames of
+   * all the streams keep flowing.
+   *
+   * @throws IOException if the frame violates the protocol.
+   */
+  private void handleFrame(int type, int id, byte[] b, int len)
+      throws IOException {
+    if (type == OPEN) {
+      if ((id & OPENER_FLAG) == 0 || len != 4) {
+        throw new IOException("Invalid OPEN frame");
+      }
+
+      synchronized (_streams) {
+        Integer key = Integer.valueOf(id);
+        if (_streams.containsKey(key)) {
+          throw new IOException("Stream " + (id & MAX_STREAM_ID) + " is already open");
+        }
+
+        Stream stream = new Stream(id, readInt(b, 0));
+        _streams.put(key, stream);
+        _acceptQueue.add(stream);
+        _streams.notifyAll();
+      }
+      return;
+    }
+
+    /* Frames of streams that have been closed are discarded */
+    Stream stream = getStream(id);
+    if (stream == null) {
+      return;
+    }
+
+    switch (type) {
+      case DATA:
+        stream.dataReceived(b, len);
+        break;
+      case CREDIT:
+        if (len != 4) {
+          throw new IOException("Invalid CREDIT frame");
+        }
+        stream.creditReceived(readInt(b, 0));
+        break;
+      case FIN:
+        stream.finReceived();
+        break;
+      case RST:
+        stream.rstReceived();
+        break;
+      default:
+        throw new IOException("Invalid frame type " + type);
+    }
+  }
+
+  /**
+   * The listener interface for receiving readiness events of a stream
+   * that is read and written through its channel.
+   */
+  public interface StreamReadyListener {
+    /**
+     * Invoked when data, the end of the data or an error may be read
+     * from the stream, or data may be written to it. Events may be
+     * spurious. The listener is invoked by the thread that takes the
+     * frames off the connection and must not block.
+     */
+    public void streamReady(Stream stream);
+  }
+
+  /**
+   * This class implements a stream of a multiplexer. It can be read and
+   * written concurrently, and each direction can be closed independently.
+   */
+  public class Stream implements Closeable {
+    private final int _id;
+    private final int _service;
+    private final ByteRing _recvBuffer = new ByteRing(STREAM_WINDOW);
+    private int _consumed = 0; /* Data read since the last credit sent (octets) */
+    private int _sendCredit = STREAM_WINDOW; /* Data the peer can take (octets) */
+    private boolean _finReceived = false; /* The peer sends no more data */
+    private boolean _rstReceived = false; /* The peer reads no more data */
+    private boolean _outputShutdown = false; /* FIN sent */
+    private boolean _closed = false;
+    private boolean _connectionClosed = false;
+    private final InputStream _inputStream = new StreamInputStream();
+    private final OutputStream _outputStream = new StreamOutputStream();
+    private ByteChannel _channel;
+    private StreamReadyListener _readyListener;
+
+    private Stream(int id, int service) {
+      _id = id;
+      _service = service;
+    }
+
+    /**
+     * Returns the service number given by the peer that opened the stream.
+     */
+    public int getService() {
+      return _service;
+    }
+
+    /**
+     * Returns the multiplexer of this stream.
+     */
+    public ReliableSocketMultiplexer getMultiplexer() {
+      return ReliableSocketMultiplexer.this;
+    }
+
+    /**
+     * Returns an input stream that reads the data sent by the peer.
+     */
+    public InputStream getInputStream() {
+      return _inputStream;
+    }
+
+    /**
+     * Returns an output stream that writes data to the peer. The data is
+     * sent when the stream is flushed or closed.
+     */
+    public OutputStream getOutputStream() {
+      return _outputStream;
+    }
+
+    /**
+     * Returns an output stream that writes each message through the
+     * expedited lane of the connection (see {@link #writeExpedited}).
+     */
+    public OutputStream getExpeditedOutputStream() {
+      return new OutputStream() {
+        public void write(int b)
+            throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+          writeExpedited(b, off, len);
+        }
+
+        public void close()
+            throws IOException {
+          Stream.this.close();
+        }
+      };
+    }
+
+    /**
+     * Returns a channel that reads and writes the stream without waiting:
+     * a read returns <code>0</code> if no data has been received, and a
+     * write takes only as much data as the peer allows, and sends it at
+     * once. Writes still wait while the send window of the connection,
+     * which the streams share, is full.
+     */
+    public synchronized ByteChannel getChannel() {
+      if (_channel == null) {
+        _channel = new StreamChannel();
+      }
+      return _channel;
+    }
+
+    /**
+     * Sets the listener that is notified when the stream may be read or
+     * written through its channel.
+     *
+     * @param listener the listener, or <code>null</code> for none.
+     */
+    public synchronized void setReadyListener(StreamReadyListener listener) {
+      _readyListener = listener;
+    }
+
+    /**
+     * Writes a small, latency-sensitive message, such as a key or pointer
+     * event, and sends it at once through the expedited lane of the
+     * connection (see {@link ReliableSocket#getExpeditedOutputStream()}),
+     * after the data written to the stream so far.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeExpedited(byte[] b, int off, int len)
+        throws IOException {
+      if (off < 0 || len < 0 || (off + len) > b.length) {
+        throw new IndexOutOfBoundsException();
+      }
+
+      write(b, off, len, true, true);
+    }
+
+    /**
+     * Writes a small message through the expedited lane of the connection,
+     * as {@link #writeExpedited} does, if the peer allows all of it at
+     * once; otherwise nothing is written. Like the writes of the channel
+     * of the stream, it still waits while the send window of the
+     * connection is full.
+     *
+     * @param src the message, whose position is advanced if it is written.
+     * @return the number of bytes written, possibly <code>0</code>.
+     * @throws IOException if an I/O error occurs.
+     */
+    public int tryWriteExpedited(ByteBuffer src)
+        throws IOException {
+      int len = src.remaining();
+      synchronized (this) {
+        if (len > Math.min(_sendCredit, MAX_FRAME_SIZE)) {
+          return 0;
+        }
+      }
+
+      byte[] b = new byte[len];
+      src.duplicate().get(b);
+      int n = write(b, 0, len, true, false);
+      src.position(src.position() + n);
+      return n;
+    }
+
+    /**
+     * Sends the end of the data to the peer, after the data written
+     * so far. The stream can still be read.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void shutdownOutput()
+        throws IOException {
+      synchronized (this) {
+        if (_outputShutdown) {
+          return;
+        }
+
+        _outputShutdown = true;
+        notifyAll();
+        if (_connectionClosed) {
+          return;
+        }
+      }
+
+      writeFrame(FIN, _id, null, 0, 0, true);
+      checkRemove();
+    }
+
+    /**
+     * Closes the stream. The peer receives the end of the data, and is
+     * told to stop sending if it has not sent all of its data yet.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close()
+        throws IOException {
+      boolean stopPeer;
+      synchronized (this) {
+        if (_closed) {
+          return;
+        }
+
+        _closed = true;
+        stopPeer = !_finReceived && !_connectionClosed;
+        _recvBuffer.clear();
+        notifyAll();
+      }
+
+      shutdownOutput();
+      if (stopPeer) {
+        writeControlFrame(RST, _id);
+      }
+      checkRemove();
+    }
+
+    public synchronized boolean isClosed() {
+      return _closed;
+    }
+
+    public String toString() {
+      return "Stream " + (_id & MAX_STREAM_ID) + ((_id & OPENER_FLAG) != 0 ? " (peer)" : "") +
+          ", service " + _service;
+    }
+
+    /**
+     * Forgets the stream once it has been closed locally and the
+     * peer has sent all of its data, or has been told to stop.
+     */
+    private void checkRemove() {
+      synchronized (this) {
+        if (!_closed || !_outputShutdown) {
+          return;
+        }
+      }
+
+      removeStream(this);
+    }
+
+    private synchronized void dataReceived(byte[] b, int len)
+        throws IOException {
+      if (_closed) {
+        return; /* The peer has been told to stop */
+      }
+
+      if (_finReceived || len > _recvBuffer.free()) {
+        throw new IOException(this + " exceeds its window");
+      }
+
+      _recvBuffer.write(b, 0, len);
+      notifyAll();
+      ready();
+    }
+
+    private synchronized void creditReceived(int credit)
+        throws IOException {
+      if (credit <= 0 || _sendCredit + credit > STREAM_WINDOW) {
+        throw new IOException(this + " receives too much credit");
+      }
+
+      _sendCredit += credit;
+      notifyAll();
+      ready();
+    }
+
+    private synchronized void finReceived() {
+      _finReceived = true;
+      notifyAll();
+      ready();
+    }
+
+    private synchronized void rstReceived() {
+      _rstReceived = true;
+      notifyAll();
+      ready();
+    }
+
+    private synchronized void connectionClosed() {
+      _connectionClosed = true;
+      notifyAll();
+      ready();
+    }
+
+    /*
+     * Must be called holding the stream lock.
+     */
+    private void ready() {
+      if (_readyListener != null) {
+        _readyListener.streamReady(this);
+      }
+    }
+
+    /**
+     * Reads the received data, waiting for it if there is none and
+     * <code>block</code> is set.
+     *
+     * @return the number of bytes read, <code>0</code> if there is no
+     * data and <code>block</code> is not set, or <code>-1</code> at the
+     * end of the data.
+     */
+    private int read(byte[] b, int off, int len, boolean block)
+        throws IOException {
+      int n;
+      int credit = 0;
+      synchronized (this) {
+        while (_recvBuffer.available() == 0) {
+          if (_closed) {
+            throw new SocketException("Stream is closed");
+          }
+
+          if (_finReceived) {
+            return -1;
+          }
+
+          if (_connectionClosed) {
+            throw new SocketException("Connection reset");
+          }
+
+          if (!block) {
+            return 0;
+          }
+
+          try {
+            wait();
+          } catch (InterruptedException xcp) {
+            throw new SocketException("Interrupted");
+          }
+        }
+
+        n = _recvBuffer.read(b, off, len);
+        _consumed += n;
+        /* Extend the allowance of the peer in steps of a quarter of the buffer */
+        if (_consumed >= STREAM_WINDOW / 4 && !_finReceived) {
+          credit = _consumed;
+          _consumed = 0;
+        }
+      }
+
+      if (credit > 0) {
+        writeCredit(_id, credit);
+      }
+      return n;
+    }
+
+    private synchronized int available() {
+      return _recvBuffer.available();
+    }
+
+    /**
+     * Writes data, waiting for the peer to allow it when its receive
+     * buffer is full if <code>block</code> is set. The data written so
+     * far is flushed before waiting, since the peer only gives credit
+     * for the data it has received.
+     *
+     * @return the number of bytes written.
+     */
+    private int write(byte[] b, int off, int len, boolean expedited, boolean block)
+        throws IOException {
+      int written = 0;
+      boolean flushed = false;
+      while (len > 0) {
+        int n = 0;
+        synchronized (this) {
+          while (true) {
+            if (_closed || _outputShutdown) {
+              throw new SocketException("Stream is closed");
+            }
+
+            if (_rstReceived) {
+              throw new SocketException("Stream closed by peer");
+            }
+
+            if (_connectionClosed) {
+              throw new SocketException("Connection reset");
+            }
+
+            if (_sendCredit > 0) {
+              n = Math.min(Math.min(len, _sendCredit), MAX_FRAME_SIZE);
+              _sendCredit -= n;
+              break;
+            }
+
+            if (!block) {
+              return written;
+            }
+
+            if (!flushed) {
+              break;
+            }
+
+            try {
+              wait();
+            } catch (InterruptedException xcp) {
+              throw new SocketException("Interrupted");
+            }
+          }
+        }
+
+        if (n == 0) {
+          flush();
+          flushed = true;
+          continue;
+        }
+
+        if (expedited) {
+          writeExpeditedFrame(_id, b, off, n);
+        } else {
+          writeFrame(DATA, _id, b, off, n, false);
+        }
+        off += n;
+        len -= n;
+        written += n;
+        flushed = false;
+      }
+      return written;
+    }
+
+    private void flush()
+        throws IOException {
+      synchronized (this) {
+        if (_connectionClosed) {
+          throw new SocketException("Connection reset");
+        }
+      }
+
+      _out.flush();
+    }
+
+    private class StreamInputStream extends InputStream {
+      private final byte[] _single = new byte[1];
+
+      public int read()
+          throws IOException {
+        int n = read(_single, 0, 1);
+        return n < 0 ? -1 : (_single[0] & 0xFF);
+      }
+
+      public int read(byte[] b, int off, int len)
+          throws IOException {
+        if (b == null) {
+          throw new NullPointerException();
+        }
+
+        if (off < 0 || len < 0 || (off + len) > b.length) {
+          throw new IndexOutOfBoundsException();
+        }
+
+        if (len == 0) {
+          return 0;
+        }
+
+        return Stream.this.read(b, off, len, true);
+      }
+
+      public int available() {
+        return Stream.this.available();
+      }
+
+      public void close()
+          throws IOException {
+        Stream.this.close();
+      }
+    }
+
+    private class StreamOutputStream extends OutputStream {
+      private final byte[] _single = new byte[1];
+
+      public void write(int b)
+          throws IOException {
+        _single[0] = (byte) b;
+        write(_single, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len)
+          throws IOException {
+        if (b == null) {
+          throw new NullPointerException();
+        }
+
+        if (off < 0 || len < 0 || (off + len) > b.length) {
+          throw new IndexOutOfBoundsException();
+        }
+
+        Stream.this.write(b, off, len, false, true);
+      }
+
+      public void flush()
+          throws IOException {
+        Stream.this.flush();
+      }
+
+      public void close()
+          throws IOException {
+        Stream.this.close();
+      }
+    }
+
+    private class StreamChannel implements ByteChannel {
+      private final byte[] _readBuffer = new byte[MAX_FRAME_SIZE];
+      private final byte[] _writeBuffer = new byte[MAX_FRAME_SIZE];
+
+      public int read(ByteBuffer dst)
+          throws IOException {
+        int n = Stream.this.read(_readBuffer, 0,
+            Math.min(dst.remaining(), _readBuffer.length), false);
+        if (n > 0) {
+          dst.put(_readBuffer, 0, n);
+        }
+        return n;
+      }
+
+      public int write(ByteBuffer src)
+          throws IOException {
+        int len = Math.min(src.remaining(), _writeBuffer.length);
+        src.duplicate().get(_writeBuffer, 0, len);
+        int n = Stream.this.write(_writeBuffer, 0, len, false, false);
+        if (n > 0) {
+          src.position(src.position() + n);
+          Stream.this.flush();
+        }
+        return n;
+      }
+
+      public boolean isOpen() {
+        return !isClosed();
+      }
+
+      public void close()
+          throws IOException {
+        Stream.this.close();
+      }
+    }
+  }
+
+  /*
+   * This thread takes the frames off the connection and hands them to
+   * their streams.
+   */
+  private class DemuxThread extends Thread {
+    public DemuxThread() {
+      super("ReliableSocketMultiplexer");
+      setDaemon(true);
+    }
+
+    public void run() {
+      DataInputStream in = (DataInputStream) _in;
+      byte[] header = new byte[HEADER_LEN];
+      byte[] payload = new byte[MAX_FRAME_SIZE];
+      try {
+        while (true) {
+          try {
+            in.readFully(header);
+          } catch (EOFException xcp) {
+            break; /* The peer closed the connection */
+          }
+
+          int type = header[0] & 0xFF;
+          int id = ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+          int len = ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+          if (len > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large");
+          }
+
+          in.readFully(payload, 0, len);
+          handleFrame(type, id, payload, len);
+        }
+      } catch (IOException xcp) {
+        if (!isClosed() && !_sock.isClosed()) {
+          xcp.printStackTrace();
+        }
+      }
+
+      shutdown();
+      try {
+        _sock.close();
+      } catch (IOException xcp) {
+        /* Nothing else to do */
+      }
+    }
+  }
+}
@@ -32,10 +32,19 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class extends OutputStream to implement a ReliableSocketOutputStream.
  * Note that this class should <b>NOT</b> be public.
+ * <p>
+ * If the socket coalesces small writes, <code>flush()</code> may hold back
+ * the data that does not fill a segment. The socket sends it later with
+ * <code>flushHeldBack()</code>, from threads that must not block.
+ * <p>
+ * The channel of the socket writes through this stream as well, so that
+ * its writes are ordered with the data buffered here.
  *
  * @author Adrian Granados
  */
@@ -43,6 +52,7 @@ class ReliableSocketOutputStream extends OutputStream {
   protected ReliableSocket _sock;
   protected byte[] _buf;
   protected int _count;
+  private final ReentrantLock _lock = new ReentrantLock();
 
   /**
    * Creates a new ReliableSocketOutputStream.
@@ -62,21 +72,26 @@ class ReliableSocketOutputStream extends OutputStream {
     _count = 0;
   }
 
-  public synchronized void write(int b)
+  public void write(int b)
       throws IOException {
-    if (_count >= _buf.length) {
-      flush();
-    }
+    _lock.lock();
+    try {
+      if (_count >= _buf.length) {
+        flushBuffer();
+      }
 
-    _buf[_count++] = (byte) (b & 0xFF);
+      _buf[_count++] = (byte) (b & 0xFF);
+    } finally {
+      _lock.unlock();
+    }
   }
 
-  public synchronized void write(byte[] b)
+  public void write(byte[] b)
       throws IOException {
     write(b, 0, b.length);
   }
 
-  public synchronized void write(byte[] b, int off, int len)
+  public void write(byte[] b, int off, int len)
       throws IOException {
     if (b == null) {
       throw new NullPointerException();
@@ -86,21 +101,217 @@ class ReliableSocketOutputStream extends OutputStream {
       throw new IndexOutOfBoundsException();
     }
 
-    int buflen;
-    int writtenBytes = 0;
+    _lock.lock();
+    try {
+      if (len >= _buf.length) {
+        /* Large writes are segmented straight from the caller's array */
+        flushBuffer();
+        _sock.write(b, off, len);
+        return;
+      }
+
+      int buflen;
+      int writtenBytes = 0;
+
+      while (writtenBytes < len) {
+        buflen = Math.min(_buf.length, len - writtenBytes);
+        if (buflen > (_buf.length - _count)) {
+          flushBuffer();
+        }
+        System.arraycopy(b, off + writtenBytes, _buf, _count, buflen);
+        _count += buflen;
+        writtenBytes += buflen;
+      }
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public void flush()
+      throws IOException {
+    _lock.lock();
+    try {
+      int writeBytes = _sock.coalesce(_count);
+      if (writeBytes > 0) {
+        _sock.write(_buf, 0, writeBytes);
+        consume(writeBytes);
+      }
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  public void close()
+      throws IOException {
+    _lock.lock();
+    try {
+      flushBuffer();
+      _sock.shutdownOutput();
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a small message through the expedited lane of the socket,
+   * after the data buffered so far, which is sent along with it.
+   *
+   * @param b   the data.
+   * @param off the start offset in the data.
+   * @param len the number of bytes to write.
+   * @throws IOException if an I/O error occurs.
+   */
+  void writeExpedited(byte[] b, int off, int len)
+      throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+
+    if (off < 0 || len < 0 || (off + len) > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    _lock.lock();
+    try {
+      ByteBuffer[] srcs = {ByteBuffer.wrap(_buf, 0, _count), ByteBuffer.wrap(b, off, len)};
+      _sock.writeExpedited(srcs, 0, srcs.length);
+      _count = 0;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of a sequence of buffers and flushes them,
+   * as the channel of the socket does in blocking mode.
+   *
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @return the number of bytes written.
+   * @throws IOException if an I/O error occurs.
+   */
+  long write(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    _lock.lock();
+    try {
+      long len = ReliableSocket.remaining(srcs, offset, length);
+      if (len >= _buf.length) {
+        /* Large writes are segmented straight from the caller's buffers */
+        flushBuffer();
+        _sock.write(srcs, offset, length);
+        return len;
+      }
+
+      if (len > _buf.length - _count) {
+        flushBuffer();
+      }
+      for (int i = offset; i < offset + length; i++) {
+        int n = srcs[i].remaining();
+        srcs[i].get(_buf, _count, n);
+        _count += n;
+      }
+      flush();
+      return len;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Writes as many of the remaining bytes of a sequence of buffers as
+   * the socket can send without waiting, as the channel of the socket
+   * does in non-blocking mode. Nothing is written while data is held
+   * back, or while the stream is being written to.
+   *
+   * @param srcs   the buffers, whose positions are advanced.
+   * @param offset the index of the first buffer.
+   * @param length the number of buffers.
+   * @return the number of bytes written, possibly <code>0</code>.
+   * @throws IOException if an I/O error occurs.
+   */
+  long tryWrite(ByteBuffer[] srcs, int offset, int length)
+      throws IOException {
+    if (!_lock.tryLock()) {
+      return 0;
+    }
+
+    try {
+      if (!flushHeldBack()) {
+        return 0;
+      }
 
-    while (writtenBytes < len) {
-      buflen = Math.min(_buf.length, len - writtenBytes);
-      if (buflen > (_buf.length - _count)) {
-        flush();
+      long writtenBytes = 0;
+      int n;
+      while ((n = _sock.tryWrite(srcs, offset, length)) > 0) {
+        writtenBytes += n;
       }
-      System.arraycopy(b, off + writtenBytes, _buf, _count, buflen);
-      _count += buflen;
-      writtenBytes += buflen;
+      return writtenBytes;
+    } finally {
+      _lock.unlock();
     }
   }
 
-  public synchronized void flush()
+  /**
+   * Writes a small message through the expedited lane of the socket if
+   * it can be sent at once, after the data held back so far. Nothing is
+   * written while the held back data cannot be sent, or while the stream
+   * is being written to.
+   *
+   * @param src the message, whose position is advanced if it is written.
+   * @return the number of bytes written, possibly <code>0</code>.
+   * @throws IOException if an I/O error occurs.
+   */
+  int tryWriteExpedited(ByteBuffer src)
+      throws IOException {
+    if (!_lock.tryLock()) {
+      return 0;
+    }
+
+    try {
+      if (!flushHeldBack()) {
+        return 0;
+      }
+
+      return _sock.tryWriteExpedited(new ByteBuffer[] {src}, 0, 1);
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Sends the data held back by <code>flush()</code> as far as the socket
+   * can send it without waiting. It does nothing if the stream is being
+   * written to, since the writer sends the data with its own.
+   *
+   * @return <code>true</code> if no data is held back anymore.
+   * @throws IOException if an I/O error occurs.
+   */
+  boolean flushHeldBack()
+      throws IOException {
+    if (!_lock.tryLock()) {
+      return false;
+    }
+
+    try {
+      while (_count > 0) {
+        ByteBuffer[] held = {ByteBuffer.wrap(_buf, 0, _count)};
+        int writtenBytes = _sock.tryWrite(held, 0, 1);
+        if (writtenBytes == 0) {
+          return false;
+        }
+        consume(writtenBytes);
+      }
+      return true;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Writes all the buffered data, held back or not.
+   */
+  private void flushBuffer()
       throws IOException {
     if (_count > 0) {
       _sock.write(_buf, 0, _count);
@@ -108,9 +319,11 @@ class ReliableSocketOutputStream extends OutputStream {
     }
   }
 
-  public synchronized void close()
-      throws IOException {
-    flush();
-    _sock.shutdownOutput();
+  /**
+   * Removes the bytes written from the start of the buffer.
+   */
+  private void consume(int len) {
+    _count -= len;
+    System.arraycopy(_buf, len, _buf, 0, _count);
   }
 }
@@ -30,9 +30,6 @@
 
 package ch.imedias.rsccfx.model.connectionutils.rudp.src;
 
-
-import ch.imedias.rsccfx.model.Rscc;
-
 /**
  * This class specifies the rudp parameters of a socket.
  *
@@ -40,11 +37,11 @@ import ch.imedias.rsccfx.model.Rscc;
  * @see net.rudp.ReliableSocket
  */
 public class ReliableSocketProfile {
-  public final static int MAX_SEND_QUEUE_SIZE = 32;
-  public final static int MAX_RECV_QUEUE_SIZE = 32;
+  public final static int MAX_SEND_QUEUE_SIZE = 256;
+  public final static int MAX_RECV_QUEUE_SIZE = 256;
 
-  public final static int MAX_SEGMENT_SIZE = Rscc.getUdpPackageSizeStatic();
-  public final static int MAX_OUTSTANDING_SEGS = 3;
+  public final static int MAX_SEGMENT_SIZE = 10000;
+  public final static int MAX_OUTSTANDING_SEGS = 256;
   public final static int MAX_RETRANS = 3;
   public final static int MAX_CUMULATIVE_ACKS = 3;
   public final static int MAX_OUT_OF_SEQUENCE = 3;
@@ -52,6 +49,29 @@ public class ReliableSocketProfile {
   public final static int NULL_SEGMENT_TIMEOUT = 2000;
   public final static int RETRANSMISSION_TIMEOUT = 600;
   public final static int CUMULATIVE_ACK_TIMEOUT = 300;
+  /*
+   * Upper bound for the queue sizes and the number of outstanding
+   * segments. Values above 126 only take effect if the peer supports
+   * 16-bit sequence numbers, otherwise they are reduced to fit the
+   * original 8-bit sequence number space.
+   */
+  public final static int MAX_WINDOW_SIZE = 32766;
+
+  /*
+   * Congestion control algorithms. With CONGESTION_CONTROL_NONE the
+   * sender only respects the maximum number of outstanding segments.
+   */
+  public final static int CONGESTION_CONTROL_NONE = 0;
+  public final static int CONGESTION_CONTROL_NEWRENO = 1;
+  public final static int CONGESTION_CONTROL_CUBIC = 2;
+  public final static int CONGESTION_CONTROL = CONGESTION_CONTROL_CUBIC;
+
+  /*
+   * Number of later segments the peer must report as received before
+   * a missing segment is retransmitted without waiting for the
+   * retransmission timer (0 disables fast retransmit).
+   */
+  public final static int FAST_RETRANSMIT_THRESHOLD = 3;
   private int _maxSendQueueSize;
   private int _maxRecvQueueSize;
   private int _maxSegmentSize;
@@ -63,6 +83,9 @@ public class ReliableSocketProfile {
   private int _nullSegmentTimeout;
   private int _retransmissionTimeout;
   private int _cumulativeAckTimeout;
+  private int _congestionControl;
+  private int _fastRetransmitThreshold;
+  private boolean _streams;
 
   /**
    * Creates a profile with the default rudp parameter values.
@@ -74,26 +97,18 @@ public class ReliableSocketProfile {
    * unacknowledged. We will use 0 instead, which means unlimited.
    */
   public ReliableSocketProfile() {
-    this(MAX_SEND_QUEUE_SIZE,
-        MAX_RECV_QUEUE_SIZE,
-        MAX_SEGMENT_SIZE,
-        MAX_OUTSTANDING_SEGS,
-        0/*MAX_RETRANS*/,
-        MAX_CUMULATIVE_ACKS,
-        MAX_OUT_OF_SEQUENCE,
-        MAX_AUTO_RESET,
-        NULL_SEGMENT_TIMEOUT,
-        RETRANSMISSION_TIMEOUT,
-        CUMULATIVE_ACK_TIMEOUT);
+    this(new Builder());
   }
 
   /**
    * Creates an profile with the specified rudp parameter values.
+   * The parameters added since are set to their default values,
+   * use a {@link Builder} to set them.
    *
-   * @param maxSendQueueSize      maximum send queue size (packets).
-   * @param maxRecvQueueSize      maximum receive queue size (packets).
+   * @param maxSendQueueSize      maximum send queue size (packets, at most 32766).
+   * @param maxRecvQueueSize      maximum receive queue size (packets, at most 32766).
    * @param maxSegmentSize        maximum segment size (octets) (must be at least 22).
-   * @param maxOutstandingSegs    maximum number of outstanding segments.
+   * @param maxOutstandingSegs    maximum number of outstanding segments (at most 32766).
    * @param maxRetrans            maximum number of consecutive retransmissions (0 means unlimited).
    * @param maxCumulativeAcks     maximum number of unacknowledged received segments.
    * @param maxOutOfSequence      maximum number of out-of-sequence received segments.
@@ -113,29 +128,50 @@ public class ReliableSocketProfile {
                                int nullSegmentTimeout,
                                int retransmissionTimeout,
                                int cumulativeAckTimeout) {
-    checkValue("maxSendQueueSize", maxSendQueueSize, 1, 255);
-    checkValue("maxRecvQueueSize", maxRecvQueueSize, 1, 255);
-    checkValue("maxSegmentSize", maxSegmentSize, 22, 65535);
-    checkValue("maxOutstandingSegs", maxOutstandingSegs, 1, 255);
-    checkValue("maxRetrans", maxRetrans, 0, 255);
-    checkValue("maxCumulativeAcks", maxCumulativeAcks, 0, 255);
-    checkValue("maxOutOfSequence", maxOutOfSequence, 0, 255);
-    checkValue("maxAutoReset", maxAutoReset, 0, 255);
-    checkValue("nullSegmentTimeout", nullSegmentTimeout, 0, 65535);
-    checkValue("retransmissionTimeout", retransmissionTimeout, 100, 65535);
-    checkValue("cumulativeAckTimeout", cumulativeAckTimeout, 100, 65535);
-
-    _maxSendQueueSize = maxSendQueueSize;
-    _maxRecvQueueSize = maxRecvQueueSize;
-    _maxSegmentSize = maxSegmentSize;
-    _maxOutstandingSegs = maxOutstandingSegs;
-    _maxRetrans = maxRetrans;
-    _maxCumulativeAcks = maxCumulativeAcks;
-    _maxOutOfSequence = maxOutOfSequence;
-    _maxAutoReset = maxAutoReset;
-    _nullSegmentTimeout = nullSegmentTimeout;
-    _retransmissionTimeout = retransmissionTimeout;
-    _cumulativeAckTimeout = cumulativeAckTimeout;
+    this(new Builder()
+        .maxSendQueueSize(maxSendQueueSize)
+        .maxRecvQueueSize(maxRecvQueueSize)
+        .maxSegmentSize(maxSegmentSize)
+        .maxOutstandingSegs(maxOutstandingSegs)
+        .maxRetrans(maxRetrans)
+        .maxCumulativeAcks(maxCumulativeAcks)
+        .maxOutOfSequence(maxOutOfSequence)
+        .maxAutoReset(maxAutoReset)
+        .nullSegmentTimeout(nullSegmentTimeout)
+        .retransmissionTimeout(retransmissionTimeout)
+        .cumulativeAckTimeout(cumulativeAckTimeout));
+  }
+
+  private ReliableSocketProfile(Builder builder) {
+    checkValue("maxSendQueueSize", builder._maxSendQueueSize, 1, MAX_WINDOW_SIZE);
+    checkValue("maxRecvQueueSize", builder._maxRecvQueueSize, 1, MAX_WINDOW_SIZE);
+    checkValue("maxSegmentSize", builder._maxSegmentSize, 22, 65535);
+    checkValue("maxOutstandingSegs", builder._maxOutstandingSegs, 1, MAX_WINDOW_SIZE);
+    checkValue("maxRetrans", builder._maxRetrans, 0, 255);
+    checkValue("maxCumulativeAcks", builder._maxCumulativeAcks, 0, 255);
+    checkValue("maxOutOfSequence", builder._maxOutOfSequence, 0, 255);
+    checkValue("maxAutoReset", builder._maxAutoReset, 0, 255);
+    checkValue("nullSegmentTimeout", builder._nullSegmentTimeout, 0, 65535);
+    checkValue("retransmissionTimeout", builder._retransmissionTimeout, 100, 65535);
+    checkValue("cumulativeAckTimeout", builder._cumulativeAckTimeout, 100, 65535);
+    checkValue("congestionControl", builder._congestionControl,
+        CONGESTION_CONTROL_NONE, CONGESTION_CONTROL_CUBIC);
+    checkValue("fastRetransmitThreshold", builder._fastRetransmitThreshold, 0, 255);
+
+    _maxSendQueueSize = builder._maxSendQueueSize;
+    _maxRecvQueueSize = builder._maxRecvQueueSize;
+    _maxSegmentSize = builder._maxSegmentSize;
+    _maxOutstandingSegs = builder._maxOutstandingSegs;
+    _maxRetrans = builder._maxRetrans;
+    _maxCumulativeAcks = builder._maxCumulativeAcks;
+    _maxOutOfSequence = builder._maxOutOfSequence;
+    _maxAutoReset = builder._maxAutoReset;
+    _nullSegmentTimeout = builder._nullSegmentTimeout;
+    _retransmissionTimeout = builder._retransmissionTimeout;
+    _cumulativeAckTimeout = builder._cumulativeAckTimeout;
+    _congestionControl = builder._congestionControl;
+    _fastRetransmitThreshold = builder._fastRetransmitThreshold;
+    _streams = builder._streams;
   }
 
   /**
@@ -215,6 +251,35 @@ public class ReliableSocketProfile {
     return _cumulativeAckTimeout;
   }
 
+  /**
+   * Returns the congestion control algorithm.
+   * This parameter is local and not negotiated with the peer.
+   */
+  public int congestionControl() {
+    return _congestionControl;
+  }
+
+  /**
+   * Returns the number of later segments the peer must report before
+   * a missing segment is retransmitted (0 means fast retransmit is disabled).
+   * This parameter is local and not negotiated with the peer.
+   */
+  public int fastRetransmitThreshold() {
+    return _fastRetransmitThreshold;
+  }
+
+  /**
+   * Returns true if the application multiplexes streams over the
+   * connection with a {@link ReliableSocketMultiplexer}. This is offered
+   * to the peer in the SYN exchange, and only takes effect if the peer
+   * offers it as well.
+   *
+   * @see ReliableSocket#isMultiplexed()
+   */
+  public boolean streams() {
+    return _streams;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("[");
@@ -228,11 +293,187 @@ public class ReliableSocketProfile {
     sb.append(_maxAutoReset).append(", ");
     sb.append(_nullSegmentTimeout).append(", ");
     sb.append(_retransmissionTimeout).append(", ");
-    sb.append(_cumulativeAckTimeout);
+    sb.append(_cumulativeAckTimeout).append(", ");
+    sb.append(_congestionControl).append(", ");
+    sb.append(_fastRetransmitThreshold).append(", ");
+    sb.append(_streams);
     sb.append("]");
     return sb.toString();
   }
 
+  /**
+   * Builds a profile, starting from the default rudp parameter values
+   * or from the values of another profile. The values are checked when
+   * the profile is built.
+   */
+  public static class Builder {
+    private int _maxSendQueueSize = MAX_SEND_QUEUE_SIZE;
+    private int _maxRecvQueueSize = MAX_RECV_QUEUE_SIZE;
+    private int _maxSegmentSize = MAX_SEGMENT_SIZE;
+    private int _maxOutstandingSegs = MAX_OUTSTANDING_SEGS;
+    private int _maxRetrans = 0/*MAX_RETRANS*/;
+    private int _maxCumulativeAcks = MAX_CUMULATIVE_ACKS;
+    private int _maxOutOfSequence = MAX_OUT_OF_SEQUENCE;
+    private int _maxAutoReset = MAX_AUTO_RESET;
+    private int _nullSegmentTimeout = NULL_SEGMENT_TIMEOUT;
+    private int _retransmissionTimeout = RETRANSMISSION_TIMEOUT;
+    private int _cumulativeAckTimeout = CUMULATIVE_ACK_TIMEOUT;
+    private int _congestionControl = CONGESTION_CONTROL;
+    private int _fastRetransmitThreshold = FAST_RETRANSMIT_THRESHOLD;
+    private boolean _streams = false;
+
+    /**
+     * Creates a builder with the default rudp parameter values.
+     */
+    public Builder() {
+    }
+
+    /**
+     * Creates a builder with the rudp parameter values of a profile.
+     *
+     * @param profile the profile to start from.
+     */
+    public Builder(ReliableSocketProfile profile) {
+      _maxSendQueueSize = profile._maxSendQueueSize;
+      _maxRecvQueueSize = profile._maxRecvQueueSize;
+      _maxSegmentSize = profile._maxSegmentSize;
+      _maxOutstandingSegs = profile._maxOutstandingSegs;
+      _maxRetrans = profile._maxRetrans;
+      _maxCumulativeAcks = profile._maxCumulativeAcks;
+      _maxOutOfSequence = profile._maxOutOfSequence;
+      _maxAutoReset = profile._maxAutoReset;
+      _nullSegmentTimeout = profile._nullSegmentTimeout;
+      _retransmissionTimeout = profile._retransmissionTimeout;
+      _cumulativeAckTimeout = profile._cumulativeAckTimeout;
+      _congestionControl = profile._congestionControl;
+      _fastRetransmitThreshold = profile._fastRetransmitThreshold;
+      _streams = profile._streams;
+    }
+
+    /**
+     * Sets the maximum send queue size (packets, at most 32766).
+     */
+    public Builder maxSendQueueSize(int maxSendQueueSize) {
+      _maxSendQueueSize = maxSendQueueSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum receive queue size (packets, at most 32766).
+     */
+    public Builder maxRecvQueueSize(int maxRecvQueueSize) {
+      _maxRecvQueueSize = maxRecvQueueSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum segment size (octets) (must be at least 22).
+     */
+    public Builder maxSegmentSize(int maxSegmentSize) {
+      _maxSegmentSize = maxSegmentSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of outstanding segments (at most 32766).
+     */
+    public Builder maxOutstandingSegs(int maxOutstandingSegs) {
+      _maxOutstandingSegs = maxOutstandingSegs;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of consecutive retransmissions (0 means unlimited).
+     */
+    public Builder maxRetrans(int maxRetrans) {
+      _maxRetrans = maxRetrans;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of unacknowledged received segments.
+     */
+    public Builder maxCumulativeAcks(int maxCumulativeAcks) {
+      _maxCumulativeAcks = maxCumulativeAcks;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of out-of-sequence received segments.
+     */
+    public Builder maxOutOfSequence(int maxOutOfSequence) {
+      _maxOutOfSequence = maxOutOfSequence;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of consecutive auto resets (not used).
+     */
+    public Builder maxAutoReset(int maxAutoReset) {
+      _maxAutoReset = maxAutoReset;
+      return this;
+    }
+
+    /**
+     * Sets the null segment timeout (ms).
+     */
+    public Builder nullSegmentTimeout(int nullSegmentTimeout) {
+      _nullSegmentTimeout = nullSegmentTimeout;
+      return this;
+    }
+
+    /**
+     * Sets the retransmission timeout (ms).
+     */
+    public Builder retransmissionTimeout(int retransmissionTimeout) {
+      _retransmissionTimeout = retransmissionTimeout;
+      return this;
+    }
+
+    /**
+     * Sets the cumulative acknowledge timeout (ms).
+     */
+    public Builder cumulativeAckTimeout(int cumulativeAckTimeout) {
+      _cumulativeAckTimeout = cumulativeAckTimeout;
+      return this;
+    }
+
+    /**
+     * Sets the congestion control algorithm (one of the
+     * <code>CONGESTION_CONTROL_*</code> constants).
+     */
+    public Builder congestionControl(int congestionControl) {
+      _congestionControl = congestionControl;
+      return this;
+    }
+
+    /**
+     * Sets the number of later segments reported by the peer before a
+     * missing segment is retransmitted (0 disables fast retransmit).
+     */
+    public Builder fastRetransmitThreshold(int fastRetransmitThreshold) {
+      _fastRetransmitThreshold = fastRetransmitThreshold;
+      return this;
+    }
+
+    /**
+     * Sets whether the application multiplexes streams over the connection.
+     */
+    public Builder streams(boolean streams) {
+      _streams = streams;
+      return this;
+    }
+
+    /**
+     * Creates the profile.
+     *
+     * @throws IllegalArgumentException if a parameter is out of range.
+     */
+    public ReliableSocketProfile build() {
+      return new ReliableSocketProfile(this);
+    }
+  }
+
   private void checkValue(String param,
                           int value,
                           int minValue,
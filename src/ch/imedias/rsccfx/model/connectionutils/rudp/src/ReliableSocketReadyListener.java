@@ -0,0 +1,58 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * The listener interface for receiving readiness events of a socket
+ * whose channel is used in non-blocking mode. The class that serves
+ * several sockets from one thread implements this interface and reads
+ * or writes the channel of a socket when it is notified.
+ * <p>
+ * The events are edge-triggered: a socket is reported readable only
+ * after a read found no data, and writable only after a write could
+ * not proceed, so the channel must be read or written until it can go
+ * no further. Events may be spurious. The socket is also reported
+ * readable and writable when the connection is closed, reset, or
+ * fails, so that the error can be collected. The listeners are
+ * invoked by the threads of the socket and must not block.
+ *
+ * @see ReliableSocketChannel
+ */
+public interface ReliableSocketReadyListener {
+  /**
+   * Invoked when data or the end of the stream can be read.
+   */
+  public void readyToRead(ReliableSocket sock);
+
+  /**
+   * Invoked when data can be written.
+   */
+  public void readyToWrite(ReliableSocket sock);
+}
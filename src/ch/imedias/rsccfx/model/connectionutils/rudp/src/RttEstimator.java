@@ -0,0 +1,128 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+/**
+ * This class estimates the round-trip time of a connection and computes
+ * the retransmission timeout from it (see RFC 6298).
+ *
+ * @see ReliableSocket#getRoundTripTime()
+ * @see ReliableSocket#getRetransmissionTimeout()
+ */
+class RttEstimator {
+  static final int MIN_RTO = 200;   /* (ms) */
+  static final int MAX_RTO = 60000; /* (ms) */
+  private static final int CLOCK_GRANULARITY = 10; /* (ms) */
+  private long _srtt = -1;  /* Smoothed round-trip time (ms) */
+  private long _minRtt = -1; /* Smallest round-trip time measured (ms) */
+  private long _rttvar;     /* Round-trip time variation (ms) */
+  private long _rto;        /* Retransmission timeout without backoff (ms) */
+  private int _backoff = 1; /* Exponential backoff factor */
+
+  /**
+   * Creates a new estimator.
+   *
+   * @param initialRto the retransmission timeout until the
+   *                   first round-trip time has been measured.
+   */
+  RttEstimator(int initialRto) {
+    _rto = initialRto;
+  }
+
+  /**
+   * Adds a round-trip time measurement and resets the backoff.
+   * <p>
+   * Jacobson/Karels: SRTT and RTTVAR are exponentially weighted moving
+   * averages of the measurements and of their deviation from SRTT.
+   *
+   * @param rtt the measured round-trip time (ms).
+   */
+  synchronized void sample(long rtt) {
+    if (rtt < 0) {
+      return;
+    }
+
+    if (_minRtt < 0 || rtt < _minRtt) {
+      _minRtt = rtt;
+    }
+
+    if (_srtt < 0) {
+      _srtt = rtt;
+      _rttvar = rtt / 2;
+    } else {
+      _rttvar = (3 * _rttvar + Math.abs(_srtt - rtt)) / 4;
+      _srtt = (7 * _srtt + rtt) / 8;
+    }
+
+    _rto = _srtt + Math.max(CLOCK_GRANULARITY, 4 * _rttvar);
+    _backoff = 1;
+  }
+
+  /**
+   * Doubles the retransmission timeout after it has expired.
+   */
+  synchronized void backoff() {
+    if (getRetransmissionTimeout() < MAX_RTO) {
+      _backoff *= 2;
+    }
+  }
+
+  /**
+   * Returns the smoothed round-trip time (ms), or -1 if it
+   * has not been measured yet.
+   */
+  synchronized long getRoundTripTime() {
+    return _srtt;
+  }
+
+  /**
+   * Returns the smallest round-trip time measured (ms), or -1 if it
+   * has not been measured yet. Unlike the smoothed round-trip time,
+   * it hardly includes queuing and acknowledgment delays.
+   */
+  synchronized long getMinRoundTripTime() {
+    return _minRtt;
+  }
+
+  /**
+   * Returns the round-trip time variation (ms).
+   */
+  synchronized long getRoundTripTimeVariation() {
+    return _rttvar;
+  }
+
+  /**
+   * Returns the current retransmission timeout (ms).
+   */
+  synchronized long getRetransmissionTimeout() {
+    return Math.min(Math.max(_rto, MIN_RTO) * _backoff, MAX_RTO);
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * This class implements an event-driven engine that receives and
+ * processes the segments of many rudp sockets on a few threads.
+ * <p>
+ * Each event loop owns a <code>Selector</code> on which non-blocking
+ * <code>DatagramChannel</code>s are registered. When a channel becomes
+ * readable, the loop receives its datagrams, parses them and runs the
+ * protocol state machine of the addressed connection, so that sockets
+ * and server sockets created with an engine need no receiver thread of
+ * their own. Channels are spread over the loops in turn, and a closed
+ * channel is deregistered automatically.
+ * <p>
+ * The blocking <code>Socket</code> and <code>ServerSocket</code> API of
+ * {@link ReliableSocket} and {@link ReliableServerSocket} is unchanged;
+ * only the threads that receive segments differ.
+ *
+ * @see ReliableSocket#ReliableSocket(RudpEngine, ReliableSocketProfile)
+ * @see ReliableServerSocket#ReliableServerSocket(int, RudpEngine)
+ */
+public class RudpEngine {
+  private static final int MAX_BATCH = 64; /* Datagrams received per channel and turn */
+  private static RudpEngine _default;
+  private EventLoop[] _loops;
+  private int _next;
+
+  /**
+   * Creates an engine with one event loop per available processor.
+   *
+   * @throws IOException if a selector cannot be opened.
+   */
+  public RudpEngine()
+      throws IOException {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates an engine.
+   *
+   * @param threads the number of event loops.
+   * @throws IOException if a selector cannot be opened.
+   */
+  public RudpEngine(int threads)
+      throws IOException {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads <= 0");
+    }
+
+    _loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      _loops[i] = new EventLoop(i);
+    }
+    for (int i = 0; i < threads; i++) {
+      _loops[i].start();
+    }
+  }
+
+  /**
+   * Returns the engine shared by the process, which is created with
+   * one event loop per available processor when first used.
+   *
+   * @throws IOException if the engine cannot be created.
+   */
+  public static synchronized RudpEngine getDefault()
+      throws IOException {
+    if (_default == null) {
+      _default = new RudpEngine();
+    }
+
+    return _default;
+  }
+
+  /**
+   * Returns the number of event loops.
+   */
+  public int getThreadCount() {
+    return _loops.length;
+  }
+
+  /**
+   * Registers a channel whose segments are passed to the given handler
+   * on one of the event loops. The channel is put in non-blocking mode.
+   *
+   * @param channel the channel.
+   * @param handler the handler of the segments received on the channel.
+   * @throws IOException if the channel cannot be configured.
+   */
+  void register(DatagramChannel channel, Handler handler)
+      throws IOException {
+    channel.configureBlocking(false);
+    EventLoop loop;
+    synchronized (this) {
+      loop = _loops[_next];
+      _next = (_next + 1) % _loops.length;
+    }
+    loop.register(channel, handler);
+  }
+
+  /**
+   * Stops the event loops. The registered channels are not closed.
+   */
+  public void shutdown() {
+    for (int i = 0; i < _loops.length; i++) {
+      _loops[i].shutdown();
+    }
+  }
+
+  /**
+   * Receives the segments of a channel.
+   * Handlers run on an event loop and must not block.
+   */
+  interface Handler {
+    /**
+     * Handles a segment. The segment refers to the receive buffer of the
+     * event loop, and must be detached to be kept after this method returns.
+     *
+     * @param s        the segment.
+     * @param endpoint the address of the peer that sent it.
+     */
+    void segmentReceived(Segment s, SocketAddress endpoint);
+  }
+
+  private static class EventLoop extends Thread {
+    private Selector _selector;
+    private ArrayList<Object> _pending = new ArrayList<Object>(); /* Channels and handlers to register */
+    private ByteBuffer _buffer = ByteBuffer.allocate(65535);
+    private volatile boolean _shutdown = false;
+
+    public EventLoop(int index)
+        throws IOException {
+      super("RudpEngine-" + index);
+      setDaemon(true);
+      _selector = Selector.open();
+    }
+
+    public void register(DatagramChannel channel, Handler handler) {
+      synchronized (_pending) {
+        _pending.add(channel);
+        _pending.add(handler);
+      }
+      _selector.wakeup();
+    }
+
+    public void shutdown() {
+      _shutdown = true;
+      _selector.wakeup();
+    }
+
+    public void run() {
+      while (!_shutdown) {
+        try {
+          _selector.select();
+        } catch (IOException xcp) {
+          xcp.printStackTrace();
+          break;
+        }
+
+        registerPending();
+
+        Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (key.isValid() && key.isReadable()) {
+            receive((DatagramChannel) key.channel(), (Handler) key.attachment());
+          }
+        }
+      }
+
+      try {
+        _selector.close();
+      } catch (IOException xcp) {
+        xcp.printStackTrace();
+      }
+    }
+
+    private void registerPending() {
+      synchronized (_pending) {
+        for (int i = 0; i < _pending.size(); i += 2) {
+          DatagramChannel channel = (DatagramChannel) _pending.get(i);
+          try {
+            channel.register(_selector, SelectionKey.OP_READ, _pending.get(i + 1));
+          } catch (ClosedChannelException xcp) {
+            /* Closed before it could be registered */
+          }
+        }
+        _pending.clear();
+      }
+    }
+
+    /**
+     * Receives and handles the datagrams pending on a channel, at most
+     * MAX_BATCH of them so that a busy channel does not starve others.
+     */
+    private void receive(DatagramChannel channel, Handler handler) {
+      for (int i = 0; i < MAX_BATCH; i++) {
+        SocketAddress endpoint;
+        try {
+          _buffer.clear();
+          endpoint = channel.receive(_buffer);
+        } catch (IOException xcp) {
+          if (channel.isOpen()) {
+            xcp.printStackTrace();
+          }
+          return;
+        }
+
+        if (endpoint == null) {
+          return;
+        }
+
+        try {
+          handler.segmentReceived(
+              Segment.parse(_buffer.array(), 0, _buffer.position()), endpoint);
+        } catch (RuntimeException xcp) {
+          /* A malformed datagram or a failure in one connection must not stop the loop */
+          xcp.printStackTrace();
+        }
+      }
+    }
+  }
+}
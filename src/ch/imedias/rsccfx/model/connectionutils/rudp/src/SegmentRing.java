@@ -0,0 +1,340 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+
+/**
+ * This class implements a fixed-capacity circular buffer of segments
+ * indexed by sequence number.
+ * <p>
+ * The buffer covers <code>capacity</code> consecutive sequence numbers
+ * starting at its base. A segment is stored in the slot at its distance
+ * from the base, and a bitmap records which slots are occupied, so that
+ * segments are inserted, looked up and removed in constant time and the
+ * buffer is scanned in sequence order a word of the bitmap at a time.
+ * <p>
+ * The base is set by the first segment put into a new buffer, and is
+ * only moved forward with {@link #moveBase(int)} or when the first
+ * segment is removed with {@link #removeFirst()}, so that a segment
+ * put late, after segments with higher sequence numbers, still fits.
+ */
+class SegmentRing {
+  private Segment[] _slots;
+  private long[] _bitmap;     /* Occupied slots */
+  private int _modulus;       /* Number of sequence numbers */
+  private int _head;          /* Slot of the base */
+  private int _base = -1;     /* First sequence number covered, -1 if not set */
+  private int _span;          /* Distance from the base past the last segment */
+  private int _size;
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param capacity the number of sequence numbers covered.
+   * @param modulus  the number of sequence numbers.
+   */
+  SegmentRing(int capacity, int modulus) {
+    _slots = new Segment[capacity];
+    _bitmap = new long[(capacity + 63) / 64];
+    _modulus = modulus;
+  }
+
+  /**
+   * Changes the capacity and the sequence number space, keeping
+   * the segments that still fit in the buffer.
+   *
+   * @param capacity the number of sequence numbers covered.
+   * @param modulus  the number of sequence numbers.
+   */
+  void resize(int capacity, int modulus) {
+    Segment[] segments = new Segment[_size];
+    int n = 0;
+    for (int i = nextOffset(0); i >= 0; i = nextOffset(i + 1)) {
+      segments[n++] = at(i);
+    }
+
+    int base = _base;
+    _slots = new Segment[capacity];
+    _bitmap = new long[(capacity + 63) / 64];
+    _modulus = modulus;
+    clear();
+
+    _base = base;
+    for (int i = 0; i < n; i++) {
+      put(segments[i]);
+    }
+  }
+
+  int capacity() {
+    return _slots.length;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  boolean isEmpty() {
+    return _size == 0;
+  }
+
+  /**
+   * Returns the distance of a sequence number from the base, which is
+   * not less than the capacity if the sequence number is not covered.
+   */
+  int offset(int seqn) {
+    if (_base < 0) {
+      return _slots.length;
+    }
+
+    int offset = seqn - _base;
+    return (offset < 0) ? offset + _modulus : offset;
+  }
+
+  /**
+   * Returns true if the sequence number is covered by the buffer, or
+   * would be if a segment were put into the buffer now.
+   */
+  boolean fits(int seqn) {
+    return _base < 0 || offset(seqn) < _slots.length;
+  }
+
+  /**
+   * Puts a segment into the buffer.
+   *
+   * @param s the segment.
+   * @return false if the sequence number is not covered or a
+   * segment with the same sequence number is already there.
+   */
+  boolean put(Segment s) {
+    if (_base < 0) {
+      _base = s.seq();
+      _head = 0;
+    }
+
+    int offset = offset(s.seq());
+    if (offset >= _slots.length) {
+      return false;
+    }
+
+    int slot = slot(offset);
+    if (isSet(slot)) {
+      return false;
+    }
+
+    _slots[slot] = s;
+    _bitmap[slot >>> 6] |= 1L << slot;
+    _size++;
+    _span = Math.max(_span, offset + 1);
+    return true;
+  }
+
+  /**
+   * Appends a segment after the last one, whatever its sequence number.
+   *
+   * @param s the segment.
+   * @return false if the buffer is full.
+   */
+  boolean add(Segment s) {
+    if (_span >= _slots.length) {
+      return false;
+    }
+
+    if (_base < 0) {
+      _base = s.seq();
+      _head = 0;
+    }
+
+    int slot = slot(_span++);
+    _slots[slot] = s;
+    _bitmap[slot >>> 6] |= 1L << slot;
+    _size++;
+    return true;
+  }
+
+  /**
+   * Returns the segment with the given sequence number, or
+   * <code>null</code> if there is none.
+   */
+  Segment get(int seqn) {
+    int offset = offset(seqn);
+    if (offset >= _span) {
+      return null;
+    }
+
+    return _slots[slot(offset)];
+  }
+
+  /**
+   * Returns the segment at the given distance from the base, or
+   * <code>null</code> if there is none.
+   */
+  Segment at(int offset) {
+    if (offset >= _span) {
+      return null;
+    }
+
+    return _slots[slot(offset)];
+  }
+
+  /**
+   * Returns the distance from the base of the first segment at or
+   * after the given distance, or -1 if there is none.
+   */
+  int nextOffset(int offset) {
+    while (offset < _span) {
+      int slot = slot(offset);
+      long word = _bitmap[slot >>> 6] >>> slot;
+      if (word != 0) {
+        offset += Long.numberOfTrailingZeros(word);
+        return (offset < _span) ? offset : -1;
+      }
+
+      /* Skip to the next word, or wrap around to the first slot */
+      offset += Math.min(64 - (slot & 63), _slots.length - slot);
+    }
+
+    return -1;
+  }
+
+  /**
+   * Returns the first segment in sequence order, or
+   * <code>null</code> if the buffer is empty.
+   */
+  Segment first() {
+    int offset = nextOffset(0);
+    return (offset < 0) ? null : _slots[slot(offset)];
+  }
+
+  /**
+   * Removes the segment with the given sequence number. The base
+   * does not move.
+   *
+   * @return the removed segment, or <code>null</code> if there is none.
+   */
+  Segment remove(int seqn) {
+    int offset = offset(seqn);
+    if (offset >= _span) {
+      return null;
+    }
+
+    return removeAt(offset);
+  }
+
+  /**
+   * Removes the first segment in sequence order and moves
+   * the base past it.
+   *
+   * @return the removed segment, or <code>null</code> if the buffer is empty.
+   */
+  Segment removeFirst() {
+    int offset = nextOffset(0);
+    if (offset < 0) {
+      return null;
+    }
+
+    Segment s = removeAt(offset);
+    advance(offset + 1);
+    return s;
+  }
+
+  /**
+   * Moves the base forward to the given sequence number and
+   * discards the segments before it.
+   *
+   * @param seqn the new base.
+   */
+  void moveBase(int seqn) {
+    int offset = offset(seqn);
+    if (_base >= 0 && offset >= _modulus / 2) {
+      return; /* Behind the base */
+    }
+
+    if (_size == 0 || offset >= _span) {
+      clear();
+      _base = seqn;
+      return;
+    }
+
+    for (int i = nextOffset(0); i >= 0 && i < offset; i = nextOffset(i + 1)) {
+      removeAt(i);
+    }
+    advance(offset);
+  }
+
+  /**
+   * Removes all segments and unsets the base.
+   */
+  void clear() {
+    for (int i = nextOffset(0); i >= 0; i = nextOffset(i + 1)) {
+      _slots[slot(i)] = null;
+    }
+
+    for (int i = 0; i < _bitmap.length; i++) {
+      _bitmap[i] = 0;
+    }
+
+    _head = 0;
+    _base = -1;
+    _span = 0;
+    _size = 0;
+  }
+
+  private Segment removeAt(int offset) {
+    int slot = slot(offset);
+    if (!isSet(slot)) {
+      return null;
+    }
+
+    Segment s = _slots[slot];
+    _slots[slot] = null;
+    _bitmap[slot >>> 6] &= ~(1L << slot);
+    if (--_size == 0) {
+      _span = 0;
+    }
+    return s;
+  }
+
+  private void advance(int offset) {
+    _head = slot(offset);
+    _base = (_base + offset) % _modulus;
+    _span = Math.max(_span - offset, 0);
+  }
+
+  private int slot(int offset) {
+    int slot = _head + offset;
+    return (slot >= _slots.length) ? slot - _slots.length : slot;
+  }
+
+  private boolean isSet(int slot) {
+    return (_bitmap[slot >>> 6] & (1L << slot)) != 0;
+  }
+}
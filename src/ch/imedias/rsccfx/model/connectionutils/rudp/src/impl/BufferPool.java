@@ -0,0 +1,97 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A pool of segment buffers.
+ * <p>
+ * Buffers are handed out by <code>acquire</code> and given back by
+ * <code>release</code> once the segment they hold has been acknowledged,
+ * so that a connection in steady state reuses the buffers of its send
+ * window instead of allocating one per segment. At most
+ * <code>maxBuffers</code> buffers are kept, and pooled buffers that are
+ * smaller than requested (e.g. after the segment size has grown) are
+ * dropped.
+ */
+public class BufferPool {
+  private final ArrayList<ByteBuffer> _buffers = new ArrayList<ByteBuffer>();
+  private int _maxBuffers;
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxBuffers the maximum number of buffers kept in the pool.
+   */
+  public BufferPool(int maxBuffers) {
+    _maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Returns a cleared, array backed buffer of the given capacity at least.
+   *
+   * @param capacity the minimum capacity.
+   */
+  public synchronized ByteBuffer acquire(int capacity) {
+    while (!_buffers.isEmpty()) {
+      ByteBuffer buffer = _buffers.remove(_buffers.size() - 1);
+      if (buffer.capacity() >= capacity) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+
+    return ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Gives a buffer back to the pool. The buffer must not be used afterwards.
+   *
+   * @param buffer the buffer.
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    if (_buffers.size() < _maxBuffers) {
+      _buffers.add(buffer);
+    }
+  }
+
+  /**
+   * Sets the maximum number of buffers kept in the pool.
+   */
+  public synchronized void setMaxBuffers(int maxBuffers) {
+    _maxBuffers = maxBuffers;
+    while (_buffers.size() > _maxBuffers) {
+      _buffers.remove(_buffers.size() - 1);
+    }
+  }
+}
@@ -30,6 +30,7 @@
 
 package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
 
+import java.nio.ByteBuffer;
 
 /*
  *  Data Segment
@@ -47,20 +48,63 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
  *
  */
 public class DATSegment extends Segment {
+  /* Room for the longest header in front of the data of pooled segments */
+  public static final int HEADROOM = RUDP_LSN_HEADER_LEN + TS_XLEN + WND_XLEN;
   private byte[] _data;
+  private int _off; /* Offset of the data in _data */
+  private int _len; /* Length of the data */
+  private ByteBuffer _buffer; /* Pooled buffer backing _data, if any */
+  private int _parityEnd = -1; /* Last sequence number of the parity group, if any */
+  private boolean _expedited = false; /* Sent through the expedited lane (not encoded) */
+
+  /*
+   * Parsed segments refer to the data in the datagram they were parsed
+   * from until they are detached.
+   */
 
   protected DATSegment() {
   }
 
   public DATSegment(int seqn, int ackn, byte[] b, int off, int len) {
+    this(seqn, ackn, ByteBuffer.allocate(HEADROOM + len), b, off, len);
+  }
+
+  /**
+   * Creates a data segment whose data is copied once into the given
+   * buffer, after HEADROOM octets in which the header is encoded when
+   * the segment is sent, so that neither sending nor retransmitting
+   * the segment copies the data again.
+   *
+   * @param buffer an array backed buffer of HEADROOM + len octets at least.
+   */
+  public DATSegment(int seqn, int ackn, ByteBuffer buffer,
+                    byte[] b, int off, int len) {
+    init(ACK_FLAG, seqn, RUDP_HEADER_LEN);
+    setAck(ackn);
+    _buffer = buffer;
+    _data = buffer.array();
+    _off = buffer.arrayOffset() + HEADROOM;
+    _len = len;
+    System.arraycopy(b, off, _data, _off, len);
+  }
+
+  /**
+   * Creates a data segment whose data has already been written into
+   * the given buffer, after HEADROOM octets.
+   *
+   * @param buffer an array backed buffer of HEADROOM + len octets at least.
+   */
+  public DATSegment(int seqn, int ackn, ByteBuffer buffer, int len) {
     init(ACK_FLAG, seqn, RUDP_HEADER_LEN);
     setAck(ackn);
-    _data = new byte[len];
-    System.arraycopy(b, off, _data, 0, len);
+    _buffer = buffer;
+    _data = buffer.array();
+    _off = buffer.arrayOffset() + HEADROOM;
+    _len = len;
   }
 
   public int length() {
-    return _data.length + super.length();
+    return _len + headerLength();
   }
 
   public String type() {
@@ -68,18 +112,120 @@ public class DATSegment extends Segment {
   }
 
   public byte[] getData() {
-    return _data;
+    if (_off == 0 && _len == _data.length) {
+      return _data;
+    }
+
+    byte[] data = new byte[_len];
+    System.arraycopy(_data, _off, data, 0, _len);
+    return data;
+  }
+
+  public int getDataLength() {
+    return _len;
+  }
+
+  /**
+   * Copies <code>len</code> octets of data, starting at octet
+   * <code>srcPos</code>, into the given array.
+   */
+  public void getData(int srcPos, byte[] dst, int dstPos, int len) {
+    System.arraycopy(_data, _off + srcPos, dst, dstPos, len);
+  }
+
+  /**
+   * XORs the data of the segment into the given array, which must
+   * hold <code>getDataLength()</code> octets at least.
+   */
+  public void xorData(byte[] dst) {
+    for (int i = 0; i < _len; i++) {
+      dst[i] ^= _data[_off + i];
+    }
+  }
+
+  /**
+   * Returns the sequence number of the last segment of the group whose
+   * parity protects this segment (see FECSegment), or -1 if there is none.
+   */
+  public int getParityEnd() {
+    return _parityEnd;
+  }
+
+  public void setParityEnd(int seqn) {
+    _parityEnd = seqn;
+  }
+
+  /**
+   * Returns true if the segment carries latency-sensitive data, which
+   * is sent ahead of the other segments. This is local to the sender.
+   */
+  public boolean isExpedited() {
+    return _expedited;
+  }
+
+  public void setExpedited(boolean expedited) {
+    _expedited = expedited;
+  }
+
+  /**
+   * Copies the data of a parsed segment into a buffer of the given
+   * pool, so that the segment remains valid once the datagram it was
+   * parsed from is reused. Detached segments must be released to
+   * the same pool.
+   *
+   * @param pool the pool.
+   */
+  public void detach(BufferPool pool) {
+    if (_buffer != null) {
+      return;
+    }
+
+    ByteBuffer buffer = pool.acquire(_len);
+    System.arraycopy(_data, _off, buffer.array(), buffer.arrayOffset(), _len);
+    _buffer = buffer;
+    _data = buffer.array();
+    _off = buffer.arrayOffset();
+  }
+
+  public ByteBuffer encode(ByteBuffer scratch) {
+    if (_buffer == null) {
+      return null;
+    }
+
+    int start = _off - headerLength();
+    encodeHeader(_data, start);
+    if (!isLongSequence()) {
+      _data[start + 4] = 0; /* checksum */
+      _data[start + 5] = 0;
+    }
+    _buffer.limit(_off + _len - _buffer.arrayOffset());
+    _buffer.position(start - _buffer.arrayOffset());
+    return _buffer;
+  }
+
+  protected void encode(byte[] buffer) {
+    super.encode(buffer);
+    System.arraycopy(_data, _off, buffer, headerLength(), _len);
   }
 
-  public byte[] getBytes() {
-    byte[] buffer = super.getBytes();
-    System.arraycopy(_data, 0, buffer, RUDP_HEADER_LEN, _data.length);
-    return buffer;
+  /**
+   * Returns the buffer of the segment to the given pool once it has
+   * been acknowledged or delivered. The segment cannot be sent and its
+   * data cannot be read afterwards.
+   *
+   * @param pool the pool the buffer was acquired from.
+   */
+  public void release(BufferPool pool) {
+    if (_buffer != null) {
+      pool.release(_buffer);
+      _buffer = null;
+    }
   }
 
   public void parseBytes(byte[] buffer, int off, int len) {
     super.parseBytes(buffer, off, len);
-    _data = new byte[len - RUDP_HEADER_LEN];
-    System.arraycopy(buffer, off + RUDP_HEADER_LEN, _data, 0, _data.length);
+    _data = buffer;
+    _off = off + headerLength();
+    _len = len - headerLength();
   }
 }
@@ -49,42 +49,194 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
  *  |            Checksum           |
  *  +---------------+---------------+
  *
+ *  With long sequence numbers (LSN flag set) the fixed part of the
+ *  header is 8 octets, each ack number takes two octets and the
+ *  checksum is omitted, i.e. the header length is 2 * N + 8 plus
+ *  the length of the extension fields.
+ *
+ *  If the RNG extension flag is set as well, the list is made of N
+ *  ranges of out-of-sequence segments instead, in sequence order, so
+ *  that a run of received segments takes four octets whatever its
+ *  length:
+ *
+ *  +---------------+---------------+
+ *  |    First sequence # of the    |
+ *  |          1st range            |
+ *  +---------------+---------------+
+ *  |    Last sequence # of the     |
+ *  |          1st range            |
+ *  +---------------+---------------+
+ *  |  . . .                        |
+ *  +---------------+---------------+
+ *
+ *  The header length is then 4 * N + 8 plus the length of the
+ *  extension fields. Lists of single ack numbers are parsed into
+ *  ranges as well, so that they are handled the same way.
  */
 public class EAKSegment extends ACKSegment {
-  private int[] _acks;
+  private int[] _starts; /* First sequence number of each range */
+  private int[] _ends;   /* Last sequence number of each range */
+  private int _nacks;    /* Number of ack numbers in the list format */
 
   protected EAKSegment() {
   }
 
+  /**
+   * Creates an EAK segment that lists out-of-sequence segments
+   * one by one.
+   *
+   * @param acks the sequence numbers, in sequence order.
+   */
   public EAKSegment(int seqn, int ackn, int[] acks) {
     init(EAK_FLAG, seqn, RUDP_HEADER_LEN + acks.length);
     setAck(ackn);
-    _acks = acks;
+    setACKs(acks);
+  }
+
+  /**
+   * Creates an EAK segment that reports ranges of out-of-sequence
+   * segments. It can only be sent with long sequence numbers.
+   *
+   * @param starts the first sequence number of each range, in sequence order.
+   * @param ends   the last sequence number of each range.
+   */
+  public EAKSegment(int seqn, int ackn, int[] starts, int[] ends) {
+    init(EAK_FLAG, seqn, RUDP_HEADER_LEN);
+    setAck(ackn);
+    setExtensionFlag(RNG_XFLAG);
+    _starts = starts;
+    _ends = ends;
   }
 
   public String type() {
     return "EAK";
   }
 
-  public int[] getACKs() {
-    return _acks;
+  /**
+   * Returns the maximum number of out of sequence ack numbers
+   * that fit in the one octet header length field.
+   */
+  public static int maxACKs(boolean longSequence) {
+    if (longSequence) {
+      return (255 - RUDP_LSN_HEADER_LEN - TS_XLEN - WND_XLEN) / 2;
+    }
+
+    return 255 - RUDP_HEADER_LEN;
+  }
+
+  /**
+   * Returns the maximum number of ranges that fit in the one
+   * octet header length field.
+   */
+  public static int maxRanges() {
+    return (255 - RUDP_LSN_HEADER_LEN - TS_XLEN - WND_XLEN) / 4;
+  }
+
+  /**
+   * Returns true if the list is made of ranges.
+   */
+  public boolean hasRanges() {
+    return hasExtensionFlag(RNG_XFLAG);
+  }
+
+  /**
+   * Returns the number of ranges of out-of-sequence segments.
+   */
+  public int getRangeCount() {
+    return _starts.length;
   }
 
-  public byte[] getBytes() {
-    byte[] buffer = super.getBytes();
+  public int getRangeStart(int i) {
+    return _starts[i];
+  }
 
-    for (int i = 0; i < _acks.length; i++) {
-      buffer[4 + i] = (byte) (_acks[i] & 0xFF);
+  public int getRangeEnd(int i) {
+    return _ends[i];
+  }
+
+  protected int bodyLength() {
+    if (hasRanges()) {
+      return _starts.length * 4;
     }
 
-    return buffer;
+    return _nacks * sequenceWidth();
+  }
+
+  protected void encode(byte[] buffer) {
+    super.encode(buffer);
+
+    int pos = bodyOffset();
+    if (hasRanges()) {
+      for (int i = 0; i < _starts.length; i++) {
+        buffer[pos++] = (byte) ((_starts[i] >>> 8) & 0xFF);
+        buffer[pos++] = (byte) (_starts[i] & 0xFF);
+        buffer[pos++] = (byte) ((_ends[i] >>> 8) & 0xFF);
+        buffer[pos++] = (byte) (_ends[i] & 0xFF);
+      }
+      return;
+    }
+
+    for (int i = 0; i < _starts.length; i++) {
+      for (int seqn = _starts[i]; seqn <= _ends[i]; seqn++) {
+        if (isLongSequence()) {
+          buffer[pos++] = (byte) ((seqn >>> 8) & 0xFF);
+        }
+        buffer[pos++] = (byte) (seqn & 0xFF);
+      }
+    }
   }
 
   protected void parseBytes(byte[] buffer, int off, int len) {
     super.parseBytes(buffer, off, len);
-    _acks = new int[len - RUDP_HEADER_LEN];
-    for (int i = 0; i < _acks.length; i++) {
-      _acks[i] = (buffer[off + 4 + i] & 0xFF);
+    int hlen = Math.min(len, (buffer[off + 1] & 0xFF));
+    int pos = off + bodyOffset();
+    if (hasRanges()) {
+      int n = (off + hlen - pos) / 4;
+      _starts = new int[n];
+      _ends = new int[n];
+      for (int i = 0; i < n; i++, pos += 4) {
+        _starts[i] = ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+        _ends[i] = ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+      }
+      return;
+    }
+
+    int[] acks;
+    if (isLongSequence()) {
+      acks = new int[(off + hlen - pos) / 2];
+      for (int i = 0; i < acks.length; i++, pos += 2) {
+        acks[i] = ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+      }
+    } else {
+      acks = new int[len - RUDP_HEADER_LEN];
+      for (int i = 0; i < acks.length; i++) {
+        acks[i] = (buffer[pos + i] & 0xFF);
+      }
+    }
+    setACKs(acks);
+  }
+
+  /**
+   * Sets the list of single ack numbers, merging consecutive
+   * sequence numbers into ranges.
+   */
+  private void setACKs(int[] acks) {
+    int ranges = 0;
+    for (int i = 0; i < acks.length; i++) {
+      if (i == 0 || acks[i] != acks[i - 1] + 1) {
+        ranges++;
+      }
+    }
+
+    _starts = new int[ranges];
+    _ends = new int[ranges];
+    int r = -1;
+    for (int i = 0; i < acks.length; i++) {
+      if (i == 0 || acks[i] != acks[i - 1] + 1) {
+        _starts[++r] = acks[i];
+      }
+      _ends[r] = acks[i];
     }
+    _nacks = acks.length;
   }
 }
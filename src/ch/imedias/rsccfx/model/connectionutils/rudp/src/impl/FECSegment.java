@@ -0,0 +1,179 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import java.util.Arrays;
+
+/*
+ *  FEC Segment
+ *
+ *   0 1 2 3 4 5 6 7 8            15
+ *  +-+-+-+-+-+-+-+-+---------------+
+ *  |0|0|0|0|0|0|0|1|      12       |
+ *  +-+-+-+-+-+-+-+-+---------------+
+ *  | Sequence # of the 1st segment |
+ *  +---------------+---------------+
+ *  |           (unused)            |
+ *  +-+-+-+-+-+-+-+-+---------------+
+ *  | | | |F| | | | |               |
+ *  |0|0|0|E|0|0|0|0|   Reserved    |
+ *  | | | |C| | | | |               |
+ *  +-+-+-+-+-+-+-+-+---------------+
+ *  |  Group Size   |   Reserved    |
+ *  +---------------+---------------+
+ *  |     Data Length Parity        |
+ *  +---------------+---------------+
+ *  |    Data Parity (N octets) ... |
+ *  +---------------+---------------+
+ *
+ *  A parity segment protects a group of data segments with consecutive
+ *  sequence numbers, starting with the one in the sequence number field.
+ *  Its data is the XOR of the data of the segments in the group, each
+ *  padded with zeros to the longest, and its data length parity the XOR
+ *  of their data lengths, so that a receiver that misses exactly one of
+ *  them can rebuild it from the others.
+ *
+ *  Parity segments are only sent with the long header, with the FEC
+ *  extension flag set, once both peers have negotiated them (see
+ *  SYNSegment). The header is shown without the other extension
+ *  fields, which come before the group size as usual. They do not take
+ *  a sequence number and are neither acknowledged nor retransmitted.
+ */
+public class FECSegment extends Segment {
+  public static final int FEC_BODY_LEN = 4;
+  private int _count;     /* Number of segments in the group */
+  private int _lenParity; /* XOR of the data lengths */
+  private byte[] _data;
+  private int _off; /* Offset of the parity in _data */
+  private int _len; /* Length of the parity */
+
+  /*
+   * Parsed segments refer to the data in the datagram they were parsed
+   * from until they are detached.
+   */
+
+  protected FECSegment() {
+  }
+
+  /**
+   * Creates a parity segment.
+   *
+   * @param seqn      the sequence number of the first segment of the group.
+   * @param count     the number of segments in the group.
+   * @param lenParity the XOR of the data lengths of the segments.
+   * @param parity    the XOR of the data of the segments, which is not copied.
+   * @param len       the length of the parity, i.e. of the longest data.
+   */
+  public FECSegment(int seqn, int count, int lenParity, byte[] parity, int len) {
+    init(LSN_FLAG, seqn, RUDP_HEADER_LEN);
+    setExtensionFlag(FEC_XFLAG);
+    _count = count;
+    _lenParity = lenParity;
+    _data = parity;
+    _off = 0;
+    _len = len;
+  }
+
+  public String type() {
+    return "FEC";
+  }
+
+  public int length() {
+    return _len + headerLength();
+  }
+
+  /**
+   * Returns the number of segments in the group.
+   */
+  public int getGroupSize() {
+    return _count;
+  }
+
+  public int getLengthParity() {
+    return _lenParity;
+  }
+
+  public int getParityLength() {
+    return _len;
+  }
+
+  /**
+   * Copies the parity into the given array, which must hold
+   * <code>getParityLength()</code> octets at least.
+   */
+  public void getParity(byte[] dst) {
+    System.arraycopy(_data, _off, dst, 0, _len);
+  }
+
+  /**
+   * Copies the parity of a parsed segment out of the datagram it was
+   * parsed from, so that the segment remains valid once the datagram
+   * is reused.
+   */
+  public void detach() {
+    if (_off == 0 && _len == _data.length) {
+      return;
+    }
+
+    _data = Arrays.copyOfRange(_data, _off, _off + _len);
+    _off = 0;
+  }
+
+  public void setLongSequence(boolean on) {
+    /* Parity segments are always sent with the long header */
+  }
+
+  protected int bodyLength() {
+    return FEC_BODY_LEN;
+  }
+
+  protected void encode(byte[] buffer) {
+    super.encode(buffer);
+    int pos = bodyOffset();
+    buffer[pos] = (byte) (_count & 0xFF);
+    buffer[pos + 2] = (byte) ((_lenParity >>> 8) & 0xFF);
+    buffer[pos + 3] = (byte) (_lenParity & 0xFF);
+    System.arraycopy(_data, _off, buffer, headerLength(), _len);
+  }
+
+  protected void parseBytes(byte[] buffer, int off, int len) {
+    super.parseBytes(buffer, off, len);
+    if (super.bodyLength() < FEC_BODY_LEN) {
+      throw new IllegalArgumentException("Invalid FEC segment");
+    }
+
+    int pos = off + bodyOffset();
+    _count = (buffer[pos] & 0xFF);
+    _lenParity = ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+    _data = buffer;
+    _off = off + headerLength();
+    _len = len - headerLength();
+  }
+}
@@ -42,17 +42,44 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
  *  +---------------+---------------+
  *  |            Checksum           |
  *  +---------------+---------------+
+ *  |     Padding (optional) ...    |
+ *  +---------------+---------------+
  *
+ *  NUL segments that are used as path MTU probes are padded with
+ *  zeros after the header. The padding is not covered by the header
+ *  length and receivers ignore it.
  */
 public class NULSegment extends Segment {
+  private int _padding;
+
   protected NULSegment() {
   }
 
   public NULSegment(int seqn) {
+    this(seqn, 0);
+  }
+
+  public NULSegment(int seqn, int padding) {
     init(NUL_FLAG, seqn, RUDP_HEADER_LEN);
+    _padding = padding;
   }
 
   public String type() {
     return "NUL";
   }
+
+  public int length() {
+    return super.length() + _padding;
+  }
+
+  /**
+   * Returns the number of padding octets.
+   */
+  public int getPadding() {
+    return _padding;
+  }
+
+  public void setPadding(int padding) {
+    _padding = padding;
+  }
 }
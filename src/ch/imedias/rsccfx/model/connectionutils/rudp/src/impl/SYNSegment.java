@@ -61,10 +61,53 @@ package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
  *  +---------------+---------------+
  *  |           Checksum            |
  *  +---------------+---------------+
+ *  |  Max # of Outstanding Segs    |  (LSN only)
+ *  +---------------+---------------+
+ *
+ *  Option flags:
  *
+ *   0x01  always set, no options
+ *   0x02  LSN, the sender supports 16-bit sequence numbers. If both
+ *         peers set it, all segments following the SYN exchange use
+ *         the long header (see Segment). The SYN segment then carries
+ *         the full 16-bit maximum number of outstanding segments in
+ *         two more octets after the checksum, while the original field
+ *         keeps the value capped to 255 for peers that only read that
+ *         field and ignore the octets beyond it.
+ *   0x04  TS, the sender supports the timestamp extension (see Segment).
+ *         Since extensions are only encoded in the long header, it
+ *         takes effect only if LSN has been negotiated as well.
+ *   0x08  WND, the sender advertises its receive window in the long
+ *         header (see Segment) and respects the window advertised by
+ *         the peer. Like TS, it requires LSN.
+ *   0x10  SACK, the sender reports out-of-sequence segments as ranges in
+ *         its EAK segments (see EAKSegment). Like TS, it requires LSN.
+ *   0x20  FEC, the sender accepts parity segments (see FECSegment) and
+ *         may send them. Like TS, it requires LSN.
+ *   0x40  ACKFREQ, the sender may acknowledge several data segments at
+ *         once, as many as arrive within a few milliseconds, and
+ *         acknowledges right away the segments that carry the IMM flag
+ *         (see Segment), which it sets itself when it could not send
+ *         more before an ACK. Like TS, it requires LSN.
+ *   0x80  STREAMS, the application of the sender multiplexes streams
+ *         over the connection, so the data it sends and expects is
+ *         framed (see ReliableSocketMultiplexer). It is only set if the
+ *         application asks for it, and does not require LSN.
+ *
+ *  SYN segments themselves always use the original 8-bit format so
+ *  that peers without support for the options can still parse them.
  */
 public class SYNSegment extends Segment {
+  public static final int OPT_NONE = 0x01;
+  public static final int OPT_LSN = 0x02;
+  public static final int OPT_TIMESTAMPS = 0x04;
+  public static final int OPT_WINDOW = 0x08;
+  public static final int OPT_SACK = 0x10;
+  public static final int OPT_FEC = 0x20;
+  public static final int OPT_ACKFREQ = 0x40;
+  public static final int OPT_STREAMS = 0x80;
   private static final int SYN_HEADER_LEN = RUDP_HEADER_LEN + 16;
+  private static final int SYN_LSN_HEADER_LEN = SYN_HEADER_LEN + 2;
   private int _version;
   private int _maxseg;
   private int _optflags;
@@ -83,11 +126,18 @@ public class SYNSegment extends Segment {
   public SYNSegment(int seqn, int maxseg, int maxsegsize, int rettoval,
                     int cumacktoval, int niltoval, int maxret,
                     int maxcumack, int maxoutseq, int maxautorst) {
-    init(SYN_FLAG, seqn, SYN_HEADER_LEN);
+    this(seqn, maxseg, maxsegsize, rettoval, cumacktoval, niltoval,
+        maxret, maxcumack, maxoutseq, maxautorst, OPT_NONE);
+  }
 
+  public SYNSegment(int seqn, int maxseg, int maxsegsize, int rettoval,
+                    int cumacktoval, int niltoval, int maxret,
+                    int maxcumack, int maxoutseq, int maxautorst,
+                    int optflags) {
     _version = RUDP_VERSION;
-    _maxseg = maxseg;
-    _optflags = 0x01; /* no options */
+    _optflags = optflags | OPT_NONE;
+    init(SYN_FLAG, seqn, hasOption(OPT_LSN) ? SYN_LSN_HEADER_LEN : SYN_HEADER_LEN);
+    _maxseg = Math.min(maxseg, hasOption(OPT_LSN) ? 0xFFFF : 0xFF);
     _maxsegsize = maxsegsize;
     _rettoval = rettoval;
     _cumacktoval = cumacktoval;
@@ -114,6 +164,10 @@ public class SYNSegment extends Segment {
     return _optflags;
   }
 
+  public boolean hasOption(int option) {
+    return (_optflags & option) == option;
+  }
+
   public int getMaxSegmentSize() {
     return _maxsegsize;
   }
@@ -146,10 +200,14 @@ public class SYNSegment extends Segment {
     return _maxautorst;
   }
 
-  public byte[] getBytes() {
-    byte[] buffer = super.getBytes();
+  public void setLongSequence(boolean on) {
+    /* SYN segments are always sent in the original format */
+  }
+
+  protected void encode(byte[] buffer) {
+    super.encode(buffer);
     buffer[4] = (byte) ((_version << 4) & 0xFF);
-    buffer[5] = (byte) (_maxseg & 0xFF);
+    buffer[5] = (byte) (Math.min(_maxseg, 0xFF) & 0xFF);
     buffer[6] = (byte) (_optflags & 0xFF);
     buffer[7] = 0; /* spare */
     buffer[8] = (byte) ((_maxsegsize >>> 8) & 0xFF);
@@ -164,8 +222,10 @@ public class SYNSegment extends Segment {
     buffer[17] = (byte) (_maxcumack & 0xFF);
     buffer[18] = (byte) (_maxoutseq & 0xFF);
     buffer[19] = (byte) (_maxautorst & 0xFF);
-
-    return buffer;
+    if (hasOption(OPT_LSN)) {
+      buffer[22] = (byte) ((_maxseg >>> 8) & 0xFF);
+      buffer[23] = (byte) ((_maxseg >>> 0) & 0xFF);
+    }
   }
 
   protected void parseBytes(byte[] buffer, int off, int len) {
@@ -191,6 +251,9 @@ public class SYNSegment extends Segment {
     _maxcumack = (buffer[off + 17] & 0xFF);
     _maxoutseq = (buffer[off + 18] & 0xFF);
     _maxautorst = (buffer[off + 19] & 0xFF);
+    if (hasOption(OPT_LSN) && len >= SYN_LSN_HEADER_LEN) {
+      _maxseg = ((buffer[off + 22] & 0xFF) << 8) | ((buffer[off + 23] & 0xFF) << 0);
+    }
   }
 }
 
@@ -30,9 +30,13 @@
 
 package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public abstract class Segment {
   public static final int RUDP_VERSION = 1;
   public static final int RUDP_HEADER_LEN = 6;
+  public static final int RUDP_LSN_HEADER_LEN = 8;
 
   public static final byte SYN_FLAG = (byte) 0x80;
   public static final byte ACK_FLAG = (byte) 0x40;
@@ -41,11 +45,27 @@ public abstract class Segment {
   public static final byte NUL_FLAG = (byte) 0x08;
   public static final byte CHK_FLAG = (byte) 0x04;
   public static final byte FIN_FLAG = (byte) 0x02;
+  public static final byte LSN_FLAG = (byte) 0x01;
+
+  /* Extension flags (long header only) */
+  public static final byte TS_XFLAG = (byte) 0x80;
+  public static final int TS_XLEN = 8;
+  public static final byte WND_XFLAG = (byte) 0x40;
+  public static final int WND_XLEN = 4;
+  public static final byte RNG_XFLAG = (byte) 0x20; /* No extension field */
+  public static final byte FEC_XFLAG = (byte) 0x10; /* No extension field */
+  public static final byte IMM_XFLAG = (byte) 0x08; /* No extension field */
+  public static final byte DUP_XFLAG = (byte) 0x04; /* No extension field */
   private int _flags; /* Control flags field */
-  private int _hlen;   /* Header length field */
+  private int _xflags; /* Extension flags field */
+  private int _tsval;  /* Timestamp value */
+  private int _tsecr;  /* Timestamp echo reply */
+  private int _wnd;   /* Receive window (octets) */
+  private int _blen;  /* Length of the segment specific header fields */
   private int _seqn;  /* Sequence number field */
   private int _ackn;  /* Acknowledgment number field */
   private int _nretx; /* Retransmission counter */
+  private long _stime; /* Time of the last transmission (ms) */
 
   protected Segment() {
     _nretx = 0;
@@ -75,11 +95,14 @@ public abstract class Segment {
     } else if ((flags & FIN_FLAG) != 0) {
       segment = new FINSegment();
     } else if ((flags & ACK_FLAG) != 0) { /* always process ACKs or Data segments last */
-      if (len == RUDP_HEADER_LEN) {
+      if (len <= (bytes[off + 1] & 0xFF)) {
         segment = new ACKSegment();
       } else {
         segment = new DATSegment();
       }
+    } else if ((flags & LSN_FLAG) != 0 && len >= RUDP_LSN_HEADER_LEN &&
+        (bytes[off + 6] & FEC_XFLAG) != 0) {
+      segment = new FECSegment();
     }
 
     if (segment == null) {
@@ -101,7 +124,18 @@ public abstract class Segment {
   }
 
   public int length() {
-    return _hlen;
+    return headerLength();
+  }
+
+  /**
+   * Returns the header length of the segment in its current encoding.
+   */
+  public int headerLength() {
+    if (isLongSequence()) {
+      return RUDP_LSN_HEADER_LEN + extensionLength() + bodyLength();
+    }
+
+    return RUDP_HEADER_LEN + bodyLength();
   }
 
   public int getAck() {
@@ -117,6 +151,119 @@ public abstract class Segment {
     _ackn = ackn;
   }
 
+  /**
+   * Returns true if the sequence and acknowledgment numbers of
+   * this segment are encoded as 16-bit fields.
+   */
+  public boolean isLongSequence() {
+    return (_flags & LSN_FLAG) == LSN_FLAG;
+  }
+
+  /**
+   * Selects the 16-bit (true) or the original 8-bit (false)
+   * encoding of the sequence and acknowledgment numbers.
+   */
+  public void setLongSequence(boolean on) {
+    if (on) {
+      _flags = _flags | LSN_FLAG;
+    } else {
+      _flags = _flags & ~LSN_FLAG;
+    }
+  }
+
+  /**
+   * Returns true if the segment carries a timestamp.
+   * Timestamps are only encoded in the long header.
+   */
+  public boolean hasTimestamp() {
+    return hasExtensionFlag(TS_XFLAG);
+  }
+
+  /**
+   * Sets the timestamp value and the echoed timestamp of the peer.
+   */
+  public void setTimestamp(int tsval, int tsecr) {
+    _xflags = (_xflags | TS_XFLAG) & 0xFF;
+    _tsval = tsval;
+    _tsecr = tsecr;
+  }
+
+  public int getTimestamp() {
+    return _tsval;
+  }
+
+  public int getTimestampEcho() {
+    return _tsecr;
+  }
+
+  /**
+   * Returns true if the segment advertises a receive window.
+   * The window is only encoded in the long header.
+   */
+  public boolean hasWindow() {
+    return hasExtensionFlag(WND_XFLAG);
+  }
+
+  /**
+   * Sets the receive window, the number of data octets following
+   * the acknowledged segment that the sender can buffer.
+   */
+  public void setWindow(int wnd) {
+    _xflags = (_xflags | WND_XFLAG) & 0xFF;
+    _wnd = wnd;
+  }
+
+  public int getWindow() {
+    return _wnd;
+  }
+
+  /**
+   * Returns true if the sender asks for the segment to be
+   * acknowledged right away, without ACK decimation.
+   */
+  public boolean isAckRequested() {
+    return hasExtensionFlag(IMM_XFLAG);
+  }
+
+  public void requestAck() {
+    setExtensionFlag(IMM_XFLAG);
+  }
+
+  /**
+   * Returns true if the peer has received a data segment twice since
+   * its previous acknowledgment, i.e. a retransmission was not needed.
+   */
+  public boolean isDuplicateReported() {
+    return hasExtensionFlag(DUP_XFLAG);
+  }
+
+  public void reportDuplicate() {
+    setExtensionFlag(DUP_XFLAG);
+  }
+
+  /**
+   * Returns true if the given extension flag is set.
+   * Extension flags are only encoded in the long header.
+   */
+  protected boolean hasExtensionFlag(int xflag) {
+    return isLongSequence() && (_xflags & xflag & 0xFF) != 0;
+  }
+
+  protected void setExtensionFlag(int xflag) {
+    _xflags = (_xflags | xflag) & 0xFF;
+  }
+
+  /**
+   * Returns the time of the last transmission of this segment (ms).
+   */
+  public long getSendTime() {
+    return _stime;
+  }
+
+  public void setSendTime(long time) {
+    _stime = time;
+  }
+
   public int getRetxCounter() {
     return _nretx;
   }
@@ -127,13 +274,65 @@ public abstract class Segment {
 
   public byte[] getBytes() {
     byte[] buffer = new byte[length()];
+    encode(buffer);
+    return buffer;
+  }
+
+  /**
+   * Encodes the segment for transmission.
+   * <p>
+   * Segments are encoded into the given scratch buffer, which must be
+   * backed by an array of at least length() octets, unless they hold
+   * their own buffer (see DATSegment). The returned buffer's position
+   * and limit delimit the encoded segment, or null is returned if the
+   * segment can no longer be sent.
+   *
+   * @param scratch a buffer that may be overwritten.
+   * @return the buffer holding the encoded segment.
+   */
+  public ByteBuffer encode(ByteBuffer scratch) {
+    byte[] buffer = scratch.array();
+    Arrays.fill(buffer, 0, length(), (byte) 0);
+    encode(buffer);
+    scratch.clear();
+    scratch.limit(length());
+    return scratch;
+  }
 
-    buffer[0] = (byte) (_flags & 0xFF);
-    buffer[1] = (byte) (_hlen & 0xFF);
-    buffer[2] = (byte) (_seqn & 0xFF);
-    buffer[3] = (byte) (_ackn & 0xFF);
+  /**
+   * Encodes the whole segment at the start of the given array,
+   * whose first length() octets are zero.
+   */
+  protected void encode(byte[] buffer) {
+    encodeHeader(buffer, 0);
+  }
 
-    return buffer;
+  /**
+   * Encodes the common header fields at the given offset.
+   */
+  protected void encodeHeader(byte[] buffer, int off) {
+    buffer[off] = (byte) (_flags & 0xFF);
+    buffer[off + 1] = (byte) (headerLength() & 0xFF);
+    if (isLongSequence()) {
+      buffer[off + 2] = (byte) ((_seqn >>> 8) & 0xFF);
+      buffer[off + 3] = (byte) (_seqn & 0xFF);
+      buffer[off + 4] = (byte) ((_ackn >>> 8) & 0xFF);
+      buffer[off + 5] = (byte) (_ackn & 0xFF);
+      buffer[off + 6] = (byte) (_xflags & 0xFF);
+      buffer[off + 7] = 0; /* reserved */
+      int xoff = off + RUDP_LSN_HEADER_LEN;
+      if (hasTimestamp()) {
+        putInt(buffer, xoff, _tsval);
+        putInt(buffer, xoff + 4, _tsecr);
+        xoff += TS_XLEN;
+      }
+      if (hasWindow()) {
+        putInt(buffer, xoff, _wnd);
+      }
+    } else {
+      buffer[off + 2] = (byte) (_seqn & 0xFF);
+      buffer[off + 3] = (byte) (_ackn & 0xFF);
+    }
   }
 
   public String toString() {
@@ -150,26 +349,129 @@ public abstract class Segment {
    *
    *   0 1 2 3 4 5 6 7 8            15
    *  +-+-+-+-+-+-+-+-+---------------+
-   *  |S|A|E|R|N|C| | |    Header     |
-   *  |Y|C|A|S|U|H|0|0|    Length     |
-   *  |N|K|K|T|L|K| | |               |
+   *  |S|A|E|R|N|C| |L|    Header     |
+   *  |Y|C|A|S|U|H|0|S|    Length     |
+   *  |N|K|K|T|L|K| |N|               |
    *  +-+-+-+-+-+-+-+-+---------------+
    *  |  Sequence #   +   Ack Number  |
    *  +---------------+---------------+
    *  |            Checksum           |
    *  +---------------+---------------+
    *
+   *  rudp Header with long sequence numbers (LSN flag set)
+   *
+   *   0 1 2 3 4 5 6 7 8            15
+   *  +-+-+-+-+-+-+-+-+---------------+
+   *  |S|A|E|R|N|C| |L|    Header     |
+   *  |Y|C|A|S|U|H|0|S|    Length     |
+   *  |N|K|K|T|L|K| |N|               |
+   *  +-+-+-+-+-+-+-+-+---------------+
+   *  |          Sequence #           |
+   *  +---------------+---------------+
+   *  |          Ack Number           |
+   *  +---------------+---------------+
+   *  |T|W|R|F|I|D| | |               |
+   *  |S|N|N|E|M|U|0|0|   Reserved    |
+   *  | |D|G|C|M|P| | |               |
+   *  +-+-+-+-+-+-+-+-+---------------+
+   *  |   Timestamp Value (TS flag)   |
+   *  +               +               +
+   *  |                               |
+   *  +---------------+---------------+
+   *  |   Timestamp Echo (TS flag)    |
+   *  +               +               +
+   *  |                               |
+   *  +---------------+---------------+
+   *  |  Receive Window (WND flag)    |
+   *  +               +               +
+   *  |                               |
+   *  +---------------+---------------+
+   *
+   *  The extension fields announced in the extension flags octet
+   *  follow the fixed part of the long header in the order of the
+   *  flags. The RNG, FEC, IMM and DUP flags have no field: they mark an
+   *  EAK list made of ranges (see EAKSegment), a parity segment (see
+   *  FECSegment), a segment to be acknowledged right away, and an
+   *  acknowledgment sent after a data segment has been received twice.
+   *  The segment specific fields (SYN parameters, EAK list) come next;
+   *  in the original format the checksum comes last, in the long format
+   *  it is omitted.
    */
   protected void init(int flags, int seqn, int len) {
     _flags = flags;
     _seqn = seqn;
-    _hlen = len;
+    _blen = len - RUDP_HEADER_LEN;
+  }
+
+  /**
+   * Returns the length of the segment specific header fields.
+   */
+  protected int bodyLength() {
+    return _blen;
+  }
+
+  /**
+   * Returns the offset of the segment specific header fields.
+   */
+  protected int bodyOffset() {
+    return isLongSequence() ? RUDP_LSN_HEADER_LEN + extensionLength() : 4;
+  }
+
+  /**
+   * Returns the length of the extension fields.
+   */
+  protected int extensionLength() {
+    return (hasTimestamp() ? TS_XLEN : 0) + (hasWindow() ? WND_XLEN : 0);
+  }
+
+  protected static void putInt(byte[] buffer, int off, int value) {
+    buffer[off] = (byte) ((value >>> 24) & 0xFF);
+    buffer[off + 1] = (byte) ((value >>> 16) & 0xFF);
+    buffer[off + 2] = (byte) ((value >>> 8) & 0xFF);
+    buffer[off + 3] = (byte) (value & 0xFF);
+  }
+
+  protected static int getInt(byte[] buffer, int off) {
+    return ((buffer[off] & 0xFF) << 24) |
+        ((buffer[off + 1] & 0xFF) << 16) |
+        ((buffer[off + 2] & 0xFF) << 8) |
+        (buffer[off + 3] & 0xFF);
+  }
+
+  /**
+   * Returns the number of bytes used to encode a sequence number.
+   */
+  protected int sequenceWidth() {
+    return isLongSequence() ? 2 : 1;
   }
 
   protected void parseBytes(byte[] buffer, int off, int len) {
     _flags = (buffer[off] & 0xFF);
-    _hlen = (buffer[off + 1] & 0xFF);
-    _seqn = (buffer[off + 2] & 0xFF);
-    _ackn = (buffer[off + 3] & 0xFF);
+    int hlen = (buffer[off + 1] & 0xFF);
+    if (isLongSequence()) {
+      if (len < RUDP_LSN_HEADER_LEN || hlen < RUDP_LSN_HEADER_LEN) {
+        throw new IllegalArgumentException("Invalid segment");
+      }
+      _seqn = ((buffer[off + 2] & 0xFF) << 8) | (buffer[off + 3] & 0xFF);
+      _ackn = ((buffer[off + 4] & 0xFF) << 8) | (buffer[off + 5] & 0xFF);
+      _xflags = (buffer[off + 6] & 0xFF);
+      if (hlen < RUDP_LSN_HEADER_LEN + extensionLength() || len < hlen) {
+        throw new IllegalArgumentException("Invalid segment");
+      }
+      int xoff = off + RUDP_LSN_HEADER_LEN;
+      if (hasTimestamp()) {
+        _tsval = getInt(buffer, xoff);
+        _tsecr = getInt(buffer, xoff + 4);
+        xoff += TS_XLEN;
+      }
+      if (hasWindow()) {
+        _wnd = getInt(buffer, xoff);
+      }
+      _blen = hlen - RUDP_LSN_HEADER_LEN - extensionLength();
+    } else {
+      _seqn = (buffer[off + 2] & 0xFF);
+      _ackn = (buffer[off + 3] & 0xFF);
+      _blen = hlen - RUDP_HEADER_LEN;
+    }
   }
 }
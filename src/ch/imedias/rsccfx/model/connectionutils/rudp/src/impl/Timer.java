@@ -30,94 +30,60 @@
 
 package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
 
-public class Timer extends Thread {
+/**
+ * A timer that runs a task after a delay, and then repeatedly after
+ * the period, or after the delay again if there is no period, until
+ * it is cancelled.
+ * <p>
+ * Timers do not have a thread of their own, all of them are driven by
+ * a shared timing wheel with a resolution of a few milliseconds. Tasks
+ * run on the thread of the wheel and must not block, unless the timer
+ * is created as blocking: its task then runs on a thread of a shared
+ * pool, and an expiration that comes while the previous one still runs
+ * is run after it.
+ */
+public class Timer {
+  private String _name;
   private Runnable _task;
   private long _delay;
   private long _period;
-  private boolean _canceled;
   private boolean _scheduled;
-  private boolean _reset;
   private boolean _stopped;
-  private Object _lock = new Object();
+  private final boolean _blocking;
+  private TimerWheel _wheel = TimerWheel.getInstance();
+  /* Position on the wheel, guarded by the wheel */
+  Timer _prev;
+  Timer _next;
+  int _bucket = -1;
+  long _deadline;  /* Tick at which the timer expires */
+  long _interval;  /* (ms) */
+  long _gen;       /* Incremented when the timer is scheduled or cancelled */
+  boolean _running; /* The task of a blocking timer is running, guarded by the wheel */
+  boolean _rerun;   /* The timer has expired again while its task runs, guarded by the wheel */
+  long _rerunGen;   /* Generation of that expiration */
 
   public Timer(String name, Runnable task) {
-    super(name);
-    setDaemon(true);
+    this(name, task, false);
+  }
 
+  /**
+   * Creates a timer.
+   *
+   * @param name     the name of the timer.
+   * @param task     the task to run when the timer expires.
+   * @param blocking true if the task may block, e.g. because it calls
+   *                 listeners, so that it must not run on the wheel thread.
+   */
+  public Timer(String name, Runnable task, boolean blocking) {
+    _name = name;
     _task = task;
     _delay = 0;
     _period = 0;
-    start();
+    _blocking = blocking;
   }
 
-  public void run() {
-    while (!_stopped) {
-
-      synchronized (this) {
-
-        while (!_scheduled && !_stopped) {
-          try {
-            wait();
-          } catch (InterruptedException xcp) {
-            xcp.printStackTrace();
-          }
-        }
-
-        if (_stopped) {
-          break;
-        }
-      }
-
-      synchronized (_lock) {
-
-        _reset = false;
-        _canceled = false;
-
-        if (_delay > 0) {
-          try {
-            _lock.wait(_delay);
-          } catch (InterruptedException xcp) {
-            xcp.printStackTrace();
-          }
-        }
-
-        if (_canceled) {
-          continue;
-        }
-      }
-
-      if (!_reset) {
-        _task.run();
-      }
-
-      if (_period > 0) {
-
-        while (true) {
-
-          synchronized (_lock) {
-
-            _reset = false;
-
-            try {
-              _lock.wait(_period);
-            } catch (InterruptedException xcp) {
-              xcp.printStackTrace();
-            }
-
-            if (_canceled) {
-              break;
-            }
-
-            if (_reset) {
-              continue;
-            }
-          }
-
-          _task.run();
-
-        }
-      }
-    }
+  public String getName() {
+    return _name;
   }
 
   public synchronized void schedule(long delay) {
@@ -125,20 +91,18 @@ public class Timer extends Thread {
   }
 
   public synchronized void schedule(long delay, long period) {
-    _delay = delay;
-    _period = period;
-
-
     if (_scheduled) {
       throw new IllegalStateException("already scheduled");
     }
 
-    _scheduled = true;
-    notify();
-
-    synchronized (_lock) {
-      _lock.notify();
+    if (_stopped) {
+      return;
     }
+
+    _delay = delay;
+    _period = period;
+    _scheduled = true;
+    _wheel.schedule(this, delay, interval());
   }
 
   public synchronized boolean isScheduled() {
@@ -149,24 +113,39 @@ public class Timer extends Thread {
     return !isScheduled();
   }
 
+  /**
+   * Restarts the current interval: the task runs once the period,
+   * or the delay if there is no period, has elapsed from now.
+   */
   public synchronized void reset() {
-    synchronized (_lock) {
-      _reset = true;
-      _lock.notify();
+    if (_scheduled) {
+      _wheel.schedule(this, interval(), interval());
     }
   }
 
   public synchronized void cancel() {
     _scheduled = false;
-    synchronized (_lock) {
-      _canceled = true;
-      _lock.notify();
-    }
+    _wheel.cancel(this);
   }
 
   public synchronized void destroy() {
     cancel();
     _stopped = true;
-    notify();
+  }
+
+  public String toString() {
+    return _name;
+  }
+
+  boolean isBlocking() {
+    return _blocking;
+  }
+
+  void runTask() {
+    _task.run();
+  }
+
+  private long interval() {
+    return (_period > 0) ? _period : _delay;
   }
 }
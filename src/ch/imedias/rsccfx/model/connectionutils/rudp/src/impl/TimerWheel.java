@@ -0,0 +1,301 @@
+/*
+ * Simple Reliable UDP (rudp)
+ * Copyright (c) 2009, Adrian Granados (agranados@ihmc.us)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel that drives all the {@link Timer}s of the
+ * process from a single thread.
+ * <p>
+ * Time is divided into ticks of <code>TICK</code> milliseconds. A timer
+ * is kept in the bucket of the tick it expires at, modulo the number of
+ * buckets, so that scheduling, cancelling and resetting a timer take
+ * constant time. The thread sleeps until the next tick that has a timer
+ * in its bucket, or until a timer is scheduled before it.
+ * <p>
+ * Expired timer tasks run on the wheel thread and must not block. The
+ * tasks of blocking timers are handed to a pool of threads instead,
+ * which are started as needed and end after a minute without a task.
+ */
+final class TimerWheel implements Runnable {
+  static final int TICK = 5; /* (ms) */
+  private static final int WHEEL_SIZE = 512; /* Must be a power of two */
+  private static final int MASK = WHEEL_SIZE - 1;
+  private static final TimerWheel INSTANCE = new TimerWheel();
+  private static final int POOL_KEEP_ALIVE = 60; /* (s) */
+  private final Timer[] _buckets = new Timer[WHEEL_SIZE];
+  private final long _startTime = System.nanoTime();
+  private long _tick;          /* Last tick processed */
+  private long _wakeTick;      /* Tick the thread sleeps until, 0 while running */
+  private int _pending;        /* Number of timers on the wheel */
+  private Thread _thread;
+  private final ExecutorService _pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+      POOL_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ReliableSocket-TimerTask");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private TimerWheel() {
+  }
+
+  static TimerWheel getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Puts a timer on the wheel, or moves it if it is already on it.
+   *
+   * @param timer    the timer.
+   * @param delay    the delay before the timer expires (ms).
+   * @param interval the delay between subsequent expirations (ms),
+   *                 or 0 to expire only once.
+   */
+  synchronized void schedule(Timer timer, long delay, long interval) {
+    unlink(timer);
+    timer._gen++;
+    timer._interval = interval;
+    link(timer, delay);
+  }
+
+  /**
+   * Takes a timer off the wheel. A task that has already been
+   * taken off the wheel for running is skipped.
+   *
+   * @param timer the timer.
+   */
+  synchronized void cancel(Timer timer) {
+    unlink(timer);
+    timer._gen++;
+  }
+
+  /**
+   * Returns true if the timer has been neither cancelled nor
+   * rescheduled since it has expired with the given generation.
+   */
+  private synchronized boolean isCurrent(Timer timer, long gen) {
+    return timer._gen == gen;
+  }
+
+  public void run() {
+    List<Timer> expired = new ArrayList<Timer>();
+    List<Long> gens = new ArrayList<Long>();
+
+    while (true) {
+      synchronized (this) {
+        long now = currentTick();
+        if (now > _tick) {
+          collect(now, expired, gens);
+        }
+
+        if (expired.isEmpty()) {
+          _wakeTick = nextTick();
+          try {
+            if (_wakeTick == Long.MAX_VALUE) {
+              wait();
+            } else {
+              wait(Math.max(_wakeTick * TICK - elapsedTime(), 1));
+            }
+          } catch (InterruptedException xcp) {
+            xcp.printStackTrace();
+          }
+          _wakeTick = 0;
+          continue;
+        }
+      }
+
+      for (int i = 0; i < expired.size(); i++) {
+        Timer timer = expired.get(i);
+        if (!isCurrent(timer, gens.get(i).longValue())) {
+          continue;
+        }
+
+        try {
+          if (timer.isBlocking()) {
+            runBlocking(timer, gens.get(i).longValue());
+          } else {
+            timer.runTask();
+          }
+        } catch (Throwable xcp) {
+          /* Keep the wheel running for the other timers */
+          xcp.printStackTrace();
+        }
+      }
+
+      expired.clear();
+      gens.clear();
+    }
+  }
+
+  /**
+   * Runs the task of a blocking timer on a thread of the pool. If it is
+   * still running since the previous expiration, it runs again once it is
+   * done, unless the timer is cancelled or rescheduled in the meantime.
+   */
+  private void runBlocking(final Timer timer, long gen) {
+    synchronized (this) {
+      if (timer._running) {
+        timer._rerun = true;
+        timer._rerunGen = gen;
+        return;
+      }
+      timer._running = true;
+    }
+
+    _pool.execute(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            timer.runTask();
+          } catch (Throwable xcp) {
+            xcp.printStackTrace();
+          }
+
+          synchronized (TimerWheel.this) {
+            boolean rerun = timer._rerun && timer._gen == timer._rerunGen;
+            timer._rerun = false;
+            if (!rerun) {
+              timer._running = false;
+              return;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Takes the timers that have expired up to the given tick off the
+   * wheel and puts the periodic ones back on.
+   */
+  private void collect(long now, List<Timer> expired, List<Long> gens) {
+    long from = Math.max(_tick + 1, now - MASK);
+    for (long t = from; t <= now; t++) {
+      Timer timer = _buckets[(int) (t & MASK)];
+      while (timer != null) {
+        Timer next = timer._next;
+        if (timer._deadline <= now) {
+          unlink(timer);
+          expired.add(timer);
+          gens.add(Long.valueOf(timer._gen));
+        }
+        timer = next;
+      }
+    }
+
+    _tick = now;
+
+    for (int i = 0; i < expired.size(); i++) {
+      Timer timer = expired.get(i);
+      if (timer._interval > 0) {
+        link(timer, timer._interval);
+      }
+    }
+  }
+
+  /**
+   * Returns the first tick after the current one whose bucket is not
+   * empty, or <code>Long.MAX_VALUE</code> if the wheel is empty.
+   */
+  private long nextTick() {
+    if (_pending == 0) {
+      return Long.MAX_VALUE;
+    }
+
+    for (long t = _tick + 1; t <= _tick + WHEEL_SIZE; t++) {
+      if (_buckets[(int) (t & MASK)] != null) {
+        return t;
+      }
+    }
+
+    return _tick + WHEEL_SIZE;
+  }
+
+  private void link(Timer timer, long delay) {
+    /* Round up, a timer never expires early */
+    long deadline = (elapsedTime() + delay + TICK - 1) / TICK;
+    timer._deadline = Math.max(deadline, _tick + 1);
+    timer._bucket = (int) (timer._deadline & MASK);
+    timer._prev = null;
+    timer._next = _buckets[timer._bucket];
+    if (timer._next != null) {
+      timer._next._prev = timer;
+    }
+    _buckets[timer._bucket] = timer;
+    _pending++;
+
+    if (_thread == null) {
+      _thread = new Thread(this, "ReliableSocket-Timer");
+      _thread.setDaemon(true);
+      _thread.start();
+    }
+
+    if (timer._deadline < _wakeTick) {
+      notify();
+    }
+  }
+
+  private void unlink(Timer timer) {
+    if (timer._bucket < 0) {
+      return;
+    }
+
+    if (timer._prev != null) {
+      timer._prev._next = timer._next;
+    } else {
+      _buckets[timer._bucket] = timer._next;
+    }
+    if (timer._next != null) {
+      timer._next._prev = timer._prev;
+    }
+    timer._prev = null;
+    timer._next = null;
+    timer._bucket = -1;
+    _pending--;
+  }
+
+  private long currentTick() {
+    return elapsedTime() / TICK;
+  }
+
+  private long elapsedTime() {
+    return (System.nanoTime() - _startTime) / 1000000L;
+  }
+}
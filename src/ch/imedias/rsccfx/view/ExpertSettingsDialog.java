@@ -44,6 +44,9 @@ public class ExpertSettingsDialog extends DialogPane {
   final Label vncPortLbl = new Label();
   final Label icePortLbl = new Label();
   final Label udpPackageSizeLbl = new Label();
+  final Label maxSendRateLbl = new Label();
+  final Label maxOutstandingUpdatesLbl = new Label();
+  final Label rectangleCacheSizeLbl = new Label();
   final Label proxyPortLbl = new Label();
   final Label stunServerPortLbl = new Label();
   final Label stunServersLbl = new Label();
@@ -55,6 +58,9 @@ public class ExpertSettingsDialog extends DialogPane {
   final NumberTextField vncPortFld = new NumberTextField();
   final NumberTextField icePortFld = new NumberTextField();
   final NumberTextField udpPackageSizeFld = new NumberTextField();
+  final NumberTextField maxSendRateFld = new NumberTextField();
+  final NumberTextField maxOutstandingUpdatesFld = new NumberTextField();
+  final NumberTextField rectangleCacheSizeFld = new NumberTextField();
   final NumberTextField proxyPortFld = new NumberTextField();
   final NumberTextField stunServerPortFld = new NumberTextField();
   final Button addServer = new Button();
@@ -115,14 +121,19 @@ public class ExpertSettingsDialog extends DialogPane {
 
   private void setFieldValues(boolean forcingServerMode, String keyServerIp,
                               String keyServerHttpPort, int vncPort, int icePort,
-                              int udpPackageSize, int proxyPort, int stunServerPort,
-                              String[] stunServers) {
+                              int udpPackageSize, int maxSendRate,
+                              int maxOutstandingUpdates, int rectangleCacheSize,
+                              int proxyPort,
+                              int stunServerPort, String[] stunServers) {
     forceConnectOverServerTgl.setSelected(forcingServerMode);
     keyServerIpFld.setText(keyServerIp);
     keyServerHttpPortFld.setText(keyServerHttpPort);
     vncPortFld.setText(Integer.toString(vncPort));
     icePortFld.setText(Integer.toString(icePort));
     udpPackageSizeFld.setText(Integer.toString(udpPackageSize));
+    maxSendRateFld.setText(Integer.toString(maxSendRate));
+    maxOutstandingUpdatesFld.setText(Integer.toString(maxOutstandingUpdates));
+    rectangleCacheSizeFld.setText(Integer.toString(rectangleCacheSize));
     proxyPortFld.setText(Integer.toString(proxyPort));
     stunServerPortFld.setText(Integer.toString(stunServerPort));
     stunServersList.clear();
@@ -139,6 +150,9 @@ public class ExpertSettingsDialog extends DialogPane {
         Rscc.DEFAULT_VNC_PORT,
         Rscc.DEFAULT_ICE_PORT,
         Rscc.DEFAULT_UDP_PACKAGE_SIZE,
+        Rscc.DEFAULT_MAX_SEND_RATE,
+        Rscc.DEFAULT_MAX_OUTSTANDING_UPDATES,
+        Rscc.DEFAULT_RECTANGLE_CACHE_SIZE,
         Rscc.DEFAULT_PROXY_PORT,
         Rscc.DEFAULT_STUN_SERVER_PORT,
         Rscc.DEFAULT_STUN_SERVERS.split(Rscc.DELIMITER)
@@ -153,6 +167,9 @@ public class ExpertSettingsDialog extends DialogPane {
     vncPortLbl.setText(strings.expertVncPortLbl);
     icePortLbl.setText(strings.expertIcePortLbl);
     udpPackageSizeLbl.setText(strings.expertUdpPackageSizeLbl);
+    maxSendRateLbl.setText(strings.expertMaxSendRateLbl);
+    maxOutstandingUpdatesLbl.setText(strings.expertMaxOutstandingUpdatesLbl);
+    rectangleCacheSizeLbl.setText(strings.expertRectangleCacheSizeLbl);
     proxyPortLbl.setText(strings.expertProxyPortLbl);
     stunServersLbl.setText(strings.expertStunserverLbl);
     stunServerPortLbl.setText(strings.expertStunServerPortLbl);
@@ -164,6 +181,9 @@ public class ExpertSettingsDialog extends DialogPane {
         model.getVncPort(),
         model.getIcePort(),
         model.getUdpPackageSize(),
+        model.getMaxSendRate(),
+        model.getMaxOutstandingUpdates(),
+        model.getRectangleCacheSize(),
         model.getProxyPort(),
         model.getStunServerPort(),
         model.getStunServers()
@@ -212,13 +232,19 @@ public class ExpertSettingsDialog extends DialogPane {
     settingsPane.add(icePortFld, 1, 5);
     settingsPane.add(udpPackageSizeLbl, 0, 6);
     settingsPane.add(udpPackageSizeFld, 1, 6);
-    settingsPane.add(proxyPortLbl, 0, 7);
-    settingsPane.add(proxyPortFld, 1, 7);
-    settingsPane.add(stunServerPortLbl, 0, 8);
-    settingsPane.add(stunServerPortFld, 1, 8);
-    settingsPane.add(stunServersLbl, 0, 9);
-    settingsPane.add(stunServersListView, 1, 9);
-    settingsPane.add(addRemoveServerBox, 1, 10);
+    settingsPane.add(maxSendRateLbl, 0, 7);
+    settingsPane.add(maxSendRateFld, 1, 7);
+    settingsPane.add(maxOutstandingUpdatesLbl, 0, 8);
+    settingsPane.add(maxOutstandingUpdatesFld, 1, 8);
+    settingsPane.add(rectangleCacheSizeLbl, 0, 9);
+    settingsPane.add(rectangleCacheSizeFld, 1, 9);
+    settingsPane.add(proxyPortLbl, 0, 10);
+    settingsPane.add(proxyPortFld, 1, 10);
+    settingsPane.add(stunServerPortLbl, 0, 11);
+    settingsPane.add(stunServerPortFld, 1, 11);
+    settingsPane.add(stunServersLbl, 0, 12);
+    settingsPane.add(stunServersListView, 1, 12);
+    settingsPane.add(addRemoveServerBox, 1, 13);
 
     this.getButtonTypes().addAll(ButtonType.APPLY, ButtonType.CANCEL, loadDefaultsBtnType);
     this.setContent(settingsPane);
@@ -232,6 +258,9 @@ public class ExpertSettingsDialog extends DialogPane {
     model.setVncPort(Integer.parseInt(vncPortFld.getText()));
     model.setIcePort(Integer.parseInt(icePortFld.getText()));
     model.setUdpPackageSize(Integer.parseInt(udpPackageSizeFld.getText()));
+    model.setMaxSendRate(Integer.parseInt(maxSendRateFld.getText()));
+    model.setMaxOutstandingUpdates(Integer.parseInt(maxOutstandingUpdatesFld.getText()));
+    model.setRectangleCacheSize(Integer.parseInt(rectangleCacheSizeFld.getText()));
     model.setProxyPort(Integer.parseInt(proxyPortFld.getText()));
     model.setStunServerPort(Integer.parseInt(stunServerPortFld.getText()));
     String[] stunServers = stunServersList.toArray(new String[stunServersList.size()]);
@@ -0,0 +1,173 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableServerSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketProfile;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the PortForwarder class over a multiplexed rudp connection.
+ */
+public class PortForwarderTest {
+  private static final int SERVICE = 1;
+  private static final int TIMEOUT = 10; // (s)
+  private static final String LOCALHOST = "127.0.0.1";
+
+  ReliableServerSocket serverSocket;
+  PortForwarder viewerSide;
+  PortForwarder serverSide;
+  ServerSocket echoServer;
+  ExecutorService executor;
+
+  /**
+   * Connects two forwarders, and starts a server that echoes its connections, before each test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    ReliableSocketProfile profile = new ReliableSocketProfile.Builder().streams(true).build();
+    serverSocket = new ReliableServerSocket(0, profile);
+    executor = Executors.newCachedThreadPool();
+    Future<Socket> accepted = executor.submit(() -> serverSocket.accept());
+    ReliableSocket socket = new ReliableSocket(profile);
+    socket.connect(new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), 5000);
+    viewerSide = new PortForwarder(new ReliableSocketMultiplexer(socket));
+    serverSide = new PortForwarder(
+        new ReliableSocketMultiplexer(accepted.get(TIMEOUT, TimeUnit.SECONDS)));
+
+    echoServer = new ServerSocket(0);
+    executor.submit(() -> {
+      while (true) {
+        Socket connection = echoServer.accept();
+        executor.submit(() -> echo(connection));
+      }
+    });
+  }
+
+  /**
+   * Closes the forwarders and the echo server after each test.
+   */
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    viewerSide.close();
+    serverSide.close();
+    serverSocket.close();
+    echoServer.close();
+  }
+
+  /**
+   * Test for {@link PortForwarder#forward(int, int)} to a port exposed with
+   * {@link PortForwarder#expose(int, int)}: the data goes through the tunnel both ways, and the
+   * end of the data of each side is passed on.
+   */
+  @Test(timeout = 30000)
+  public void testForwardToExposedPort() throws Exception {
+    serverSide.expose(SERVICE, echoServer.getLocalPort());
+    int port = freePort();
+    viewerSide.forward(port, SERVICE);
+
+    byte[] data = new byte[300 * 1024];
+    new Random(1).nextBytes(data);
+    try (Socket socket = new Socket(LOCALHOST, port)) {
+      Future<byte[]> echoed = executor.submit(() -> readAll(socket.getInputStream()));
+      socket.getOutputStream().write(data);
+      socket.shutdownOutput();
+      assertArrayEquals(data, echoed.get(TIMEOUT, TimeUnit.SECONDS));
+    }
+    viewerSide.awaitTunnelClosed(SERVICE);
+  }
+
+  /**
+   * Test for a forwarded port whose service the peer does not expose: the connection is closed.
+   */
+  @Test(timeout = 30000)
+  public void testServiceNotExposed() throws Exception {
+    int port = freePort();
+    viewerSide.forward(port, SERVICE);
+
+    try (Socket socket = new Socket(LOCALHOST, port)) {
+      socket.getOutputStream().write(1);
+      assertEquals(0, readAll(socket.getInputStream()).length);
+    }
+  }
+
+  /**
+   * Test for {@link PortForwarder#close()} while a tunnel is open: its connection is closed, and
+   * the threads waiting for it go on.
+   */
+  @Test(timeout = 30000)
+  public void testCloseWithOpenTunnel() throws Exception {
+    serverSide.expose(SERVICE, echoServer.getLocalPort());
+    int port = freePort();
+    viewerSide.forward(port, SERVICE);
+
+    try (Socket socket = new Socket(LOCALHOST, port)) {
+      OutputStream out = socket.getOutputStream();
+      out.write(42);
+      assertEquals(42, socket.getInputStream().read());
+      Future<?> waiting = executor.submit(() -> {
+        viewerSide.awaitTunnelClosed(SERVICE);
+        return null;
+      });
+
+      viewerSide.close();
+      waiting.get(TIMEOUT, TimeUnit.SECONDS);
+      assertEquals(0, readAll(socket.getInputStream()).length);
+    }
+  }
+
+  private static void echo(Socket connection) {
+    try (Socket socket = connection) {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+    } catch (IOException e) {
+      // The test has ended
+    }
+  }
+
+  /**
+   * Reads until the end of the data, or until the connection is reset.
+   */
+  private static byte[] readAll(InputStream in) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try {
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, n);
+      }
+    } catch (IOException e) {
+      // Reset, returns what has been read
+    }
+    return bytes.toByteArray();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableServerSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketProfile;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the proxy pump with a proxy that copies each direction in a thread of its own over
+ * loopback.
+ *
+ * <p>A TCP client connects through the proxy to a RUDP peer. The peer first sends a bulk
+ * transfer, which the client reads, then echoes the small messages the client sends one at a
+ * time. The RUDP socket of the proxy coalesces small writes, as in the tunnels of RunRudp,
+ * except when the pump writes it through its channel, which sends each write at once. The
+ * benchmark reports the throughput of the transfer, and the mean, 95th percentile and largest
+ * round trip time of the messages for each proxy. The pump also runs against a stream of a
+ * multiplexed connection, as in the tunnels of the PortForwarder.
+ *
+ * <p>Usage: {@code ProxyPumpBenchmark [megabytes] [messages] [bufferSize]}
+ */
+public class ProxyPumpBenchmark {
+  private static final int MESSAGE_SIZE = 8;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer, number of messages and proxy buffer size in bytes.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    final int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+    System.out.printf("transfer   %d MB, %d messages of %d bytes, buffers of %d bytes%n",
+        megabytes, messages, MESSAGE_SIZE, bufferSize);
+    run("threads", false, false, megabytes, messages, bufferSize);
+    run("pump", true, false, megabytes, messages, bufferSize);
+    run("stream", true, true, megabytes, messages, bufferSize);
+    System.exit(0);
+  }
+
+  private static void run(String name, boolean pump, boolean multiplexed, int megabytes,
+                          int messages, int bufferSize) throws Exception {
+    final long total = megabytes * 1024L * 1024L;
+    ReliableSocketProfile profile = new ReliableSocketProfile.Builder()
+        .streams(multiplexed)
+        .build();
+    ReliableServerSocket peerSocket = new ReliableServerSocket(0, profile);
+    ServerSocketChannel proxySocket = ServerSocketChannel.open();
+    proxySocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+    Thread peer = new Thread(() -> {
+      try (Socket socket = peerSocket.accept()) {
+        socket.setTcpNoDelay(true);
+        InputStream input = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        if (multiplexed) {
+          ReliableSocketMultiplexer.Stream stream =
+              new ReliableSocketMultiplexer(socket).acceptStream();
+          input = stream.getInputStream();
+          out = stream.getOutputStream();
+        }
+        byte[] chunk = new byte[16384];
+        new Random(1).nextBytes(chunk);
+        for (long written = 0; written < total; written += chunk.length) {
+          out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(input);
+        byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < messages; i++) {
+          in.readFully(message);
+          out.write(message);
+          out.flush();
+        }
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    peer.setDaemon(true);
+    peer.start();
+
+    Thread proxy = new Thread(() -> {
+      try {
+        ReliableSocket rudp = new ReliableSocket(profile);
+        rudp.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+            peerSocket.getLocalPort()), 5000);
+        rudp.setTcpNoDelay(false);
+        SocketChannel tcp = proxySocket.accept();
+        tcp.socket().setTcpNoDelay(true);
+        if (multiplexed) {
+          ReliableSocketMultiplexer multiplexer = new ReliableSocketMultiplexer(rudp);
+          new ProxyPump(tcp, multiplexer.openStream(1), bufferSize, false).run();
+          multiplexer.close();
+        } else if (pump) {
+          new ProxyPump(tcp, rudp, bufferSize, false).run();
+        } else {
+          new ThreadedProxy(tcp.socket(), rudp, bufferSize).run();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    proxy.setDaemon(true);
+    proxy.start();
+
+    Socket client = new Socket(InetAddress.getLoopbackAddress(),
+        proxySocket.socket().getLocalPort());
+    client.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(client.getInputStream());
+    OutputStream out = client.getOutputStream();
+    byte[] buffer = new byte[16384];
+    long start = System.nanoTime();
+    for (long received = 0; received < total; ) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, total - received));
+      if (read < 0) {
+        throw new IOException("Transfer ended early");
+      }
+      received += read;
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+
+    long[] latencies = new long[messages];
+    byte[] message = new byte[MESSAGE_SIZE];
+    for (int i = 0; i < messages; i++) {
+      long sent = System.nanoTime();
+      out.write(message);
+      in.readFully(message);
+      latencies[i] = System.nanoTime() - sent;
+    }
+    client.close();
+    proxy.join(5000);
+    peerSocket.close();
+    proxySocket.close();
+
+    Arrays.sort(latencies);
+    long sum = 0;
+    for (long latency : latencies) {
+      sum += latency;
+    }
+    System.out.printf("%-10s %.1f Mbit/s, round trip mean %.2f ms, p95 %.2f ms, max %.2f ms%n",
+        name, total * 8 / seconds / 1e6, sum / 1e6 / messages,
+        latencies[messages * 95 / 100] / 1e6, latencies[messages - 1] / 1e6);
+  }
+
+  /**
+   * The proxy RunRudp used before the pump: a thread copies from TCP to RUDP, and the caller
+   * copies from RUDP to TCP, flushing after each read.
+   */
+  private static class ThreadedProxy {
+    private final Socket tcp;
+    private final ReliableSocket rudp;
+    private final int bufferSize;
+
+    ThreadedProxy(Socket tcp, ReliableSocket rudp, int bufferSize) {
+      this.tcp = tcp;
+      this.rudp = rudp;
+      this.bufferSize = bufferSize;
+    }
+
+    void run() throws IOException {
+      InputStream tcpInput = tcp.getInputStream();
+      OutputStream tcpOutput = tcp.getOutputStream();
+      InputStream rudpInput = rudp.getInputStream();
+      OutputStream rudpOutput = rudp.getOutputStream();
+      Thread upstream = new Thread(() -> {
+        byte[] request = new byte[bufferSize];
+        int bytesRead;
+        try {
+          while ((bytesRead = tcpInput.read(request)) != -1) {
+            rudpOutput.write(request, 0, bytesRead);
+            rudpOutput.flush();
+          }
+        } catch (IOException e) {
+          /* Closed at the end of the run */
+        }
+        close();
+      });
+      upstream.setDaemon(true);
+      upstream.start();
+
+      byte[] reply = new byte[bufferSize];
+      int bytesRead;
+      try {
+        while ((bytesRead = rudpInput.read(reply)) != -1) {
+          tcpOutput.write(reply, 0, bytesRead);
+          tcpOutput.flush();
+        }
+      } catch (IOException e) {
+        /* Closed at the end of the run */
+      }
+      close();
+    }
+
+    private void close() {
+      try {
+        rudp.close();
+        tcp.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableServerSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketProfile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measures how long a VNC viewer takes to receive screen updates that repeat over a slow RUDP
+ * link, without a rectangle cache, with an empty one, and with one saved by an earlier session.
+ *
+ * <p>A fake RFB 3.8 server answers each update request with one raw rectangle, showing one of a
+ * few images in turn, as a screen does when the user switches between windows. A fake viewer
+ * asks for the next update as each one arrives, until it has a fixed number. Both go through a
+ * proxy pump each, as in RunRudp: the one of the server always has a {@link RfbCacheEncoder},
+ * and the one of the viewer has a {@link RfbCacheDecoder} in the runs with a cache. The RUDP
+ * connection between the pumps goes through the relay of {@link RfbCoalescingBenchmark}. The
+ * warm run loads the cache the cold run has saved, and so does the tunneled run, in which the
+ * VNC connection goes through a tunnel of a PortForwarder at both ends of a multiplexed RUDP
+ * connection instead. The benchmark reports the time to receive the updates, the bytes that went
+ * through the bottleneck, and the rectangles the viewer has taken from its cache.
+ *
+ * <p>Usage: {@code RectangleCacheBenchmark [updates] [images] [bottleneckMbit] [delayMs]}
+ */
+public class RectangleCacheBenchmark {
+  private static final int WIDTH = 1024;
+  private static final int HEIGHT = 768;
+  private static final int UPDATE_SIZE = 128; // width and height of each updated rectangle
+  private static final int BUFFER_SIZE = 10000;
+  private static final long CACHE_SIZE = 16L * 1024 * 1024;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args updates to receive in each run, number of images the server shows, bottleneck
+   *             rate in Mbit/s, and one-way delay in milliseconds.
+   * @throws Exception if the connection fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int updates = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    final int images = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    final int bottleneck = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    final int delay = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+    File file = File.createTempFile("rectangle-cache", null);
+    file.delete();
+    System.out.printf("run        %d updates of %d images, bottleneck %d Mbit/s, delay %d ms%n",
+        updates, images, bottleneck, delay);
+    run("no cache", null, false, updates, images, bottleneck, delay);
+    RfbRectangleCache cold = RfbRectangleCache.load(file, CACHE_SIZE);
+    run("cold cache", cold, false, updates, images, bottleneck, delay);
+    cold.save(file);
+    RfbRectangleCache warm = RfbRectangleCache.load(file, CACHE_SIZE);
+    run("warm cache", warm, false, updates, images, bottleneck, delay);
+    RfbRectangleCache tunneled = RfbRectangleCache.load(file, CACHE_SIZE);
+    run("tunneled", tunneled, true, updates, images, bottleneck, delay);
+    file.delete();
+    System.exit(0);
+  }
+
+  private static void run(String name, RfbRectangleCache cache, boolean tunneled, int updates,
+                          int images, int bottleneck, int delay) throws Exception {
+    ServerSocketChannel vncServer = ServerSocketChannel.open();
+    vncServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    daemon(() -> serve(vncServer, images));
+
+    ReliableSocketProfile profile = new ReliableSocketProfile.Builder()
+        .streams(tunneled)
+        .build();
+    ReliableServerSocket peerSocket = new ReliableServerSocket(0, profile);
+    RfbCoalescingBenchmark.DelayRelay relay = new RfbCoalescingBenchmark.DelayRelay(
+        new InetSocketAddress("127.0.0.1", peerSocket.getLocalPort()), bottleneck, delay);
+    int vncPort = ((InetSocketAddress) vncServer.getLocalAddress()).getPort();
+    daemon(() -> {
+      try {
+        ReliableSocket rudp = (ReliableSocket) peerSocket.accept();
+        if (tunneled) {
+          new PortForwarder(new ReliableSocketMultiplexer(rudp)).expose(1, vncPort,
+              () -> new ProxyFilter[] {new RfbCacheEncoder()});
+          return;
+        }
+        SocketChannel tcp = SocketChannel.open(vncServer.getLocalAddress());
+        tcp.socket().setTcpNoDelay(true);
+        new ProxyPump(tcp, rudp, BUFFER_SIZE, false, new RfbCacheEncoder()).run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+
+    ServerSocketChannel proxySocket = ServerSocketChannel.open();
+    proxySocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    int proxyPort = proxySocket.socket().getLocalPort();
+    RfbCacheDecoder decoder = (cache != null) ? new RfbCacheDecoder(cache) : null;
+    ProxyFilter[] filters = (decoder != null) ? new ProxyFilter[] {decoder} : new ProxyFilter[0];
+    PortForwarder forwarder = null;
+    Thread viewerPump = null;
+    if (tunneled) {
+      // The forwarder listens on the port of its own
+      proxySocket.close();
+      ReliableSocket rudp = new ReliableSocket(profile);
+      rudp.connect(relay.getAddress(), 5000);
+      forwarder = new PortForwarder(new ReliableSocketMultiplexer(rudp));
+      forwarder.forward(proxyPort, 1, true, () -> filters);
+    } else {
+      viewerPump = daemon(() -> {
+        try {
+          ReliableSocket rudp = new ReliableSocket(profile);
+          rudp.connect(relay.getAddress(), 5000);
+          SocketChannel tcp = proxySocket.accept();
+          tcp.socket().setTcpNoDelay(true);
+          new ProxyPump(tcp, rudp, BUFFER_SIZE, true, filters).run();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+    }
+
+    Socket viewer = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+    viewer.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(viewer.getInputStream());
+    DataOutputStream out = new DataOutputStream(viewer.getOutputStream());
+    handshake(in, out);
+
+    long bytesBefore = relay.downstreamBytes.get();
+    long start = System.nanoTime();
+    byte[] pixels = new byte[UPDATE_SIZE * UPDATE_SIZE * 4];
+    for (int i = 0; i < updates; i++) {
+      requestUpdate(out);
+      // FramebufferUpdate with a single raw rectangle
+      in.readFully(new byte[4]);
+      in.readFully(new byte[12]);
+      in.readFully(pixels);
+    }
+    final double elapsed = (System.nanoTime() - start) / 1e9;
+    final long bytes = relay.downstreamBytes.get() - bytesBefore;
+    viewer.close();
+    if (forwarder != null) {
+      forwarder.close();
+    } else {
+      viewerPump.join(5000);
+    }
+    peerSocket.close();
+    proxySocket.close();
+    vncServer.close();
+    relay.close();
+
+    System.out.printf("%-10s %.2f s, %.1f MB, %d rectangles from the cache%n", name, elapsed,
+        bytes / 1e6, decoder != null ? decoder.getFromCache() : 0);
+  }
+
+  private static void handshake(DataInputStream in, DataOutputStream out) throws IOException {
+    in.readFully(new byte[12]);
+    out.write("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+    in.readFully(new byte[in.readUnsignedByte()]);
+    out.writeByte(1); // None
+    in.readInt();
+    out.writeByte(1); // shared
+    in.readFully(new byte[20]);
+    in.readFully(new byte[in.readInt()]);
+    // SetEncodings: Raw only
+    out.writeByte(2);
+    out.writeByte(0);
+    out.writeShort(1);
+    out.writeInt(0);
+    out.flush();
+  }
+
+  private static void requestUpdate(DataOutputStream out) throws IOException {
+    out.writeByte(3);
+    out.writeByte(1); // incremental
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(WIDTH);
+    out.writeShort(HEIGHT);
+    out.flush();
+  }
+
+  /**
+   * Answers each update request of the viewer with a raw rectangle showing the next image.
+   */
+  private static void serve(ServerSocketChannel vncServer, int images) {
+    try (Socket socket = vncServer.accept().socket()) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.write("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      in.readFully(new byte[12]);
+      out.writeByte(1);
+      out.writeByte(1); // None
+      out.flush();
+      in.readUnsignedByte();
+      out.writeInt(0);
+      out.flush();
+      in.readUnsignedByte();
+
+      byte[] name = "benchmark".getBytes(StandardCharsets.US_ASCII);
+      out.writeShort(WIDTH);
+      out.writeShort(HEIGHT);
+      // 32 bits per pixel, depth 24, little endian true colour
+      out.write(new byte[] {32, 24, 0, 1, 0, (byte) 255, 0, (byte) 255, 0, (byte) 255,
+          16, 8, 0, 0, 0, 0});
+      out.writeInt(name.length);
+      out.write(name);
+      out.flush();
+
+      // The same images in each run, so that the cache of an earlier run has them
+      Random random = new Random(images);
+      byte[][] pixels = new byte[images][UPDATE_SIZE * UPDATE_SIZE * 4];
+      for (byte[] image : pixels) {
+        random.nextBytes(image);
+      }
+      int position = 0;
+      while (true) {
+        int type = in.readUnsignedByte();
+        if (type == 2) {
+          in.readUnsignedByte();
+          in.readFully(new byte[4 * in.readUnsignedShort()]);
+          continue;
+        } else if (type != 3) {
+          throw new IOException("Unexpected message " + type);
+        }
+        in.readFully(new byte[9]);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(UPDATE_SIZE);
+        out.writeShort(UPDATE_SIZE);
+        out.writeInt(0); // Raw
+        out.write(pixels[position++ % images]);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Closed at the end of the run
+    }
+  }
+
+  private static Thread daemon(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
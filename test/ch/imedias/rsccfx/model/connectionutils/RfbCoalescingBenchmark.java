@@ -0,0 +1,373 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableServerSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocket;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketMultiplexer;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.ReliableSocketProfile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how old the screen updates of a VNC server are when they reach the viewer over a
+ * slow RUDP link, with and without coalescing the update requests of the viewer.
+ *
+ * <p>A fake RFB 3.8 server answers each update request with one raw rectangle, whose pixels
+ * start with the time it was sent. A fake viewer asks for the next update as each one arrives,
+ * and in addition on a timer, as a viewer does that polls. Both go through a proxy pump each,
+ * as in RunRudp, and the RUDP connection between the pumps goes through a UDP relay that adds a
+ * fixed one-way delay in both directions and passes the datagrams of the server through a
+ * bottleneck of a fixed rate. The benchmark runs without a coalescer, and with coalescers that
+ * allow one and two outstanding updates, the latter also on a multiplexed RUDP connection, which
+ * the VNC connection goes through in a tunnel of a PortForwarder at both ends. It reports the
+ * requests the server has answered, the updates the viewer has received, the bytes that went
+ * through the bottleneck, and the mean and 95th percentile age of the updates when they were
+ * received.
+ *
+ * <p>Usage: {@code RfbCoalescingBenchmark [seconds] [bottleneckMbit] [delayMs] [pollMs]}
+ */
+public class RfbCoalescingBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final int WIDTH = 1024;
+  private static final int HEIGHT = 768;
+  private static final int UPDATE_SIZE = 128; // width and height of each updated rectangle
+  private static final int MAX_QUEUE_DELAY = 200; // ms
+  private static final int BUFFER_SIZE = 10000;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args seconds to run each case, bottleneck rate in Mbit/s, one-way delay in
+   *             milliseconds, and interval of the extra update requests in milliseconds.
+   * @throws Exception if the connection fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    final int bottleneck = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    final int delay = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    final int poll = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+    System.out.printf("run        %d s, bottleneck %d Mbit/s, delay %d ms, poll every %d ms%n",
+        seconds, bottleneck, delay, poll);
+    run("plain", 0, false, seconds, bottleneck, delay, poll);
+    run("at most 1", 1, false, seconds, bottleneck, delay, poll);
+    run("at most 2", 2, false, seconds, bottleneck, delay, poll);
+    run("tunneled 2", 2, true, seconds, bottleneck, delay, poll);
+    System.exit(0);
+  }
+
+  private static void run(String name, int maxOutstanding, boolean tunneled, int seconds,
+                          int bottleneck, int delay, int poll) throws Exception {
+    ServerSocketChannel vncServer = ServerSocketChannel.open();
+    vncServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    AtomicInteger answered = new AtomicInteger();
+    daemon(() -> serve(vncServer, answered));
+
+    ReliableSocketProfile profile = new ReliableSocketProfile.Builder()
+        .streams(tunneled)
+        .build();
+    ReliableServerSocket peerSocket = new ReliableServerSocket(0, profile);
+    DelayRelay relay = new DelayRelay(
+        new InetSocketAddress(LOCALHOST, peerSocket.getLocalPort()), bottleneck, delay);
+    int vncPort = ((InetSocketAddress) vncServer.getLocalAddress()).getPort();
+    daemon(() -> {
+      try {
+        ReliableSocket rudp = (ReliableSocket) peerSocket.accept();
+        rudp.setTcpNoDelay(false);
+        if (tunneled) {
+          new PortForwarder(new ReliableSocketMultiplexer(rudp)).expose(1, vncPort);
+          return;
+        }
+        SocketChannel tcp = SocketChannel.open(vncServer.getLocalAddress());
+        tcp.socket().setTcpNoDelay(true);
+        new ProxyPump(tcp, rudp, BUFFER_SIZE, false).run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+
+    ProxyFilter[] filters = maxOutstanding > 0
+        ? new ProxyFilter[] {new RfbRequestCoalescer(maxOutstanding)} : new ProxyFilter[0];
+    ServerSocketChannel proxySocket = ServerSocketChannel.open();
+    proxySocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    int proxyPort = proxySocket.socket().getLocalPort();
+    PortForwarder forwarder = null;
+    if (tunneled) {
+      // The forwarder listens on the port of its own
+      proxySocket.close();
+      ReliableSocket rudp = new ReliableSocket(profile);
+      rudp.connect(relay.getAddress(), 5000);
+      rudp.setTcpNoDelay(false);
+      forwarder = new PortForwarder(new ReliableSocketMultiplexer(rudp));
+      forwarder.forward(proxyPort, 1, true, () -> filters);
+    } else {
+      daemon(() -> {
+        try {
+          ReliableSocket rudp = new ReliableSocket(profile);
+          rudp.connect(relay.getAddress(), 5000);
+          rudp.setTcpNoDelay(false);
+          SocketChannel tcp = proxySocket.accept();
+          tcp.socket().setTcpNoDelay(true);
+          new ProxyPump(tcp, rudp, BUFFER_SIZE, true, filters).run();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+    }
+
+    Socket viewer = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+    viewer.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(viewer.getInputStream());
+    DataOutputStream out = new DataOutputStream(viewer.getOutputStream());
+    handshake(in, out);
+
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    timer.scheduleAtFixedRate(() -> requestUpdate(out), poll, poll, TimeUnit.MILLISECONDS);
+    long[] ages = new long[100000];
+    int updates = 0;
+    long bytesBefore = relay.downstreamBytes.get();
+    long start = System.nanoTime();
+    long end = start + seconds * 1000000000L;
+    byte[] pixels = new byte[UPDATE_SIZE * UPDATE_SIZE * 4];
+    while (System.nanoTime() < end) {
+      // FramebufferUpdate with a single raw rectangle
+      in.readFully(new byte[4]);
+      in.readFully(new byte[12]);
+      in.readFully(pixels);
+      long age = System.nanoTime() - ByteBuffer.wrap(pixels).getLong();
+      if (updates < ages.length) {
+        ages[updates] = age;
+      }
+      updates++;
+      requestUpdate(out);
+    }
+    final double elapsed = (System.nanoTime() - start) / 1e9;
+    final long bytes = relay.downstreamBytes.get() - bytesBefore;
+    timer.shutdownNow();
+    viewer.close();
+    if (forwarder != null) {
+      forwarder.close();
+    }
+    peerSocket.close();
+    proxySocket.close();
+    vncServer.close();
+    relay.close();
+
+    int count = Math.min(updates, ages.length);
+    Arrays.sort(ages, 0, count);
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      total += ages[i];
+    }
+    System.out.printf("%-10s %d requests answered, %d updates, %.1f MB (%.1f Mbit/s), "
+            + "age mean %.0f ms, p95 %.0f ms%n", name, answered.get(), updates, bytes / 1e6,
+        bytes * 8 / elapsed / 1e6, total / 1e6 / Math.max(count, 1),
+        count > 0 ? ages[count * 95 / 100] / 1e6 : 0.0);
+  }
+
+  private static void handshake(DataInputStream in, DataOutputStream out) throws IOException {
+    in.readFully(new byte[12]);
+    out.write("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+    in.readFully(new byte[in.readUnsignedByte()]);
+    out.writeByte(1); // None
+    in.readInt();
+    out.writeByte(1); // shared
+    in.readFully(new byte[20]);
+    in.readFully(new byte[in.readInt()]);
+    // SetEncodings: Raw only
+    out.writeByte(2);
+    out.writeByte(0);
+    out.writeShort(1);
+    out.writeInt(0);
+    out.flush();
+    requestUpdate(out);
+  }
+
+  private static void requestUpdate(DataOutputStream out) {
+    try {
+      synchronized (out) {
+        out.writeByte(3);
+        out.writeByte(1); // incremental
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(WIDTH);
+        out.writeShort(HEIGHT);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Closed at the end of the run
+    }
+  }
+
+  /**
+   * Answers each update request of the viewer with a raw rectangle.
+   */
+  private static void serve(ServerSocketChannel vncServer, AtomicInteger answered) {
+    try (Socket socket = vncServer.accept().socket()) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.write("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      in.readFully(new byte[12]);
+      out.writeByte(1);
+      out.writeByte(1); // None
+      out.flush();
+      in.readUnsignedByte();
+      out.writeInt(0);
+      out.flush();
+      in.readUnsignedByte();
+
+      byte[] name = "benchmark".getBytes(StandardCharsets.US_ASCII);
+      out.writeShort(WIDTH);
+      out.writeShort(HEIGHT);
+      // 32 bits per pixel, depth 24, little endian true colour
+      out.write(new byte[] {32, 24, 0, 1, 0, (byte) 255, 0, (byte) 255, 0, (byte) 255,
+          16, 8, 0, 0, 0, 0});
+      out.writeInt(name.length);
+      out.write(name);
+      out.flush();
+
+      byte[] pixels = new byte[UPDATE_SIZE * UPDATE_SIZE * 4];
+      int position = 0;
+      while (true) {
+        int type = in.readUnsignedByte();
+        if (type == 2) {
+          in.readUnsignedByte();
+          in.readFully(new byte[4 * in.readUnsignedShort()]);
+          continue;
+        } else if (type != 3) {
+          throw new IOException("Unexpected message " + type);
+        }
+        in.readFully(new byte[9]);
+        final int x = position % (WIDTH / UPDATE_SIZE) * UPDATE_SIZE;
+        final int y = position / (WIDTH / UPDATE_SIZE) % (HEIGHT / UPDATE_SIZE) * UPDATE_SIZE;
+        position++;
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(x);
+        out.writeShort(y);
+        out.writeShort(UPDATE_SIZE);
+        out.writeShort(UPDATE_SIZE);
+        out.writeInt(0); // Raw
+        ByteBuffer.wrap(pixels).putLong(System.nanoTime());
+        out.write(pixels);
+        out.flush();
+        answered.incrementAndGet();
+      }
+    } catch (IOException e) {
+      // Closed at the end of the run
+    }
+  }
+
+  private static void daemon(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * A UDP relay that delays the datagrams in both directions, and passes the datagrams of the
+   * server through a bottleneck that drops them once its queue holds more than
+   * {@link #MAX_QUEUE_DELAY} milliseconds. The other benchmarks of the RFB filters use it too.
+   */
+  static class DelayRelay {
+    private final DatagramSocket front;
+    private final DatagramSocket back;
+    private final SocketAddress server;
+    private final double nanosPerByte;
+    private final int delay;
+    final AtomicLong downstreamBytes = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+        r -> {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        });
+    private volatile SocketAddress client;
+    private long bottleneckFree;
+
+    DelayRelay(SocketAddress server, int bottleneck, int delay) throws IOException {
+      this.front = new DatagramSocket(0);
+      this.back = new DatagramSocket(0);
+      this.server = server;
+      this.nanosPerByte = 8e3 / bottleneck;
+      this.delay = delay;
+      daemon(this::upstream);
+      daemon(this::downstream);
+    }
+
+    SocketAddress getAddress() {
+      return new InetSocketAddress(LOCALHOST, front.getLocalPort());
+    }
+
+    void close() {
+      front.close();
+      back.close();
+    }
+
+    private void upstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          front.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        client = packet.getSocketAddress();
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        executor.schedule(() -> forward(back, data, server), delay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void downstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          back.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        long now = System.nanoTime();
+        // The queue of the bottleneck is the time until it is free
+        bottleneckFree = Math.max(bottleneckFree, now);
+        if (bottleneckFree - now > MAX_QUEUE_DELAY * 1000000L) {
+          continue;
+        }
+        bottleneckFree += (long) (packet.getLength() * nanosPerByte);
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        executor.schedule(() -> {
+          forward(front, data, client);
+          downstreamBytes.addAndGet(data.length);
+        }, bottleneckFree - now + delay * 1000000L, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private void forward(DatagramSocket socket, byte[] data, SocketAddress target) {
+      try {
+        socket.send(new DatagramPacket(data, data.length, target));
+      } catch (IOException e) {
+        // Closed at the end of the run
+      }
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.copyRect;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.cursor;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.cutText;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.desktopSize;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.hextile;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.keyEvent;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.lastRect;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.pointerEvent;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.raw;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.rre;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.setEncodings;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.tightFill;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.tightJpeg;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.tightPalette;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.update;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.updateRequest;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.zrle;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests the RfbParser class on recorded RFB sessions.
+ */
+public class RfbParserTest {
+  private static final int[] CHUNK_SIZES = {1, 3, 7, 1000, Integer.MAX_VALUE};
+
+  /**
+   * Test for {@link RfbParser#nextFromViewer(ByteBuffer)} and
+   * {@link RfbParser#nextFromServer(ByteBuffer)} through the handshake.
+   */
+  @Test
+  public void testHandshake() {
+    for (int chunkSize : CHUNK_SIZES) {
+      RfbParser parser = new RfbParser(false);
+      Parsed parsed = parse(parser, RfbRecording.handshake(), chunkSize);
+      assertEquals(Arrays.asList(RfbParser.HEADER, RfbParser.HEADER, RfbParser.HEADER),
+          parsed.viewerEvents);
+      assertEquals(Arrays.asList(RfbParser.HEADER, RfbParser.HEADER, RfbParser.HEADER,
+          RfbParser.HEADER), parsed.serverEvents);
+      assertTrue(parser.atViewerMessage());
+      assertTrue(parser.atServerMessage());
+    }
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromServer(ByteBuffer)} on an update with rectangles of each
+   * encoding, which are only found through their encodings.
+   */
+  @Test
+  public void testUpdateOfEachEncoding() {
+    byte[][] rects = {
+        raw(0, 0, 16, 8, 1),
+        copyRect(16, 0, 32, 32),
+        rre(0, 100, 50, 50, 3),
+        hextile(100, 100, 70, 40),
+        zrle(200, 0, 64, 64, 1000),
+        tightJpeg(300, 0, 64, 64, 20000, 1),
+        tightFill(400, 0, 10, 10),
+        tightPalette(500, 0, 100, 100, 200),
+        cursor(0, 0, 12, 18),
+        desktopSize(1280, 1024),
+        raw(1200, 1000, 10, 10, 2),
+    };
+    RfbRecording recording = RfbRecording.handshake()
+        .viewer(updateRequest(false, 0, 0, RfbRecording.WIDTH, RfbRecording.HEIGHT))
+        .server(update(rects))
+        .server(update());
+    for (int chunkSize : CHUNK_SIZES) {
+      RfbParser parser = new RfbParser(false);
+      Parsed parsed = parse(parser, recording, chunkSize);
+      assertFalse(parser.serverFailed());
+      assertTrue(parser.atServerMessage());
+      assertEquals(rects.length, count(parsed.serverEvents, RfbParser.RECT));
+      assertEquals(rects.length, count(parsed.serverEvents, RfbParser.RECT_END));
+      assertEquals(2, count(parsed.serverEvents, RfbParser.UPDATE_END));
+      assertEquals(RfbParser.UPDATE_END, (int) last(parsed.serverEvents));
+    }
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromServer(ByteBuffer)} on an update that ends with a LastRect
+   * rectangle rather than after the number of rectangles it announces.
+   */
+  @Test
+  public void testUpdateEndingWithLastRect() {
+    byte[] update = update(raw(0, 0, 4, 4, 1), lastRect());
+    update[2] = (byte) 0xff;
+    update[3] = (byte) 0xff;
+    RfbParser parser = new RfbParser(false);
+    Parsed parsed = parse(parser, RfbRecording.handshake().server(update), 5);
+    assertEquals(1, count(parsed.serverEvents, RfbParser.UPDATE_END));
+    assertTrue(parser.atServerMessage());
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromViewer(ByteBuffer)} on the messages of the viewer.
+   */
+  @Test
+  public void testViewerMessages() {
+    RfbRecording recording = RfbRecording.handshake()
+        .viewer(setEncodings(RfbParser.ENCODING_TIGHT, RfbParser.ENCODING_RAW,
+            RfbParser.ENCODING_CURSOR))
+        .viewer(updateRequest(true, 0, 0, 10, 10))
+        .viewer(keyEvent(0xff0d))
+        .viewer(pointerEvent(5, 6))
+        .viewer(cutText(6, "copied text"));
+    for (int chunkSize : CHUNK_SIZES) {
+      RfbParser parser = new RfbParser(false);
+      Parsed parsed = parse(parser, recording, chunkSize);
+      assertEquals(5, count(parsed.viewerEvents, RfbParser.MESSAGE));
+      assertEquals(Arrays.asList(2, 3, 4, 5, 6), parsed.viewerMessageTypes);
+      assertTrue(parser.atViewerMessage());
+    }
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromServer(ByteBuffer)} on a message it does not know: the
+   * parser stops following the server, and returns the rest as a body.
+   */
+  @Test
+  public void testUnknownServerMessage() {
+    RfbRecording recording = RfbRecording.handshake()
+        .server(update(raw(0, 0, 2, 2, 1)))
+        .server(new byte[] {99, 1, 2, 3})
+        .server(update(raw(0, 0, 2, 2, 1)))
+        .viewer(keyEvent(1));
+    for (int chunkSize : CHUNK_SIZES) {
+      RfbParser parser = new RfbParser(false);
+      Parsed parsed = parse(parser, recording, chunkSize);
+      assertTrue(parser.serverFailed());
+      assertFalse(parser.viewerFailed());
+      assertEquals(1, count(parsed.serverEvents, RfbParser.UPDATE_END));
+      assertEquals(1, count(parsed.viewerEvents, RfbParser.MESSAGE));
+    }
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromServer(ByteBuffer)} on a rectangle outside the
+   * framebuffer, which the parser takes for a sign that it has lost the framing.
+   */
+  @Test
+  public void testRectangleOutsideFramebuffer() {
+    RfbParser parser = new RfbParser(false);
+    parse(parser, RfbRecording.handshake()
+        .server(update(raw(RfbRecording.WIDTH - 1, 0, 2, 2, 1))), 1000);
+    assertTrue(parser.serverFailed());
+  }
+
+  /**
+   * Test for {@link RfbParser#nextFromViewer(ByteBuffer)} on a message of the proxies, which is
+   * only known to a parser that is asked to follow them.
+   */
+  @Test
+  public void testProxyMessages() {
+    byte[] message = RfbRectangleCache.message(RfbRectangleCache.KIND_INVENTORY,
+        ByteBuffer.wrap(new byte[28])).array();
+    RfbRecording recording = RfbRecording.handshake().viewer(message).viewer(keyEvent(1));
+
+    RfbParser parser = new RfbParser(true);
+    Parsed parsed = parse(parser, recording, 3);
+    assertEquals(Arrays.asList(RfbParser.MESSAGE_PROXY, 4), parsed.viewerMessageTypes);
+
+    parser = new RfbParser(false);
+    parse(parser, recording, 3);
+    assertTrue(parser.viewerFailed());
+  }
+
+  /**
+   * Feeds a recording to a parser in chunks, checking that each byte is returned once, in a
+   * header or in a body.
+   */
+  private static Parsed parse(RfbParser parser, RfbRecording recording, int chunkSize) {
+    Parsed parsed = new Parsed();
+    long viewerBytes = 0;
+    long serverBytes = 0;
+    for (int i = 0; i < recording.size(); i++) {
+      byte[] chunk = recording.chunk(i);
+      boolean viewer = recording.isFromViewer(i);
+      for (int start = 0; start < chunk.length; start += chunkSize) {
+        ByteBuffer in = ByteBuffer.wrap(chunk, start, Math.min(chunkSize, chunk.length - start));
+        if (viewer) {
+          viewerBytes += in.remaining();
+          parsed.viewerBytes += parseViewer(parser, in, parsed);
+        } else {
+          serverBytes += in.remaining();
+          parsed.serverBytes += parseServer(parser, in, parsed);
+        }
+        assertFalse(in.hasRemaining());
+      }
+    }
+    assertEquals(viewerBytes, parsed.viewerBytes);
+    assertEquals(serverBytes, parsed.serverBytes);
+    return parsed;
+  }
+
+  private static long parseViewer(RfbParser parser, ByteBuffer in, Parsed parsed) {
+    long bytes = 0;
+    while (true) {
+      int event = parser.nextFromViewer(in);
+      if (event == RfbParser.NONE) {
+        return bytes;
+      } else if (event == RfbParser.BODY) {
+        int length = (int) Math.min(parser.viewerBodyLeft(), in.remaining());
+        if (length == 0) {
+          return bytes;
+        }
+        in.position(in.position() + length);
+        parser.skipViewerBody(length);
+        bytes += length;
+        continue;
+      }
+      bytes += parser.viewerHeaderLength();
+      parsed.viewerEvents.add(event);
+      if (event == RfbParser.MESSAGE) {
+        parsed.viewerMessageTypes.add(parser.viewerHeader()[0] & 0xff);
+      }
+    }
+  }
+
+  private static long parseServer(RfbParser parser, ByteBuffer in, Parsed parsed) {
+    long bytes = 0;
+    while (true) {
+      int event = parser.nextFromServer(in);
+      if (event == RfbParser.NONE) {
+        return bytes;
+      } else if (event == RfbParser.BODY) {
+        int length = (int) Math.min(parser.serverBodyLeft(), in.remaining());
+        if (length == 0) {
+          return bytes;
+        }
+        in.position(in.position() + length);
+        parser.skipServerBody(length);
+        bytes += length;
+        continue;
+      }
+      if (event != RfbParser.RECT_END && event != RfbParser.UPDATE_END) {
+        bytes += parser.serverHeaderLength();
+      }
+      parsed.serverEvents.add(event);
+    }
+  }
+
+  private static int count(List<Integer> events, int event) {
+    int count = 0;
+    for (int each : events) {
+      if (each == event) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static Integer last(List<Integer> events) {
+    return events.get(events.size() - 1);
+  }
+
+  /**
+   * The events a parser has returned, and the bytes it has accounted for.
+   */
+  private static class Parsed {
+    final List<Integer> viewerEvents = new ArrayList<>();
+    final List<Integer> viewerMessageTypes = new ArrayList<>();
+    final List<Integer> serverEvents = new ArrayList<>();
+    long viewerBytes = 0;
+    long serverBytes = 0;
+  }
+}
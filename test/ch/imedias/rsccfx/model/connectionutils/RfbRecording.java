@@ -0,0 +1,358 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The bytes of both directions of an RFB 3.8 session, in the order a recording of the session
+ * holds them, for the tests of the RFB filters.
+ *
+ * <p>The session starts with the handshake of a server without security and a framebuffer of
+ * {@link #WIDTH} by {@link #HEIGHT} pixels of 32 bits, depth 24. The static methods build the
+ * messages and rectangles that the tests add to it.
+ */
+class RfbRecording {
+  static final int WIDTH = 1024;
+  static final int HEIGHT = 768;
+
+  private final List<byte[]> chunks = new ArrayList<>();
+  private final List<Boolean> fromViewer = new ArrayList<>();
+
+  /**
+   * Returns a recording of the handshake, up to the first message of the viewer.
+   */
+  static RfbRecording handshake() {
+    byte[] name = "test".getBytes(StandardCharsets.US_ASCII);
+    return new RfbRecording()
+        .server("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII))
+        .viewer("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII))
+        .server(new byte[] {1, 1}) // one security type: None
+        .viewer(new byte[] {1})
+        .server(new byte[] {0, 0, 0, 0}) // SecurityResult: OK
+        .viewer(new byte[] {1}) // ClientInit: shared
+        .server(bytes(out -> {
+          out.writeShort(WIDTH);
+          out.writeShort(HEIGHT);
+          out.write(new byte[] {32, 24, 0, 1, 0, (byte) 255, 0, (byte) 255, 0, (byte) 255,
+              16, 8, 0, 0, 0, 0});
+          out.writeInt(name.length);
+          out.write(name);
+        }));
+  }
+
+  /**
+   * Adds bytes sent by the viewer.
+   */
+  RfbRecording viewer(byte[] bytes) {
+    chunks.add(bytes);
+    fromViewer.add(true);
+    return this;
+  }
+
+  /**
+   * Adds bytes sent by the server.
+   */
+  RfbRecording server(byte[] bytes) {
+    chunks.add(bytes);
+    fromViewer.add(false);
+    return this;
+  }
+
+  int size() {
+    return chunks.size();
+  }
+
+  byte[] chunk(int index) {
+    return chunks.get(index);
+  }
+
+  boolean isFromViewer(int index) {
+    return fromViewer.get(index);
+  }
+
+  /**
+   * Returns all the bytes of one direction.
+   */
+  byte[] bytesFrom(boolean viewer) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks.size(); i++) {
+      if (fromViewer.get(i) == viewer) {
+        out.write(chunks.get(i), 0, chunks.get(i).length);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] setEncodings(int... encodings) {
+    return bytes(out -> {
+      out.writeByte(2);
+      out.writeByte(0);
+      out.writeShort(encodings.length);
+      for (int encoding : encodings) {
+        out.writeInt(encoding);
+      }
+    });
+  }
+
+  static byte[] updateRequest(boolean incremental, int x, int y, int width, int height) {
+    return bytes(out -> {
+      out.writeByte(3);
+      out.writeByte(incremental ? 1 : 0);
+      out.writeShort(x);
+      out.writeShort(y);
+      out.writeShort(width);
+      out.writeShort(height);
+    });
+  }
+
+  static byte[] keyEvent(int key) {
+    return bytes(out -> {
+      out.writeByte(4);
+      out.writeByte(1);
+      out.writeShort(0);
+      out.writeInt(key);
+    });
+  }
+
+  static byte[] pointerEvent(int x, int y) {
+    return bytes(out -> {
+      out.writeByte(5);
+      out.writeByte(0);
+      out.writeShort(x);
+      out.writeShort(y);
+    });
+  }
+
+  static byte[] cutText(int type, String text) {
+    byte[] latin = text.getBytes(StandardCharsets.ISO_8859_1);
+    return bytes(out -> {
+      out.writeByte(type);
+      out.write(new byte[3]);
+      out.writeInt(latin.length);
+      out.write(latin);
+    });
+  }
+
+  /**
+   * Returns a FramebufferUpdate with the given rectangles.
+   */
+  static byte[] update(byte[]... rects) {
+    return bytes(out -> {
+      out.writeByte(0);
+      out.writeByte(0);
+      out.writeShort(rects.length);
+      for (byte[] rect : rects) {
+        out.write(rect);
+      }
+    });
+  }
+
+  /**
+   * Returns a rectangle with its header.
+   */
+  static byte[] rect(int x, int y, int width, int height, int encoding, byte[] data) {
+    return bytes(out -> {
+      out.writeShort(x);
+      out.writeShort(y);
+      out.writeShort(width);
+      out.writeShort(height);
+      out.writeInt(encoding);
+      out.write(data);
+    });
+  }
+
+  /**
+   * Returns a raw rectangle of random pixels.
+   */
+  static byte[] raw(int x, int y, int width, int height, long seed) {
+    return rect(x, y, width, height, RfbParser.ENCODING_RAW, random(width * height * 4, seed));
+  }
+
+  static byte[] copyRect(int x, int y, int width, int height) {
+    return rect(x, y, width, height, RfbParser.ENCODING_COPY_RECT, new byte[] {0, 1, 0, 2});
+  }
+
+  static byte[] rre(int x, int y, int width, int height, int subrects) {
+    return rect(x, y, width, height, RfbParser.ENCODING_RRE, bytes(out -> {
+      out.writeInt(subrects);
+      out.write(random(4 + subrects * (4 + 8), subrects));
+    }));
+  }
+
+  /**
+   * Returns a hextile rectangle whose tiles use each subencoding in turn.
+   */
+  static byte[] hextile(int x, int y, int width, int height) {
+    return rect(x, y, width, height, RfbParser.ENCODING_HEXTILE, bytes(out -> {
+      int tile = 0;
+      for (int top = 0; top < height; top += 16) {
+        for (int left = 0; left < width; left += 16, tile++) {
+          int pixels = Math.min(16, width - left) * Math.min(16, height - top);
+          switch (tile % 5) {
+            case 0: // Raw
+              out.writeByte(0x01);
+              out.write(random(pixels * 4, tile));
+              break;
+            case 1: // BackgroundSpecified
+              out.writeByte(0x02);
+              out.write(random(4, tile));
+              break;
+            case 2: // BackgroundSpecified, ForegroundSpecified, AnySubrects
+              out.writeByte(0x0E);
+              out.write(random(8, tile));
+              out.writeByte(3);
+              out.write(random(3 * 2, tile));
+              break;
+            case 3: // AnySubrects, SubrectsColoured
+              out.writeByte(0x18);
+              out.writeByte(2);
+              out.write(random(2 * (4 + 2), tile));
+              break;
+            default: // Same background as the tile before
+              out.writeByte(0);
+              break;
+          }
+        }
+      }
+    }));
+  }
+
+  static byte[] zrle(int x, int y, int width, int height, int length) {
+    return rect(x, y, width, height, RfbParser.ENCODING_ZRLE, bytes(out -> {
+      out.writeInt(length);
+      out.write(random(length, length));
+    }));
+  }
+
+  /**
+   * Returns a tight rectangle of JPEG data, the only one of the tight encoding that is cached.
+   */
+  static byte[] tightJpeg(int x, int y, int width, int height, int length, long seed) {
+    return rect(x, y, width, height, RfbParser.ENCODING_TIGHT, bytes(out -> {
+      out.writeByte(0x90);
+      writeCompactLength(out, length);
+      out.write(random(length, seed));
+    }));
+  }
+
+  static byte[] tightFill(int x, int y, int width, int height) {
+    return rect(x, y, width, height, RfbParser.ENCODING_TIGHT, new byte[] {(byte) 0x80, 1, 2, 3});
+  }
+
+  /**
+   * Returns a tight rectangle with a palette of two colours, and compressed data.
+   */
+  static byte[] tightPalette(int x, int y, int width, int height, int length) {
+    return rect(x, y, width, height, RfbParser.ENCODING_TIGHT, bytes(out -> {
+      out.writeByte(0x40); // stream 0, explicit filter
+      out.writeByte(1); // palette
+      out.writeByte(1); // two colours
+      out.write(random(2 * 3, 2));
+      writeCompactLength(out, length);
+      out.write(random(length, length));
+    }));
+  }
+
+  static byte[] cursor(int x, int y, int width, int height) {
+    return rect(x, y, width, height, RfbParser.ENCODING_CURSOR,
+        random(width * height * 4 + (width + 7) / 8 * height, 7));
+  }
+
+  static byte[] desktopSize(int width, int height) {
+    return rect(0, 0, width, height, RfbParser.ENCODING_DESKTOP_SIZE, new byte[0]);
+  }
+
+  static byte[] lastRect() {
+    return rect(0, 0, 0, 0, RfbParser.ENCODING_LAST_RECT, new byte[0]);
+  }
+
+  /**
+   * Passes bytes through a filter towards the RUDP connection the way a ProxyPump does, through
+   * a destination of the given size, until the filter makes no more progress.
+   *
+   * @return the bytes the filter has passed on.
+   */
+  static byte[] passUpstream(ProxyFilter filter, byte[] bytes, int room, long now)
+      throws IOException {
+    return pass(filter, bytes, room, now, true);
+  }
+
+  /**
+   * Passes bytes through a filter towards the TCP connection the way a ProxyPump does, through
+   * a destination of the given size, until the filter makes no more progress.
+   *
+   * @return the bytes the filter has passed on.
+   */
+  static byte[] passDownstream(ProxyFilter filter, byte[] bytes, int room) throws IOException {
+    return pass(filter, bytes, room, 0, false);
+  }
+
+  private static byte[] pass(ProxyFilter filter, byte[] bytes, int room, long now,
+                             boolean upstream) throws IOException {
+    ByteBuffer src = ByteBuffer.wrap(bytes);
+    ByteBuffer dst = ByteBuffer.allocate(room);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    while (true) {
+      final int before = src.remaining();
+      if (upstream) {
+        filter.filterUpstream(src, dst, now);
+      } else {
+        filter.filterDownstream(src, dst);
+      }
+      dst.flip();
+      out.write(dst.array(), 0, dst.limit());
+      if (dst.limit() == 0 && src.remaining() == before) {
+        return out.toByteArray();
+      }
+      dst.clear();
+    }
+  }
+
+  static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, 0, part.length);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] random(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void writeCompactLength(DataOutputStream out, int length) throws IOException {
+    if (length < 0x80) {
+      out.writeByte(length);
+    } else if (length < 0x4000) {
+      out.writeByte(0x80 | (length & 0x7f));
+      out.writeByte(length >> 7);
+    } else {
+      out.writeByte(0x80 | (length & 0x7f));
+      out.writeByte(0x80 | ((length >> 7) & 0x7f));
+      out.writeByte(length >> 14);
+    }
+  }
+
+  private static byte[] bytes(Writer writer) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      writer.write(new DataOutputStream(bytes));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,268 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.copyRect;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.hextile;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.passDownstream;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.passUpstream;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.raw;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.rect;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.setEncodings;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.tightJpeg;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.update;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.updateRequest;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.zrle;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the RfbRectangleCache class, and the RfbCacheEncoder and RfbCacheDecoder classes that
+ * keep it on recorded RFB sessions.
+ */
+public class RfbRectangleCacheTest {
+  private static final int ROOM = 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  RfbCacheDecoder decoder;
+  RfbCacheEncoder encoder;
+  final ByteArrayOutputStream atServer = new ByteArrayOutputStream();
+  final ByteArrayOutputStream atViewer = new ByteArrayOutputStream();
+  long betweenProxies = 0;
+
+  /**
+   * Test for {@link RfbCacheEncoder} and {@link RfbCacheDecoder}: the viewer receives exactly
+   * the bytes of the server, although the rectangles it has are sent as references.
+   */
+  @Test
+  public void testRectanglesFromCache() throws IOException {
+    RfbRectangleCache cache = new RfbRectangleCache(1 << 20);
+    byte[] image = raw(0, 0, 64, 64, 1);
+    byte[] jpeg = tightJpeg(0, 0, 64, 64, 3000, 2);
+    final byte[] moved = raw(500, 300, 64, 64, 1);
+    RfbRecording recording = start(cache)
+        .viewer(updateRequest(false, 0, 0, RfbRecording.WIDTH, RfbRecording.HEIGHT))
+        .server(update(image, jpeg, raw(0, 0, 4, 4, 3), copyRect(8, 8, 4, 4), zrle(0, 0, 64,
+            64, 2000), hextile(0, 0, 40, 40)))
+        .viewer(updateRequest(true, 0, 0, RfbRecording.WIDTH, RfbRecording.HEIGHT));
+    replay(recording);
+    assertEquals(0, encoder.getReferenced());
+    // The raw, the JPEG and the hextile rectangle
+    assertEquals(3, cache.getCount());
+
+    final long before = betweenProxies;
+    byte[] repeated = update(moved, jpeg);
+    replay(new RfbRecording().server(repeated));
+    recording.server(repeated);
+    assertEquals(2, encoder.getReferenced());
+    assertEquals(2, decoder.getFromCache());
+    assertTrue(betweenProxies - before < 100);
+    assertArrayEquals(recording.bytesFrom(true), atServer.toByteArray());
+    assertArrayEquals(recording.bytesFrom(false), atViewer.toByteArray());
+  }
+
+  /**
+   * Test for {@link RfbCacheDecoder}: a cache saved after a session starts the next one with
+   * its rectangles.
+   */
+  @Test
+  public void testCacheOfEarlierSession() throws IOException {
+    File file = folder.newFile();
+    RfbRectangleCache cache = new RfbRectangleCache(1 << 20);
+    byte[] image = update(raw(0, 0, 64, 64, 1));
+    replay(start(cache).server(image));
+    assertTrue(cache.isChanged());
+    cache.save(file);
+    assertFalse(cache.isChanged());
+
+    atServer.reset();
+    atViewer.reset();
+    cache = RfbRectangleCache.load(file, 1 << 20);
+    assertEquals(1, cache.getCount());
+    RfbRecording recording = start(cache).server(image);
+    replay(recording);
+    assertEquals(1, decoder.getFromCache());
+    assertArrayEquals(recording.bytesFrom(false), atViewer.toByteArray());
+  }
+
+  /**
+   * Test for {@link RfbCacheEncoder}: a viewer without a decoder gets the data of the server
+   * unchanged.
+   */
+  @Test
+  public void testViewerWithoutDecoder() throws IOException {
+    encoder = new RfbCacheEncoder();
+    RfbRecording recording = RfbRecording.handshake()
+        .viewer(setEncodings(RfbParser.ENCODING_RAW))
+        .server(update(raw(0, 0, 64, 64, 1)))
+        .server(update(raw(0, 0, 64, 64, 1)));
+    for (int i = 0; i < recording.size(); i++) {
+      byte[] chunk = recording.chunk(i);
+      byte[] passed = recording.isFromViewer(i) ? passDownstream(encoder, chunk, ROOM)
+          : passUpstream(encoder, chunk, ROOM, 0);
+      assertArrayEquals(chunk, passed);
+    }
+    assertEquals(0, encoder.getReferenced());
+  }
+
+  /**
+   * Test for {@link RfbCacheDecoder#filterDownstream}: a reference to a rectangle that is not in
+   * the cache ends the connection.
+   */
+  @Test(expected = IOException.class)
+  public void testReferenceNotInCache() throws IOException {
+    replay(start(new RfbRectangleCache(1 << 20)));
+    byte[] reference = rect(0, 0, 64, 64, RfbParser.ENCODING_CACHED_RECT, new byte[16]);
+    passDownstream(decoder, update(reference), ROOM);
+  }
+
+  /**
+   * Test for {@link RfbRectangleCache#put}, which evicts the least recently used rectangles.
+   */
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    RfbRectangleCache cache = new RfbRectangleCache(3 * 1024);
+    ByteBuffer[] rects = new ByteBuffer[4];
+    RfbRectangleCache.Digest[] digests = new RfbRectangleCache.Digest[4];
+    for (int i = 0; i < rects.length; i++) {
+      rects[i] = ByteBuffer.wrap(raw(0, 0, 16, 16, i));
+      digests[i] = cache.digest(rects[i]);
+    }
+    for (int i = 0; i < 3; i++) {
+      cache.put(digests[i], rects[i]);
+    }
+    assertNotNull(cache.get(digests[0]));
+    cache.put(digests[3], rects[3]);
+    assertEquals(3, cache.getCount());
+    assertEquals(3 * 1024, cache.getSize());
+    assertNull(cache.get(digests[1]));
+    assertNotNull(cache.get(digests[0]));
+
+    cache.trim(1);
+    assertEquals(1, cache.getCount());
+    assertNotNull(cache.get(digests[0]));
+  }
+
+  /**
+   * Test for {@link RfbRectangleCache#digest}, which leaves out the position of the rectangle.
+   */
+  @Test
+  public void testDigestIgnoresPosition() {
+    RfbRectangleCache cache = new RfbRectangleCache(1 << 20);
+    RfbRectangleCache.Digest digest = cache.digest(ByteBuffer.wrap(raw(0, 0, 16, 16, 1)));
+    assertEquals(digest, cache.digest(ByteBuffer.wrap(raw(9, 9, 16, 16, 1))));
+    assertFalse(digest.equals(cache.digest(ByteBuffer.wrap(raw(0, 0, 16, 16, 2)))));
+    assertFalse(digest.equals(cache.digest(ByteBuffer.wrap(raw(0, 0, 8, 32, 1)))));
+  }
+
+  /**
+   * Test for {@link RfbRectangleCache#mirror(ByteBuffer)} of the inventory of a cache.
+   */
+  @Test
+  public void testMirrorOfInventory() {
+    RfbRectangleCache cache = new RfbRectangleCache(1 << 20);
+    RfbRectangleCache.Digest[] digests = new RfbRectangleCache.Digest[3];
+    for (int i = 0; i < digests.length; i++) {
+      ByteBuffer rect = ByteBuffer.wrap(raw(0, 0, 16, 16, i));
+      digests[i] = cache.digest(rect);
+      cache.put(digests[i], rect);
+    }
+    RfbRectangleCache mirror = RfbRectangleCache.mirror(cache.inventory());
+    assertEquals(cache.getCount(), mirror.getCount());
+    assertEquals(cache.getSize(), mirror.getSize());
+    for (RfbRectangleCache.Digest digest : digests) {
+      assertNotNull(mirror.get(digest));
+    }
+    assertNull(RfbRectangleCache.mirror(ByteBuffer.allocate(9)));
+  }
+
+  /**
+   * Test for {@link RfbRectangleCache#save(File)} and {@link RfbRectangleCache#load(File, long)},
+   * which keeps what it can of a damaged file.
+   */
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    RfbRectangleCache cache = new RfbRectangleCache(1 << 20);
+    byte[][] rects = new byte[3][];
+    for (int i = 0; i < rects.length; i++) {
+      rects[i] = raw(0, 0, 16, 16 + i, i);
+      cache.put(cache.digest(ByteBuffer.wrap(rects[i])), ByteBuffer.wrap(rects[i]));
+    }
+    File file = new File(folder.getRoot(), "cache/rectangles");
+    cache.save(file);
+
+    RfbRectangleCache loaded = RfbRectangleCache.load(file, 1 << 20);
+    assertEquals(3, loaded.getCount());
+    assertEquals(cache.getSize(), loaded.getSize());
+    for (byte[] rect : rects) {
+      RfbRectangleCache.Entry entry = loaded.get(loaded.digest(ByteBuffer.wrap(rect)));
+      byte[] data = new byte[entry.length];
+      entry.data.duplicate().get(data);
+      assertArrayEquals(Arrays.copyOfRange(rect, RfbRectangleCache.RECT_HEADER_SIZE,
+          rect.length), data);
+    }
+
+    try (RandomAccessFile damaged = new RandomAccessFile(file, "rw")) {
+      damaged.setLength(damaged.length() - 1);
+    }
+    assertEquals(2, RfbRectangleCache.load(file, 1 << 20).getCount());
+    assertEquals(0, RfbRectangleCache.load(new File(folder.getRoot(), "none"), 1 << 20)
+        .getCount());
+  }
+
+  /**
+   * Returns a recording of the start of a session whose viewer asks for the cache, and creates
+   * the proxies that keep it.
+   */
+  private RfbRecording start(RfbRectangleCache cache) {
+    decoder = new RfbCacheDecoder(cache);
+    encoder = new RfbCacheEncoder();
+    return RfbRecording.handshake().viewer(setEncodings(RfbParser.ENCODING_TIGHT,
+        RfbParser.ENCODING_HEXTILE, RfbParser.ENCODING_RAW));
+  }
+
+  /**
+   * Passes the chunks of a recording through the proxies in order, letting the proxies talk to
+   * each other after each one.
+   */
+  private void replay(RfbRecording recording) throws IOException {
+    for (int i = 0; i < recording.size(); i++) {
+      if (recording.isFromViewer(i)) {
+        fromViewer(recording.chunk(i));
+      } else {
+        fromServer(recording.chunk(i));
+      }
+      boolean busy = true;
+      while (busy) {
+        busy = fromViewer(new byte[0]) | fromServer(new byte[0]);
+      }
+    }
+  }
+
+  private boolean fromViewer(byte[] bytes) throws IOException {
+    byte[] sent = passUpstream(decoder, bytes, ROOM, 0);
+    atServer.write(passDownstream(encoder, sent, ROOM));
+    return sent.length > 0;
+  }
+
+  private boolean fromServer(byte[] bytes) throws IOException {
+    byte[] sent = passUpstream(encoder, bytes, ROOM, 0);
+    betweenProxies += sent.length;
+    atViewer.write(passDownstream(decoder, sent, ROOM));
+    return sent.length > 0;
+  }
+}
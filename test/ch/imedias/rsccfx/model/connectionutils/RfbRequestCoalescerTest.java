@@ -0,0 +1,120 @@
+package ch.imedias.rsccfx.model.connectionutils;
+
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.concat;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.hextile;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.keyEvent;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.passDownstream;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.passUpstream;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.pointerEvent;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.raw;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.update;
+import static ch.imedias.rsccfx.model.connectionutils.RfbRecording.updateRequest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the RfbRequestCoalescer class on recorded RFB sessions.
+ */
+public class RfbRequestCoalescerTest {
+  private static final byte[] NOTHING = new byte[0];
+  private static final int ROOM = 5;
+
+  RfbRequestCoalescer coalescer;
+
+  /**
+   * Initializes test fixture before each test: a coalescer that lets one update be outstanding,
+   * after the handshake.
+   */
+  @Before
+  public void setUp() throws IOException {
+    coalescer = new RfbRequestCoalescer(1);
+    RfbRecording handshake = RfbRecording.handshake();
+    for (int i = 0; i < handshake.size(); i++) {
+      byte[] chunk = handshake.chunk(i);
+      byte[] passed = handshake.isFromViewer(i) ? passUpstream(coalescer, chunk, ROOM, 0)
+          : passDownstream(coalescer, chunk, ROOM);
+      assertArrayEquals(chunk, passed);
+    }
+  }
+
+  /**
+   * Test for {@link RfbRequestCoalescer#filterUpstream}: the requests that follow an outstanding
+   * one are held back and merged, while the other messages of the viewer pass on in order.
+   */
+  @Test
+  public void testMergesHeldRequests() throws IOException {
+    byte[] first = updateRequest(true, 0, 0, 100, 100);
+    assertArrayEquals(first, passUpstream(coalescer, first, ROOM, 0));
+
+    byte[] key = keyEvent(0x61);
+    byte[] pointer = pointerEvent(3, 4);
+    byte[] viewer = concat(updateRequest(true, 50, 50, 100, 100), key,
+        updateRequest(false, 200, 0, 10, 10), pointer);
+    assertArrayEquals(concat(key, pointer), passUpstream(coalescer, viewer, ROOM, 10));
+    assertTrue(coalescer.millisUntilRelease(10) > 0);
+
+    byte[] update = update(raw(0, 0, 100, 100, 1), hextile(0, 0, 40, 40));
+    assertArrayEquals(update, passDownstream(coalescer, update, ROOM));
+    assertEquals(0, coalescer.millisUntilRelease(20));
+    assertArrayEquals(updateRequest(false, 50, 0, 160, 150),
+        passUpstream(coalescer, NOTHING, ROOM, 20));
+    assertEquals(-1, coalescer.millisUntilRelease(20));
+    assertTrue(coalescer.isUpstreamDrained());
+  }
+
+  /**
+   * Test for {@link RfbRequestCoalescer#filterDownstream}: an update only counts as arrived once
+   * its last byte has.
+   */
+  @Test
+  public void testReleasesAfterWholeUpdate() throws IOException {
+    passUpstream(coalescer, updateRequest(true, 0, 0, 10, 10), ROOM, 0);
+    byte[] second = updateRequest(true, 0, 0, 20, 20);
+    assertEquals(0, passUpstream(coalescer, second, ROOM, 0).length);
+
+    byte[] update = update(raw(0, 0, 10, 10, 1));
+    passDownstream(coalescer, Arrays.copyOf(update, update.length - 1), ROOM);
+    assertEquals(0, passUpstream(coalescer, NOTHING, ROOM, 0).length);
+    passDownstream(coalescer, Arrays.copyOfRange(update, update.length - 1, update.length),
+        ROOM);
+    assertArrayEquals(second, passUpstream(coalescer, NOTHING, ROOM, 0));
+  }
+
+  /**
+   * Test for {@link RfbRequestCoalescer#millisUntilRelease(long)}: a held request is passed on
+   * after {@link RfbRequestCoalescer#HOLD_TIMEOUT} even without an update.
+   */
+  @Test
+  public void testReleasesAfterTimeout() throws IOException {
+    passUpstream(coalescer, updateRequest(true, 0, 0, 10, 10), ROOM, 0);
+    byte[] second = updateRequest(true, 0, 0, 20, 20);
+    passUpstream(coalescer, second, ROOM, 1000);
+    long due = 1000 + RfbRequestCoalescer.HOLD_TIMEOUT;
+    assertEquals(1, coalescer.millisUntilRelease(due - 1));
+    assertEquals(0, passUpstream(coalescer, NOTHING, ROOM, due - 1).length);
+    assertArrayEquals(second, passUpstream(coalescer, NOTHING, ROOM, due));
+  }
+
+  /**
+   * Test for {@link RfbRequestCoalescer#filterUpstream}: once the parser no longer follows the
+   * viewer, the held request goes first and everything passes on.
+   */
+  @Test
+  public void testPassesThroughUnknownMessage() throws IOException {
+    passUpstream(coalescer, updateRequest(true, 0, 0, 10, 10), ROOM, 0);
+    byte[] held = updateRequest(true, 0, 0, 20, 20);
+    passUpstream(coalescer, held, ROOM, 0);
+
+    byte[] unknown = {99, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+    byte[] request = updateRequest(false, 1, 2, 3, 4);
+    assertArrayEquals(concat(held, unknown, request),
+        passUpstream(coalescer, concat(unknown, request), ROOM, 0));
+    assertEquals(-1, coalescer.millisUntilRelease(0));
+  }
+}
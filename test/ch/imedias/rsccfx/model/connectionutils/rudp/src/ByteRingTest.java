@@ -0,0 +1,111 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ByteRing class.
+ */
+public class ByteRingTest {
+  ByteRing ring;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    ring = new ByteRing(10);
+  }
+
+  /**
+   * Test for {@link ByteRing#write(byte[], int, int)} and {@link ByteRing#read(byte[], int, int)}
+   * across the end of the array.
+   */
+  @Test
+  public void testWrapAround() {
+    ring.write(sequence(0, 7), 0, 7);
+    byte[] read = new byte[5];
+    assertEquals(5, ring.read(read, 0, 5));
+    assertArrayEquals(sequence(0, 5), read);
+
+    ring.write(sequence(7, 8), 0, 8);
+    assertEquals(10, ring.available());
+    assertEquals(0, ring.free());
+
+    read = new byte[12];
+    assertEquals(10, ring.read(read, 1, 11));
+    assertArrayEquals(sequence(5, 10), Arrays.copyOfRange(read, 1, 11));
+    assertEquals(0, ring.available());
+  }
+
+  /**
+   * Test for {@link ByteRing#write(DATSegment)} and {@link ByteRing#read(ByteBuffer)} with
+   * segments and reads of random sizes, so that both wrap around at every position.
+   */
+  @Test
+  public void testSegmentsWrapAround() {
+    ring = new ByteRing(1000);
+    Random random = new Random(1);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(1000);
+    int next = 0;
+    for (int i = 0; i < 2000; i++) {
+      int length = random.nextInt(ring.free() + 1);
+      byte[] data = sequence(next, length);
+      next += length;
+      ring.write(new DATSegment(i, i, data, 0, length));
+      written.write(data, 0, length);
+
+      buffer.clear();
+      buffer.limit(random.nextInt(buffer.capacity()));
+      int count = ring.read(buffer);
+      assertEquals(buffer.position(), count);
+      read.write(buffer.array(), 0, count);
+    }
+    buffer.clear();
+    read.write(buffer.array(), 0, ring.read(buffer));
+    assertArrayEquals(written.toByteArray(), read.toByteArray());
+  }
+
+  /**
+   * Test for {@link ByteRing#resize(int)}, which keeps the unread bytes that fit.
+   */
+  @Test
+  public void testResize() {
+    ring.write(sequence(0, 8), 0, 8);
+    ring.read(new byte[6], 0, 6);
+    ring.write(sequence(8, 6), 0, 6);
+
+    ring.resize(20);
+    assertEquals(20, ring.capacity());
+    assertEquals(8, ring.available());
+    ring.write(sequence(14, 12), 0, 12);
+    byte[] read = new byte[20];
+    assertEquals(20, ring.read(read, 0, 20));
+    assertArrayEquals(sequence(6, 20), read);
+
+    ring.write(sequence(0, 10), 0, 10);
+    ring.resize(4);
+    assertEquals(4, ring.available());
+    read = new byte[4];
+    ring.read(read, 0, 4);
+    assertArrayEquals(sequence(0, 4), read);
+  }
+
+  private static byte[] sequence(int start, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (start + i);
+    }
+    return bytes;
+  }
+}
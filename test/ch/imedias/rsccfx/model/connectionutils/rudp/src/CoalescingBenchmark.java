@@ -0,0 +1,109 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Measures the datagrams sent for a stream of small writes over RUDP, and the latency that
+ * coalescing them adds.
+ *
+ * <p>A client writes and flushes small events, such as pointer and key events, at a fixed rate
+ * to a server through a UDP relay that adds a fixed one-way delay in both directions. Each
+ * event starts with the time it was written, and the server measures the time until it has
+ * read it. The benchmark runs once sending every write right away and once coalescing small
+ * writes, and reports the datagrams per second sent by the client and the mean, 95th
+ * percentile and largest event latency of each run.
+ *
+ * <p>Usage: {@code CoalescingBenchmark [events] [eventBytes] [rate] [delayMs] [coalescingMs]},
+ * where rate is the number of events per second.
+ */
+public class CoalescingBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of events, event size in bytes, events per second, one-way delay in
+   *             milliseconds and coalescing delay in milliseconds.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final int eventSize = Math.max(args.length > 1 ? Integer.parseInt(args[1]) : 16, 8);
+    final int rate = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    final int delay = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    final int coalescing = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+    System.out.printf("events     %d x %d bytes at %d/s, delay %d ms%n",
+        events, eventSize, rate, delay);
+    run("no delay", true, events, eventSize, rate, delay, coalescing);
+    run("coalesced", false, events, eventSize, rate, delay, coalescing);
+    System.exit(0);
+  }
+
+  private static void run(String name, boolean noDelay, int events, int eventSize, int rate,
+                          int delay, int coalescing) throws Exception {
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    LossyRelay relay = new LossyRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), delay);
+
+    final long[] latencies = new long[events];
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] event = new byte[eventSize - 8];
+        for (int i = 0; i < events; i++) {
+          long stamp = in.readLong();
+          in.readFully(event);
+          latencies[i] = System.nanoTime() - stamp;
+        }
+        socket.getOutputStream().write(0);
+        socket.getOutputStream().flush();
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.start();
+
+    ReliableSocket client = new ReliableSocket();
+    client.connect(relay.getAddress(), 5000);
+    client.setTcpNoDelay(noDelay);
+    client.setCoalescingDelay(coalescing);
+    DataOutputStream out = new DataOutputStream(client.getOutputStream());
+    byte[] event = new byte[eventSize - 8];
+    long interval = 1000000000L / rate;
+    long before = relay.upstream.get();
+    long start = System.nanoTime();
+    long next = start;
+    for (int i = 0; i < events; i++) {
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      }
+      next += interval;
+      out.writeLong(System.nanoTime());
+      out.write(event);
+      out.flush();
+    }
+    client.getInputStream().read();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    final long datagrams = relay.upstream.get() - before;
+    client.close();
+    server.join(5000);
+    serverSocket.close();
+
+    Arrays.sort(latencies);
+    long total = 0;
+    for (long latency : latencies) {
+      total += latency;
+    }
+    System.out.printf("%-10s %.0f datagrams/s, latency mean %.1f ms, p95 %.1f ms, max %.1f ms%n",
+        name, datagrams / seconds, total / 1e6 / events, latencies[events * 95 / 100] / 1e6,
+        latencies[events - 1] / 1e6);
+  }
+}
@@ -0,0 +1,103 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the CubicCongestionControl class.
+ */
+public class CubicCongestionControlTest {
+  private static final int INITIAL_WINDOW = 4;
+  private static final int MAX_WINDOW = 1000;
+
+  CubicCongestionControl cc;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    cc = new CubicCongestionControl(INITIAL_WINDOW, MAX_WINDOW);
+  }
+
+  /**
+   * Test for {@link CubicCongestionControl#onAck(int, long)} during slow start: the window grows
+   * by one segment per acknowledged segment, up to the maximum window.
+   */
+  @Test
+  public void testSlowStart() {
+    assertEquals(INITIAL_WINDOW, cc.getWindow());
+    cc.onAck(INITIAL_WINDOW, 10);
+    assertEquals(2 * INITIAL_WINDOW, cc.getWindow());
+    cc.onAck(2 * MAX_WINDOW, 10);
+    assertEquals(MAX_WINDOW, cc.getWindow());
+  }
+
+  /**
+   * Test for {@link CubicCongestionControl#onCongestionEvent()}: the window and the threshold are
+   * reduced to 70% of the window, but not below two segments.
+   */
+  @Test
+  public void testCongestionEvent() {
+    cc.onAck(96, 10);
+    cc.onCongestionEvent();
+    assertEquals(70, cc.getWindow());
+    assertEquals(70, cc.getSlowStartThreshold());
+    cc.onCongestionEvent();
+    assertEquals(49, cc.getWindow());
+
+    cc = new CubicCongestionControl(2, MAX_WINDOW);
+    cc.onCongestionEvent();
+    assertEquals(2, cc.getWindow());
+    assertEquals(2, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link CubicCongestionControl#onAck(int, long)} after a loss event: the window grows
+   * back towards the window at the time of the loss, at least as fast as its estimate of a Reno
+   * window (about half a segment per window), and does not go beyond it before it has waited
+   * for the cubic function to get there.
+   */
+  @Test
+  public void testGrowthAfterCongestionEvent() {
+    cc.onAck(96, 10);
+    cc.onCongestionEvent();
+    for (int i = 0; i < 4 * 70; i++) {
+      cc.onAck(1, 10);
+    }
+    int window = cc.getWindow();
+    assertTrue("window " + window, window >= 72);
+    assertTrue("window " + window, window < 100);
+    assertEquals(70, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link CubicCongestionControl#undoCongestionEvent()}: the window and the threshold
+   * return to what they were before the event.
+   */
+  @Test
+  public void testUndoCongestionEvent() {
+    cc.onAck(96, 10);
+    cc.onCongestionEvent();
+    cc.undoCongestionEvent();
+    assertEquals(100, cc.getWindow());
+    assertEquals(MAX_WINDOW, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link CubicCongestionControl#onTimeout()}: the window falls to one segment, and slow
+   * start goes on up to 70% of the window at the time of the timeout.
+   */
+  @Test
+  public void testTimeout() {
+    cc.onAck(96, 10);
+    cc.onTimeout();
+    assertEquals(1, cc.getWindow());
+    assertEquals(70, cc.getSlowStartThreshold());
+    cc.onAck(69, 10);
+    assertEquals(70, cc.getWindow());
+  }
+}
@@ -0,0 +1,143 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a {@link ReliableServerSocket} copes with a flood of small datagrams from many
+ * clients.
+ *
+ * <p>Many clients connect to one server over loopback and each sends a stream of small
+ * timestamped messages, one data segment per message. The benchmark reports the messages
+ * received per second and the median and 99th percentile latency from write to read, for a
+ * server receiving on a single socket and for one receiving on several sockets that share the
+ * port with SO_REUSEPORT.
+ *
+ * <p>Usage: {@code DemuxFloodBenchmark [sessions] [messages] [receivers]}
+ */
+public class DemuxFloodBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final int MESSAGE_SIZE = 64;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of clients, messages sent by each client and number of receivers.
+   * @throws Exception if a transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    final int receivers = args.length > 2
+        ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    RudpEngine engine = new RudpEngine();
+    run(sessions, messages, 1, engine);
+    if (receivers > 1) {
+      run(sessions, messages, receivers, engine);
+    }
+    engine.shutdown();
+    System.exit(0);
+  }
+
+  private static void run(int sessions, int messages, int receivers, RudpEngine engine)
+      throws Exception {
+    final ReliableServerSocket serverSocket = new ReliableServerSocket(
+        0, 0, InetAddress.getByName(LOCALHOST), receivers);
+    final long[] latencies = new long[sessions * messages];
+    final AtomicInteger count = new AtomicInteger();
+    final CountDownLatch received = new CountDownLatch(sessions);
+
+    Thread acceptor = new Thread(() -> {
+      for (int i = 0; i < sessions; i++) {
+        try {
+          Socket socket = serverSocket.accept();
+          Thread reader = new Thread(() -> {
+            try {
+              DataInputStream in = new DataInputStream(socket.getInputStream());
+              byte[] message = new byte[MESSAGE_SIZE];
+              for (int m = 0; m < messages; m++) {
+                in.readFully(message);
+                long sentAt = 0;
+                for (int b = 0; b < 8; b++) {
+                  sentAt = (sentAt << 8) | (message[b] & 0xff);
+                }
+                latencies[count.getAndIncrement()] = System.nanoTime() - sentAt;
+              }
+              socket.getOutputStream().write(0);
+              socket.getOutputStream().flush();
+            } catch (IOException e) {
+              e.printStackTrace();
+            } finally {
+              received.countDown();
+            }
+          });
+          reader.setDaemon(true);
+          reader.start();
+        } catch (IOException e) {
+          e.printStackTrace();
+          return;
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    final int port = serverSocket.getLocalPort();
+    final ReliableSocket[] clients = new ReliableSocket[sessions];
+    for (int i = 0; i < sessions; i++) {
+      clients[i] = new ReliableSocket(engine, new ReliableSocketProfile());
+      clients[i].connect(new InetSocketAddress(LOCALHOST, port), 10000);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      final ReliableSocket client = clients[i];
+      Thread sender = new Thread(() -> {
+        try {
+          DataOutputStream out = new DataOutputStream(client.getOutputStream());
+          byte[] padding = new byte[MESSAGE_SIZE - 8];
+          for (int m = 0; m < messages; m++) {
+            out.writeLong(System.nanoTime());
+            out.write(padding);
+            out.flush();
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+      sender.setDaemon(true);
+      sender.start();
+    }
+    received.await();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+
+    for (ReliableSocket client : clients) {
+      client.getInputStream().read();
+      client.close();
+    }
+    serverSocket.close();
+
+    int total = count.get();
+    long[] sorted = Arrays.copyOf(latencies, total);
+    Arrays.sort(sorted);
+    System.out.printf("receivers %d: %d messages from %d clients in %.2f s (%.0f msg/s), "
+            + "latency p50 %.2f ms, p99 %.2f ms%n",
+        receivers, total, sessions, seconds, total / seconds,
+        percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6);
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+  }
+}
@@ -0,0 +1,165 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the thread-per-socket receive model with {@link RudpEngine}.
+ *
+ * <p>Many clients connect to one server over loopback at the same time and each sends a block
+ * of data that the server echoes back. The benchmark reports the aggregate throughput and the
+ * peak number of live protocol threads (receivers, event loops and the timer), once with
+ * receiver threads and once with sockets created on an engine.
+ *
+ * <p>Usage: {@code EngineSessionsBenchmark [sessions] [kilobytes] [threads|engine]}
+ *
+ * <p>Each mode should be run in a JVM of its own, since closing sockets keep their receiver
+ * threads for a while.
+ */
+public class EngineSessionsBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of concurrent sessions, kilobytes sent by each session and mode.
+   * @throws Exception if a transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    final int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+
+    final String mode = args.length > 2 ? args[2] : "engine";
+
+    if (mode.equals("threads")) {
+      run(mode, sessions, kilobytes, null);
+    } else {
+      RudpEngine engine = new RudpEngine();
+      run(mode, sessions, kilobytes, engine);
+      engine.shutdown();
+    }
+    System.exit(0);
+  }
+
+  private static void run(String mode, int sessions, int kilobytes, RudpEngine engine)
+      throws Exception {
+    final int length = kilobytes * 1024;
+    final ReliableServerSocket serverSocket = (engine == null)
+        ? new ReliableServerSocket(0) : new ReliableServerSocket(0, engine);
+    final CountDownLatch done = new CountDownLatch(sessions);
+
+    Thread acceptor = new Thread(() -> {
+      for (int i = 0; i < sessions; i++) {
+        try {
+          Socket socket = serverSocket.accept();
+          Thread echo = new Thread(() -> echo(socket, length));
+          echo.setDaemon(true);
+          echo.start();
+        } catch (IOException e) {
+          e.printStackTrace();
+          return;
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    final byte[] data = new byte[length];
+    new Random(1).nextBytes(data);
+    final int port = serverSocket.getLocalPort();
+    final boolean[] failed = new boolean[1];
+    final AtomicInteger peakThreads = new AtomicInteger();
+    Thread sampler = new Thread(() -> {
+      while (true) {
+        peakThreads.accumulateAndGet(protocolThreads(), Math::max);
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    sampler.setDaemon(true);
+    sampler.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      Thread client = new Thread(() -> {
+        try {
+          ReliableSocket socket = (engine == null)
+              ? new ReliableSocket() : new ReliableSocket(engine, new ReliableSocketProfile());
+          socket.connect(new InetSocketAddress(LOCALHOST, port), 10000);
+          OutputStream out = socket.getOutputStream();
+          out.write(data);
+          out.flush();
+          InputStream in = socket.getInputStream();
+          byte[] buffer = new byte[length];
+          int received = 0;
+          while (received < length) {
+            int read = in.read(buffer, received, length - received);
+            if (read < 0) {
+              break;
+            }
+            received += read;
+          }
+          if (received != length) {
+            failed[0] = true;
+          }
+          socket.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+          failed[0] = true;
+        } finally {
+          done.countDown();
+        }
+      });
+      client.setDaemon(true);
+      client.start();
+    }
+    done.await();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    sampler.interrupt();
+    serverSocket.close();
+
+    System.out.printf("%-8s %d sessions x %d KB echoed in %.2f s (%.1f Mbit/s), "
+            + "peak protocol threads %d%s%n",
+        mode, sessions, kilobytes, seconds, 2.0 * sessions * length * 8 / seconds / 1e6,
+        peakThreads.get(), failed[0] ? ", FAILED" : "");
+  }
+
+  private static int protocolThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      if (name.startsWith("ReliableS") || name.startsWith("RudpEngine")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void echo(Socket socket, int length) {
+    try {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      byte[] buffer = new byte[8192];
+      int received = 0;
+      while (received < length) {
+        int read = in.read(buffer);
+        if (read < 0) {
+          break;
+        }
+        out.write(buffer, 0, read);
+        received += read;
+      }
+      out.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
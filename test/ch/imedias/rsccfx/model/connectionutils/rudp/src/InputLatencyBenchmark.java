@@ -0,0 +1,321 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long input events take to be acknowledged over RUDP while the other direction
+ * is saturated.
+ *
+ * <p>A server sends bulk data as fast as it can to a client through a UDP relay that adds a
+ * fixed one-way delay in both directions, and passes the datagrams of the server through a
+ * bottleneck of a fixed rate with a bounded queue. The client meanwhile writes small input
+ * events at a fixed rate. The relay finds the sequence number of each event in the datagrams of
+ * the client, and the acknowledgments of the server that cover it. The benchmark runs once
+ * writing the events to the output stream with coalescing on, and once writing them to the
+ * expedited output stream, and reports the mean, 95th percentile and largest time from writing
+ * an event until its acknowledgment reaches the relay and until it reaches the client, and the
+ * throughput of the bulk data.
+ *
+ * <p>Usage: {@code InputLatencyBenchmark [events] [rate] [bottleneckMbit] [delayMs]}, where rate
+ * is the number of events per second.
+ */
+public class InputLatencyBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final int MAGIC = 0x494e5054;
+  private static final int EVENT_SIZE = 8;
+  private static final int MAX_QUEUE_DELAY = 100; /* ms */
+  private static final int WARMUP = 1000; /* ms */
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of events, events per second, bottleneck rate in Mbit/s and one-way
+   *             delay in milliseconds.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int events = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    final int rate = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    final int bottleneck = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    final int delay = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+    System.out.printf("events     %d at %d/s, bottleneck %d Mbit/s, delay %d ms%n",
+        events, rate, bottleneck, delay);
+    run("stream", false, events, rate, bottleneck, delay);
+    run("expedited", true, events, rate, bottleneck, delay);
+    System.exit(0);
+  }
+
+  private static void run(String name, boolean expedited, int events, int rate, int bottleneck,
+                          int delay) throws Exception {
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    BottleneckRelay relay = new BottleneckRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), bottleneck, delay, events);
+
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        Thread bulk = new Thread(() -> {
+          try {
+            OutputStream out = socket.getOutputStream();
+            byte[] chunk = new byte[16384];
+            new Random(1).nextBytes(chunk);
+            while (true) {
+              out.write(chunk);
+            }
+          } catch (IOException e) {
+            /* Closed at the end of the run */
+          }
+        });
+        bulk.setDaemon(true);
+        bulk.start();
+        new DataInputStream(socket.getInputStream()).readFully(new byte[events * EVENT_SIZE]);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    ReliableSocket client = new ReliableSocket();
+    client.connect(relay.getAddress(), 5000);
+    client.setTcpNoDelay(false);
+    Thread reader = new Thread(() -> {
+      try {
+        InputStream in = client.getInputStream();
+        byte[] buffer = new byte[16384];
+        while (in.read(buffer) >= 0) {
+          continue;
+        }
+      } catch (IOException e) {
+        /* Closed at the end of the run */
+      }
+    });
+    reader.setDaemon(true);
+    reader.start();
+
+    Thread.sleep(WARMUP);
+    OutputStream out = expedited ? client.getExpeditedOutputStream() : client.getOutputStream();
+    ByteBuffer event = ByteBuffer.allocate(EVENT_SIZE);
+    long interval = 1000000000L / rate;
+    long before = relay.downstreamBytes.get();
+    long start = System.nanoTime();
+    long next = start;
+    for (int i = 0; i < events; i++) {
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      }
+      next += interval;
+      event.clear();
+      event.putInt(MAGIC).putInt(i);
+      relay.written[i] = System.nanoTime();
+      out.write(event.array());
+      out.flush();
+    }
+    server.join(10000);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long bytes = relay.downstreamBytes.get() - before;
+    client.close();
+    serverSocket.close();
+
+    System.out.printf("%-10s bulk %.1f Mbit/s%n", name, bytes * 8 / seconds / 1e6);
+    report("  at relay", relay.written, relay.ackedAtRelay);
+    report("  at client", relay.written, relay.ackedAtClient);
+  }
+
+  private static void report(String name, long[] written, long[] acked) {
+    long[] latencies = new long[written.length];
+    int count = 0;
+    for (int i = 0; i < written.length; i++) {
+      if (acked[i] != 0) {
+        latencies[count++] = acked[i] - written[i];
+      }
+    }
+    if (count == 0) {
+      System.out.printf("%-11s no event acknowledged%n", name);
+      return;
+    }
+
+    Arrays.sort(latencies, 0, count);
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      total += latencies[i];
+    }
+    System.out.printf("%-11s ack mean %.1f ms, p95 %.1f ms, max %.1f ms (%d events)%n",
+        name, total / 1e6 / count, latencies[count * 95 / 100] / 1e6,
+        latencies[count - 1] / 1e6, count);
+  }
+
+  /**
+   * A UDP relay that delays the datagrams in both directions, and passes the datagrams of the
+   * server through a bottleneck that drops them once its queue holds more than
+   * {@link #MAX_QUEUE_DELAY} milliseconds. It records when the input events of the client are
+   * acknowledged.
+   */
+  private static class BottleneckRelay {
+    private final DatagramSocket front;
+    private final DatagramSocket back;
+    private final SocketAddress server;
+    private final double nanosPerByte;
+    private final int delay;
+    private final long[] written;
+    private final long[] ackedAtRelay;
+    private final long[] ackedAtClient;
+    private final Map<Integer, Integer> pending = new ConcurrentHashMap<>(); /* event to seq */
+    private final AtomicLong downstreamBytes = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+        r -> {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        });
+    private volatile SocketAddress client;
+    private long bottleneckFree;
+
+    BottleneckRelay(SocketAddress server, int bottleneck, int delay, int events)
+        throws IOException {
+      this.front = new DatagramSocket(0);
+      this.back = new DatagramSocket(0);
+      this.server = server;
+      this.nanosPerByte = 8e3 / bottleneck;
+      this.delay = delay;
+      this.written = new long[events];
+      this.ackedAtRelay = new long[events];
+      this.ackedAtClient = new long[events];
+      start(this::upstream);
+      start(this::downstream);
+    }
+
+    SocketAddress getAddress() {
+      return new InetSocketAddress(LOCALHOST, front.getLocalPort());
+    }
+
+    private void start(Runnable runnable) {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void upstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          front.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        client = packet.getSocketAddress();
+        /* Coalesced events share a segment, but do not straddle one */
+        Segment segment = parse(packet);
+        if (segment instanceof DATSegment) {
+          ByteBuffer data = ByteBuffer.wrap(((DATSegment) segment).getData());
+          while (data.remaining() >= EVENT_SIZE && data.getInt() == MAGIC) {
+            pending.putIfAbsent(data.getInt(), segment.seq());
+          }
+        }
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        executor.schedule(() -> forward(back, data, server), delay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void downstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          back.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        long now = System.nanoTime();
+        Segment segment = parse(packet);
+        List<Integer> acked = acknowledged(segment, now);
+
+        /* The queue of the bottleneck is the time until it is free */
+        bottleneckFree = Math.max(bottleneckFree, now);
+        if (bottleneckFree - now > MAX_QUEUE_DELAY * 1000000L) {
+          continue;
+        }
+        bottleneckFree += (long) (packet.getLength() * nanosPerByte);
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        executor.schedule(() -> {
+          forward(front, data, client);
+          downstreamBytes.addAndGet(data.length);
+          long sent = System.nanoTime();
+          for (int event : acked) {
+            if (ackedAtClient[event] == 0) {
+              ackedAtClient[event] = sent;
+            }
+          }
+        }, bottleneckFree - now + delay * 1000000L, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /**
+     * Returns the events whose acknowledgment has not reached the client yet, and that the
+     * segment acknowledges.
+     */
+    private List<Integer> acknowledged(Segment segment, long now) {
+      List<Integer> acked = new ArrayList<>();
+      int ackn = (segment != null) ? segment.getAck() : -1;
+      if (ackn < 0) {
+        return acked;
+      }
+
+      int modulus = segment.isLongSequence() ? 65535 : 255;
+      for (Iterator<Map.Entry<Integer, Integer>> it = pending.entrySet().iterator();
+           it.hasNext(); ) {
+        Map.Entry<Integer, Integer> entry = it.next();
+        int event = entry.getKey();
+        if (ackedAtClient[event] != 0) {
+          it.remove();
+        } else if (Math.floorMod(ackn - entry.getValue(), modulus) < modulus / 2) {
+          if (ackedAtRelay[event] == 0) {
+            ackedAtRelay[event] = now;
+          }
+          acked.add(event);
+        }
+      }
+      return acked;
+    }
+
+    private static Segment parse(DatagramPacket packet) {
+      try {
+        return Segment.parse(packet.getData(), 0, packet.getLength());
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    private void forward(DatagramSocket socket, byte[] data, SocketAddress target) {
+      try {
+        socket.send(new DatagramPacket(data, data.length, target));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.ACKSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.EAKSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.SYNSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receiving side of a server built before the SYN options, which only knows the original
+ * format with 8-bit sequence numbers.
+ *
+ * <p>It accepts one connection and acknowledges the segments of the client the way the original
+ * ReliableSocket does: an ACK after more than {@code maxCumulativeAcks} received segments, an
+ * EAK after more than {@code maxOutOfSequence} out-of-sequence segments, and otherwise an ACK
+ * when the cumulative acknowledgment timer proposed by the client expires. At most
+ * {@link #QUEUE_SIZE} out-of-sequence segments are kept. The data is read as soon as it is in
+ * sequence.
+ */
+class LegacyPeer implements Closeable {
+  static final int QUEUE_SIZE = 32;
+  private static final int MAX_SEQUENCE_NUMBER = 255;
+  private static final String LOCALHOST = "127.0.0.1";
+
+  private final DatagramSocket socket;
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "legacy-ack");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private final TreeMap<Integer, Segment> outOfSequence = new TreeMap<>();
+  private final Set<Integer> droppedSeqs = new HashSet<>();
+  private int dropAfter;
+  private int dropCount;
+  private int dropped;
+  private volatile int pathMtu = Integer.MAX_VALUE;
+  private SocketAddress client;
+  private SYNSegment syn;
+  private int lastInSequence = -1;
+  private int cumulativeAcks;
+  private int outOfSequenceAcks;
+  private ScheduledFuture<?> ackTimer;
+
+  /**
+   * Creates a peer that drops the first transmission of a number of data segments in a row,
+   * once it has received a number of data segments.
+   *
+   * @param dropAfter the data segments received before the losses.
+   * @param dropCount the data segments dropped in a row.
+   * @throws IOException if the socket of the peer cannot be opened.
+   */
+  LegacyPeer(int dropAfter, int dropCount) throws IOException {
+    this.socket = new DatagramSocket(0);
+    this.dropAfter = dropAfter;
+    this.dropCount = dropCount;
+    Thread thread = new Thread(this::receive, "legacy-peer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the address the client connects to.
+   */
+  SocketAddress getAddress() {
+    return new InetSocketAddress(LOCALHOST, socket.getLocalPort());
+  }
+
+  /**
+   * Drops the datagrams that are larger than the given size, as a path with a smaller MTU does
+   * with datagrams that may not be fragmented.
+   *
+   * @param size the largest datagram that arrives (octets).
+   */
+  void setPathMtu(int size) {
+    pathMtu = size;
+  }
+
+  /**
+   * Returns the number of data segments the peer has dropped.
+   */
+  synchronized int getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Waits until the given number of bytes has been received in sequence.
+   *
+   * @param length  the number of bytes.
+   * @param timeout the longest time to wait (ms).
+   * @return the received bytes, or null if they have not all arrived in time.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  synchronized byte[] await(int length, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (received.size() < length) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        return null;
+      }
+      wait(left);
+    }
+    return received.toByteArray();
+  }
+
+  /**
+   * Closes the socket of the peer and stops its timer.
+   */
+  @Override
+  public void close() {
+    socket.close();
+    timer.shutdownNow();
+  }
+
+  private void receive() {
+    byte[] buffer = new byte[65535];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (IOException e) {
+        return;
+      }
+      if (packet.getLength() > pathMtu) {
+        continue;
+      }
+      /* The data segments refer to the bytes they are parsed from */
+      Segment segment = Segment.parse(Arrays.copyOf(buffer, packet.getLength()));
+      synchronized (this) {
+        client = packet.getSocketAddress();
+        if (segment instanceof SYNSegment) {
+          handleSyn((SYNSegment) segment);
+        } else if (syn != null && !(segment instanceof ACKSegment)) {
+          handleSegment(segment);
+        }
+      }
+    }
+  }
+
+  /**
+   * Accepts the parameters of the client, without any of its options.
+   */
+  private void handleSyn(SYNSegment segment) {
+    syn = segment;
+    lastInSequence = segment.seq();
+    SYNSegment answer = new SYNSegment(0, segment.getMaxOutstandingSegments(),
+        segment.getMaxSegmentSize(), segment.getRetransmissionTimeout(),
+        segment.getCummulativeAckTimeout(), segment.getNulSegmentTimeout(),
+        segment.getMaxRetransmissions(), segment.getMaxCumulativeAcks(),
+        segment.getMaxOutOfSequence(), segment.getMaxAutoReset());
+    answer.setAck(segment.seq());
+    send(answer);
+  }
+
+  private void handleSegment(Segment segment) {
+    if (segment instanceof DATSegment && drop(segment.seq())) {
+      return;
+    }
+
+    cumulativeAcks++;
+    boolean inSequence = false;
+    if (compare(segment.seq(), lastInSequence) <= 0) {
+      /* Duplicate */
+    } else if (segment.seq() == next(lastInSequence)) {
+      inSequence = true;
+      deliver(segment);
+      Segment s;
+      while ((s = outOfSequence.remove(next(lastInSequence))) != null) {
+        deliver(s);
+      }
+    } else if (outOfSequence.size() < QUEUE_SIZE) {
+      outOfSequence.put(segment.seq(), segment);
+      outOfSequenceAcks++;
+    }
+
+    if (inSequence && !(segment instanceof DATSegment)) {
+      sendAck();
+    } else if (outOfSequenceAcks > syn.getMaxOutOfSequence()) {
+      sendAck();
+    } else if (cumulativeAcks > syn.getMaxCumulativeAcks()) {
+      sendAck();
+    } else if (ackTimer == null || ackTimer.isDone()) {
+      ackTimer = timer.schedule(() -> {
+        synchronized (this) {
+          sendAck();
+        }
+      }, syn.getCummulativeAckTimeout(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns true if a data segment is lost, once the peer has received enough data.
+   * A dropped segment is let through when it is retransmitted.
+   */
+  private boolean drop(int seq) {
+    if (droppedSeqs.remove(seq) || dropCount == 0 || dropAfter-- > 0) {
+      return false;
+    }
+    droppedSeqs.add(seq);
+    dropCount--;
+    dropped++;
+    return true;
+  }
+
+  private void deliver(Segment segment) {
+    lastInSequence = segment.seq();
+    if (segment instanceof DATSegment) {
+      byte[] data = ((DATSegment) segment).getData();
+      received.write(data, 0, data.length);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Sends an EAK if out-of-sequence segments are kept, or an ACK if segments have been received
+   * since the last acknowledgment.
+   */
+  private void sendAck() {
+    if (!outOfSequence.isEmpty()) {
+      int[] acks = new int[outOfSequence.size()];
+      Iterator<Integer> it = outOfSequence.keySet().iterator();
+      for (int i = 0; i < acks.length; i++) {
+        acks[i] = it.next();
+      }
+      cumulativeAcks = 0;
+      outOfSequenceAcks = 0;
+      send(new EAKSegment(next(lastInSequence), lastInSequence, acks));
+    } else if (cumulativeAcks > 0) {
+      cumulativeAcks = 0;
+      send(new ACKSegment(next(lastInSequence), lastInSequence));
+    }
+  }
+
+  private void send(Segment segment) {
+    byte[] bytes = segment.getBytes();
+    try {
+      socket.send(new DatagramPacket(bytes, bytes.length, client));
+    } catch (IOException e) {
+      if (!socket.isClosed()) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence number after the given one, which wraps at 255 in the original
+   * ReliableSocket.
+   */
+  private static int next(int seq) {
+    return (seq + 1) % MAX_SEQUENCE_NUMBER;
+  }
+
+  /**
+   * Compares two sequence numbers the way the original ReliableSocket does.
+   */
+  private static int compare(int seq1, int seq2) {
+    if (seq1 == seq2) {
+      return 0;
+    } else if (seq1 < seq2 && (seq2 - seq1) > MAX_SEQUENCE_NUMBER / 2
+        || seq1 > seq2 && (seq1 - seq2) < MAX_SEQUENCE_NUMBER / 2) {
+      return 1;
+    }
+    return -1;
+  }
+}
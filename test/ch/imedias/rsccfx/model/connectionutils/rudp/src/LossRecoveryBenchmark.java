@@ -0,0 +1,102 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many segments and bytes RUDP retransmits per lost segment.
+ *
+ * <p>A client sends a bulk transfer to a server through a UDP relay that adds a fixed one-way
+ * delay and drops a share of the datagrams travelling from the client to the server.
+ *
+ * <p>Usage: {@code LossRecoveryBenchmark [megabytes] [loss] [delayMs]}
+ */
+public class LossRecoveryBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer, loss probability and one-way delay in milliseconds.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    final double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0.02;
+    final int delay = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    final long total = megabytes * 1024L * 1024L;
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    LossyRelay relay = new LossyRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), loss, 0, delay);
+
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        long received = 0;
+        while (received < total) {
+          int read = in.read(buffer);
+          if (read < 0) {
+            break;
+          }
+          received += read;
+        }
+        socket.getOutputStream().write(0);
+        socket.getOutputStream().flush();
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.start();
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong retransmitted = new AtomicLong();
+    ReliableSocket client = new ReliableSocket();
+    client.addListener(new ReliableSocketListener() {
+      public void packetSent() {
+        sent.incrementAndGet();
+      }
+
+      public void packetRetransmitted() {
+        retransmitted.incrementAndGet();
+      }
+
+      public void packetReceivedInOrder() {
+      }
+
+      public void packetReceivedOutOfOrder() {
+      }
+    });
+
+    final long start = System.nanoTime();
+    client.connect(relay.getAddress(), 5000);
+    OutputStream out = client.getOutputStream();
+    byte[] chunk = new byte[4096];
+    new Random(1).nextBytes(chunk);
+    for (long written = 0; written < total; written += chunk.length) {
+      out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+    }
+    out.flush();
+    client.getInputStream().read();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    client.close();
+    server.join(5000);
+
+    long lost = Math.max(relay.dropped.get(), 1);
+    long overhead = relay.upstreamBytes.get() - total;
+    System.out.printf("transfer   %d MB in %.2f s (%.1f Mbit/s), loss %.1f%%, delay %d ms%n",
+        megabytes, seconds, total * 8 / seconds / 1e6, loss * 100, delay);
+    System.out.printf("segments   sent %d, retransmitted %d, lost %d%n",
+        sent.get(), retransmitted.get(), relay.dropped.get());
+    System.out.printf("per loss   %.2f segments, %d bytes retransmitted%n",
+        retransmitted.get() / (double) lost, overhead / lost);
+    System.exit(0);
+  }
+}
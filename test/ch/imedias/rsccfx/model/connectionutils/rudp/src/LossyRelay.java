@@ -0,0 +1,165 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A UDP relay between a client and a server that drops a share of the datagrams in each
+ * direction and forwards the others in order after a fixed one-way delay.
+ *
+ * <p>The client sends to {@link #getAddress()}, and the relay forwards its datagrams to the
+ * server and the answers of the server back to the last client address it has seen. The losses
+ * are drawn from a fixed seed per direction, so that runs are repeatable.
+ */
+class LossyRelay implements Closeable {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /** The datagrams received from the client. */
+  final AtomicLong upstream = new AtomicLong();
+  /** The bytes received from the client, including the dropped datagrams. */
+  final AtomicLong upstreamBytes = new AtomicLong();
+  /** The datagrams received in both directions. */
+  final AtomicLong relayed = new AtomicLong();
+  /** The datagrams dropped in both directions. */
+  final AtomicLong dropped = new AtomicLong();
+  /**
+   * The datagrams received in both directions whose flags match {@link #countFlags(int)}.
+   */
+  final AtomicLong flagged = new AtomicLong();
+
+  private final DatagramSocket front;
+  private final DatagramSocket back;
+  private final SocketAddress server;
+  private final int delay;
+  private final ScheduledExecutorService[] executors = new ScheduledExecutorService[2];
+  private volatile int countedFlags = -1;
+  private volatile SocketAddress client;
+
+  /**
+   * Creates a relay that only delays the datagrams.
+   *
+   * @param server the address of the server.
+   * @param delay  the one-way delay in milliseconds.
+   * @throws IOException if the sockets of the relay cannot be opened.
+   */
+  LossyRelay(SocketAddress server, int delay) throws IOException {
+    this(server, 0, 0, delay);
+  }
+
+  /**
+   * Creates a relay.
+   *
+   * @param server         the address of the server.
+   * @param upstreamLoss   the probability to drop a datagram sent by the client.
+   * @param downstreamLoss the probability to drop a datagram sent by the server.
+   * @param delay          the one-way delay in milliseconds, or 0 to forward right away.
+   * @throws IOException if the sockets of the relay cannot be opened.
+   */
+  LossyRelay(SocketAddress server, double upstreamLoss, double downstreamLoss, int delay)
+      throws IOException {
+    this.front = new DatagramSocket(0);
+    this.back = new DatagramSocket(0);
+    this.server = server;
+    this.delay = delay;
+    pump(front, back, true, upstreamLoss, 42);
+    pump(back, front, false, downstreamLoss, 43);
+  }
+
+  /**
+   * Returns the address the client connects to.
+   */
+  SocketAddress getAddress() {
+    return new InetSocketAddress(LOCALHOST, front.getLocalPort());
+  }
+
+  /**
+   * Counts the datagrams whose first octet, the flags of the RUDP segment, equals the given
+   * value in {@link #flagged}.
+   */
+  void countFlags(int flags) {
+    countedFlags = flags;
+  }
+
+  /**
+   * Closes the sockets of the relay and stops its threads.
+   */
+  @Override
+  public void close() {
+    front.close();
+    back.close();
+    for (ScheduledExecutorService executor : executors) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private void pump(DatagramSocket in, DatagramSocket out, boolean isUpstream, double loss,
+                    long seed) {
+    Random random = new Random(seed);
+    /* A single thread per direction keeps the datagrams in order */
+    ScheduledExecutorService executor = null;
+    if (delay > 0) {
+      executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "relay-delay");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executors[isUpstream ? 0 : 1] = executor;
+    }
+    final ScheduledExecutorService delayed = executor;
+    Thread thread = new Thread(() -> {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          in.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        if (isUpstream) {
+          client = packet.getSocketAddress();
+          upstream.incrementAndGet();
+          upstreamBytes.addAndGet(packet.getLength());
+        }
+        relayed.incrementAndGet();
+        if (packet.getLength() > 0 && (packet.getData()[0] & 0xFF) == countedFlags) {
+          flagged.incrementAndGet();
+        }
+        if (loss > 0 && random.nextDouble() < loss) {
+          dropped.incrementAndGet();
+          continue;
+        }
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        SocketAddress target = isUpstream ? server : client;
+        if (delayed == null) {
+          send(out, data, target);
+        } else {
+          delayed.schedule(() -> send(out, data, target), delay, TimeUnit.MILLISECONDS);
+        }
+      }
+    }, "relay");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void send(DatagramSocket out, byte[] data, SocketAddress target) {
+    try {
+      out.send(new DatagramPacket(data, data.length, target));
+    } catch (IOException e) {
+      if (!out.isClosed()) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the NewRenoCongestionControl class.
+ */
+public class NewRenoCongestionControlTest {
+  private static final int INITIAL_WINDOW = 4;
+  private static final int MAX_WINDOW = 100;
+
+  NewRenoCongestionControl cc;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    cc = new NewRenoCongestionControl(INITIAL_WINDOW, MAX_WINDOW);
+  }
+
+  /**
+   * Test for {@link NewRenoCongestionControl#onAck(int, long)} during slow start: the window grows
+   * by one segment per acknowledged segment, up to the maximum window.
+   */
+  @Test
+  public void testSlowStart() {
+    assertEquals(INITIAL_WINDOW, cc.getWindow());
+    assertEquals(MAX_WINDOW, cc.getSlowStartThreshold());
+    cc.onAck(INITIAL_WINDOW, 10);
+    assertEquals(2 * INITIAL_WINDOW, cc.getWindow());
+    cc.onAck(3, -1);
+    assertEquals(2 * INITIAL_WINDOW + 3, cc.getWindow());
+
+    cc.onAck(2 * MAX_WINDOW, 10);
+    assertEquals(MAX_WINDOW, cc.getWindow());
+  }
+
+  /**
+   * Test for {@link NewRenoCongestionControl#onAck(int, long)} during congestion avoidance: the
+   * window grows by one segment per window of acknowledged segments.
+   */
+  @Test
+  public void testCongestionAvoidance() {
+    cc.onAck(36, 10);
+    cc.onCongestionEvent();
+    assertEquals(20, cc.getWindow());
+    assertEquals(20, cc.getSlowStartThreshold());
+
+    for (int i = 0; i < 20; i++) {
+      cc.onAck(1, 10);
+    }
+    assertEquals(20, cc.getWindow());
+    cc.onAck(1, 10);
+    assertEquals(21, cc.getWindow());
+    assertEquals(20, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link NewRenoCongestionControl#onCongestionEvent()}: the window and the threshold
+   * are halved, but not below two segments.
+   */
+  @Test
+  public void testCongestionEvent() {
+    cc.onAck(36, 10);
+    cc.onCongestionEvent();
+    assertEquals(20, cc.getWindow());
+    cc.onCongestionEvent();
+    assertEquals(10, cc.getWindow());
+    assertEquals(10, cc.getSlowStartThreshold());
+
+    cc = new NewRenoCongestionControl(3, MAX_WINDOW);
+    cc.onCongestionEvent();
+    assertEquals(2, cc.getWindow());
+    assertEquals(2, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link NewRenoCongestionControl#undoCongestionEvent()}: the window and the threshold
+   * return to what they were before the event.
+   */
+  @Test
+  public void testUndoCongestionEvent() {
+    cc.onAck(36, 10);
+    cc.onCongestionEvent();
+    cc.undoCongestionEvent();
+    assertEquals(40, cc.getWindow());
+    assertEquals(MAX_WINDOW, cc.getSlowStartThreshold());
+  }
+
+  /**
+   * Test for {@link NewRenoCongestionControl#onTimeout()}: the window falls to one segment, and
+   * slow start goes on up to half the window at the time of the timeout.
+   */
+  @Test
+  public void testTimeout() {
+    cc.onAck(36, 10);
+    cc.onTimeout();
+    assertEquals(1, cc.getWindow());
+    assertEquals(20, cc.getSlowStartThreshold());
+
+    cc.onAck(19, 10);
+    assertEquals(20, cc.getWindow());
+    cc.onAck(1, 10);
+    assertEquals(20, cc.getWindow());
+  }
+}
@@ -0,0 +1,112 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the Pacer class.
+ */
+public class PacerTest {
+  private static final long SECOND = 1000000000L; // (ns)
+  private static final long START = 10 * SECOND;
+  private static final int SEGMENT_SIZE = 1000;
+
+  Pacer pacer;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    pacer = new Pacer();
+  }
+
+  /**
+   * Test for {@link Pacer#reserve(int, long)} without a rate: segments are not delayed.
+   */
+  @Test
+  public void testNoRate() {
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, pacer.reserve(SEGMENT_SIZE, START));
+    }
+  }
+
+  /**
+   * Test for {@link Pacer#reserve(int, long)} with an estimated rate: a sender that waits as long
+   * as it is told sends at that rate, after a burst of two segments.
+   */
+  @Test
+  public void testRate() {
+    pacer.setRate(1000000, SEGMENT_SIZE);
+    assertEquals(1000000, sentInOneSecond(START), 1000000 / 100 + 2 * SEGMENT_SIZE);
+  }
+
+  /**
+   * Test for {@link Pacer#setLimit(long)}: the lower of the estimated rate and of the limit is
+   * used.
+   */
+  @Test
+  public void testLimit() {
+    pacer.setRate(10000000, SEGMENT_SIZE);
+    pacer.setLimit(200000);
+    assertEquals(200000, sentInOneSecond(START), 200000 / 100 + 2 * SEGMENT_SIZE);
+
+    pacer.setRate(0, SEGMENT_SIZE);
+    assertEquals(200000, pacer.getLimit());
+    assertEquals(200000, sentInOneSecond(START + 2 * SECOND), 200000 / 100 + 2 * SEGMENT_SIZE);
+  }
+
+  /**
+   * Test for {@link Pacer#reserve(int, long)} once the bucket is empty: the delay is the time it
+   * takes to get a byte at the rate, but not more than 100 ms.
+   */
+  @Test
+  public void testDelay() {
+    pacer.setRate(1000000, SEGMENT_SIZE);
+    assertEquals(0, pacer.reserve(SEGMENT_SIZE, START));
+    assertEquals(0, pacer.reserve(SEGMENT_SIZE, START));
+    long delay = pacer.reserve(SEGMENT_SIZE, START);
+    assertEquals(1000 + 1, delay);
+    assertEquals(0, pacer.reserve(SEGMENT_SIZE, START + delay));
+
+    pacer.setRate(1000, SEGMENT_SIZE);
+    assertEquals(100000000L, pacer.reserve(SEGMENT_SIZE, START + delay));
+  }
+
+  /**
+   * Test for {@link Pacer#consume(int, long)}: a retransmission is not delayed, but the next
+   * segment waits until the bucket has paid for it.
+   */
+  @Test
+  public void testConsume() {
+    pacer.setRate(1000000, SEGMENT_SIZE);
+    pacer.consume(2 * SEGMENT_SIZE, START);
+    pacer.consume(10 * SEGMENT_SIZE, START);
+    long delay = pacer.reserve(SEGMENT_SIZE, START);
+    assertEquals((1 + 10 * SEGMENT_SIZE) * 1000 + 1, delay);
+    assertEquals(0, pacer.reserve(SEGMENT_SIZE, START + delay));
+  }
+
+  /**
+   * Sends segments for a second from the given time, waiting as long as the pacer asks for, and
+   * returns the bytes sent.
+   */
+  private long sentInOneSecond(long start) {
+    long now = start;
+    long sent = 0;
+    while (true) {
+      long delay = pacer.reserve(SEGMENT_SIZE, now);
+      if (delay == 0) {
+        sent += SEGMENT_SIZE;
+        assertTrue(sent < 10000000);
+      } else if (now + delay < start + SECOND) {
+        now += delay;
+      } else {
+        return sent;
+      }
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the losses caused by bursts of RUDP segments at a bottleneck with a small buffer,
+ * and how closely a send rate limit is kept.
+ *
+ * <p>A client sends a bulk transfer to a server through a UDP relay that models a home router:
+ * datagrams from the client are forwarded at a fixed rate out of a drop-tail queue of a few
+ * packets, and a fixed one-way delay is added in both directions. The benchmark reports the
+ * throughput, the datagrams dropped at the queue and the segments retransmitted.
+ *
+ * <p>If a rate limit is given, the first half of the data is sent with that limit and the
+ * second half with twice the limit, set on the open connection, and the rate of each half is
+ * reported as measured by the receiver.
+ *
+ * <p>Usage: {@code PacingBenchmark [megabytes] [bottleneckMbit] [queuePackets] [delayMs]
+ * [limitKbit]}
+ */
+public class PacingBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer, bottleneck rate in Mbit/s, bottleneck queue length in
+   *             packets, one-way delay in milliseconds and rate limit in kbit/s.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    final int bottleneck = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    final int queue = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    final int delay = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    final int limit = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+    final long total = megabytes * 1024L * 1024L;
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    BottleneckRelay relay = new BottleneckRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()),
+        bottleneck * 1000000L, queue, delay);
+
+    final long[] halfTime = new long[1];
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        long received = 0;
+        while (received < total) {
+          int read = in.read(buffer);
+          if (read < 0) {
+            break;
+          }
+          received += read;
+          if (halfTime[0] == 0 && received >= total / 2) {
+            halfTime[0] = System.nanoTime();
+          }
+        }
+        socket.getOutputStream().write(0);
+        socket.getOutputStream().flush();
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.start();
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong retransmitted = new AtomicLong();
+    ReliableSocket client = new ReliableSocket();
+    client.addListener(new ReliableSocketListener() {
+      public void packetSent() {
+        sent.incrementAndGet();
+      }
+
+      public void packetRetransmitted() {
+        retransmitted.incrementAndGet();
+      }
+
+      public void packetReceivedInOrder() {
+      }
+
+      public void packetReceivedOutOfOrder() {
+      }
+    });
+
+    client.connect(relay.getAddress(), 5000);
+    client.setSendRateLimit(limit);
+    OutputStream out = client.getOutputStream();
+    byte[] chunk = new byte[8192];
+    new Random(1).nextBytes(chunk);
+    final long start = System.nanoTime();
+    for (long written = 0; written < total; written += chunk.length) {
+      if (limit > 0 && written == total / 2) {
+        client.setSendRateLimit(2 * limit);
+      }
+      out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+    }
+    out.flush();
+    client.getInputStream().read();
+    long end = System.nanoTime();
+    double seconds = (end - start) / 1e9;
+    client.close();
+    server.join(5000);
+
+    System.out.printf("transfer   %d MB in %.2f s (%.1f Mbit/s) through %d Mbit/s, "
+            + "queue %d, delay %d ms%n",
+        megabytes, seconds, total * 8 / seconds / 1e6, bottleneck, queue, delay);
+    System.out.printf("segments   sent %d, retransmitted %d, dropped at queue %d%n",
+        sent.get(), retransmitted.get(), relay.dropped.get());
+    if (limit > 0) {
+      double first = (halfTime[0] - start) / 1e9;
+      double second = (end - halfTime[0]) / 1e9;
+      System.out.printf("limit      %d kbit/s: %.0f kbit/s, %d kbit/s: %.0f kbit/s%n",
+          limit, total / 2 * 8 / first / 1e3, 2 * limit, total / 2 * 8 / second / 1e3);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * A UDP relay that forwards the datagrams of the client at a fixed rate out of a drop-tail
+   * queue, and delays the datagrams in both directions.
+   */
+  private static class BottleneckRelay {
+    private final DatagramSocket front;
+    private final DatagramSocket back;
+    private final SocketAddress server;
+    private final long rate;
+    private final int capacity;
+    private final int delay;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    });
+    private volatile SocketAddress client;
+
+    BottleneckRelay(SocketAddress server, long rate, int capacity, int delay)
+        throws IOException {
+      this.front = new DatagramSocket(0);
+      this.back = new DatagramSocket(0);
+      this.server = server;
+      this.rate = rate;
+      this.capacity = capacity;
+      this.delay = delay;
+      start(this::upstream);
+      start(this::drain);
+      start(this::downstream);
+    }
+
+    SocketAddress getAddress() {
+      return new InetSocketAddress(LOCALHOST, front.getLocalPort());
+    }
+
+    private void start(Runnable runnable) {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void upstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          front.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        client = packet.getSocketAddress();
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        synchronized (queue) {
+          if (queue.size() >= capacity) {
+            dropped.incrementAndGet();
+            continue;
+          }
+          queue.add(data);
+          queue.notify();
+        }
+      }
+    }
+
+    private void drain() {
+      long next = System.nanoTime();
+      while (true) {
+        byte[] data;
+        synchronized (queue) {
+          while (queue.isEmpty()) {
+            try {
+              queue.wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          data = queue.peek();
+        }
+        /* The datagram leaves the queue once it has been transmitted */
+        next = Math.max(next, System.nanoTime()) + data.length * 8 * 1000000000L / rate;
+        LockSupport.parkNanos(next - System.nanoTime());
+        synchronized (queue) {
+          queue.poll();
+        }
+        forward(back, data, server);
+      }
+    }
+
+    private void downstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          back.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        forward(front, Arrays.copyOf(packet.getData(), packet.getLength()), client);
+      }
+    }
+
+    private void forward(DatagramSocket socket, byte[] data, SocketAddress target) {
+      executor.schedule(() -> {
+        try {
+          socket.send(new DatagramPacket(data, data.length, target));
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+}
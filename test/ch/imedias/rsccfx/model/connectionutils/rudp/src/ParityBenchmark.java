@@ -0,0 +1,115 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long framebuffer updates take to arrive over a lossy RUDP path.
+ *
+ * <p>A server sends an update of a fixed size at a fixed interval to a client through a UDP
+ * relay that drops a share of the datagrams in both directions and adds a fixed one-way delay.
+ * Each update starts with the time it was written, and the client measures the time until it
+ * has read all of it. The benchmark reports the mean, 95th percentile and largest update
+ * latency, the segments sent and retransmitted by the server, and the parity datagrams relayed.
+ *
+ * <p>Usage: {@code ParityBenchmark [updates] [updateKb] [intervalMs] [loss] [delayMs]}
+ */
+public class ParityBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final int PARITY_FLAGS = 0x01; /* LSN flag only */
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of updates, update size in KB, interval between updates in milliseconds,
+   *             loss probability and one-way delay in milliseconds.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int updates = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+    final int updateSize = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024;
+    final int interval = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    final double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0.03;
+    final int delay = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    LossyRelay relay = new LossyRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), loss, loss, delay);
+    relay.countFlags(PARITY_FLAGS);
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong retransmitted = new AtomicLong();
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        ((ReliableSocket) socket).addListener(new ReliableSocketListener() {
+          public void packetSent() {
+            sent.incrementAndGet();
+          }
+
+          public void packetRetransmitted() {
+            retransmitted.incrementAndGet();
+          }
+
+          public void packetReceivedInOrder() {
+          }
+
+          public void packetReceivedOutOfOrder() {
+          }
+        });
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        byte[] update = new byte[updateSize - 8];
+        new Random(1).nextBytes(update);
+        long next = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+          next += interval * 1000000L;
+          out.writeLong(System.nanoTime());
+          out.write(update);
+          out.flush();
+        }
+        socket.getInputStream().read();
+      } catch (IOException | InterruptedException e) {
+        e.printStackTrace();
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    ReliableSocket client = new ReliableSocket();
+    client.connect(relay.getAddress(), 5000);
+    DataInputStream in = new DataInputStream(client.getInputStream());
+    byte[] update = new byte[updateSize - 8];
+    long[] latencies = new long[updates];
+    for (int i = 0; i < updates; i++) {
+      long stamp = in.readLong();
+      in.readFully(update);
+      latencies[i] = System.nanoTime() - stamp;
+    }
+    client.getOutputStream().write(0);
+    client.getOutputStream().flush();
+    client.close();
+
+    Arrays.sort(latencies);
+    long total = 0;
+    for (long latency : latencies) {
+      total += latency;
+    }
+    System.out.printf("updates    %d x %d KB every %d ms, loss %.1f%%, delay %d ms%n",
+        updates, updateSize / 1024, interval, loss * 100, delay);
+    System.out.printf("latency    mean %.1f ms, p95 %.1f ms, max %.1f ms%n",
+        total / 1e6 / updates, latencies[updates * 95 / 100] / 1e6,
+        latencies[updates - 1] / 1e6);
+    System.out.printf("segments   sent %d, retransmitted %d, parity datagrams %d%n",
+        sent.get(), retransmitted.get(), relay.flagged.get());
+    System.exit(0);
+  }
+}
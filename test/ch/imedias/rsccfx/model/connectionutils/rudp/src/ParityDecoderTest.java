@@ -0,0 +1,99 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FECSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ParityDecoder class with the parity segments of a ParityEncoder.
+ */
+public class ParityDecoderTest {
+  private static final int GROUP_SIZE = 8;
+  private static final int[] LENGTHS = {1000, 400, 1200, 1, 700, 1200, 0, 999};
+
+  ParityDecoder decoder;
+  DATSegment[] group;
+  FECSegment parity;
+
+  /**
+   * Sends a group of data segments of various lengths before each test.
+   */
+  @Before
+  public void setUp() {
+    decoder = new ParityDecoder(ParityEncoderTest.MODULUS);
+    ParityEncoder encoder = new ParityEncoder(ParityEncoderTest.MODULUS);
+    ParityEncoderTest.prime(encoder, 8);
+    assertEquals(GROUP_SIZE, encoder.getGroupSize());
+
+    group = new DATSegment[GROUP_SIZE];
+    for (int i = 0; i < GROUP_SIZE; i++) {
+      group[i] = ParityEncoderTest.segment(ParityEncoderTest.LOSS_SAMPLE + i, LENGTHS[i]);
+      parity = encoder.add(group[i]);
+    }
+    parity = (FECSegment) Segment.parse(parity.getBytes());
+  }
+
+  /**
+   * Test for {@link ParityDecoder#recover(FECSegment)} with each segment of the group lost in
+   * turn: the lost segment is rebuilt with its sequence number, length and data.
+   */
+  @Test
+  public void testSingleLoss() {
+    for (int lost = 0; lost < GROUP_SIZE; lost++) {
+      decoder = new ParityDecoder(ParityEncoderTest.MODULUS);
+      for (int i = 0; i < GROUP_SIZE; i++) {
+        if (i != lost) {
+          decoder.record(group[i]);
+        }
+      }
+
+      DATSegment rebuilt = decoder.recover(parity);
+      assertEquals(group[lost].seq(), rebuilt.seq());
+      assertArrayEquals(group[lost].getData(), rebuilt.getData());
+    }
+  }
+
+  /**
+   * Test for {@link ParityDecoder#recover(FECSegment)} with a group that wraps around the
+   * sequence numbers.
+   */
+  @Test
+  public void testSingleLossAtWrap() {
+    ParityEncoder encoder = new ParityEncoder(ParityEncoderTest.MODULUS);
+    ParityEncoderTest.prime(encoder, 8);
+    int base = ParityEncoderTest.MODULUS - 3;
+    for (int i = 0; i < GROUP_SIZE; i++) {
+      group[i] = ParityEncoderTest.segment(base + i, LENGTHS[i]);
+      parity = encoder.add(group[i]);
+      if (i != 4) {
+        decoder.record(group[i]);
+      }
+    }
+
+    DATSegment rebuilt = decoder.recover(parity);
+    assertEquals(1, rebuilt.seq());
+    assertArrayEquals(group[4].getData(), rebuilt.getData());
+  }
+
+  /**
+   * Test for {@link ParityDecoder#recover(FECSegment)} with two segments of the group lost, or
+   * none: nothing is rebuilt.
+   */
+  @Test
+  public void testNoSingleLoss() {
+    for (int i = 2; i < GROUP_SIZE; i++) {
+      decoder.record(group[i]);
+    }
+    assertNull(decoder.recover(parity));
+
+    decoder.record(group[0]);
+    decoder.record(group[1]);
+    assertNull(decoder.recover(parity));
+  }
+}
@@ -0,0 +1,132 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.DATSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.FECSegment;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ParityEncoder class.
+ */
+public class ParityEncoderTest {
+  static final int MODULUS = 65536;
+  static final int LOSS_SAMPLE = 256; // data segments per loss rate sample
+
+  ParityEncoder encoder;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    encoder = new ParityEncoder(MODULUS);
+  }
+
+  /**
+   * Test for {@link ParityEncoder#add(DATSegment)} while losses are rare: no parity is sent.
+   */
+  @Test
+  public void testNoLoss() {
+    prime(encoder, 0);
+    assertEquals(0, encoder.getGroupSize());
+    for (int i = 0; i < 2 * ParityEncoder.MAX_GROUP_SIZE; i++) {
+      DATSegment s = segment(LOSS_SAMPLE + i, 100);
+      assertNull(encoder.add(s));
+      assertEquals(-1, s.getParityEnd());
+    }
+    assertNull(encoder.close());
+  }
+
+  /**
+   * Test for {@link ParityEncoder#lossDetected(int)}: about one parity segment is sent for every
+   * four lost segments, within the bounds of the group size, and a segment reported twice is
+   * counted once.
+   */
+  @Test
+  public void testGroupSize() {
+    prime(encoder, 8);
+    assertEquals(8, encoder.getGroupSize());
+
+    encoder = new ParityEncoder(MODULUS);
+    prime(encoder, 64);
+    assertEquals(ParityEncoder.MIN_GROUP_SIZE, encoder.getGroupSize());
+
+    encoder = new ParityEncoder(MODULUS);
+    prime(encoder, 1);
+    assertEquals(ParityEncoder.MAX_GROUP_SIZE, encoder.getGroupSize());
+
+    encoder = new ParityEncoder(MODULUS);
+    for (int i = 0; i < LOSS_SAMPLE; i++) {
+      encoder.lossDetected(i / 32);
+      encoder.add(segment(i, 100));
+    }
+    assertEquals(8, encoder.getGroupSize());
+  }
+
+  /**
+   * Test for {@link ParityEncoder#add(DATSegment)} with a full group: each segment records the
+   * end of its group, and the last one closes it.
+   */
+  @Test
+  public void testFullGroup() {
+    prime(encoder, 8);
+    for (int i = 0; i < 7; i++) {
+      DATSegment s = segment(LOSS_SAMPLE + i, 100);
+      assertNull(encoder.add(s));
+      assertEquals(LOSS_SAMPLE + 7, s.getParityEnd());
+    }
+    FECSegment parity = encoder.add(segment(LOSS_SAMPLE + 7, 100));
+    assertEquals(LOSS_SAMPLE, parity.seq());
+    assertEquals(8, parity.getGroupSize());
+    assertNull(encoder.close());
+  }
+
+  /**
+   * Test for {@link ParityEncoder#add(DATSegment)} with a segment that does not follow the group,
+   * and for {@link ParityEncoder#close()}: the group is closed with the segments it holds.
+   */
+  @Test
+  public void testShortGroup() {
+    prime(encoder, 8);
+    assertNull(encoder.add(segment(LOSS_SAMPLE, 100)));
+    assertNull(encoder.add(segment(LOSS_SAMPLE + 1, 200)));
+    FECSegment parity = encoder.add(segment(LOSS_SAMPLE + 3, 300));
+    assertEquals(LOSS_SAMPLE, parity.seq());
+    assertEquals(2, parity.getGroupSize());
+    assertEquals(200, parity.getParityLength());
+    assertEquals(100 ^ 200, parity.getLengthParity());
+
+    parity = encoder.close();
+    assertEquals(LOSS_SAMPLE + 3, parity.seq());
+    assertEquals(1, parity.getGroupSize());
+  }
+
+  /**
+   * Sends a sample of data segments from sequence number 0, of which the given number is
+   * reported lost, so that the encoder sets its group size, and closes the group the last one
+   * has opened.
+   */
+  static void prime(ParityEncoder encoder, int lost) {
+    for (int i = 0; i < LOSS_SAMPLE; i++) {
+      if (i < lost) {
+        encoder.lossDetected(i);
+      }
+      encoder.add(segment(i, 100));
+    }
+    encoder.close();
+  }
+
+  /**
+   * Returns a data segment whose data depends on its sequence number.
+   */
+  static DATSegment segment(int seqn, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (seqn * 31 + i);
+    }
+    return new DATSegment(seqn % MODULUS, -1, data, 0, length);
+  }
+}
@@ -0,0 +1,94 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the PathMtuDiscovery class.
+ */
+public class PathMtuDiscoveryTest {
+  private static final int MAX_SIZE = PathMtuDiscovery.MAX_UNFRAGMENTED_SIZE;
+  private static final int BASE_SIZE = PathMtuDiscovery.BASE_SEGMENT_SIZE;
+
+  PathMtuDiscovery pmtu;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    pmtu = new PathMtuDiscovery(MAX_SIZE);
+  }
+
+  /**
+   * Test for {@link PathMtuDiscovery#probeAcked()}: the largest size is probed first, and once it
+   * is acknowledged it is used and the search is done until it is repeated.
+   */
+  @Test
+  public void testProbeAcked() {
+    assertEquals(BASE_SIZE, pmtu.getSegmentSize());
+    assertEquals(MAX_SIZE, pmtu.nextProbe(0));
+    assertEquals(0, pmtu.nextProbe(0));
+    assertEquals(BASE_SIZE, pmtu.getSegmentSize());
+
+    pmtu.probeAcked();
+    assertEquals(MAX_SIZE, pmtu.getSegmentSize());
+    assertEquals(0, pmtu.nextProbe(1));
+    assertEquals(0, pmtu.nextProbe(PathMtuDiscovery.RAISE_TIMEOUT));
+    assertEquals(MAX_SIZE, pmtu.getSegmentSize());
+  }
+
+  /**
+   * Test for {@link PathMtuDiscovery#probeLost()}: a size is given up after
+   * {@link PathMtuDiscovery#MAX_PROBES} losses, and the search goes on between the base size
+   * and the lost size, without changing the segment size.
+   */
+  @Test
+  public void testProbeLost() {
+    for (int i = 0; i < PathMtuDiscovery.MAX_PROBES; i++) {
+      assertEquals(MAX_SIZE, pmtu.nextProbe(0));
+      pmtu.probeLost();
+    }
+    assertEquals(BASE_SIZE, pmtu.getSegmentSize());
+    assertEquals((BASE_SIZE + MAX_SIZE) / 2, pmtu.nextProbe(0));
+  }
+
+  /**
+   * Test for a search on a path whose MTU is between the base size and the largest size: the
+   * segment size ends up just below the MTU, and the search starts again with the largest size
+   * after {@link PathMtuDiscovery#RAISE_TIMEOUT}.
+   */
+  @Test
+  public void testSearch() {
+    int pathMtu = 1380;
+    int probes = 0;
+    int size;
+    while ((size = pmtu.nextProbe(0)) != 0) {
+      if (size <= pathMtu) {
+        pmtu.probeAcked();
+      } else {
+        pmtu.probeLost();
+      }
+      probes++;
+    }
+    assertTrue("segment size " + pmtu.getSegmentSize(), pmtu.getSegmentSize() <= pathMtu);
+    assertTrue("segment size " + pmtu.getSegmentSize(), pmtu.getSegmentSize() > pathMtu - 8);
+    assertTrue(probes + " probes", probes <= 3 * 8);
+
+    assertEquals(0, pmtu.nextProbe(PathMtuDiscovery.RAISE_TIMEOUT - 1));
+    assertEquals(MAX_SIZE, pmtu.nextProbe(PathMtuDiscovery.RAISE_TIMEOUT));
+  }
+
+  /**
+   * Test for a connection whose largest segment size is below the base size: no probe is sent.
+   */
+  @Test
+  public void testSmallMaxSize() {
+    pmtu = new PathMtuDiscovery(1000);
+    assertEquals(1000, pmtu.getSegmentSize());
+    assertEquals(0, pmtu.nextProbe(0));
+  }
+}
@@ -0,0 +1,127 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how a RUDP sender copes with the pace of the reader on the other side.
+ *
+ * <p>A client sends a bulk transfer to a server through a UDP relay that adds a fixed one-way
+ * delay in both directions. The application on the server reads at a fixed rate, or as fast as
+ * it can. The client may keep more segments outstanding than the receive buffer of the server
+ * holds. The benchmark reports the throughput, the segments sent and retransmitted, and the
+ * largest receive buffer size of the server socket seen during the transfer.
+ *
+ * <p>A sender that overruns a slow reader has its segments discarded by the receiver and keeps
+ * retransmitting them, while a sender that respects the advertised receive window waits for the
+ * reader. With a fast reader and a long delay, the receive buffer grows with the
+ * bandwidth-delay product.
+ *
+ * <p>Usage: {@code ReceiveWindowBenchmark [megabytes] [readerMbit] [delayMs] [segments]},
+ * where a reader rate of 0 reads as fast as possible and segments is the maximum number of
+ * outstanding segments of the client.
+ */
+public class ReceiveWindowBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer, read rate of the application in Mbit/s, one-way delay
+   *             in milliseconds and maximum number of outstanding segments of the client.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    final int readerRate = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    final int delay = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+    final int segments = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+    final long total = megabytes * 1024L * 1024L;
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    LossyRelay relay = new LossyRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), delay);
+
+    final AtomicInteger peakBuffer = new AtomicInteger();
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        long received = 0;
+        long start = System.nanoTime();
+        while (received < total) {
+          int read = in.read(buffer);
+          if (read < 0) {
+            break;
+          }
+          received += read;
+          peakBuffer.accumulateAndGet(socket.getReceiveBufferSize(), Math::max);
+          if (readerRate > 0) {
+            long due = start + received * 8 * 1000L / readerRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+              Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+          }
+        }
+        socket.getOutputStream().write(0);
+        socket.getOutputStream().flush();
+        in.read();
+      } catch (IOException | InterruptedException e) {
+        e.printStackTrace();
+      }
+    });
+    server.start();
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong retransmitted = new AtomicLong();
+    ReliableSocket client = new ReliableSocket(new ReliableSocketProfile.Builder()
+        .maxSendQueueSize(segments)
+        .maxOutstandingSegs(segments)
+        .build());
+    client.addListener(new ReliableSocketListener() {
+      public void packetSent() {
+        sent.incrementAndGet();
+      }
+
+      public void packetRetransmitted() {
+        retransmitted.incrementAndGet();
+      }
+
+      public void packetReceivedInOrder() {
+      }
+
+      public void packetReceivedOutOfOrder() {
+      }
+    });
+
+    client.connect(relay.getAddress(), 5000);
+    OutputStream out = client.getOutputStream();
+    byte[] chunk = new byte[8192];
+    new Random(1).nextBytes(chunk);
+    final long start = System.nanoTime();
+    for (long written = 0; written < total; written += chunk.length) {
+      out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+    }
+    out.flush();
+    client.getInputStream().read();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    client.close();
+    server.join(5000);
+
+    System.out.printf("transfer   %d MB in %.2f s (%.1f Mbit/s), reader %s, delay %d ms, "
+            + "%d segments outstanding%n",
+        megabytes, seconds, total * 8 / seconds / 1e6,
+        readerRate > 0 ? readerRate + " Mbit/s" : "unlimited", delay, segments);
+    System.out.printf("segments   sent %d, retransmitted %d, datagrams relayed %d%n",
+        sent.get(), retransmitted.get(), relay.relayed.get());
+    System.out.printf("receiver   peak receive buffer %d KB%n", peakBuffer.get() / 1024);
+    System.exit(0);
+  }
+}
@@ -0,0 +1,119 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ReliableSocketChannel class in non-blocking mode.
+ */
+public class ReliableSocketChannelTest {
+  private static final int BLOCK_SIZE = 16 * 1024;
+  private static final int MAX_WRITTEN = 64 * 1024 * 1024;
+  private static final int FULL_TIME = 200; // (ms)
+  private static final int TIMEOUT = 10; // (s)
+
+  ReliableServerSocket serverSocket;
+  ReliableSocket client;
+  Socket server;
+  SocketChannel channel;
+  ExecutorService executor;
+
+  /**
+   * Connects a client, whose channel is non-blocking, to a server before each test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    serverSocket = new ReliableServerSocket(0);
+    executor = Executors.newSingleThreadExecutor();
+    final Future<Socket> accepted = executor.submit(() -> serverSocket.accept());
+    client = new ReliableSocket();
+    client.setSendBufferSize(32 * 1024);
+    client.connect(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()), 5000);
+    server = accepted.get(TIMEOUT, TimeUnit.SECONDS);
+    channel = client.getChannel();
+    channel.configureBlocking(false);
+  }
+
+  /**
+   * Closes the sockets after each test.
+   */
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  /**
+   * Test for {@link ReliableSocketChannel#read(ByteBuffer)} without data: it returns
+   * <code>0</code> at once.
+   */
+  @Test(timeout = 30000)
+  public void testReadWithoutData() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+    assertEquals(0, channel.read(buffer));
+    assertEquals(0, buffer.position());
+  }
+
+  /**
+   * Test for {@link ReliableSocketChannel#write(ByteBuffer)} to a peer that does not read: once
+   * the receive buffer of the peer and the send window are full, the write returns
+   * <code>0</code> and leaves the buffer as it is, until the peer reads again. The data written
+   * so far arrives complete.
+   */
+  @Test(timeout = 30000)
+  public void testWriteWithFullWindow() throws Exception {
+    byte[] block = new byte[BLOCK_SIZE];
+    new Random(1).nextBytes(block);
+    ByteBuffer buffer = ByteBuffer.wrap(block);
+    long written = 0;
+    long blockedSince = System.currentTimeMillis();
+    while (System.currentTimeMillis() - blockedSince < FULL_TIME) {
+      int before = buffer.position();
+      int n = channel.write(buffer);
+      if (n == 0) {
+        assertEquals(before, buffer.position());
+        Thread.sleep(1);
+        continue;
+      }
+      written += n;
+      assertTrue(written + " bytes written", written < MAX_WRITTEN);
+      blockedSince = System.currentTimeMillis();
+      if (!buffer.hasRemaining()) {
+        buffer.rewind();
+      }
+    }
+    assertTrue(written > 0);
+    final int position = buffer.position();
+
+    byte[] received = new byte[(int) written];
+    new DataInputStream(server.getInputStream()).readFully(received);
+    for (int i = 0; i < received.length; i++) {
+      assertEquals(block[i % BLOCK_SIZE], received[i]);
+    }
+
+    long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+    int n;
+    while ((n = channel.write(buffer)) == 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    assertEquals(position + n, buffer.position());
+  }
+}
@@ -0,0 +1,217 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ReliableSocketMultiplexer class over a multiplexed rudp connection.
+ */
+public class ReliableSocketMultiplexerTest {
+  private static final int WINDOW = 256 * 1024; // receive buffer of a stream
+  private static final int SERVICE = 7;
+  private static final int TIMEOUT = 10; // (s)
+
+  ReliableServerSocket serverSocket;
+  ReliableSocketMultiplexer client;
+  ReliableSocketMultiplexer server;
+  ExecutorService executor;
+
+  /**
+   * Connects two multiplexers before each test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    ReliableSocketProfile profile = new ReliableSocketProfile.Builder().streams(true).build();
+    serverSocket = new ReliableServerSocket(0, profile);
+    executor = Executors.newCachedThreadPool();
+    final Future<Socket> accepted = executor.submit(() -> serverSocket.accept());
+    ReliableSocket socket = new ReliableSocket(profile);
+    socket.connect(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()), 5000);
+    assertTrue(socket.isMultiplexed());
+    client = new ReliableSocketMultiplexer(socket);
+    server = new ReliableSocketMultiplexer(accepted.get(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Closes the multiplexers after each test.
+   */
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  /**
+   * Test for {@link ReliableSocketMultiplexer#openStream(int)} and
+   * {@link ReliableSocketMultiplexer#acceptStream()}: the peer accepts the stream with its service,
+   * and the data goes both ways.
+   */
+  @Test(timeout = 30000)
+  public void testOpenAndAccept() throws Exception {
+    ReliableSocketMultiplexer.Stream opened = client.openStream(SERVICE);
+    write(opened, "hello".getBytes("US-ASCII"));
+    ReliableSocketMultiplexer.Stream accepted = server.acceptStream();
+    assertEquals(SERVICE, accepted.getService());
+    assertArrayEquals("hello".getBytes("US-ASCII"), read(accepted, 5));
+
+    write(accepted, "world".getBytes("US-ASCII"));
+    assertArrayEquals("world".getBytes("US-ASCII"), read(opened, 5));
+  }
+
+  /**
+   * Test for the flow control of a stream: its writer stops at the receive buffer of a reader
+   * that does not read, while another stream goes on, and resumes once the reader reads.
+   */
+  @Test(timeout = 30000)
+  public void testCreditWithSlowReader() throws Exception {
+    final byte[] data = random(2 * WINDOW, 1);
+    ReliableSocketMultiplexer.Stream slow = client.openStream(SERVICE);
+    final AtomicInteger written = new AtomicInteger();
+    final Future<?> writer = executor.submit(() -> {
+      OutputStream out = slow.getOutputStream();
+      for (int off = 0; off < data.length; off += 4096) {
+        out.write(data, off, 4096);
+        written.addAndGet(4096);
+      }
+      out.flush();
+      return null;
+    });
+    final ReliableSocketMultiplexer.Stream slowPeer = server.acceptStream();
+
+    try {
+      writer.get(1, TimeUnit.SECONDS);
+      fail("the writer has not waited for the reader");
+    } catch (TimeoutException e) {
+      assertTrue(written.get() <= WINDOW);
+    }
+
+    byte[] other = random(WINDOW, 2);
+    ReliableSocketMultiplexer.Stream fast = client.openStream(SERVICE);
+    write(fast, other);
+    assertArrayEquals(other, read(server.acceptStream(), other.length));
+
+    assertArrayEquals(data, read(slowPeer, data.length));
+    writer.get(TIMEOUT, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Test for {@link ReliableSocketMultiplexer.Stream#shutdownOutput()}: the peer reads the end of
+   * the data, and can still send its own.
+   */
+  @Test(timeout = 30000)
+  public void testHalfClose() throws Exception {
+    ReliableSocketMultiplexer.Stream opened = client.openStream(SERVICE);
+    write(opened, new byte[] {1, 2, 3});
+    opened.shutdownOutput();
+    ReliableSocketMultiplexer.Stream accepted = server.acceptStream();
+    assertArrayEquals(new byte[] {1, 2, 3}, read(accepted, 3));
+    assertEquals(-1, accepted.getInputStream().read());
+
+    write(accepted, new byte[] {4, 5});
+    accepted.close();
+    assertArrayEquals(new byte[] {4, 5}, read(opened, 2));
+    assertEquals(-1, opened.getInputStream().read());
+  }
+
+  /**
+   * Test for {@link ReliableSocketMultiplexer.Stream#close()} before the end of the data of the
+   * peer: the peer is told to stop, and its writes fail.
+   */
+  @Test(timeout = 30000)
+  public void testReset() throws Exception {
+    ReliableSocketMultiplexer.Stream opened = client.openStream(SERVICE);
+    write(opened, new byte[] {1});
+    ReliableSocketMultiplexer.Stream accepted = server.acceptStream();
+    accepted.close();
+
+    byte[] data = new byte[1024];
+    try {
+      for (int i = 0; i < 2 * WINDOW / data.length; i++) {
+        write(opened, data);
+        Thread.sleep(1);
+      }
+      fail("the writes have not failed");
+    } catch (SocketException e) {
+      assertEquals("Stream closed by peer", e.getMessage());
+    }
+  }
+
+  /**
+   * Test for {@link ReliableSocketMultiplexer#close()} while a reader waits for data and a writer
+   * waits for the allowance of the peer: both fail at once.
+   */
+  @Test(timeout = 30000)
+  public void testCloseWhileBlocked() throws Exception {
+    ReliableSocketMultiplexer.Stream reading = client.openStream(SERVICE);
+    final Future<Integer> reader = executor.submit(() -> reading.getInputStream().read());
+    ReliableSocketMultiplexer.Stream writing = client.openStream(SERVICE);
+    final Future<?> writer = executor.submit(() -> {
+      write(writing, new byte[2 * WINDOW]);
+      return null;
+    });
+    server.acceptStream();
+    server.acceptStream();
+    Thread.sleep(200);
+    assertFalse(reader.isDone());
+    assertFalse(writer.isDone());
+
+    client.close();
+    assertTrue(client.isClosed());
+    assertFails(reader);
+    assertFails(writer);
+  }
+
+  private static void assertFails(Future<?> future) throws Exception {
+    try {
+      future.get(TIMEOUT, TimeUnit.SECONDS);
+      fail("has not failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  private static void write(ReliableSocketMultiplexer.Stream stream, byte[] data)
+      throws IOException {
+    OutputStream out = stream.getOutputStream();
+    out.write(data);
+    out.flush();
+  }
+
+  private static byte[] read(ReliableSocketMultiplexer.Stream stream, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    InputStream in = stream.getInputStream();
+    new DataInputStream(in).readFully(bytes);
+    return bytes;
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,152 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the ReliableSocket class over a lossy path.
+ */
+public class ReliableSocketTest {
+  private static final int SIZE = 512 * 1024;
+  private static final int PATH_MTU = 1300;
+
+  ReliableServerSocket serverSocket;
+  LossyRelay relay;
+  ExecutorService executor;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ReliableServerSocket(0);
+    relay = new LossyRelay(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()),
+        0.05, 0.05, 5);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Closes the sockets and the relay after each test.
+   */
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    serverSocket.close();
+    relay.close();
+  }
+
+  /**
+   * Test for {@link ReliableSocket#getOutputStream()} and {@link ReliableSocket#getInputStream()}:
+   * the data arrives complete and in order in both directions although datagrams are lost.
+   */
+  @Test(timeout = 60000)
+  public void testTransferOverLossyPath() throws Exception {
+    byte[] upstream = random(SIZE, 1);
+    byte[] downstream = random(SIZE, 2);
+
+    final Future<byte[]> server = executor.submit(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        Future<byte[]> received = read(socket, SIZE);
+        write(socket, downstream);
+        return received.get();
+      }
+    });
+
+    ReliableSocket client = new ReliableSocket();
+    client.connect(relay.getAddress(), 5000);
+    Future<byte[]> received = read(client, SIZE);
+    write(client, upstream);
+    assertArrayEquals(downstream, received.get(50, TimeUnit.SECONDS));
+    assertArrayEquals(upstream, server.get(50, TimeUnit.SECONDS));
+    client.close();
+    assertTrue(relay.dropped.get() > 0);
+  }
+
+  /**
+   * Test for the recovery of {@link ReliableSocket} from a retransmission timeout with a peer
+   * that only knows the original segment format, and acknowledges a lone segment only when its
+   * cumulative acknowledgment timer expires: the send window opens again after the timeout,
+   * rather than letting one held-back segment through per acknowledgment.
+   */
+  @Test(timeout = 60000)
+  public void testTimeoutRecoveryWithLegacyPeer() throws Exception {
+    byte[] data = random(SIZE / 2, 3);
+    try (LegacyPeer peer = new LegacyPeer(100, LegacyPeer.QUEUE_SIZE)) {
+      ReliableSocket client = new ReliableSocket();
+      client.connect(peer.getAddress(), 5000);
+      long start = System.currentTimeMillis();
+      write(client, data);
+      assertArrayEquals(data, peer.await(data.length, 50000));
+      final long elapsed = System.currentTimeMillis() - start;
+      client.close();
+      assertEquals(LegacyPeer.QUEUE_SIZE, peer.getDropped());
+      assertTrue("recovered in " + elapsed + " ms", elapsed < 5000);
+    }
+  }
+
+  /**
+   * Test for path MTU discovery with a peer that only knows the original segment format, behind
+   * a path that drops the larger probes: the lost probes are delivered without their padding,
+   * and the data goes on in segments that fit the path.
+   */
+  @Test(timeout = 60000)
+  public void testPathMtuWithLegacyPeer() throws Exception {
+    byte[] data = random(SIZE / 2, 4);
+    try (LegacyPeer peer = new LegacyPeer(0, 0)) {
+      peer.setPathMtu(PATH_MTU);
+      ReliableSocket client = new ReliableSocket();
+      client.connect(peer.getAddress(), 5000);
+      long start = System.currentTimeMillis();
+      write(client, data);
+      assertArrayEquals(data, peer.await(data.length, 50000));
+      final long elapsed = System.currentTimeMillis() - start;
+      int size = client.getSegmentSize();
+      client.close();
+      assertTrue(size >= PathMtuDiscovery.BASE_SEGMENT_SIZE && size <= PATH_MTU);
+      assertTrue("sent in " + elapsed + " ms", elapsed < 5000);
+    }
+  }
+
+  private static Future<byte[]> read(Socket socket, int length) {
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    Future<byte[]> data = reader.submit(() -> {
+      byte[] bytes = new byte[length];
+      new DataInputStream(socket.getInputStream()).readFully(bytes);
+      return bytes;
+    });
+    reader.shutdown();
+    return data;
+  }
+
+  private static void write(Socket socket, byte[] data) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    Random random = new Random(3);
+    for (int written = 0; written < data.length; ) {
+      int length = Math.min(1 + random.nextInt(8192), data.length - written);
+      out.write(data, written, length);
+      written += length;
+    }
+    out.flush();
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,205 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the acknowledgment traffic of a RUDP bulk transfer over a path that reorders
+ * datagrams.
+ *
+ * <p>A client sends a bulk transfer to a server through a UDP relay that holds back a share of
+ * the datagrams of the client for a few milliseconds, so that the datagrams sent after them
+ * overtake them, and drops another share. The benchmark reports the throughput, the segments
+ * sent and retransmitted, and the datagrams and octets the server sends back, which are almost
+ * all acknowledgments.
+ *
+ * <p>Usage: {@code ReorderingBenchmark [megabytes] [reorder] [holdMs] [loss]}
+ */
+public class ReorderingBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer, probability that a datagram is held back, time it is held
+   *             back in milliseconds and loss probability.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    final double reorder = args.length > 1 ? Double.parseDouble(args[1]) : 0.05;
+    final int hold = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    final double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+    final long total = megabytes * 1024L * 1024L;
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    ReorderingRelay relay = new ReorderingRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), reorder, hold, loss);
+
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        long received = 0;
+        while (received < total) {
+          int read = in.read(buffer);
+          if (read < 0) {
+            break;
+          }
+          received += read;
+        }
+        socket.getOutputStream().write(0);
+        socket.getOutputStream().flush();
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.start();
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong retransmitted = new AtomicLong();
+    ReliableSocket client = new ReliableSocket();
+    client.addListener(new ReliableSocketListener() {
+      public void packetSent() {
+        sent.incrementAndGet();
+      }
+
+      public void packetRetransmitted() {
+        retransmitted.incrementAndGet();
+      }
+
+      public void packetReceivedInOrder() {
+      }
+
+      public void packetReceivedOutOfOrder() {
+      }
+    });
+
+    client.connect(relay.getAddress(), 5000);
+    OutputStream out = client.getOutputStream();
+    byte[] chunk = new byte[8192];
+    new Random(1).nextBytes(chunk);
+    final long start = System.nanoTime();
+    for (long written = 0; written < total; written += chunk.length) {
+      out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+    }
+    out.flush();
+    client.getInputStream().read();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    client.close();
+    server.join(5000);
+
+    System.out.printf("transfer   %d MB in %.2f s (%.1f Mbit/s), reorder %.1f%% by %d ms, "
+            + "loss %.1f%%%n",
+        megabytes, seconds, total * 8 / seconds / 1e6, reorder * 100, hold, loss * 100);
+    System.out.printf("segments   sent %d, retransmitted %d%n", sent.get(), retransmitted.get());
+    System.out.printf("returned   %d datagrams, %d octets (%.1f octets per segment sent)%n",
+        relay.returned.get(), relay.returnedBytes.get(),
+        (double) relay.returnedBytes.get() / sent.get());
+    System.exit(0);
+  }
+
+  /**
+   * A UDP relay that holds back or drops a share of the datagrams of the client, and counts the
+   * datagrams of the server.
+   */
+  private static class ReorderingRelay {
+    private final DatagramSocket front;
+    private final DatagramSocket back;
+    private final SocketAddress server;
+    private final double reorder;
+    private final int hold;
+    private final double loss;
+    private final Random random = new Random(42);
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong returnedBytes = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+        r -> {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        });
+    private volatile SocketAddress client;
+
+    ReorderingRelay(SocketAddress server, double reorder, int hold, double loss)
+        throws IOException {
+      this.front = new DatagramSocket(0);
+      this.back = new DatagramSocket(0);
+      this.server = server;
+      this.reorder = reorder;
+      this.hold = hold;
+      this.loss = loss;
+      start(this::upstream);
+      start(this::downstream);
+    }
+
+    SocketAddress getAddress() {
+      return new InetSocketAddress(LOCALHOST, front.getLocalPort());
+    }
+
+    private void start(Runnable runnable) {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void upstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          front.receive(packet);
+          client = packet.getSocketAddress();
+          double draw = random.nextDouble();
+          if (draw < loss) {
+            continue;
+          }
+          byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+          if (draw < loss + reorder) {
+            executor.schedule(() -> forward(back, data, server), hold, TimeUnit.MILLISECONDS);
+          } else {
+            forward(back, data, server);
+          }
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void downstream() {
+      byte[] buffer = new byte[65535];
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          back.receive(packet);
+        } catch (IOException e) {
+          return;
+        }
+        returned.incrementAndGet();
+        returnedBytes.addAndGet(packet.getLength());
+        forward(front, Arrays.copyOf(packet.getData(), packet.getLength()), client);
+      }
+    }
+
+    private void forward(DatagramSocket socket, byte[] data, SocketAddress target) {
+      try {
+        socket.send(new DatagramPacket(data, data.length, target));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the RttEstimator class.
+ */
+public class RttEstimatorTest {
+  private static final int INITIAL_RTO = 1000; // (ms)
+
+  RttEstimator estimator;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    estimator = new RttEstimator(INITIAL_RTO);
+  }
+
+  /**
+   * Test for {@link RttEstimator#sample(long)}: the first measurement sets the smoothed
+   * round-trip time and half of it as the variation, and the next ones are averaged in.
+   */
+  @Test
+  public void testRetransmissionTimeout() {
+    assertEquals(-1, estimator.getRoundTripTime());
+    assertEquals(INITIAL_RTO, estimator.getRetransmissionTimeout());
+
+    estimator.sample(100);
+    assertEquals(100, estimator.getRoundTripTime());
+    assertEquals(50, estimator.getRoundTripTimeVariation());
+    assertEquals(100 + 4 * 50, estimator.getRetransmissionTimeout());
+
+    estimator.sample(60);
+    assertEquals((7 * 100 + 60) / 8, estimator.getRoundTripTime());
+    assertEquals((3 * 50 + 40) / 4, estimator.getRoundTripTimeVariation());
+    assertEquals(95 + 4 * 47, estimator.getRetransmissionTimeout());
+    assertEquals(60, estimator.getMinRoundTripTime());
+  }
+
+  /**
+   * Test for {@link RttEstimator#getRetransmissionTimeout()} on a fast link: the timeout is not
+   * shorter than {@link RttEstimator#MIN_RTO}.
+   */
+  @Test
+  public void testMinRetransmissionTimeout() {
+    estimator.sample(10);
+    assertEquals(RttEstimator.MIN_RTO, estimator.getRetransmissionTimeout());
+  }
+
+  /**
+   * Test for {@link RttEstimator#backoff()}: the timeout doubles, up to
+   * {@link RttEstimator#MAX_RTO}, until a new round-trip time is measured.
+   */
+  @Test
+  public void testBackoff() {
+    estimator.sample(100);
+    estimator.backoff();
+    assertEquals(600, estimator.getRetransmissionTimeout());
+    estimator.backoff();
+    assertEquals(1200, estimator.getRetransmissionTimeout());
+
+    for (int i = 0; i < 10; i++) {
+      estimator.backoff();
+    }
+    assertEquals(RttEstimator.MAX_RTO, estimator.getRetransmissionTimeout());
+
+    estimator.sample(100);
+    assertEquals(100 + 4 * 37, estimator.getRetransmissionTimeout());
+  }
+
+  /**
+   * Test for {@link RttEstimator#sample(long)} without a measurement, as after the
+   * acknowledgment of a retransmitted segment (Karn's rule): the estimate and the backoff are
+   * kept until a segment sent only once is acknowledged.
+   */
+  @Test
+  public void testKarnsRule() {
+    estimator.sample(100);
+    estimator.backoff();
+    estimator.backoff();
+
+    estimator.sample(-1);
+    assertEquals(100, estimator.getRoundTripTime());
+    assertEquals(50, estimator.getRoundTripTimeVariation());
+    assertEquals(1200, estimator.getRetransmissionTimeout());
+
+    estimator.sample(100);
+    assertEquals(100 + 4 * 37, estimator.getRetransmissionTimeout());
+  }
+}
@@ -0,0 +1,153 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.NULSegment;
+import ch.imedias.rsccfx.model.connectionutils.rudp.src.impl.Segment;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the SegmentRing class.
+ */
+public class SegmentRingTest {
+  private static final int MODULUS = 256;
+
+  SegmentRing ring;
+
+  /**
+   * Initializes test fixture before each test.
+   */
+  @Before
+  public void setUp() {
+    ring = new SegmentRing(8, MODULUS);
+  }
+
+  /**
+   * Test for {@link SegmentRing#put(Segment)} across the end of the sequence number space.
+   */
+  @Test
+  public void testPutAcrossModulus() {
+    for (int seqn : new int[] {253, 1, 255, 254, 0, 2}) {
+      assertTrue(ring.put(new NULSegment(seqn)));
+    }
+    assertEquals(6, ring.size());
+    assertFalse(ring.put(new NULSegment(255)));
+    assertTrue(ring.fits(4));
+    assertFalse(ring.fits(5));
+    assertFalse(ring.put(new NULSegment(5)));
+    assertFalse(ring.fits(252));
+
+    int[] expected = {253, 254, 255, 0, 1, 2};
+    for (int i = 0, offset = ring.nextOffset(0); i < expected.length; i++) {
+      assertEquals(expected[i], ring.at(offset).seq());
+      offset = ring.nextOffset(offset + 1);
+    }
+    assertEquals(0, ring.get(0).seq());
+    assertNull(ring.get(3));
+  }
+
+  /**
+   * Test for {@link SegmentRing#removeFirst()}, which moves the base so that the slots wrap
+   * around the end of the array.
+   */
+  @Test
+  public void testRemoveFirstWrapsSlots() {
+    int next = 250;
+    for (int i = 0; i < 8; i++) {
+      assertTrue(ring.put(new NULSegment(next++ % MODULUS)));
+    }
+    for (int round = 0; round < 40; round++) {
+      assertFalse(ring.put(new NULSegment(next % MODULUS)));
+      Segment first = ring.removeFirst();
+      assertEquals((next - 8) % MODULUS, first.seq());
+      assertTrue(ring.put(new NULSegment(next++ % MODULUS)));
+      assertEquals(8, ring.size());
+      assertEquals((next - 8) % MODULUS, ring.first().seq());
+    }
+  }
+
+  /**
+   * Test for {@link SegmentRing#nextOffset(int)} with gaps longer than a word of the bitmap.
+   */
+  @Test
+  public void testNextOffsetSkipsGaps() {
+    ring = new SegmentRing(200, 1 << 16);
+    ring.moveBase(0xFFF0);
+    Segment last = new NULSegment(0xFFF0 + 150 - (1 << 16));
+    assertTrue(ring.put(new NULSegment(0xFFF0)));
+    assertTrue(ring.put(last));
+    assertEquals(0, ring.nextOffset(0));
+    assertEquals(150, ring.nextOffset(1));
+    assertSame(last, ring.at(150));
+    assertEquals(-1, ring.nextOffset(151));
+  }
+
+  /**
+   * Test for {@link SegmentRing#remove(int)} and {@link SegmentRing#moveBase(int)}.
+   */
+  @Test
+  public void testRemoveAndMoveBase() {
+    for (int seqn : new int[] {254, 255, 0, 1, 3}) {
+      ring.put(new NULSegment(seqn));
+    }
+    assertEquals(0, ring.remove(0).seq());
+    assertNull(ring.remove(0));
+    assertEquals(254, ring.first().seq());
+
+    ring.moveBase(1);
+    assertEquals(2, ring.size());
+    assertEquals(1, ring.first().seq());
+    assertTrue(ring.fits(8));
+    assertFalse(ring.fits(9));
+
+    // Behind the base
+    ring.moveBase(250);
+    assertEquals(1, ring.first().seq());
+
+    ring.moveBase(10);
+    assertTrue(ring.isEmpty());
+    assertTrue(ring.put(new NULSegment(17)));
+    assertFalse(ring.put(new NULSegment(18)));
+  }
+
+  /**
+   * Test for {@link SegmentRing#add(Segment)}, which appends whatever the sequence number.
+   */
+  @Test
+  public void testAdd() {
+    for (int i = 0; i < 8; i++) {
+      assertTrue(ring.add(new NULSegment(100)));
+    }
+    assertFalse(ring.add(new NULSegment(100)));
+    ring.removeFirst();
+    ring.removeFirst();
+    assertTrue(ring.add(new NULSegment(100)));
+    assertEquals(7, ring.size());
+  }
+
+  /**
+   * Test for {@link SegmentRing#resize(int, int)}, which keeps the segments that still fit.
+   */
+  @Test
+  public void testResize() {
+    for (int seqn : new int[] {250, 252, 255, 1}) {
+      ring.put(new NULSegment(seqn));
+    }
+    ring.removeFirst();
+    ring.resize(5, MODULUS);
+    assertEquals(5, ring.capacity());
+    assertEquals(2, ring.size());
+    assertEquals(252, ring.first().seq());
+    assertNull(ring.get(1));
+
+    ring.resize(64, MODULUS);
+    assertEquals(252, ring.removeFirst().seq());
+    assertEquals(255, ring.removeFirst().seq());
+    assertTrue(ring.isEmpty());
+  }
+}
@@ -0,0 +1,127 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the heap allocation rate of the RUDP send path.
+ *
+ * <p>A client streams data to a server over loopback. After a warm-up transfer, the bytes
+ * allocated by the writing thread and by the whole process are sampled around a second
+ * transfer and reported per data segment sent.
+ *
+ * <p>Usage: {@code SendAllocationBenchmark [megabytes] [writeSize]}
+ */
+public class SendAllocationBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args megabytes to transfer per round and size of each write in bytes.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    final int writeSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+    final long total = megabytes * 1024L * 1024L;
+
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[65536];
+        for (int round = 0; round < 2; round++) {
+          long received = 0;
+          while (received < total) {
+            int read = in.read(buffer);
+            if (read < 0) {
+              return;
+            }
+            received += read;
+          }
+          socket.getOutputStream().write(round);
+          socket.getOutputStream().flush();
+        }
+        in.read();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+
+    final AtomicLong sent = new AtomicLong();
+    ReliableSocket client = new ReliableSocket();
+    client.addListener(new ReliableSocketListener() {
+      public void packetSent() {
+        sent.incrementAndGet();
+      }
+
+      public void packetRetransmitted() {
+      }
+
+      public void packetReceivedInOrder() {
+      }
+
+      public void packetReceivedOutOfOrder() {
+      }
+    });
+    client.connect(new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), 5000);
+    OutputStream out = client.getOutputStream();
+    InputStream in = client.getInputStream();
+    byte[] chunk = new byte[writeSize];
+    new Random(1).nextBytes(chunk);
+
+    /* Warm-up round */
+    transfer(out, chunk, total);
+    in.read();
+
+    long threadId = Thread.currentThread().getId();
+    final long segmentsBefore = sent.get();
+    long writerBytes = threads.getThreadAllocatedBytes(threadId);
+    final long processBefore = processAllocatedBytes(threads);
+    long start = System.nanoTime();
+    transfer(out, chunk, total);
+    in.read();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    writerBytes = threads.getThreadAllocatedBytes(threadId) - writerBytes;
+    final long processBytes = processAllocatedBytes(threads) - processBefore;
+    final long segments = Math.max(sent.get() - segmentsBefore, 1);
+    client.close();
+
+    System.out.printf("transfer   %d MB in %.2f s (%.1f Mbit/s), %d segments, writes of %d bytes%n",
+        megabytes, seconds, total * 8 / seconds / 1e6, segments, writeSize);
+    System.out.printf("writer     %d bytes allocated, %.1f bytes/segment%n",
+        writerBytes, writerBytes / (double) segments);
+    System.out.printf("process    %d bytes allocated, %.1f bytes/segment%n",
+        processBytes, processBytes / (double) segments);
+    System.exit(0);
+  }
+
+  private static void transfer(OutputStream out, byte[] chunk, long total) throws IOException {
+    for (long written = 0; written < total; written += chunk.length) {
+      out.write(chunk, 0, (int) Math.min(chunk.length, total - written));
+    }
+    out.flush();
+  }
+
+  private static long processAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+    long total = 0;
+    for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,145 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long the threads of a RUDP connection are blocked on monitors under a
+ * saturating VNC-like workload.
+ *
+ * <p>A server streams large framebuffer updates to a client as fast as it can, while the client
+ * sends a small input event every millisecond. The traffic passes through a UDP relay that drops
+ * a share of the datagrams in both directions, so that acknowledgments, extended
+ * acknowledgments and retransmissions keep the receive threads and timers busy. The benchmark
+ * reports the throughput and the time spent blocked on monitors by each kind of thread, as
+ * measured by thread contention monitoring.
+ *
+ * <p>Usage: {@code SendContentionBenchmark [seconds] [loss]}
+ */
+public class SendContentionBenchmark {
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final int UPDATE_SIZE = 64 * 1024;
+  private static final int EVENT_SIZE = 8;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args duration in seconds and loss probability.
+   * @throws Exception if the transfer fails.
+   */
+  public static void main(String[] args) throws Exception {
+    final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    final double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.setThreadContentionMonitoringEnabled(true);
+
+    ReliableServerSocket serverSocket = new ReliableServerSocket(0);
+    LossyRelay relay = new LossyRelay(
+        new InetSocketAddress(LOCALHOST, serverSocket.getLocalPort()), loss, loss, 0);
+    final long deadline = System.nanoTime() + seconds * 1000000000L;
+    final AtomicLong updates = new AtomicLong();
+    final AtomicLong events = new AtomicLong();
+    final AtomicBoolean running = new AtomicBoolean(true);
+
+    Thread server = new Thread(() -> {
+      try (Socket socket = serverSocket.accept()) {
+        Thread eventReader = new Thread(() -> drain(socket, events, EVENT_SIZE), "app-events");
+        eventReader.setDaemon(true);
+        eventReader.start();
+        OutputStream out = socket.getOutputStream();
+        byte[] update = new byte[UPDATE_SIZE];
+        new Random(1).nextBytes(update);
+        while (running.get()) {
+          out.write(update);
+          out.flush();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "app-updates");
+    server.setDaemon(true);
+    server.start();
+
+    final ReliableSocket client = new ReliableSocket();
+    client.connect(relay.getAddress(), 5000);
+    Thread updateReader = new Thread(() -> drain(client, updates, UPDATE_SIZE), "app-viewer");
+    updateReader.setDaemon(true);
+    updateReader.start();
+
+    Map<String, Long> before = blockedTimes(threads);
+    long start = System.nanoTime();
+    OutputStream out = client.getOutputStream();
+    byte[] event = new byte[EVENT_SIZE];
+    while (System.nanoTime() < deadline) {
+      out.write(event);
+      out.flush();
+      Thread.sleep(1);
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    Map<String, Long> after = blockedTimes(threads);
+    running.set(false);
+
+    System.out.printf("workload   %.1f s, loss %.1f%%, %.1f updates/s (%.1f Mbit/s), "
+            + "%.0f events/s%n",
+        elapsed, loss * 100, updates.get() / elapsed,
+        updates.get() * UPDATE_SIZE * 8 / elapsed / 1e6, events.get() / elapsed);
+    long total = 0;
+    for (Map.Entry<String, Long> entry : after.entrySet()) {
+      Long previous = before.get(entry.getKey());
+      long blocked = entry.getValue() - (previous == null ? 0 : previous);
+      total += blocked;
+      if (blocked == 0) {
+        continue;
+      }
+      System.out.printf("blocked    %-24s %6d ms%n", entry.getKey(), blocked);
+    }
+    System.out.printf("blocked    %-24s %6d ms%n", "total", total);
+    System.exit(0);
+  }
+
+  /**
+   * Reads fixed-size messages until the stream ends and counts them.
+   */
+  private static void drain(Socket socket, AtomicLong counter, int messageSize) {
+    try {
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[8192];
+      long received = 0;
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        received += read;
+        counter.set(received / messageSize);
+      }
+    } catch (IOException e) {
+      // The connection is closed at the end of the run.
+    }
+  }
+
+  /**
+   * Sums the time spent blocked on monitors by the live threads, grouped by thread name with
+   * any numeric suffix removed.
+   */
+  private static Map<String, Long> blockedTimes(ThreadMXBean threads) {
+    Map<String, Long> times = new TreeMap<>();
+    for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+      if (info == null || info.getBlockedTime() < 0) {
+        continue;
+      }
+      String name = info.getThreadName().replaceAll("[-#]?\\d+$", "");
+      times.merge(name, info.getBlockedTime(), Long::sum);
+    }
+    return times;
+  }
+}
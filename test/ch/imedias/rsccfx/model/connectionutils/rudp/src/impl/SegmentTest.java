@@ -0,0 +1,257 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests the encoding and parsing of the segments.
+ */
+public class SegmentTest {
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a data segment in the original format.
+   */
+  @Test
+  public void testDataRoundTrip() {
+    byte[] data = bytes(100, 1);
+    DATSegment sent = new DATSegment(200, 199, data, 0, data.length);
+    DATSegment parsed = (DATSegment) Segment.parse(sent.getBytes());
+    assertEquals(200, parsed.seq());
+    assertEquals(199, parsed.getAck());
+    assertFalse(parsed.isLongSequence());
+    assertEquals(Segment.RUDP_HEADER_LEN, parsed.headerLength());
+    assertArrayEquals(data, parsed.getData());
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a data segment with long sequence numbers and all
+   * the extension fields.
+   */
+  @Test
+  public void testLongDataRoundTrip() {
+    byte[] data = bytes(1000, 2);
+    DATSegment sent = new DATSegment(0xFFFE, 0x1234, data, 0, data.length);
+    sent.setLongSequence(true);
+    sent.setTimestamp(0x01020304, 0x7F000001);
+    sent.setWindow(65536);
+    sent.requestAck();
+    sent.reportDuplicate();
+
+    DATSegment parsed = (DATSegment) Segment.parse(sent.getBytes());
+    assertTrue(parsed.isLongSequence());
+    assertEquals(0xFFFE, parsed.seq());
+    assertEquals(0x1234, parsed.getAck());
+    assertTrue(parsed.hasTimestamp());
+    assertEquals(0x01020304, parsed.getTimestamp());
+    assertEquals(0x7F000001, parsed.getTimestampEcho());
+    assertTrue(parsed.hasWindow());
+    assertEquals(65536, parsed.getWindow());
+    assertTrue(parsed.isAckRequested());
+    assertTrue(parsed.isDuplicateReported());
+    assertEquals(Segment.RUDP_LSN_HEADER_LEN + Segment.TS_XLEN + Segment.WND_XLEN,
+        parsed.headerLength());
+    assertArrayEquals(data, parsed.getData());
+  }
+
+  /**
+   * Test for {@link DATSegment#encode(ByteBuffer)}, which encodes the header in front of the
+   * data in the buffer of the segment, and for parsing at an offset.
+   */
+  @Test
+  public void testDataEncodeInPlace() {
+    byte[] data = bytes(50, 3);
+    DATSegment sent = new DATSegment(7, 6, data, 0, data.length);
+    sent.setLongSequence(true);
+    sent.setWindow(1000);
+    ByteBuffer encoded = sent.encode(ByteBuffer.allocate(0));
+    assertEquals(sent.length(), encoded.remaining());
+
+    byte[] datagram = new byte[encoded.remaining() + 10];
+    encoded.get(datagram, 10, encoded.remaining());
+    DATSegment parsed = (DATSegment) Segment.parse(datagram, 10, sent.length());
+    assertEquals(7, parsed.seq());
+    assertEquals(6, parsed.getAck());
+    assertEquals(1000, parsed.getWindow());
+    assertArrayEquals(data, parsed.getData());
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of the segments without data.
+   */
+  @Test
+  public void testControlRoundTrip() {
+    ACKSegment ack = new ACKSegment(10, 9);
+    ack.setLongSequence(true);
+    ack.setWindow(4096);
+    Segment parsed = Segment.parse(ack.getBytes());
+    assertTrue(parsed instanceof ACKSegment);
+    assertEquals(9, parsed.getAck());
+    assertEquals(4096, parsed.getWindow());
+
+    assertTrue(Segment.parse(new NULSegment(11).getBytes()) instanceof NULSegment);
+    assertTrue(Segment.parse(new RSTSegment(12).getBytes()) instanceof RSTSegment);
+    Segment fin = Segment.parse(new FINSegment(13).getBytes());
+    assertTrue(fin instanceof FINSegment);
+    assertEquals(13, fin.seq());
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a datagram that is too short.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseTruncated() {
+    Segment.parse(new byte[Segment.RUDP_HEADER_LEN - 1]);
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a SYN segment with options.
+   */
+  @Test
+  public void testSynOptionsRoundTrip() {
+    int options = SYNSegment.OPT_LSN | SYNSegment.OPT_TIMESTAMPS | SYNSegment.OPT_WINDOW
+        | SYNSegment.OPT_SACK | SYNSegment.OPT_FEC | SYNSegment.OPT_STREAMS;
+    SYNSegment sent = new SYNSegment(42, 1000, 1400, 600, 100, 2000, 8, 3, 16, 3, options);
+    sent.setLongSequence(true);
+
+    SYNSegment parsed = (SYNSegment) Segment.parse(sent.getBytes());
+    assertFalse(parsed.isLongSequence());
+    assertEquals(42, parsed.seq());
+    assertEquals(Segment.RUDP_VERSION, parsed.getVersion());
+    assertEquals(options | SYNSegment.OPT_NONE, parsed.getOptionFlags());
+    assertTrue(parsed.hasOption(SYNSegment.OPT_FEC));
+    assertFalse(parsed.hasOption(SYNSegment.OPT_ACKFREQ));
+    assertEquals(1000, parsed.getMaxOutstandingSegments());
+    assertEquals(1400, parsed.getMaxSegmentSize());
+    assertEquals(600, parsed.getRetransmissionTimeout());
+    assertEquals(100, parsed.getCummulativeAckTimeout());
+    assertEquals(2000, parsed.getNulSegmentTimeout());
+    assertEquals(8, parsed.getMaxRetransmissions());
+    assertEquals(3, parsed.getMaxCumulativeAcks());
+    assertEquals(16, parsed.getMaxOutOfSequence());
+    assertEquals(3, parsed.getMaxAutoReset());
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a SYN segment without options, whose number of
+   * outstanding segments fits in one octet.
+   */
+  @Test
+  public void testSynWithoutOptions() {
+    SYNSegment sent = new SYNSegment(1, 1000, 1400, 600, 100, 2000, 8, 3, 16, 3);
+    SYNSegment parsed = (SYNSegment) Segment.parse(sent.getBytes());
+    assertEquals(SYNSegment.OPT_NONE, parsed.getOptionFlags());
+    assertFalse(parsed.hasOption(SYNSegment.OPT_LSN));
+    assertEquals(255, parsed.getMaxOutstandingSegments());
+  }
+
+  /**
+   * Test for {@link EAKSegment#EAKSegment(int, int, int[])}, which merges the listed sequence
+   * numbers into ranges.
+   */
+  @Test
+  public void testEakListRoundTrip() {
+    EAKSegment sent = new EAKSegment(5, 3, new int[] {5, 6, 7, 9, 12, 13});
+    EAKSegment parsed = (EAKSegment) Segment.parse(sent.getBytes());
+    assertFalse(parsed.hasRanges());
+    assertEquals(3, parsed.getAck());
+    assertRanges(parsed, new int[] {5, 9, 12}, new int[] {7, 9, 13});
+  }
+
+  /**
+   * Test for {@link EAKSegment#EAKSegment(int, int, int[])} with long sequence numbers.
+   */
+  @Test
+  public void testEakLongListRoundTrip() {
+    EAKSegment sent = new EAKSegment(5, 300, new int[] {302, 303, 1000});
+    sent.setLongSequence(true);
+    sent.setTimestamp(1, 2);
+    EAKSegment parsed = (EAKSegment) Segment.parse(sent.getBytes());
+    assertTrue(parsed.isLongSequence());
+    assertEquals(300, parsed.getAck());
+    assertEquals(1, parsed.getTimestamp());
+    assertRanges(parsed, new int[] {302, 1000}, new int[] {303, 1000});
+  }
+
+  /**
+   * Test for {@link EAKSegment#EAKSegment(int, int, int[], int[])}.
+   */
+  @Test
+  public void testEakRangesRoundTrip() {
+    int[] starts = new int[EAKSegment.maxRanges()];
+    int[] ends = new int[starts.length];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = 0xF000 + i * 60;
+      ends[i] = starts[i] + i;
+    }
+    EAKSegment sent = new EAKSegment(5, 0xFEFF, starts, ends);
+    sent.setLongSequence(true);
+    sent.setTimestamp(1, 2);
+    sent.setWindow(3);
+    assertTrue(sent.length() <= 255);
+
+    EAKSegment parsed = (EAKSegment) Segment.parse(sent.getBytes());
+    assertTrue(parsed.hasRanges());
+    assertEquals(0xFEFF, parsed.getAck());
+    assertEquals(3, parsed.getWindow());
+    assertRanges(parsed, starts, ends);
+  }
+
+  /**
+   * Test for {@link Segment#parse(byte[])} of a parity segment, and for
+   * {@link FECSegment#detach()}.
+   */
+  @Test
+  public void testFecRoundTrip() {
+    byte[] first = bytes(300, 4);
+    byte[] second = bytes(200, 5);
+    byte[] parity = Arrays.copyOf(first, first.length);
+    for (int i = 0; i < second.length; i++) {
+      parity[i] ^= second[i];
+    }
+    FECSegment sent = new FECSegment(0x1FF, 2, first.length ^ second.length, parity,
+        parity.length);
+    sent.setTimestamp(7, 8);
+
+    byte[] datagram = sent.getBytes();
+    FECSegment parsed = (FECSegment) Segment.parse(datagram);
+    assertTrue(parsed.isLongSequence());
+    assertEquals(0x1FF, parsed.seq());
+    assertEquals(2, parsed.getGroupSize());
+    assertEquals(7, parsed.getTimestamp());
+    assertEquals(parity.length, parsed.getParityLength());
+    parsed.detach();
+    Arrays.fill(datagram, (byte) 0);
+
+    // The second segment is rebuilt from the first and the parity
+    byte[] rebuilt = new byte[parsed.getParityLength()];
+    parsed.getParity(rebuilt);
+    for (int i = 0; i < first.length; i++) {
+      rebuilt[i] ^= first[i];
+    }
+    int length = parsed.getLengthParity() ^ first.length;
+    assertEquals(second.length, length);
+    assertArrayEquals(second, Arrays.copyOf(rebuilt, length));
+  }
+
+  private static void assertRanges(EAKSegment segment, int[] starts, int[] ends) {
+    assertEquals(starts.length, segment.getRangeCount());
+    for (int i = 0; i < starts.length; i++) {
+      assertEquals(starts[i], segment.getRangeStart(i));
+      assertEquals(ends[i], segment.getRangeEnd(i));
+    }
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 31 + seed);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,265 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the wheel-based {@link Timer} with the former thread-per-timer implementation.
+ *
+ * <p>Creates the given number of timers, as four sockets' worth of timers would, and
+ * reports the number of live threads, the throughput of {@code reset()} from several
+ * threads and the throughput of {@code cancel()} followed by {@code schedule()}.
+ *
+ * <p>Usage: {@code TimerBenchmark [timers] [threads] [seconds]}
+ */
+public class TimerBenchmark {
+  private static final long DELAY = 2000;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args number of timers, number of calling threads and seconds per measurement.
+   * @throws Exception if a calling thread is interrupted.
+   */
+  public static void main(String[] args) throws Exception {
+    final int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+    System.out.printf("%-8s %10s %16s %22s%n", "timer", "threads", "resets/s", "cancel+schedule/s");
+    run("legacy", timers, threads, seconds, LegacyTimerAdapter::new);
+    run("wheel", timers, threads, seconds, WheelTimerAdapter::new);
+    System.exit(0);
+  }
+
+  private static void run(String name, int count, int threads, int seconds,
+      TimerFactory factory) throws InterruptedException {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    int baseThreads = threadBean.getThreadCount();
+
+    final BenchTimer[] timers = new BenchTimer[count];
+    for (int i = 0; i < count; i++) {
+      timers[i] = factory.create(() -> { });
+      timers[i].schedule(DELAY, DELAY);
+    }
+    Thread.sleep(200);
+    int liveThreads = threadBean.getThreadCount() - baseThreads;
+
+    long resets = measure(timers, threads, seconds, BenchTimer::reset);
+    long reschedules = measure(timers, threads, seconds, timer -> {
+      timer.cancel();
+      timer.schedule(DELAY, DELAY);
+    });
+
+    for (BenchTimer timer : timers) {
+      timer.destroy();
+    }
+
+    System.out.printf("%-8s %10d %16d %22d%n", name, liveThreads,
+        resets / seconds, reschedules / seconds);
+  }
+
+  private static long measure(final BenchTimer[] timers, int threads, int seconds,
+      final TimerOperation operation) throws InterruptedException {
+    final AtomicLong operations = new AtomicLong();
+    final long end = System.nanoTime() + seconds * 1000000000L;
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      workers[t] = new Thread(() -> {
+        long done = 0;
+        int i = first;
+        while (System.nanoTime() < end) {
+          operation.apply(timers[i]);
+          done++;
+          i = (i + threads) % timers.length;
+        }
+        operations.addAndGet(done);
+      });
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return operations.get();
+  }
+
+  private interface TimerFactory {
+    BenchTimer create(Runnable task);
+  }
+
+  private interface TimerOperation {
+    void apply(BenchTimer timer);
+  }
+
+  private interface BenchTimer {
+    void schedule(long delay, long period);
+
+    void reset();
+
+    void cancel();
+
+    void destroy();
+  }
+
+  private static class WheelTimerAdapter implements BenchTimer {
+    private final Timer timer;
+
+    WheelTimerAdapter(Runnable task) {
+      timer = new Timer("TimerBenchmark", task);
+    }
+
+    public void schedule(long delay, long period) {
+      timer.schedule(delay, period);
+    }
+
+    public void reset() {
+      timer.reset();
+    }
+
+    public void cancel() {
+      timer.cancel();
+    }
+
+    public void destroy() {
+      timer.destroy();
+    }
+  }
+
+  private static class LegacyTimerAdapter implements BenchTimer {
+    private final LegacyTimer timer;
+
+    LegacyTimerAdapter(Runnable task) {
+      timer = new LegacyTimer("TimerBenchmark", task);
+    }
+
+    public void schedule(long delay, long period) {
+      timer.schedule(delay, period);
+    }
+
+    public void reset() {
+      timer.reset();
+    }
+
+    public void cancel() {
+      timer.cancel();
+    }
+
+    public void destroy() {
+      timer.destroy();
+    }
+  }
+
+  /**
+   * The timer implementation that ran every timer on a thread of its own.
+   */
+  private static class LegacyTimer extends Thread {
+    private final Runnable task;
+    private final Object lock = new Object();
+    private long delay;
+    private long period;
+    private boolean canceled;
+    private boolean scheduled;
+    private boolean reset;
+    private boolean stopped;
+
+    LegacyTimer(String name, Runnable task) {
+      super(name);
+      setDaemon(true);
+      this.task = task;
+      start();
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        synchronized (this) {
+          while (!scheduled && !stopped) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+          }
+          if (stopped) {
+            break;
+          }
+        }
+
+        synchronized (lock) {
+          reset = false;
+          canceled = false;
+          if (delay > 0) {
+            try {
+              lock.wait(delay);
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+          }
+          if (canceled) {
+            continue;
+          }
+        }
+
+        if (!reset) {
+          task.run();
+        }
+
+        if (period > 0) {
+          while (true) {
+            synchronized (lock) {
+              reset = false;
+              try {
+                lock.wait(period);
+              } catch (InterruptedException e) {
+                e.printStackTrace();
+              }
+              if (canceled) {
+                break;
+              }
+              if (reset) {
+                continue;
+              }
+            }
+            task.run();
+          }
+        }
+      }
+    }
+
+    synchronized void schedule(long delay, long period) {
+      this.delay = delay;
+      this.period = period;
+      if (scheduled) {
+        throw new IllegalStateException("already scheduled");
+      }
+      scheduled = true;
+      notify();
+      synchronized (lock) {
+        lock.notify();
+      }
+    }
+
+    synchronized void reset() {
+      synchronized (lock) {
+        reset = true;
+        lock.notify();
+      }
+    }
+
+    synchronized void cancel() {
+      scheduled = false;
+      synchronized (lock) {
+        canceled = true;
+        lock.notify();
+      }
+    }
+
+    public synchronized void destroy() {
+      cancel();
+      stopped = true;
+      notify();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package ch.imedias.rsccfx.model.connectionutils.rudp.src.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Tests the Timer class.
+ */
+public class TimerTest {
+  private static final int TIMEOUT = 5; // (s)
+  private static final int DELAY = 500; // (ms)
+
+  /**
+   * Test for a blocking timer that is rescheduled by its task, and expires again while the task
+   * still runs: the task runs once more as soon as it is done, rather than after another delay.
+   */
+  @Test(timeout = 10000)
+  public void testBlockingTimerRescheduledWhileRunning() throws Exception {
+    final CountDownLatch done = new CountDownLatch(2);
+    final long[] ended = new long[2];
+    final Timer[] timer = new Timer[1];
+    timer[0] = new Timer("test", () -> {
+      timer[0].cancel();
+      if (done.getCount() == 2) {
+        timer[0].schedule(DELAY);
+        sleep(DELAY + DELAY / 5);
+      }
+      ended[2 - (int) done.getCount()] = System.nanoTime();
+      done.countDown();
+    }, true);
+    timer[0].schedule(1);
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    timer[0].destroy();
+    long gap = (ended[1] - ended[0]) / 1000000;
+    assertTrue("ran again after " + gap + " ms", gap < DELAY / 2);
+  }
+
+  /**
+   * Test for a blocking timer that expires again while its task runs, and is cancelled before the
+   * task is done: the task does not run again.
+   */
+  @Test(timeout = 10000)
+  public void testBlockingTimerCancelledWhileRunning() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Timer timer = new Timer("test", () -> {
+      runs.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, true);
+    timer.schedule(1, 1);
+    assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+    sleep(50);
+    timer.destroy();
+    release.countDown();
+    sleep(50);
+    assertEquals(1, runs.get());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}